@@ -90,6 +90,8 @@ class Cql3ParsingRuleSet(CqlParsingRuleSet):
         ('read_repair_chance', None),
         ('replicate_on_write', None),
         ('populate_io_cache_on_flush', None),
+        ('memtable_allocator', None),
+        ('rows_per_partition_to_cache', None),
     )
 
     old_columnfamily_layout_map_options = (
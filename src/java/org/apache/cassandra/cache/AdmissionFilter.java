@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.config.Config;
+
+/**
+ * Decides whether a new entry is admitted in a full cache, evicting the entry the cache would evict to make room for
+ * it. With the lru policy, every new entry is admitted. With tinylfu, in the style of TinyLFU, a new entry is only
+ * admitted if its key has been requested more often recently than the key of the evicted entry, as estimated by a
+ * FrequencySketch of the requested keys: keys requested once, like those of a full scan, do not evict hot keys.
+ *
+ * There is no admission window in front of the filter as in W-TinyLFU, since the caches own their eviction order
+ * and have a single region: new keys only get in once they are requested more often than the entry they evict.
+ *
+ * The hit rate of the cache is kept for each policy, so that they can be compared on the same workload.
+ */
+public class AdmissionFilter
+{
+    private volatile Config.CacheAdmission policy = Config.CacheAdmission.lru;
+    private final FrequencySketch sketch = new FrequencySketch(0);
+
+    private final AtomicLong[] hits = new AtomicLong[Config.CacheAdmission.values().length];
+    private final AtomicLong[] requests = new AtomicLong[Config.CacheAdmission.values().length];
+
+    public AdmissionFilter()
+    {
+        for (int i = 0; i < hits.length; i++)
+        {
+            hits[i] = new AtomicLong();
+            requests[i] = new AtomicLong();
+        }
+    }
+
+    public Config.CacheAdmission getPolicy()
+    {
+        return policy;
+    }
+
+    public void setPolicy(Config.CacheAdmission policy)
+    {
+        this.policy = policy;
+    }
+
+    public boolean isFrequencyBased()
+    {
+        return policy == Config.CacheAdmission.tinylfu;
+    }
+
+    /**
+     * Record a request for key, whether it hit the cache or not.
+     */
+    public void record(Object key, boolean hit)
+    {
+        recordHash(key.hashCode(), hit);
+    }
+
+    /**
+     * Like record, for a key of the given hash code.
+     */
+    public void recordHash(int keyHash, boolean hit)
+    {
+        Config.CacheAdmission current = policy;
+        requests[current.ordinal()].incrementAndGet();
+        if (hit)
+            hits[current.ordinal()].incrementAndGet();
+        if (current == Config.CacheAdmission.tinylfu)
+            sketch.incrementHash(keyHash);
+    }
+
+    /**
+     * Size the frequency sketch for the given number of cached entries, see FrequencySketch.ensureCapacity
+     */
+    public void ensureCapacity(int entries)
+    {
+        sketch.ensureCapacity(entries);
+    }
+
+    /**
+     * @return whether the entry of candidate may evict the one of victim
+     */
+    public boolean admit(Object candidate, Object victim)
+    {
+        return !isFrequencyBased() || sketch.frequency(candidate) > sketch.frequency(victim);
+    }
+
+    /**
+     * @return the hit rate of the cache while each policy was in use, for the policies that have been used
+     */
+    public Map<String, Double> getHitRates()
+    {
+        Map<String, Double> hitRates = new LinkedHashMap<String, Double>();
+        for (Config.CacheAdmission p : Config.CacheAdmission.values())
+        {
+            long r = requests[p.ordinal()].get();
+            if (r > 0)
+                hitRates.put(p.name(), (double) hits[p.ordinal()].get() / r);
+        }
+        return hitRates;
+    }
+}
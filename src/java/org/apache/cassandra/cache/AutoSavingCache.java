@@ -20,14 +20,21 @@ package org.apache.cassandra.cache;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.collect.Lists;
 import org.cliffc.high_scale_lib.NonBlockingHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.concurrent.StageManager;
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.Table;
@@ -35,13 +42,16 @@ import org.apache.cassandra.db.compaction.CompactionInfo;
 import org.apache.cassandra.db.compaction.CompactionManager;
 import org.apache.cassandra.db.compaction.OperationType;
 import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.io.FSWriteError;
+import org.apache.cassandra.io.sstable.SSTableReader;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.io.util.LengthAvailableInputStream;
 import org.apache.cassandra.io.util.SequentialWriter;
 import org.apache.cassandra.service.CacheService;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.utils.Pair;
 
 public class AutoSavingCache<K extends CacheKey, V> extends InstrumentingCache<K, V>
@@ -54,6 +64,30 @@ public class AutoSavingCache<K extends CacheKey, V> extends InstrumentingCache<K
     protected volatile ScheduledFuture<?> saveTask;
     protected final CacheService.CacheType cacheType;
 
+    /** Number of saved entries of an sstable loaded by a same task. */
+    public static final int LOAD_CHUNK_SIZE = 1024;
+    /** Number of saved entries read, sorted and loaded at once. */
+    public static final int LOAD_BATCH_SIZE = 16 * LOAD_CHUNK_SIZE;
+
+    // runs the loaders of the column families, which wait on the chunks they submit to loadExecutor
+    private static final ExecutorService loadCoordinator = new JMXEnabledThreadPoolExecutor(1,
+                                                                                            StageManager.KEEPALIVE,
+                                                                                            TimeUnit.SECONDS,
+                                                                                            new LinkedBlockingQueue<Runnable>(),
+                                                                                            new NamedThreadFactory("CacheLoadCoordinator"),
+                                                                                            "internal");
+
+    private static final ExecutorService loadExecutor = new JMXEnabledThreadPoolExecutor(DatabaseDescriptor.getConcurrentCacheLoads(),
+                                                                                         StageManager.KEEPALIVE,
+                                                                                         TimeUnit.SECONDS,
+                                                                                         new LinkedBlockingQueue<Runnable>(),
+                                                                                         new NamedThreadFactory("CacheLoader"),
+                                                                                         "internal");
+
+    // column families whose saved caches are loaded once the node has started
+    private final List<ColumnFamilyStore> pendingLoads = new ArrayList<ColumnFamilyStore>();
+    private boolean loadingStarted;
+
     private CacheSerializer<K, V> cacheLoader;
     private static final String CURRENT_VERSION = "b";
 
@@ -97,78 +131,61 @@ public class AutoSavingCache<K extends CacheKey, V> extends InstrumentingCache<K
         }
     }
 
-    public int loadSaved(ColumnFamilyStore cfs)
+    /**
+     * Load the saved cache of cfs, at once if caches are not loaded in background or the node has already started
+     * loading them, once it has started otherwise.
+     */
+    public void scheduleLoading(ColumnFamilyStore cfs)
     {
-        int count = 0;
-        long start = System.currentTimeMillis();
-
-        // old cache format that only saves keys
-        File path = getCachePath(cfs.table.name, cfs.columnFamily, null);
-        if (path.exists())
+        synchronized (pendingLoads)
         {
-            DataInputStream in = null;
-            try
-            {
-                logger.info(String.format("reading saved cache %s", path));
-                in = new DataInputStream(new LengthAvailableInputStream(new BufferedInputStream(new FileInputStream(path)), path.length()));
-                Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
-                while (in.available() > 0)
-                {
-                    keys.add(ByteBufferUtil.readWithLength(in));
-                    count++;
-                }
-                cacheLoader.load(keys, cfs);
-            }
-            catch (Exception e)
-            {
-                logger.debug(String.format("harmless error reading saved cache %s fully, keys loaded so far: %d", path.getAbsolutePath(), count), e);
-                return count;
-            }
-            finally
+            if (DatabaseDescriptor.isCacheLoadInBackground() && !loadingStarted)
             {
-                FileUtils.closeQuietly(in);
+                pendingLoads.add(cfs);
+                return;
             }
         }
+        if (DatabaseDescriptor.isCacheLoadInBackground())
+            submitLoad(cfs);
+        else
+            loadSaved(cfs);
+    }
 
-        // modern format, allows both key and value (so key cache load can be purely sequential)
-        path = getCachePath(cfs.table.name, cfs.columnFamily, CURRENT_VERSION);
-        if (path.exists())
+    /**
+     * Start loading in background the saved caches scheduled so far, and those scheduled later on.
+     */
+    public void startLoading()
+    {
+        List<ColumnFamilyStore> stores;
+        synchronized (pendingLoads)
         {
-            DataInputStream in = null;
-            try
-            {
-                logger.info(String.format("reading saved cache %s", path));
-                in = new DataInputStream(new LengthAvailableInputStream(new BufferedInputStream(new FileInputStream(path)), path.length()));
-                List<Future<Pair<K, V>>> futures = new ArrayList<Future<Pair<K, V>>>();
-                while (in.available() > 0)
-                {
-                    Future<Pair<K, V>> entry = cacheLoader.deserialize(in, cfs);
-                    // Key cache entry can return null, if the SSTable doesn't exist.
-                    if (entry == null)
-                        continue;
-                    futures.add(entry);
-                    count++;
-                }
+            loadingStarted = true;
+            stores = new ArrayList<ColumnFamilyStore>(pendingLoads);
+            pendingLoads.clear();
+        }
+        for (ColumnFamilyStore cfs : stores)
+            submitLoad(cfs);
+    }
 
-                for (Future<Pair<K, V>> future : futures)
-                {
-                    Pair<K, V> entry = future.get();
-                    put(entry.left, entry.right);
-                }
-            }
-            catch (Exception e)
-            {
-                logger.debug(String.format("harmless error reading saved cache %s", path.getAbsolutePath()), e);
-            }
-            finally
+    private Future<?> submitLoad(final ColumnFamilyStore cfs)
+    {
+        return loadCoordinator.submit(new Runnable()
+        {
+            public void run()
             {
-                FileUtils.closeQuietly(in);
+                CompactionManager.instance.runCacheLoad(new Loader(cfs));
             }
-        }
-        if (logger.isDebugEnabled())
-            logger.debug(String.format("completed reading (%d ms; %d keys) saved cache %s",
-                    System.currentTimeMillis() - start, count, path));
-        return count;
+        });
+    }
+
+    /**
+     * Load the saved cache of cfs.
+     *
+     * @return the number of entries read from the saved cache
+     */
+    public int loadSaved(ColumnFamilyStore cfs)
+    {
+        return new Loader(cfs).load();
     }
 
     public Future<?> submitWrite(int keysToSave)
@@ -189,6 +206,170 @@ public class AutoSavingCache<K extends CacheKey, V> extends InstrumentingCache<K
         }
     }
 
+    /**
+     * Loads the saved cache of a column family. Entries are read from the saved cache file in batches of
+     * LOAD_BATCH_SIZE entries, whose entries are looked up sstable by sstable in the order of their partitions on
+     * disk, so that reads are sequential. The entries of an sstable, or of all sstables for entries that are read from
+     * all of them, are split in chunks of LOAD_CHUNK_SIZE entries loaded by up to concurrent_cache_loads threads, while
+     * the next batch is read.
+     */
+    public class Loader extends CompactionInfo.Holder
+    {
+        private final ColumnFamilyStore cfs;
+        private final CompactionInfo info;
+        private final AtomicLong entriesLoaded = new AtomicLong();
+        private volatile long entriesRead;
+
+        protected Loader(ColumnFamilyStore cfs)
+        {
+            this.cfs = cfs;
+
+            OperationType type;
+            if (cacheType == CacheService.CacheType.KEY_CACHE)
+                type = OperationType.KEY_CACHE_LOAD;
+            else if (cacheType == CacheService.CacheType.ROW_CACHE)
+                type = OperationType.ROW_CACHE_LOAD;
+            else
+                type = OperationType.UNKNOWN;
+
+            info = new CompactionInfo(cfs.metadata, type, 0, 0, "keys");
+        }
+
+        public CompactionInfo getCompactionInfo()
+        {
+            long loaded = entriesLoaded.get();
+            return info.forProgress(loaded, Math.max(loaded, entriesRead));
+        }
+
+        /**
+         * @return the number of entries read from the saved cache
+         */
+        public int load()
+        {
+            if (!cfs.isValid())
+                return 0;
+
+            int count = 0;
+            long start = System.currentTimeMillis();
+
+            // old cache format that only saves keys
+            File path = getCachePath(cfs.table.name, cfs.columnFamily, null);
+            if (path.exists())
+            {
+                DataInputStream in = null;
+                try
+                {
+                    logger.info(String.format("reading saved cache %s", path));
+                    in = new DataInputStream(new LengthAvailableInputStream(new BufferedInputStream(new FileInputStream(path)), path.length()));
+                    Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+                    while (in.available() > 0)
+                    {
+                        keys.add(ByteBufferUtil.readWithLength(in));
+                        count++;
+                    }
+                    cacheLoader.load(keys, cfs);
+                }
+                catch (Exception e)
+                {
+                    logger.debug(String.format("harmless error reading saved cache %s fully, keys loaded so far: %d", path.getAbsolutePath(), count), e);
+                    return count;
+                }
+                finally
+                {
+                    FileUtils.closeQuietly(in);
+                }
+            }
+
+            // modern format, allows both key and value (so key cache load can be purely sequential)
+            path = getCachePath(cfs.table.name, cfs.columnFamily, CURRENT_VERSION);
+            if (path.exists())
+            {
+                Map<SSTableReader, List<SavedEntry>> batch = new HashMap<SSTableReader, List<SavedEntry>>();
+                List<Future<?>> loading = Collections.emptyList();
+                DataInputStream in = null;
+                try
+                {
+                    logger.info(String.format("reading saved cache %s", path));
+                    in = new DataInputStream(new LengthAvailableInputStream(new BufferedInputStream(new FileInputStream(path)), path.length()));
+                    int batchSize = 0;
+                    while (in.available() > 0)
+                    {
+                        SavedEntry entry = cacheLoader.deserialize(in, cfs);
+                        // Key cache entry can be null, if the SSTable doesn't exist.
+                        if (entry == null)
+                            continue;
+                        List<SavedEntry> sstableEntries = batch.get(entry.sstable);
+                        if (sstableEntries == null)
+                        {
+                            sstableEntries = new ArrayList<SavedEntry>();
+                            batch.put(entry.sstable, sstableEntries);
+                        }
+                        sstableEntries.add(entry);
+                        entriesRead = ++count;
+
+                        if (++batchSize == LOAD_BATCH_SIZE)
+                        {
+                            loading = load(batch, loading);
+                            batch = new HashMap<SSTableReader, List<SavedEntry>>();
+                            batchSize = 0;
+                        }
+                    }
+                }
+                catch (Exception e)
+                {
+                    logger.debug(String.format("harmless error reading saved cache %s", path.getAbsolutePath()), e);
+                }
+                finally
+                {
+                    FileUtils.closeQuietly(in);
+                }
+                FBUtilities.waitOnFutures(load(batch, loading));
+            }
+            if (count > 0)
+                logger.info(String.format("completed loading (%d ms; %d keys) %s for %s.%s",
+                                          System.currentTimeMillis() - start, count, cacheType, cfs.table.name, cfs.columnFamily));
+            return count;
+        }
+
+        /**
+         * Submit the loading of a batch of entries, once the previous batch is loaded.
+         *
+         * @return the futures of the loading of the batch
+         */
+        private List<Future<?>> load(Map<SSTableReader, List<SavedEntry>> batch, List<Future<?>> previous)
+        {
+            FBUtilities.waitOnFutures(previous);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (List<SavedEntry> sstableEntries : batch.values())
+            {
+                // partitions are stored in the order of their decorated keys
+                Collections.sort(sstableEntries);
+                for (final List<SavedEntry> chunk : Lists.partition(sstableEntries, LOAD_CHUNK_SIZE))
+                {
+                    futures.add(loadExecutor.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            for (SavedEntry entry : chunk)
+                            {
+                                try
+                                {
+                                    entry.load();
+                                }
+                                catch (Exception e)
+                                {
+                                    logger.debug(String.format("harmless error loading saved cache entry %s of %s", entry.key, cfs), e);
+                                }
+                                entriesLoaded.incrementAndGet();
+                            }
+                        }
+                    }));
+                }
+            }
+            return futures;
+        }
+    }
+
     public class Writer extends CompactionInfo.Holder
     {
         private final Set<K> keys;
@@ -324,9 +505,38 @@ public class AutoSavingCache<K extends CacheKey, V> extends InstrumentingCache<K
     {
         void serialize(K key, DataOutput out) throws IOException;
 
-        Future<Pair<K, V>> deserialize(DataInputStream in, ColumnFamilyStore cfs) throws IOException;
+        /**
+         * @return the entry read, to be loaded later on, or null if it can't be loaded anymore
+         */
+        SavedEntry deserialize(DataInputStream in, ColumnFamilyStore cfs) throws IOException;
 
         @Deprecated
         void load(Set<ByteBuffer> buffer, ColumnFamilyStore cfs);
     }
+
+    /**
+     * An entry read from a saved cache, loaded in the order of its partition on disk.
+     */
+    public static abstract class SavedEntry implements Comparable<SavedEntry>
+    {
+        /** the sstable the entry is looked up in, or null if it is read from all of them */
+        public final SSTableReader sstable;
+        public final DecoratedKey key;
+
+        protected SavedEntry(SSTableReader sstable, DecoratedKey key)
+        {
+            this.sstable = sstable;
+            this.key = key;
+        }
+
+        public int compareTo(SavedEntry that)
+        {
+            return key.compareTo(that.key);
+        }
+
+        /**
+         * Look the entry up and add it to the cache.
+         */
+        public abstract void load();
+    }
 }
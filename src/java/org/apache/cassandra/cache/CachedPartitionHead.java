@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import com.google.common.base.Objects;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.utils.HeapAllocator;
+import org.apache.cassandra.utils.ObjectSizes;
+
+/**
+ * The head of a partition cached for a column family caching only its first rows: the columns of the partition up to
+ * and including end, in comparator order, and its deletion info. An empty end means the head is the whole partition.
+ */
+public class CachedPartitionHead implements IRowCacheEntry
+{
+    public final ColumnFamily columns;
+    public final ByteBuffer end;
+
+    public CachedPartitionHead(ColumnFamily columns, ByteBuffer end)
+    {
+        this.columns = columns;
+        this.end = end;
+    }
+
+    public boolean isWholePartition()
+    {
+        return end.remaining() == 0;
+    }
+
+    /**
+     * Add the columns of update that are in the head, and its deletion info.
+     */
+    public void update(ColumnFamily update)
+    {
+        if (isWholePartition())
+        {
+            columns.addAll(update, HeapAllocator.instance);
+            return;
+        }
+
+        ColumnFamily covered = update.cloneMeShallow();
+        Comparator<ByteBuffer> comparator = columns.getComparator();
+        for (IColumn column : update)
+        {
+            if (comparator.compare(column.name(), end) <= 0)
+                covered.addColumn(column);
+        }
+        columns.addAll(covered, HeapAllocator.instance);
+    }
+
+    public long memorySize()
+    {
+        return ObjectSizes.getFieldSize(2 * ObjectSizes.getReferenceSize()) + columns.memorySize() + ObjectSizes.getSize(end);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof CachedPartitionHead))
+            return false;
+
+        CachedPartitionHead other = (CachedPartitionHead) o;
+        return end.equals(other.end) && columns.equals(other.columns);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hashCode(columns, end);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+/**
+ * The next entry a ConcurrentLinkedHashMap would evict, for admission checks. Iterating the map in eviction order
+ * takes its eviction lock, so the coldest keys are sampled in batches, and a batch is only refreshed once it is used
+ * up or has been used for BATCH_SIZE checks. Keys evicted since the batch was taken are skipped.
+ */
+class ColdKeySampler<K>
+{
+    private static final int BATCH_SIZE = 16;
+
+    private final ConcurrentLinkedHashMap<K, ?> map;
+    private final Queue<K> coldKeys = new ConcurrentLinkedQueue<K>();
+    private final AtomicInteger uses = new AtomicInteger();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    ColdKeySampler(ConcurrentLinkedHashMap<K, ?> map)
+    {
+        this.map = map;
+    }
+
+    /**
+     * @return the key of the entry the map would evict next, as of the last sample, or null if the map is empty
+     */
+    K next()
+    {
+        if (uses.incrementAndGet() > BATCH_SIZE)
+            refresh();
+
+        K key = skipEvicted();
+        if (key == null)
+        {
+            refresh();
+            key = skipEvicted();
+        }
+        return key;
+    }
+
+    private K skipEvicted()
+    {
+        K key;
+        while ((key = coldKeys.peek()) != null && !map.containsKey(key))
+            coldKeys.remove(key);
+        return key;
+    }
+
+    private void refresh()
+    {
+        // a concurrent check is refreshing the batch already: use the current one
+        if (!refreshing.compareAndSet(false, true))
+            return;
+        try
+        {
+            coldKeys.clear();
+            coldKeys.addAll(map.ascendingKeySetWithLimit(BATCH_SIZE));
+            uses.set(0);
+        }
+        finally
+        {
+            refreshing.set(false);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.util.Set;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import org.apache.cassandra.io.sstable.SerializedColumnIndex;
+
+/**
+ * Caches column indexes off-heap. The cache holds a reference to each index it contains, released as the index is
+ * evicted, removed or replaced, so that the memory of an index is freed once neither the cache nor a reader uses it.
+ * get references the index it returns, for the caller to unreference when done with it.
+ */
+public class ColumnIndexCache implements ICache<ColumnIndexCacheKey, SerializedColumnIndex>
+{
+    public static final int DEFAULT_CONCURENCY_LEVEL = 64;
+
+    private final ConcurrentLinkedHashMap<ColumnIndexCacheKey, SerializedColumnIndex> map;
+    private final ColdKeySampler<ColumnIndexCacheKey> coldKeys;
+
+    private ColumnIndexCache(long weightedCapacity)
+    {
+        EvictionListener<ColumnIndexCacheKey, SerializedColumnIndex> listener = new EvictionListener<ColumnIndexCacheKey, SerializedColumnIndex>()
+        {
+            public void onEviction(ColumnIndexCacheKey key, SerializedColumnIndex columnIndex)
+            {
+                columnIndex.unreference();
+            }
+        };
+
+        this.map = new ConcurrentLinkedHashMap.Builder<ColumnIndexCacheKey, SerializedColumnIndex>()
+                   .weigher(new EntryWeigher<ColumnIndexCacheKey, SerializedColumnIndex>()
+                   {
+                       public int weightOf(ColumnIndexCacheKey key, SerializedColumnIndex columnIndex)
+                       {
+                           long size = key.memorySize() + columnIndex.memorySize();
+                           assert size < Integer.MAX_VALUE : "Serialized size cannot be more than 2GB/Integer.MAX_VALUE";
+                           return (int) size;
+                       }
+                   })
+                   .maximumWeightedCapacity(weightedCapacity)
+                   .concurrencyLevel(DEFAULT_CONCURENCY_LEVEL)
+                   .listener(listener)
+                   .build();
+        this.coldKeys = new ColdKeySampler<ColumnIndexCacheKey>(map);
+    }
+
+    public static ColumnIndexCache create(long weightedCapacity)
+    {
+        return new ColumnIndexCache(weightedCapacity);
+    }
+
+    public long capacity()
+    {
+        return map.capacity();
+    }
+
+    public void setCapacity(long capacity)
+    {
+        map.setCapacity(capacity);
+    }
+
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    public int size()
+    {
+        return map.size();
+    }
+
+    public long weightedSize()
+    {
+        return map.weightedSize();
+    }
+
+    public void clear()
+    {
+        // CLHM.clear does not notify the listener: remove the indexes one by one to release them
+        for (ColumnIndexCacheKey key : map.keySet())
+            remove(key);
+    }
+
+    /**
+     * @return the index cached for key, referenced so that it is not freed before the caller unreferences it, or null
+     * if key is not cached
+     */
+    public SerializedColumnIndex get(ColumnIndexCacheKey key)
+    {
+        SerializedColumnIndex columnIndex = map.get(key);
+        if (columnIndex == null || !columnIndex.reference())
+            return null;
+        return columnIndex;
+    }
+
+    public void put(ColumnIndexCacheKey key, SerializedColumnIndex columnIndex)
+    {
+        if (!columnIndex.reference())
+            return; // already freed, never mind
+
+        SerializedColumnIndex old = map.put(key, columnIndex);
+        if (old != null)
+            old.unreference();
+    }
+
+    public boolean putIfAbsent(ColumnIndexCacheKey key, SerializedColumnIndex columnIndex)
+    {
+        if (!columnIndex.reference())
+            return false;
+
+        SerializedColumnIndex old = map.putIfAbsent(key, columnIndex);
+        if (old != null)
+            // not put, release the reference taken for the cache
+            columnIndex.unreference();
+        return old == null;
+    }
+
+    public boolean replace(ColumnIndexCacheKey key, SerializedColumnIndex old, SerializedColumnIndex columnIndex)
+    {
+        if (!columnIndex.reference())
+            return false;
+
+        boolean success = map.replace(key, old, columnIndex);
+        if (success)
+            old.unreference();
+        else
+            columnIndex.unreference();
+        return success;
+    }
+
+    public void remove(ColumnIndexCacheKey key)
+    {
+        SerializedColumnIndex columnIndex = map.remove(key);
+        if (columnIndex != null)
+            columnIndex.unreference();
+    }
+
+    public Set<ColumnIndexCacheKey> keySet()
+    {
+        return map.keySet();
+    }
+
+    public Set<ColumnIndexCacheKey> hotKeySet(int n)
+    {
+        return map.descendingKeySetWithLimit(n);
+    }
+
+    public ColumnIndexCacheKey victim(ColumnIndexCacheKey key)
+    {
+        return coldKeys.next();
+    }
+
+    public boolean containsKey(ColumnIndexCacheKey key)
+    {
+        return map.containsKey(key);
+    }
+
+    public boolean isPutCopying()
+    {
+        return false;
+    }
+}
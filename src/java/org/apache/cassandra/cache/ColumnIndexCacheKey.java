@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import org.apache.cassandra.db.TypeSizes;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.utils.ObjectSizes;
+import org.apache.cassandra.utils.Pair;
+
+/**
+ * Identifies the column index of a partition by the sstable and the position of the index in its primary index,
+ * so that it can be looked up without the partition key.
+ */
+public class ColumnIndexCacheKey implements CacheKey
+{
+    public final Descriptor desc;
+    public final long indexPosition;
+
+    public ColumnIndexCacheKey(Descriptor desc, long indexPosition)
+    {
+        this.desc = desc;
+        this.indexPosition = indexPosition;
+    }
+
+    public Pair<String, String> getPathInfo()
+    {
+        return Pair.create(desc.ksname, desc.cfname);
+    }
+
+    public String toString()
+    {
+        return String.format("ColumnIndexCacheKey(%s, %d)", desc, indexPosition);
+    }
+
+    public long memorySize()
+    {
+        return ObjectSizes.getFieldSize(// desc
+                                        ObjectSizes.getReferenceSize() +
+                                        TypeSizes.NATIVE.sizeof(indexPosition));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ColumnIndexCacheKey that = (ColumnIndexCacheKey) o;
+        return indexPosition == that.indexPosition && desc.equals(that.desc);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * desc.hashCode() + (int) (indexPosition ^ (indexPosition >>> 32));
+    }
+}
@@ -28,10 +28,12 @@ public class ConcurrentLinkedHashCache<K extends IMeasurableMemory, V extends IM
 {
     public static final int DEFAULT_CONCURENCY_LEVEL = 64;
     private final ConcurrentLinkedHashMap<K, V> map;
+    private final ColdKeySampler<K> coldKeys;
 
     private ConcurrentLinkedHashCache(ConcurrentLinkedHashMap<K, V> map)
     {
         this.map = map;
+        this.coldKeys = new ColdKeySampler<K>(map);
     }
 
     /**
@@ -126,6 +128,11 @@ public class ConcurrentLinkedHashCache<K extends IMeasurableMemory, V extends IM
         return map.descendingKeySetWithLimit(n);
     }
 
+    public K victim(K key)
+    {
+        return coldKeys.next();
+    }
+
     public boolean containsKey(K key)
     {
         return map.containsKey(key);
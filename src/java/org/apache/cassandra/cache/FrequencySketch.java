@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often keys have been seen recently. Each key has a 4-bit counter in each of 4 rows
+ * of a table of longs, its estimated frequency being the smallest of them. Once the sketch has counted 10 increments
+ * per long of its table, all counters are halved, so that frequencies age.
+ *
+ * Updates are not atomic: concurrent increments or a concurrent aging may be lost, which only makes the estimates a
+ * bit less accurate.
+ */
+public class FrequencySketch
+{
+    public static final int MAX_FREQUENCY = 15;
+
+    // the table is sized for at most that many keys
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+    private static final long[] SEEDS = new long[]{ 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private volatile AtomicLongArray table;
+    private volatile int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    public FrequencySketch(int expectedKeys)
+    {
+        table = new AtomicLongArray(tableSize(expectedKeys));
+        sampleSize = 10 * table.length();
+    }
+
+    private static int tableSize(int keys)
+    {
+        int size = Integer.highestOneBit(Math.max(keys, 64) - 1) << 1;
+        return Math.min(size, MAX_TABLE_SIZE);
+    }
+
+    /**
+     * Make room for the frequencies of keys keys, forgetting all the frequencies counted so far if the table has to
+     * grow.
+     */
+    public void ensureCapacity(int keys)
+    {
+        int size = tableSize(keys);
+        if (size <= table.length())
+            return;
+        synchronized (this)
+        {
+            if (size <= table.length())
+                return;
+            table = new AtomicLongArray(size);
+            sampleSize = 10 * size;
+            additions.set(0);
+        }
+    }
+
+    /**
+     * @return the estimated number of times key has been seen recently, at most MAX_FREQUENCY
+     */
+    public int frequency(Object key)
+    {
+        AtomicLongArray table = this.table;
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < SEEDS.length; i++)
+        {
+            long h = indexHash(hash, i);
+            int shift = counterShift(h);
+            frequency = Math.min(frequency, (int) ((table.get(index(table, h)) >>> shift) & MAX_FREQUENCY));
+        }
+        return frequency;
+    }
+
+    /**
+     * Count one more occurrence of key, unless its counters are all saturated.
+     */
+    public void increment(Object key)
+    {
+        incrementHash(key.hashCode());
+    }
+
+    /**
+     * Like increment, for a key of the given hash code.
+     */
+    public void incrementHash(int keyHash)
+    {
+        AtomicLongArray table = this.table;
+        int hash = spread(keyHash);
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++)
+        {
+            long h = indexHash(hash, i);
+            added |= incrementAt(table, index(table, h), counterShift(h));
+        }
+
+        if (added && additions.incrementAndGet() == sampleSize)
+            reset(table);
+    }
+
+    private static boolean incrementAt(AtomicLongArray table, int index, int shift)
+    {
+        long mask = (long) MAX_FREQUENCY << shift;
+        long word = table.get(index);
+        if ((word & mask) == mask)
+            return false;
+        return table.compareAndSet(index, word, word + (1L << shift));
+    }
+
+    // halve all counters, and the count of additions accordingly
+    private void reset(AtomicLongArray table)
+    {
+        for (int i = 0; i < table.length(); i++)
+            table.set(i, (table.get(i) >>> 1) & RESET_MASK);
+        additions.set(sampleSize / 2);
+    }
+
+    private static int spread(int hash)
+    {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    private static long indexHash(int hash, int i)
+    {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h + (h >>> 32);
+    }
+
+    private static int index(AtomicLongArray table, long h)
+    {
+        return (int) h & (table.length() - 1);
+    }
+
+    // each long holds 16 counters of 4 bits
+    private static int counterShift(long h)
+    {
+        return (int) (h >>> 60) << 2;
+    }
+}
@@ -50,6 +50,12 @@ public interface ICache<K, V>
 
     public Set<K> hotKeySet(int n);
 
+    /**
+     * @return the key of the entry that would be evicted first to make room for key, or null if there is none. The
+     * answer may be approximate, so that it can be asked on each put without contention on the whole cache.
+     */
+    public K victim(K key);
+
     public boolean containsKey(K key);
 
     /**
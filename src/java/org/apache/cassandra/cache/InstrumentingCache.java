@@ -17,18 +17,23 @@
  */
 package org.apache.cassandra.cache;
 
+import java.nio.ByteBuffer;
 import java.util.Set;
 
+import org.apache.cassandra.db.RowIndexEntry;
+import org.apache.cassandra.io.sstable.Descriptor;
 import org.apache.cassandra.metrics.CacheMetrics;
 
 /**
- * Wraps an ICache in requests + hits tracking.
+ * Wraps an ICache in requests + hits tracking, and in an AdmissionFilter deciding which new entries are put in the
+ * cache once it is full.
  */
 public class InstrumentingCache<K, V>
 {
     private volatile boolean capacitySetManually;
     private final ICache<K, V> map;
     private final String type;
+    private final AdmissionFilter admission = new AdmissionFilter();
 
     private CacheMetrics metrics;
 
@@ -41,12 +46,40 @@ public class InstrumentingCache<K, V>
 
     public void put(K key, V value)
     {
-        map.put(key, value);
+        if (admits(key))
+            map.put(key, value);
     }
 
     public boolean putIfAbsent(K key, V value)
     {
-        return map.putIfAbsent(key, value);
+        return admits(key) && map.putIfAbsent(key, value);
+    }
+
+    // whether an entry for key may be put in the cache, evicting the coldest entry if the cache is full
+    private boolean admits(K key)
+    {
+        if (!admission.isFrequencyBased())
+            return true;
+
+        if (map.weightedSize() < map.capacity() || map.containsKey(key))
+            return true;
+
+        K victim = map.victim(key);
+        if (victim == null || admission.admit(key, victim))
+            return true;
+        metrics.admissionRejections.mark();
+        return false;
+    }
+
+    /**
+     * Size the admission sketch for the number of entries of the full cache, estimated from the current average
+     * entry weight. This is done on capacity changes and periodically rather than on each put.
+     */
+    public void resizeAdmission()
+    {
+        long weightedSize = map.weightedSize();
+        if (weightedSize > 0)
+            admission.ensureCapacity((int) Math.min(Integer.MAX_VALUE, map.size() * map.capacity() / weightedSize));
     }
 
     public boolean replace(K key, V old, V value)
@@ -60,9 +93,54 @@ public class InstrumentingCache<K, V>
         metrics.requests.mark();
         if (v != null)
             metrics.hits.mark();
+        admission.record(key, v != null);
         return v;
     }
 
+    /**
+     * @return whether the cache keeps its values serialized, in a SerializingCache, so that they can be read
+     * without being deserialized through getSerialized
+     */
+    public boolean isSerializing()
+    {
+        return map instanceof SerializingCache;
+    }
+
+    /**
+     * Like get, for a cache that isSerializing(): see SerializingCache.getSerialized
+     */
+    public RefCountedMemory getSerialized(K key)
+    {
+        assert isSerializing() : map.getClass();
+        RefCountedMemory mem = ((SerializingCache<K, V>) map).getSerialized(key);
+        metrics.requests.mark();
+        if (mem != null)
+            metrics.hits.mark();
+        admission.record(key, mem != null);
+        return mem;
+    }
+
+    /**
+     * Like get, or getInternal if !updateStats, for an OffHeapKeyCache: see OffHeapKeyCache.get(Descriptor, ByteBuffer)
+     */
+    public RowIndexEntry getKeyCacheEntry(Descriptor desc, ByteBuffer key, boolean updateStats)
+    {
+        RowIndexEntry entry = ((OffHeapKeyCache) map).get(desc, key);
+        if (updateStats)
+        {
+            metrics.requests.mark();
+            if (entry != null)
+                metrics.hits.mark();
+            admission.recordHash(KeyCacheKey.hashCode(desc, key), entry != null);
+        }
+        return entry;
+    }
+
+    public boolean isOffHeapKeyCache()
+    {
+        return map instanceof OffHeapKeyCache;
+    }
+
     public V getInternal(K key)
     {
         return map.get(key);
@@ -86,6 +164,7 @@ public class InstrumentingCache<K, V>
     public void updateCapacity(long capacity)
     {
         map.setCapacity(capacity);
+        resizeAdmission();
     }
 
     public void setCapacity(long capacity)
@@ -130,6 +209,11 @@ public class InstrumentingCache<K, V>
         return map.isPutCopying();
     }
 
+    public AdmissionFilter getAdmission()
+    {
+        return admission;
+    }
+
     public CacheMetrics getMetrics()
     {
         return metrics;
@@ -78,4 +78,15 @@ public class KeyCacheKey implements CacheKey
         result = 31 * result + (key != null ? Arrays.hashCode(key) : 0);
         return result;
     }
+
+    /**
+     * @return the hash code of the KeyCacheKey of desc and key, without building it
+     */
+    public static int hashCode(Descriptor desc, ByteBuffer key)
+    {
+        int keyHash = 1;
+        for (int i = key.position(); i < key.limit(); i++)
+            keyHash = 31 * keyHash + key.get(i);
+        return 31 * desc.hashCode() + keyHash;
+    }
 }
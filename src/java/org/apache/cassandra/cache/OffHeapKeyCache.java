@@ -0,0 +1,723 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.db.DeletionTime;
+import org.apache.cassandra.db.RowIndexEntry;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.io.util.Memory.Address;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * A key cache holding its keys and index entries in native memory, out of the JVM heap. Each entry is a native
+ * allocation laid out as
+ * <pre>
+ *   size (int), sstable id (int), key length (int), key, kind (byte), position (long), then
+ *     for a SHALLOW entry: markedForDeleteAt (long), localDeletionTime (int), column index position (long)
+ *     for an INDEXED entry: length (int), the entry serialized by RowIndexEntry.serializer
+ * </pre>
+ * The entries are indexed by SEGMENTS open-addressing tables in native memory, each slot holding the address of an
+ * entry, the hash of its key and whether it has been read recently. Sstables are identified in entries by ids
+ * assigned when their first entry is cached and released with their last entry.
+ *
+ * A segment evicts its entries with the CLOCK algorithm, an approximation of LRU: its hand goes through the slots,
+ * sparing the entries read since it last passed them, and evicts the first other one.
+ *
+ * Looking up a PLAIN or SHALLOW entry with get(Descriptor, ByteBuffer) allocates nothing but the returned
+ * RowIndexEntry. An INDEXED entry, which holds the column index of a wide row, is deserialized with its whole column
+ * index on each hit instead, which for wide rows is more garbage than the on-heap key cache makes. Entries are only
+ * INDEXED when the column index cache is disabled, or when they come from a saved cache or a compaction: otherwise
+ * the column index is left in the column index cache and the entry is SHALLOW.
+ */
+public class OffHeapKeyCache implements ICache<KeyCacheKey, RowIndexEntry>
+{
+    public static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENTS);
+    private static final int INITIAL_SLOTS = 16;
+
+    // entry address (long), hash (int), referenced (int)
+    private static final int SLOT_SIZE = 16;
+
+    private static final int KEY_OFFSET = 12;
+
+    private static final byte PLAIN = 0;
+    private static final byte SHALLOW = 1;
+    private static final byte INDEXED = 2;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private volatile long capacity;
+
+    private final AtomicInteger lastSSTableId = new AtomicInteger();
+    private final ConcurrentMap<Descriptor, SSTableId> idsByDescriptor = new ConcurrentHashMap<Descriptor, SSTableId>();
+    private final ConcurrentMap<Integer, SSTableId> ids = new ConcurrentHashMap<Integer, SSTableId>();
+
+    public OffHeapKeyCache(long capacity)
+    {
+        this.capacity = capacity;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+    }
+
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    public void setCapacity(long capacity)
+    {
+        this.capacity = capacity;
+        for (Segment segment : segments)
+            segment.evict();
+    }
+
+    public void put(KeyCacheKey key, RowIndexEntry value)
+    {
+        put(key, value, false);
+    }
+
+    public boolean putIfAbsent(KeyCacheKey key, RowIndexEntry value)
+    {
+        return put(key, value, true);
+    }
+
+    private boolean put(KeyCacheKey key, RowIndexEntry value, boolean ifAbsent)
+    {
+        int hash = mix(key.hashCode());
+        SSTableId id = acquire(key.desc);
+        long entry = allocate(id.id, key.key, value);
+        if (segmentFor(hash).put(id.id, ByteBuffer.wrap(key.key), hash, entry, ifAbsent))
+            return true;
+        discard(entry);
+        return false;
+    }
+
+    public boolean replace(KeyCacheKey key, RowIndexEntry old, RowIndexEntry value)
+    {
+        int hash = mix(key.hashCode());
+        SSTableId id = acquire(key.desc);
+        long entry = allocate(id.id, key.key, value);
+        // only compared to the cached entry
+        long expected = allocate(id.id, key.key, old);
+        try
+        {
+            if (segmentFor(hash).replace(id.id, ByteBuffer.wrap(key.key), hash, expected, entry))
+                return true;
+        }
+        finally
+        {
+            free(expected);
+        }
+        discard(entry);
+        return false;
+    }
+
+    public RowIndexEntry get(KeyCacheKey key)
+    {
+        return get(key.desc, ByteBuffer.wrap(key.key));
+    }
+
+    /**
+     * Like get(KeyCacheKey), without building the KeyCacheKey.
+     */
+    public RowIndexEntry get(Descriptor desc, ByteBuffer key)
+    {
+        SSTableId id = idsByDescriptor.get(desc);
+        if (id == null)
+            return null;
+
+        int hash = mix(KeyCacheKey.hashCode(desc, key));
+        return segmentFor(hash).get(id.id, key, hash);
+    }
+
+    public void remove(KeyCacheKey key)
+    {
+        SSTableId id = idsByDescriptor.get(key.desc);
+        if (id == null)
+            return;
+
+        int hash = mix(key.hashCode());
+        segmentFor(hash).remove(id.id, ByteBuffer.wrap(key.key), hash);
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size;
+        return size;
+    }
+
+    public long weightedSize()
+    {
+        long weight = 0;
+        for (Segment segment : segments)
+            weight += segment.weight;
+        return weight;
+    }
+
+    public void clear()
+    {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    public Set<KeyCacheKey> keySet()
+    {
+        return hotKeySet(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the keys read since the clock hand last passed them, then the other ones
+     */
+    public Set<KeyCacheKey> hotKeySet(int n)
+    {
+        Set<KeyCacheKey> keys = new LinkedHashSet<KeyCacheKey>();
+        for (int pass = 0; pass < 2; pass++)
+        {
+            for (Segment segment : segments)
+            {
+                if (!segment.addKeys(keys, n, pass == 0))
+                    return keys;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the key of the entry the clock hand of the segment of key evicts next
+     */
+    public KeyCacheKey victim(KeyCacheKey key)
+    {
+        return segmentFor(mix(key.hashCode())).victim();
+    }
+
+    public boolean containsKey(KeyCacheKey key)
+    {
+        SSTableId id = idsByDescriptor.get(key.desc);
+        if (id == null)
+            return false;
+
+        int hash = mix(key.hashCode());
+        return segmentFor(hash).contains(id.id, ByteBuffer.wrap(key.key), hash);
+    }
+
+    public boolean isPutCopying()
+    {
+        return true;
+    }
+
+    private Segment segmentFor(int hash)
+    {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    // the murmur3 finalizer, so that both the segment and the slot of a key depend on all the bits of its hash
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private SSTableId acquire(Descriptor desc)
+    {
+        while (true)
+        {
+            SSTableId id = idsByDescriptor.get(desc);
+            if (id == null)
+            {
+                SSTableId created = new SSTableId(lastSSTableId.incrementAndGet(), desc);
+                // known by id before it is found by descriptor, so that its entries can always be released
+                ids.put(created.id, created);
+                id = idsByDescriptor.putIfAbsent(desc, created);
+                if (id == null)
+                    id = created;
+                else
+                    ids.remove(created.id);
+            }
+
+            int entries = id.entries.get();
+            if (entries >= 0 && id.entries.compareAndSet(entries, entries + 1))
+                return id;
+            // released concurrently: a new id is assigned to the sstable
+            if (entries < 0)
+                idsByDescriptor.remove(desc, id);
+        }
+    }
+
+    private void release(int idValue)
+    {
+        SSTableId id = ids.get(idValue);
+        if (id != null && id.entries.decrementAndGet() == 0 && id.entries.compareAndSet(0, -1))
+        {
+            ids.remove(id.id);
+            idsByDescriptor.remove(id.desc, id);
+        }
+    }
+
+    private static long allocate(int id, byte[] key, RowIndexEntry value)
+    {
+        byte kind;
+        byte[] serialized = null;
+        int valueSize = 1 + 8;
+        if (value instanceof RowIndexEntry.ShallowIndexedEntry)
+        {
+            kind = SHALLOW;
+            valueSize += 8 + 4 + 8;
+        }
+        else if (value.isIndexed())
+        {
+            kind = INDEXED;
+            DataOutputBuffer out = new DataOutputBuffer(value.serializedSize() + 4);
+            try
+            {
+                RowIndexEntry.serializer.serialize(value, out);
+            }
+            catch (IOException e)
+            {
+                throw new AssertionError(e);
+            }
+            serialized = out.getData();
+            valueSize += 4 + out.getLength();
+        }
+        else
+        {
+            kind = PLAIN;
+        }
+
+        int size = KEY_OFFSET + key.length + valueSize;
+        long entry = Address.allocate(size);
+        Address.setInt(entry, size);
+        Address.setInt(entry + 4, id);
+        Address.setInt(entry + 8, key.length);
+        for (int i = 0; i < key.length; i++)
+            Address.setByte(entry + KEY_OFFSET + i, key[i]);
+
+        long offset = entry + KEY_OFFSET + key.length;
+        Address.setByte(offset, kind);
+        Address.setLong(offset + 1, value.position);
+        if (kind == SHALLOW)
+        {
+            RowIndexEntry.ShallowIndexedEntry shallow = (RowIndexEntry.ShallowIndexedEntry) value;
+            Address.setLong(offset + 9, shallow.deletionTime().markedForDeleteAt);
+            Address.setInt(offset + 17, shallow.deletionTime().localDeletionTime);
+            Address.setLong(offset + 21, shallow.indexPosition);
+        }
+        else if (kind == INDEXED)
+        {
+            int length = valueSize - 1 - 8 - 4;
+            Address.setInt(offset + 9, length);
+            for (int i = 0; i < length; i++)
+                Address.setByte(offset + 13 + i, serialized[i]);
+        }
+        return entry;
+    }
+
+    // frees the memory of entry, but does not release its sstable id
+    private static void free(long entry)
+    {
+        Address.free(entry);
+    }
+
+    private void discard(long entry)
+    {
+        release(idOf(entry));
+        free(entry);
+    }
+
+    private static int sizeOf(long entry)
+    {
+        return Address.getInt(entry);
+    }
+
+    private static int idOf(long entry)
+    {
+        return Address.getInt(entry + 4);
+    }
+
+    private static boolean matches(long entry, int id, ByteBuffer key)
+    {
+        int length = Address.getInt(entry + 8);
+        if (idOf(entry) != id || length != key.remaining())
+            return false;
+        int position = key.position();
+        for (int i = 0; i < length; i++)
+        {
+            if (Address.getByte(entry + KEY_OFFSET + i) != key.get(position + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] keyOf(long entry)
+    {
+        byte[] key = new byte[Address.getInt(entry + 8)];
+        for (int i = 0; i < key.length; i++)
+            key[i] = Address.getByte(entry + KEY_OFFSET + i);
+        return key;
+    }
+
+    private static RowIndexEntry valueOf(long entry)
+    {
+        long offset = entry + KEY_OFFSET + Address.getInt(entry + 8);
+        byte kind = Address.getByte(offset);
+        long position = Address.getLong(offset + 1);
+        switch (kind)
+        {
+            case PLAIN:
+                return new RowIndexEntry(position);
+            case SHALLOW:
+                DeletionTime deletionTime = new DeletionTime(Address.getLong(offset + 9), Address.getInt(offset + 17));
+                return new RowIndexEntry.ShallowIndexedEntry(position, deletionTime, Address.getLong(offset + 21));
+            case INDEXED:
+                // read in place, rather than copied to the heap first
+                ByteBuffer serialized = Address.asByteBuffer(offset + 13, Address.getInt(offset + 9));
+                try
+                {
+                    return RowIndexEntry.serializer.deserialize(new DataInputStream(ByteBufferUtil.inputStream(serialized)), Descriptor.Version.CURRENT);
+                }
+                catch (IOException e)
+                {
+                    throw new AssertionError(e);
+                }
+            default:
+                throw new AssertionError(kind);
+        }
+    }
+
+    // whether the values of both entries, which may hold different keys, are the same
+    private static boolean sameValue(long entry, long other)
+    {
+        long offset = entry + KEY_OFFSET + Address.getInt(entry + 8);
+        long otherOffset = other + KEY_OFFSET + Address.getInt(other + 8);
+        int size = sizeOf(entry) - (int) (offset - entry);
+        if (size != sizeOf(other) - (int) (otherOffset - other))
+            return false;
+        for (int i = 0; i < size; i++)
+        {
+            if (Address.getByte(offset + i) != Address.getByte(otherOffset + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static long weightOf(long entry)
+    {
+        return sizeOf(entry) + SLOT_SIZE;
+    }
+
+    private static class SSTableId
+    {
+        final int id;
+        final Descriptor desc;
+        // number of entries of the sstable, -1 once released
+        final AtomicInteger entries = new AtomicInteger();
+
+        SSTableId(int id, Descriptor desc)
+        {
+            this.id = id;
+            this.desc = desc;
+        }
+    }
+
+    /**
+     * An open-addressing table of entries, with linear probing and, for removals, backward shift deletion so that
+     * lookups never have to skip tombstones. At most half of the slots are used.
+     */
+    private class Segment
+    {
+        private long table;
+        private int mask;
+        private int hand;
+
+        private volatile int size;
+        private volatile long weight;
+
+        Segment()
+        {
+            table = allocateTable(INITIAL_SLOTS);
+            mask = INITIAL_SLOTS - 1;
+        }
+
+        synchronized RowIndexEntry get(int id, ByteBuffer key, int hash)
+        {
+            int slot = find(id, key, hash);
+            if (slot < 0)
+                return null;
+            setReferenced(slot, true);
+            return valueOf(entryAt(slot));
+        }
+
+        synchronized boolean contains(int id, ByteBuffer key, int hash)
+        {
+            return find(id, key, hash) >= 0;
+        }
+
+        synchronized boolean put(int id, ByteBuffer key, int hash, long entry, boolean ifAbsent)
+        {
+            int slot = find(id, key, hash);
+            if (slot >= 0)
+            {
+                if (ifAbsent)
+                    return false;
+                replaceAt(slot, entry);
+            }
+            else
+            {
+                insert(hash, entry);
+            }
+            evict();
+            return true;
+        }
+
+        synchronized boolean replace(int id, ByteBuffer key, int hash, long expected, long entry)
+        {
+            int slot = find(id, key, hash);
+            if (slot < 0 || !sameValue(entryAt(slot), expected))
+                return false;
+            replaceAt(slot, entry);
+            evict();
+            return true;
+        }
+
+        synchronized void remove(int id, ByteBuffer key, int hash)
+        {
+            int slot = find(id, key, hash);
+            if (slot >= 0)
+                removeAt(slot);
+        }
+
+        synchronized void clear()
+        {
+            for (int slot = 0; slot <= mask; slot++)
+            {
+                long entry = entryAt(slot);
+                if (entry != 0)
+                    discard(entry);
+            }
+            Address.free(table);
+            table = allocateTable(INITIAL_SLOTS);
+            mask = INITIAL_SLOTS - 1;
+            hand = 0;
+            size = 0;
+            weight = 0;
+        }
+
+        /**
+         * Add to keys the keys of the entries read, or not read, since the hand last passed them.
+         *
+         * @return false once keys holds n keys
+         */
+        synchronized boolean addKeys(Set<KeyCacheKey> keys, int n, boolean referenced)
+        {
+            for (int i = 0; i <= mask; i++)
+            {
+                // starting from the hand, in the order of the next evictions
+                int slot = (hand + i) & mask;
+                long entry = entryAt(slot);
+                if (entry == 0 || isReferenced(slot) != referenced)
+                    continue;
+                if (keys.size() >= n)
+                    return false;
+                SSTableId id = ids.get(idOf(entry));
+                if (id != null)
+                    keys.add(new KeyCacheKey(id.desc, ByteBuffer.wrap(keyOf(entry))));
+            }
+            return keys.size() < n;
+        }
+
+        /**
+         * Move the hand to the entry it evicts next, sparing the entries read since it last passed them as evict()
+         * would.
+         *
+         * @return the key of that entry, or null if the segment is empty or the entry's sstable was released
+         */
+        synchronized KeyCacheKey victim()
+        {
+            if (size == 0)
+                return null;
+            while (true)
+            {
+                hand &= mask;
+                if (entryAt(hand) == 0)
+                {
+                    hand++;
+                }
+                else if (isReferenced(hand))
+                {
+                    setReferenced(hand, false);
+                    hand++;
+                }
+                else
+                {
+                    long entry = entryAt(hand);
+                    SSTableId id = ids.get(idOf(entry));
+                    return id == null ? null : new KeyCacheKey(id.desc, ByteBuffer.wrap(keyOf(entry)));
+                }
+            }
+        }
+
+        synchronized void evict()
+        {
+            long segmentCapacity = capacity / SEGMENTS;
+            while (weight > segmentCapacity && size > 0)
+            {
+                hand &= mask;
+                if (entryAt(hand) == 0)
+                {
+                    hand++;
+                }
+                else if (isReferenced(hand))
+                {
+                    setReferenced(hand, false);
+                    hand++;
+                }
+                else
+                {
+                    // the hand stays put, as the slot may now hold the next entry of the cluster
+                    removeAt(hand);
+                }
+            }
+        }
+
+        private int find(int id, ByteBuffer key, int hash)
+        {
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+            {
+                long entry = entryAt(slot);
+                if (entry == 0)
+                    return -1;
+                if (hashAt(slot) == hash && matches(entry, id, key))
+                    return slot;
+            }
+        }
+
+        private void insert(int hash, long entry)
+        {
+            int slot = hash & mask;
+            while (entryAt(slot) != 0)
+                slot = (slot + 1) & mask;
+            setSlot(slot, entry, hash, true);
+            size++;
+            weight += weightOf(entry);
+
+            if (size > (mask + 1) / 2)
+                resize((mask + 1) * 2);
+        }
+
+        private void replaceAt(int slot, long entry)
+        {
+            long old = entryAt(slot);
+            weight += weightOf(entry) - weightOf(old);
+            setSlot(slot, entry, hashAt(slot), true);
+            discard(old);
+        }
+
+        private void removeAt(int slot)
+        {
+            long entry = entryAt(slot);
+            size--;
+            weight -= weightOf(entry);
+            discard(entry);
+
+            // move back the following entries of the cluster whose probe sequence goes through the hole
+            int hole = slot;
+            for (int next = (slot + 1) & mask; entryAt(next) != 0; next = (next + 1) & mask)
+            {
+                int home = hashAt(next) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask))
+                {
+                    setSlot(hole, entryAt(next), hashAt(next), isReferenced(next));
+                    hole = next;
+                }
+            }
+            setSlot(hole, 0, 0, false);
+        }
+
+        private void resize(int slots)
+        {
+            long oldTable = table;
+            int oldMask = mask;
+            table = allocateTable(slots);
+            mask = slots - 1;
+            hand = 0;
+            for (int i = 0; i <= oldMask; i++)
+            {
+                long address = oldTable + (long) i * SLOT_SIZE;
+                long entry = Address.getLong(address);
+                if (entry == 0)
+                    continue;
+                int hash = Address.getInt(address + 8);
+                int slot = hash & mask;
+                while (entryAt(slot) != 0)
+                    slot = (slot + 1) & mask;
+                setSlot(slot, entry, hash, Address.getInt(address + 12) != 0);
+            }
+            Address.free(oldTable);
+        }
+
+        private long entryAt(int slot)
+        {
+            return Address.getLong(table + (long) slot * SLOT_SIZE);
+        }
+
+        private int hashAt(int slot)
+        {
+            return Address.getInt(table + (long) slot * SLOT_SIZE + 8);
+        }
+
+        private boolean isReferenced(int slot)
+        {
+            return Address.getInt(table + (long) slot * SLOT_SIZE + 12) != 0;
+        }
+
+        private void setReferenced(int slot, boolean referenced)
+        {
+            Address.setInt(table + (long) slot * SLOT_SIZE + 12, referenced ? 1 : 0);
+        }
+
+        private void setSlot(int slot, long entry, int hash, boolean referenced)
+        {
+            long address = table + (long) slot * SLOT_SIZE;
+            Address.setLong(address, entry);
+            Address.setInt(address + 8, hash);
+            Address.setInt(address + 12, referenced ? 1 : 0);
+        }
+    }
+
+    private static long allocateTable(int slots)
+    {
+        long bytes = (long) slots * SLOT_SIZE;
+        long table = Address.allocate(bytes);
+        Address.setMemory(table, bytes, (byte) 0);
+        return table;
+    }
+}
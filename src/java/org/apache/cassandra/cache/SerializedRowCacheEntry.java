@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.UUID;
+
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.DeletionInfo;
+import org.apache.cassandra.db.ISortedColumns;
+import org.apache.cassandra.db.OnDiskAtom;
+import org.apache.cassandra.db.TypeSizes;
+import org.apache.cassandra.db.columniterator.OnDiskAtomIterator;
+import org.apache.cassandra.db.columniterator.SimpleAbstractColumnIterator;
+import org.apache.cassandra.db.filter.ColumnSlice;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
+import org.apache.cassandra.db.filter.NamesQueryFilter;
+import org.apache.cassandra.db.filter.SliceQueryFilter;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.io.IColumnSerializer;
+import org.apache.cassandra.io.util.MemoryInputStream;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.vint.EncodedDataInputStream;
+
+/**
+ * A row cache entry serialized by SerializingCacheProvider, read where it lies in memory. The columns selected by a
+ * filter are found by a binary search on the names of the serialized columns, compared in place, and only those are
+ * deserialized.
+ *
+ * Reads are not thread safe, and the memory of the entry must stay referenced for as long as it is read.
+ */
+public class SerializedRowCacheEntry
+{
+    private static final int INT_SIZE = TypeSizes.NATIVE.sizeof(0);
+    private static final int SHORT_SIZE = TypeSizes.NATIVE.sizeof((short) 0);
+
+    private final ByteBuffer bytes;
+    private final MemoryInputStream in;
+    // names of the serialized columns are compared through this view of bytes
+    private final ByteBuffer name;
+
+    private final int blockStart;
+    private final int indexStart;
+    private final int count;
+
+    public SerializedRowCacheEntry(RefCountedMemory mem)
+    {
+        bytes = mem.asByteBuffer(0, (int) mem.size());
+        in = new MemoryInputStream(mem);
+        name = bytes.duplicate();
+
+        if (isSentinel())
+        {
+            blockStart = indexStart = count = 0;
+        }
+        else
+        {
+            int size = bytes.limit();
+            blockStart = size - bytes.getInt(size - INT_SIZE);
+            count = bytes.getInt(size - 2 * INT_SIZE);
+            indexStart = size - (count + 2) * INT_SIZE;
+        }
+    }
+
+    public boolean isSentinel()
+    {
+        return bytes.get(0) != 0;
+    }
+
+    /**
+     * @return the end of the partition head this entry holds, or an empty buffer if it holds the whole partition
+     */
+    public ByteBuffer headEnd() throws IOException
+    {
+        assert !isSentinel();
+        if (bytes.get(1) == 0)
+            return ByteBufferUtil.EMPTY_BYTE_BUFFER;
+
+        in.seek(2);
+        return ByteBufferUtil.readWithShortLength(new EncodedDataInputStream(in));
+    }
+
+    /**
+     * @return an empty column family holding the deletion info of the cached one
+     */
+    public ColumnFamily emptyColumnFamily(ISortedColumns.Factory factory, boolean reversedInsertOrder) throws IOException
+    {
+        assert !isSentinel();
+        in.seek(blockStart);
+        in.readBoolean();
+        UUID cfId = ColumnFamily.serializer.deserializeCfId(in, MessagingService.current_version);
+        ColumnFamily cf = ColumnFamily.create(Schema.instance.getCFMetaData(cfId), factory, reversedInsertOrder);
+        cf.delete(DeletionInfo.serializer().deserialize(in, MessagingService.current_version, cf.getComparator()));
+        return cf;
+    }
+
+    public int getColumnCount()
+    {
+        return count;
+    }
+
+    /**
+     * @param cf the column family the iterated columns are deserialized for, as returned by emptyColumnFamily
+     * @return the columns of this entry selected by filter, deserialized as they are iterated
+     */
+    public OnDiskAtomIterator iterator(ColumnFamily cf, DecoratedKey key, IDiskAtomFilter filter)
+    {
+        assert !isSentinel() && !cf.isSuper();
+        if (filter instanceof NamesQueryFilter)
+            return new NamesIterator(cf, key, ((NamesQueryFilter) filter).columns);
+        SliceQueryFilter sliceFilter = (SliceQueryFilter) filter;
+        return new SlicesIterator(cf, key, sliceFilter.slices, sliceFilter.reversed);
+    }
+
+    private int columnPosition(int i)
+    {
+        return blockStart + bytes.getInt(indexStart + i * INT_SIZE);
+    }
+
+    private ByteBuffer name(int i)
+    {
+        int position = columnPosition(i);
+        int length = bytes.getShort(position) & 0xFFFF;
+        name.clear();
+        name.position(position + SHORT_SIZE).limit(position + SHORT_SIZE + length);
+        return name;
+    }
+
+    private OnDiskAtom column(IColumnSerializer serializer, int i, int expireBefore)
+    {
+        in.seek(columnPosition(i));
+        try
+        {
+            return serializer.deserialize(in, IColumnSerializer.Flag.LOCAL, expireBefore);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Search the columns from index from (inclusive) to index to (exclusive) for name.
+     *
+     * @return the index of the column named name, or (-(insertion point) - 1) if there is none
+     */
+    private int search(AbstractType<?> comparator, ByteBuffer key, int from, int to)
+    {
+        int low = from;
+        int high = to - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = comparator.compare(name(mid), key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    // index of the first column not before key
+    private int ceiling(AbstractType<?> comparator, ByteBuffer key)
+    {
+        int i = search(comparator, key, 0, count);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    // index of the last column not after key
+    private int floor(AbstractType<?> comparator, ByteBuffer key)
+    {
+        int i = search(comparator, key, 0, count);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private abstract class ColumnIterator extends SimpleAbstractColumnIterator
+    {
+        protected final ColumnFamily cf;
+        private final DecoratedKey key;
+        private final IColumnSerializer serializer;
+        private final int expireBefore = (int) (System.currentTimeMillis() / 1000);
+
+        protected ColumnIterator(ColumnFamily cf, DecoratedKey key)
+        {
+            this.cf = cf;
+            this.key = key;
+            this.serializer = cf.getColumnSerializer();
+        }
+
+        public ColumnFamily getColumnFamily()
+        {
+            return cf;
+        }
+
+        public DecoratedKey getKey()
+        {
+            return key;
+        }
+
+        protected OnDiskAtom column(int i)
+        {
+            return SerializedRowCacheEntry.this.column(serializer, i, expireBefore);
+        }
+    }
+
+    private class NamesIterator extends ColumnIterator
+    {
+        private final Iterator<ByteBuffer> names;
+        // names are sorted, so the next one is searched past the previous one
+        private int from;
+
+        NamesIterator(ColumnFamily cf, DecoratedKey key, SortedSet<ByteBuffer> names)
+        {
+            super(cf, key);
+            this.names = names.iterator();
+        }
+
+        protected OnDiskAtom computeNext()
+        {
+            while (names.hasNext() && from < count)
+            {
+                int i = search(cf.getComparator(), names.next(), from, count);
+                if (i >= 0)
+                {
+                    from = i + 1;
+                    return column(i);
+                }
+                from = -i - 1;
+            }
+            return endOfData();
+        }
+    }
+
+    private class SlicesIterator extends ColumnIterator
+    {
+        private final ColumnSlice[] slices;
+        private final boolean reversed;
+
+        private int slice;
+        // the index of the next column of the current slice, and of the one past its last column
+        private int next;
+        private int end;
+
+        SlicesIterator(ColumnFamily cf, DecoratedKey key, ColumnSlice[] slices, boolean reversed)
+        {
+            super(cf, key);
+            this.slices = slices;
+            this.reversed = reversed;
+        }
+
+        protected OnDiskAtom computeNext()
+        {
+            while (next == end)
+            {
+                if (slice == slices.length)
+                    return endOfData();
+
+                // reversed slices start on their greatest name
+                ColumnSlice current = slices[slice++];
+                AbstractType<?> comparator = cf.getComparator();
+                if (reversed)
+                {
+                    next = current.start.remaining() == 0 ? count - 1 : floor(comparator, current.start);
+                    end = current.finish.remaining() == 0 ? -1 : ceiling(comparator, current.finish) - 1;
+                    if (next < end)
+                        next = end;
+                }
+                else
+                {
+                    next = current.start.remaining() == 0 ? 0 : ceiling(comparator, current.start);
+                    end = current.finish.remaining() == 0 ? count : floor(comparator, current.finish) + 1;
+                    if (next > end)
+                        next = end;
+                }
+            }
+
+            OnDiskAtom column = column(next);
+            next += reversed ? -1 : 1;
+            return column;
+        }
+    }
+}
@@ -45,6 +45,7 @@ public class SerializingCache<K, V> implements ICache<K, V>
 
     private final ConcurrentLinkedHashMap<K, RefCountedMemory> map;
     private final ISerializer<V> serializer;
+    private final ColdKeySampler<K> coldKeys;
 
     private SerializingCache(long capacity, Weigher<RefCountedMemory> weigher, ISerializer<V> serializer)
     {
@@ -64,6 +65,7 @@ public class SerializingCache<K, V> implements ICache<K, V>
                    .concurrencyLevel(DEFAULT_CONCURENCY_LEVEL)
                    .listener(listener)
                    .build();
+        this.coldKeys = new ColdKeySampler<K>(map);
     }
 
     public static <K, V> SerializingCache<K, V> create(long weightedCapacity, Weigher<RefCountedMemory> weigher, ISerializer<V> serializer)
@@ -171,6 +173,18 @@ public class SerializingCache<K, V> implements ICache<K, V>
         }
     }
 
+    /**
+     * @return the serialized value of key, referenced so that it is not freed before the caller unreferences it, or
+     * null if key is not cached
+     */
+    public RefCountedMemory getSerialized(K key)
+    {
+        RefCountedMemory mem = map.get(key);
+        if (mem == null || !mem.reference())
+            return null;
+        return mem;
+    }
+
     public void put(K key, V value)
     {
         RefCountedMemory mem = serialize(value);
@@ -202,25 +216,37 @@ public class SerializingCache<K, V> implements ICache<K, V>
         if (old == null)
             return false;
 
-        // see if the old value matches the one we want to replace
-        RefCountedMemory mem = serialize(value);
-        if (mem == null)
+        // see if the old value matches the one we want to replace: rather than deserializing the old value and
+        // comparing it, which can mean digesting both values, compare it to oldToReplace serialized
+        RefCountedMemory expected = serialize(oldToReplace);
+        if (expected == null)
             return false; // out of memory.  never mind.
 
-        V oldValue;
-        // reference old guy before de-serializing
+        boolean matches;
+        // reference old guy before reading it
         if (!old.reference())
+        {
+            expected.unreference();
             return false; // we have already freed hence noop.
+        }
         try
         {
-             oldValue = deserialize(old);
+            matches = old.size() == expected.size()
+                      && old.asByteBuffer(0, (int) old.size()).equals(expected.asByteBuffer(0, (int) expected.size()));
         }
         finally
         {
             old.unreference();
+            expected.unreference();
         }
-        boolean success = oldValue.equals(oldToReplace) && map.replace(key, old, mem);
+        if (!matches)
+            return false;
+
+        RefCountedMemory mem = serialize(value);
+        if (mem == null)
+            return false; // out of memory.  never mind.
 
+        boolean success = map.replace(key, old, mem);
         if (success)
             old.unreference(); // so it will be eventually be cleaned
         else
@@ -245,6 +271,11 @@ public class SerializingCache<K, V> implements ICache<K, V>
         return map.descendingKeySetWithLimit(n);
     }
 
+    public K victim(K key)
+    {
+        return coldKeys.next();
+    }
+
     public boolean containsKey(K key)
     {
         return map.containsKey(key);
@@ -18,13 +18,22 @@
 package org.apache.cassandra.cache;
 
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DeletionInfo;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.TypeSizes;
+import org.apache.cassandra.io.IColumnSerializer;
 import org.apache.cassandra.io.ISerializer;
 import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.ByteBufferUtil;
 
 public class SerializingCacheProvider implements IRowCacheProvider
 {
@@ -33,6 +42,13 @@ public class SerializingCacheProvider implements IRowCacheProvider
         return SerializingCache.create(capacity, new RowCacheSerializer());
     }
 
+    /**
+     * Entries are serialized as a sentinel flag followed by the sentinel id, or by a partition head flag, the end of
+     * the head if it is one, and a block holding the columns. The block is written with fixed-width lengths whatever
+     * the cache encodes the rest of the entry with: it is a serialized ColumnFamily followed by the offset of each of
+     * its columns within the block, the column count and the size of the block. This lets SerializedRowCacheEntry
+     * search columns in place, from the end of the entry.
+     */
     // Package protected for tests
     static class RowCacheSerializer implements ISerializer<IRowCacheEntry>
     {
@@ -42,9 +58,87 @@ public class SerializingCacheProvider implements IRowCacheProvider
             boolean isSentinel = entry instanceof RowCacheSentinel;
             out.writeBoolean(isSentinel);
             if (isSentinel)
+            {
                 out.writeLong(((RowCacheSentinel) entry).sentinelId);
+                return;
+            }
+
+            boolean isHead = entry instanceof CachedPartitionHead;
+            out.writeBoolean(isHead);
+            if (isHead)
+            {
+                CachedPartitionHead head = (CachedPartitionHead) entry;
+                ByteBufferUtil.writeWithShortLength(head.end, out);
+                serializeBlock(head.columns, out);
+            }
             else
-                ColumnFamily.serializer.serialize((ColumnFamily) entry, out, MessagingService.current_version);
+            {
+                serializeBlock((ColumnFamily) entry, out);
+            }
+        }
+
+        private static void serializeBlock(ColumnFamily cf, final DataOutput out) throws IOException
+        {
+            DataOutputStream block = new DataOutputStream(new OutputStream()
+            {
+                public void write(int b) throws IOException
+                {
+                    out.write(b);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    out.write(b, off, len);
+                }
+            });
+
+            // same as ColumnFamilySerializer.serialize, recording where each column starts
+            block.writeBoolean(true);
+            ColumnFamily.serializer.serializeCfId(cf.id(), block, MessagingService.current_version);
+            DeletionInfo.serializer().serialize(cf.deletionInfo(), block, MessagingService.current_version);
+            IColumnSerializer columnSerializer = cf.getColumnSerializer();
+            int[] offsets = new int[cf.getColumnCount()];
+            block.writeInt(offsets.length);
+            int i = 0;
+            for (IColumn column : cf)
+            {
+                offsets[i++] = block.size();
+                columnSerializer.serialize(column, block);
+            }
+            assert i == offsets.length : "Column family had " + offsets.length + " columns, but " + i + " written";
+
+            for (int offset : offsets)
+                block.writeInt(offset);
+            block.writeInt(offsets.length);
+            block.writeInt(block.size() + TypeSizes.NATIVE.sizeof(0));
+        }
+
+        private static ColumnFamily deserializeBlock(final DataInput in) throws IOException
+        {
+            DataInputStream block = new DataInputStream(new InputStream()
+            {
+                public int read() throws IOException
+                {
+                    return in.readUnsignedByte();
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    in.readFully(b, off, len);
+                    return len;
+                }
+            });
+
+            ColumnFamily cf = ColumnFamily.serializer.deserialize(block, MessagingService.current_version);
+            // skip the column offsets, count and block size
+            block.readFully(new byte[(cf.getColumnCount() + 2) * TypeSizes.NATIVE.sizeof(0)]);
+            return cf;
+        }
+
+        private static long blockSize(ColumnFamily cf)
+        {
+            return ColumnFamily.serializer.serializedSize(cf, TypeSizes.NATIVE, MessagingService.current_version)
+                   + (cf.getColumnCount() + 2) * TypeSizes.NATIVE.sizeof(0);
         }
 
         public IRowCacheEntry deserialize(DataInput in) throws IOException
@@ -52,16 +146,33 @@ public class SerializingCacheProvider implements IRowCacheProvider
             boolean isSentinel = in.readBoolean();
             if (isSentinel)
                 return new RowCacheSentinel(in.readLong());
-            return ColumnFamily.serializer.deserialize(in, MessagingService.current_version);
+            if (in.readBoolean())
+            {
+                ByteBuffer end = ByteBufferUtil.readWithShortLength(in);
+                return new CachedPartitionHead(deserializeBlock(in), end);
+            }
+            return deserializeBlock(in);
         }
 
         public long serializedSize(IRowCacheEntry entry, TypeSizes typeSizes)
         {
             int size = typeSizes.sizeof(true);
             if (entry instanceof RowCacheSentinel)
+            {
                 size += typeSizes.sizeof(((RowCacheSentinel) entry).sentinelId);
+            }
+            else if (entry instanceof CachedPartitionHead)
+            {
+                CachedPartitionHead head = (CachedPartitionHead) entry;
+                int endSize = head.end.remaining();
+                size += typeSizes.sizeof(true) + typeSizes.sizeof((short) endSize) + endSize;
+                size += blockSize(head.columns);
+            }
             else
-                size += ColumnFamily.serializer.serializedSize((ColumnFamily) entry, typeSizes, MessagingService.current_version);
+            {
+                size += typeSizes.sizeof(false);
+                size += blockSize((ColumnFamily) entry);
+            }
             return size;
         }
     }
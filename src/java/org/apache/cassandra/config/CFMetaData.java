@@ -55,6 +55,7 @@ import org.apache.cassandra.tracing.Tracing;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.metadata.Metadata;
+import org.apache.cassandra.metadata.MetadataRegistryIndex;
 
 import static org.apache.cassandra.utils.FBUtilities.*;
 
@@ -78,6 +79,8 @@ public final class CFMetaData
     public final static ByteBuffer DEFAULT_KEY_NAME = ByteBufferUtil.bytes("KEY");
     public final static Caching DEFAULT_CACHING_STRATEGY = Caching.KEYS_ONLY;
     public final static boolean DEFAULT_POPULATE_IO_CACHE_ON_FLUSH = false;
+    public final static MemtableAllocator DEFAULT_MEMTABLE_ALLOCATOR = MemtableAllocator.SLAB;
+    public final static int DEFAULT_ROWS_PER_PARTITION_TO_CACHE = 0;
 
     // Note that this is the default only for user created tables
     public final static String DEFAULT_COMPRESSOR = SnappyCompressor.isAvailable() ? SnappyCompressor.class.getCanonicalName() : null;
@@ -132,6 +135,8 @@ public final class CFMetaData
                                                                        + "bloom_filter_fp_chance double,"
                                                                        + "caching text,"
                                                                        + "populate_io_cache_on_flush boolean,"
+                                                                       + "memtable_allocator text,"
+                                                                       + "rows_per_partition_to_cache int,"
                                                                        + "compaction_strategy_class text,"
                                                                        + "compression_parameters text,"
                                                                        + "value_alias text,"
@@ -229,22 +234,43 @@ public final class CFMetaData
                                                           + "requested_at timestamp"
                                                           + ") WITH COMMENT='ranges requested for transfer here'");
         
-    public static final CFMetaData MetadataRegistryCf = compile("CREATE TABLE \"" + Metadata.MetadataRegistry_CF + "\" ("
+    // the in-memory registry is updated by a custom index of admin_tag as the table is written
+    public static final CFMetaData MetadataRegistryCf = withRegistryIndex(compile("CREATE TABLE \"" + Metadata.MetadataRegistry_CF + "\" ("
 															+ "target text,"
 															+ "data_tag text,"
 															+ "admin_tag text,"
 															+ "PRIMARY KEY (target, data_tag)"
 															+ ") WITH COMMENT='metadata tag registry'", 
-															Metadata.MetaData_KS);
+															Metadata.MetaData_KS));
     
+    // partitioned by target and time bucket, one cell per event: the name is the (time, tag, client) composite and the value the encoded event
     public static final CFMetaData MetadataLogCf = compile("CREATE TABLE \"" + Metadata.MetadataLog_CF + "\" ("
+															+ "target text,"
+															+ "bucket bigint,"
+															+ "time timeuuid,"
+															+ "tag int,"
+															+ "client text,"
+															+ "value blob,"
+															+ "PRIMARY KEY ((target, bucket), time, tag, client)"
+															+ ") WITH COMPACT STORAGE AND COMMENT='metadata log'",
+															Metadata.MetaData_KS);
+
+    // the buckets of each target having events, one empty cell per bucket
+    public static final CFMetaData MetadataLogBucketsCf = compile("CREATE TABLE \"" + Metadata.MetadataLogBuckets_CF + "\" ("
+															+ "target text,"
+															+ "bucket bigint,"
+															+ "PRIMARY KEY (target, bucket)"
+															+ ") WITH COMPACT STORAGE AND COMMENT='metadata log buckets'",
+															Metadata.MetaData_KS);
+
+    public static final CFMetaData OldMetadataLogCf = compile("CREATE TABLE \"" + Metadata.OldMetadataLog_CF + "\" ("
 															+ "target text,"
 															+ "time text,"
 															+ "client text,"
 															+ "tag text,"
-															+ "value text,"
-															+ "PRIMARY KEY (Target, time, client, tag)"
-															+ ") WITH COMMENT='metadata log'", 
+															+ "value blob,"
+															+ "PRIMARY KEY (target, time, client, tag)"
+															+ ") WITH COMMENT='unused'",
 															Metadata.MetaData_KS);
 
     public enum Caching
@@ -264,6 +290,26 @@ public final class CFMetaData
         }
     }
 
+    /**
+     * Where memtables keep the names and values of their columns: in slabs on the heap, or off-heap.
+     */
+    public enum MemtableAllocator
+    {
+        SLAB, OFFHEAP;
+
+        public static MemtableAllocator fromString(String allocator) throws ConfigurationException
+        {
+            try
+            {
+                return valueOf(allocator.toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ConfigurationException(String.format("%s not found, available allocators: %s.", allocator, StringUtils.join(values(), ", ")));
+            }
+        }
+    }
+
     //REQUIRED
     public final UUID cfId;                           // internal id, never exposed to user
     public final String ksName;                       // name of keyspace
@@ -289,6 +335,8 @@ public final class CFMetaData
     private volatile Double bloomFilterFpChance = null;
     private volatile Caching caching = DEFAULT_CACHING_STRATEGY;
     private volatile boolean populateIoCacheOnFlush = DEFAULT_POPULATE_IO_CACHE_ON_FLUSH;
+    private volatile MemtableAllocator memtableAllocator = DEFAULT_MEMTABLE_ALLOCATOR;
+    private volatile int rowsPerPartitionToCache = DEFAULT_ROWS_PER_PARTITION_TO_CACHE; // 0 caches whole partitions
     private volatile Map<String, Long> droppedColumns = new HashMap<String, Long>();
 
     volatile Map<ByteBuffer, ColumnDefinition> column_metadata = new HashMap<ByteBuffer,ColumnDefinition>();
@@ -321,6 +369,8 @@ public final class CFMetaData
     public CFMetaData bloomFilterFpChance(Double prop) {bloomFilterFpChance = prop; return this;}
     public CFMetaData caching(Caching prop) {caching = prop; return this;}
     public CFMetaData populateIoCacheOnFlush(boolean prop) {populateIoCacheOnFlush = prop; return this;}
+    public CFMetaData memtableAllocator(MemtableAllocator prop) {memtableAllocator = prop; return this;}
+    public CFMetaData rowsPerPartitionToCache(int prop) {rowsPerPartitionToCache = prop; return this;}
     public CFMetaData droppedColumns(Map<String, Long> cols) {droppedColumns = cols; return this;}
 
     public CFMetaData(String keyspace, String name, ColumnFamilyType type, AbstractType<?> comp, AbstractType<?> subcc)
@@ -361,6 +411,14 @@ public final class CFMetaData
         }
     }
 
+    private static CFMetaData withRegistryIndex(CFMetaData cfm)
+    {
+        ColumnDefinition adminTag = cfm.getColumnDefinition(ByteBufferUtil.bytes("admin_tag"));
+        adminTag.setIndexType(IndexType.CUSTOM, Collections.singletonMap(SecondaryIndex.CUSTOM_INDEX_OPTION_NAME, MetadataRegistryIndex.class.getName()));
+        adminTag.setIndexName(MetadataRegistryIndex.NAME);
+        return cfm;
+    }
+
     private static CFMetaData compile(String cql)
     {
         return compile(null, cql, Table.SYSTEM_KS);
@@ -472,6 +530,8 @@ public final class CFMetaData
                       .bloomFilterFpChance(oldCFMD.bloomFilterFpChance)
                       .caching(oldCFMD.caching)
                       .populateIoCacheOnFlush(oldCFMD.populateIoCacheOnFlush)
+                      .memtableAllocator(oldCFMD.memtableAllocator)
+                      .rowsPerPartitionToCache(oldCFMD.rowsPerPartitionToCache)
                       .droppedColumns(oldCFMD.droppedColumns);
     }
 
@@ -526,6 +586,16 @@ public final class CFMetaData
         return populateIoCacheOnFlush;
     }
 
+    public MemtableAllocator getMemtableAllocator()
+    {
+        return memtableAllocator;
+    }
+
+    public int getRowsPerPartitionToCache()
+    {
+        return rowsPerPartitionToCache;
+    }
+
     public int getGcGraceSeconds()
     {
         return gcGraceSeconds;
@@ -646,6 +716,8 @@ public final class CFMetaData
             .append(bloomFilterFpChance, rhs.bloomFilterFpChance)
             .append(caching, rhs.caching)
             .append(populateIoCacheOnFlush, rhs.populateIoCacheOnFlush)
+            .append(memtableAllocator, rhs.memtableAllocator)
+            .append(rowsPerPartitionToCache, rhs.rowsPerPartitionToCache)
             .append(droppedColumns, rhs.droppedColumns)
             .isEquals();
     }
@@ -678,6 +750,8 @@ public final class CFMetaData
             .append(bloomFilterFpChance)
             .append(caching)
             .append(populateIoCacheOnFlush)
+            .append(memtableAllocator)
+            .append(rowsPerPartitionToCache)
             .append(droppedColumns)
             .toHashCode();
     }
@@ -780,6 +854,16 @@ public final class CFMetaData
         }
     }
 
+    /**
+     * Create CFMetaData from thrift {@link CfDef} for an update of an existing column family: options thrift
+     * doesn't know about are carried over from {@code toUpdate} instead of being reset to their defaults.
+     */
+    public static CFMetaData fromThriftForUpdate(org.apache.cassandra.thrift.CfDef cf_def, CFMetaData toUpdate) throws InvalidRequestException, ConfigurationException
+    {
+        return fromThrift(cf_def).memtableAllocator(toUpdate.memtableAllocator)
+                                 .rowsPerPartitionToCache(toUpdate.rowsPerPartitionToCache);
+    }
+
     public void reload()
     {
         Row cfDefRow = SystemTable.readSchemaRow(ksName, cfName);
@@ -843,6 +927,8 @@ public final class CFMetaData
         bloomFilterFpChance = cfm.bloomFilterFpChance;
         caching = cfm.caching;
         populateIoCacheOnFlush = cfm.populateIoCacheOnFlush;
+        memtableAllocator = cfm.memtableAllocator;
+        rowsPerPartitionToCache = cfm.rowsPerPartitionToCache;
         
         if (!cfm.droppedColumns.isEmpty())
             droppedColumns = cfm.droppedColumns;
@@ -1235,6 +1321,11 @@ public final class CFMetaData
         if (bloomFilterFpChance != null && bloomFilterFpChance == 0)
             throw new ConfigurationException("Zero false positives is impossible; bloom filter false positive chance bffpc must be 0 < bffpc <= 1");
 
+        if (rowsPerPartitionToCache < 0)
+            throw new ConfigurationException("rows_per_partition_to_cache must be positive, or 0 to cache whole partitions");
+        if (rowsPerPartitionToCache > 0 && cfType == ColumnFamilyType.Super)
+            throw new ConfigurationException("Caching the head of partitions is not supported on super column families");
+
         return this;
     }
 
@@ -1335,6 +1426,8 @@ public final class CFMetaData
         cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "local_read_repair_chance"));
         cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "replicate_on_write"));
         cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "populate_io_cache_on_flush"));
+        cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "memtable_allocator"));
+        cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "rows_per_partition_to_cache"));
         cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "gc_grace_seconds"));
         cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "default_validator"));
         cf.addColumn(DeletedColumn.create(ldt, timestamp, cfName, "key_validator"));
@@ -1386,6 +1479,8 @@ public final class CFMetaData
         cf.addColumn(Column.create(dcLocalReadRepairChance, timestamp, cfName, "local_read_repair_chance"));
         cf.addColumn(Column.create(replicateOnWrite, timestamp, cfName, "replicate_on_write"));
         cf.addColumn(Column.create(populateIoCacheOnFlush, timestamp, cfName, "populate_io_cache_on_flush"));
+        cf.addColumn(Column.create(memtableAllocator.toString(), timestamp, cfName, "memtable_allocator"));
+        cf.addColumn(Column.create(rowsPerPartitionToCache, timestamp, cfName, "rows_per_partition_to_cache"));
         cf.addColumn(Column.create(gcGraceSeconds, timestamp, cfName, "gc_grace_seconds"));
         cf.addColumn(Column.create(defaultValidator.toString(), timestamp, cfName, "default_validator"));
         cf.addColumn(Column.create(keyValidator.toString(), timestamp, cfName, "key_validator"));
@@ -1447,6 +1542,10 @@ public final class CFMetaData
             cfm.compactionStrategyOptions(fromJsonMap(result.getString("compaction_strategy_options")));
             if (result.has("populate_io_cache_on_flush"))
                 cfm.populateIoCacheOnFlush(result.getBoolean("populate_io_cache_on_flush"));
+            if (result.has("memtable_allocator"))
+                cfm.memtableAllocator(MemtableAllocator.valueOf(result.getString("memtable_allocator")));
+            if (result.has("rows_per_partition_to_cache"))
+                cfm.rowsPerPartitionToCache(result.getInt("rows_per_partition_to_cache"));
 
             return cfm;
         }
@@ -1622,6 +1721,8 @@ public final class CFMetaData
             .append("bloomFilterFpChance", bloomFilterFpChance)
             .append("caching", caching)
             .append("populateIoCacheOnFlush", populateIoCacheOnFlush)
+            .append("memtableAllocator", memtableAllocator)
+            .append("rowsPerPartitionToCache", rowsPerPartitionToCache)
             .toString();
     }
 }
@@ -17,6 +17,9 @@
  */
 package org.apache.cassandra.config;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.cassandra.cache.SerializingCacheProvider;
 import org.apache.cassandra.config.EncryptionOptions.ClientEncryptionOptions;
 import org.apache.cassandra.config.EncryptionOptions.ServerEncryptionOptions;
@@ -70,8 +73,11 @@ public class Config
     public Integer concurrent_reads = 8;
     public Integer concurrent_writes = 32;
     public Integer concurrent_replicates = 32;
+    public int range_scan_parallelism = 4;
+    public int range_scan_split_rows = 10000;
 
     public Integer memtable_flush_writers = null; // will get set to the length of data dirs in DatabaseDescriptor
+    public Integer memtable_flush_split_size_in_mb = 64;
     public Integer memtable_total_space_in_mb;
 
     public Integer storage_port = 7000;
@@ -126,6 +132,7 @@ public class Config
     public Double commitlog_sync_batch_window_in_ms;
     public Integer commitlog_sync_period_in_ms;
     public int commitlog_segment_size_in_mb = 32;
+    public String commitlog_compression;
 
     public String endpoint_snitch;
     public Boolean dynamic_snitch = true;
@@ -145,6 +152,10 @@ public class Config
     public InternodeCompression internode_compression = InternodeCompression.none;
 
     public Integer index_interval = 128;
+    public Long index_summary_capacity_in_mb = null;
+    public int index_summary_resize_interval_in_minutes = 60;
+    public int min_index_interval = 32;
+    public int max_index_interval = 2048;
 
     public Double flush_largest_memtables_at = 1.0;
     public Double reduce_cache_sizes_at = 1.0;
@@ -161,15 +172,31 @@ public class Config
     public Long key_cache_size_in_mb = null;
     public volatile int key_cache_save_period = 14400;
     public int key_cache_keys_to_save = Integer.MAX_VALUE;
+    public CacheAdmission key_cache_admission = CacheAdmission.lru;
+    public boolean key_cache_off_heap = false;
+
+    public Long column_index_cache_size_in_mb = null;
 
     public long row_cache_size_in_mb = 0;
     public volatile int row_cache_save_period = 0;
     public int row_cache_keys_to_save = Integer.MAX_VALUE;
     public String row_cache_provider = SerializingCacheProvider.class.getSimpleName();
+    public CacheAdmission row_cache_admission = CacheAdmission.lru;
+    public int concurrent_cache_loads = 2;
+    public boolean cache_load_in_background = true;
     public boolean populate_io_cache_on_flush = false;
 
     public boolean inter_dc_tcp_nodelay = true;
 
+    // Metadata log
+    public int metadata_log_queue_size = 8192;
+    public int metadata_log_batch_size = 256;
+    public int metadata_log_flush_interval_in_ms = 50;
+    public MetadataLogFullPolicy metadata_log_full_policy = MetadataLogFullPolicy.drop;
+    public int metadata_log_bucket_in_minutes = 60;
+    public int metadata_log_ttl_in_seconds = 0;
+    public Map<String, Integer> metadata_log_tag_ttl_in_seconds = new HashMap<String, Integer>();
+
     private static boolean loadYaml = true;
     private static boolean outboundBindAny = false;
 
@@ -199,6 +226,18 @@ public class Config
         batch
     }
 
+    public static enum MetadataLogFullPolicy
+    {
+        drop,
+        block
+    }
+
+    public static enum CacheAdmission
+    {
+        lru,
+        tinylfu
+    }
+
     public static enum InternodeCompression
     {
         all, none, dc
@@ -41,6 +41,8 @@ import org.apache.cassandra.db.SystemTable;
 import org.apache.cassandra.dht.IPartitioner;
 import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.io.FSWriteError;
+import org.apache.cassandra.io.compress.CompressionParameters;
+import org.apache.cassandra.io.compress.ICompressor;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.locator.DynamicEndpointSnitch;
 import org.apache.cassandra.locator.EndpointSnitchInfo;
@@ -85,7 +87,12 @@ public class DatabaseDescriptor
     private static RequestSchedulerId requestSchedulerId;
     private static RequestSchedulerOptions requestSchedulerOptions;
 
+    private static ICompressor commitLogCompressor;
+
     private static long keyCacheSizeInMB;
+    private static long columnIndexCacheSizeInMB;
+    private static long indexSummaryCapacityInMB;
+    private static volatile int indexSummaryResizeIntervalInMinutes;
     private static IRowCacheProvider rowCacheProvider;
 
     private static String localDC;
@@ -183,6 +190,12 @@ public class DatabaseDescriptor
             if (conf.commitlog_total_space_in_mb == null)
                 conf.commitlog_total_space_in_mb = System.getProperty("os.arch").contains("64") ? 1024 : 32;
 
+            if (conf.commitlog_compression != null)
+            {
+                commitLogCompressor = new CompressionParameters(conf.commitlog_compression, null, Collections.<String, String>emptyMap()).sstableCompressor;
+                logger.debug("Compressing commit log segments with " + conf.commitlog_compression);
+            }
+
             /* evaluate the DiskAccessMode Config directive, which also affects indexAccessMode selection */
             if (conf.disk_access_mode == Config.DiskAccessMode.auto)
             {
@@ -285,6 +298,12 @@ public class DatabaseDescriptor
                 conf.memtable_flush_writers = conf.data_file_directories.length;
             }
 
+            if (conf.range_scan_parallelism < 1 || conf.range_scan_split_rows < 1)
+                throw new ConfigurationException("range_scan_parallelism and range_scan_split_rows must be at least 1");
+
+            if (conf.memtable_flush_split_size_in_mb == null || conf.memtable_flush_split_size_in_mb < 1)
+                throw new ConfigurationException("memtable_flush_split_size_in_mb must be at least 1");
+
             /* Local IP or hostname to bind services to */
             if (conf.listen_address != null)
             {
@@ -414,6 +433,20 @@ public class DatabaseDescriptor
             if (conf.concurrent_compactors <= 0)
                 throw new ConfigurationException("concurrent_compactors should be strictly greater than 0");
 
+            if (conf.concurrent_cache_loads <= 0)
+                throw new ConfigurationException("concurrent_cache_loads should be strictly greater than 0");
+
+            if (conf.metadata_log_bucket_in_minutes <= 0)
+                throw new ConfigurationException("metadata_log_bucket_in_minutes must be a positive integer");
+
+            if (conf.metadata_log_tag_ttl_in_seconds == null)
+                conf.metadata_log_tag_ttl_in_seconds = new HashMap<String, Integer>();
+            for (Map.Entry<String, Integer> entry : conf.metadata_log_tag_ttl_in_seconds.entrySet())
+            {
+                if (entry.getValue() == null || entry.getValue() < 0)
+                    throw new ConfigurationException("metadata_log_tag_ttl_in_seconds for " + entry.getKey() + " must be a positive integer or 0");
+            }
+
             /* data file and commit log directories. they get created later, when they're needed. */
             if (conf.commitlog_directory != null && conf.data_file_directories != null && conf.saved_caches_directory != null)
             {
@@ -458,6 +491,43 @@ public class DatabaseDescriptor
                                                  + conf.key_cache_size_in_mb + "', supported values are <integer> >= 0.");
             }
 
+            try
+            {
+                // if column_index_cache_size_in_mb option was set to "auto" then size of the cache should be "min(2.5% of Heap (in MB), 50MB)
+                columnIndexCacheSizeInMB = (conf.column_index_cache_size_in_mb == null)
+                                           ? Math.min(Math.max(1, (int) (Runtime.getRuntime().totalMemory() * 0.025 / 1024 / 1024)), 50)
+                                           : conf.column_index_cache_size_in_mb;
+
+                if (columnIndexCacheSizeInMB < 0)
+                    throw new NumberFormatException(); // to escape duplicating error message
+            }
+            catch (NumberFormatException e)
+            {
+                throw new ConfigurationException("column_index_cache_size_in_mb option was set incorrectly to '"
+                                                 + conf.column_index_cache_size_in_mb + "', supported values are <integer> >= 0.");
+            }
+
+            try
+            {
+                // if index_summary_capacity_in_mb is not set, the summaries may use up to 5% of the heap
+                indexSummaryCapacityInMB = (conf.index_summary_capacity_in_mb == null)
+                                           ? Math.max(1, (long) (Runtime.getRuntime().maxMemory() * 0.05 / 1024 / 1024))
+                                           : conf.index_summary_capacity_in_mb;
+
+                if (indexSummaryCapacityInMB < 0)
+                    throw new NumberFormatException(); // to escape duplicating error message
+            }
+            catch (NumberFormatException e)
+            {
+                throw new ConfigurationException("index_summary_capacity_in_mb option was set incorrectly to '"
+                                                 + conf.index_summary_capacity_in_mb + "', supported values are <integer> >= 0.");
+            }
+
+            indexSummaryResizeIntervalInMinutes = conf.index_summary_resize_interval_in_minutes;
+
+            if (conf.min_index_interval < 1 || conf.max_index_interval < conf.min_index_interval)
+                throw new ConfigurationException("min_index_interval must be at least 1 and at most max_index_interval");
+
             rowCacheProvider = FBUtilities.newCacheProvider(conf.row_cache_provider);
 
             if(conf.encryption_options != null)
@@ -861,6 +931,26 @@ public class DatabaseDescriptor
         return conf.concurrent_writes;
     }
 
+    public static int getRangeScanParallelism()
+    {
+        return conf.range_scan_parallelism;
+    }
+
+    public static void setRangeScanParallelism(int parallelism)
+    {
+        conf.range_scan_parallelism = parallelism;
+    }
+
+    public static int getRangeScanSplitRows()
+    {
+        return conf.range_scan_split_rows;
+    }
+
+    public static void setRangeScanSplitRows(int rows)
+    {
+        conf.range_scan_split_rows = rows;
+    }
+
     public static int getConcurrentReplicators()
     {
         return conf.concurrent_replicates;
@@ -871,6 +961,22 @@ public class DatabaseDescriptor
             return conf.memtable_flush_writers;
     }
 
+    // only changes the number of ranges memtables are split in for flushing, not the number of flush writer threads
+    public static void setFlushWriters(int flushWriters)
+    {
+        conf.memtable_flush_writers = flushWriters;
+    }
+
+    public static long getMemtableFlushSplitSize()
+    {
+        return conf.memtable_flush_split_size_in_mb * 1024L * 1024L;
+    }
+
+    public static void setMemtableFlushSplitSize(int sizeInMB)
+    {
+        conf.memtable_flush_split_size_in_mb = sizeInMB;
+    }
+
     public static int getInMemoryCompactionLimit()
     {
         return conf.in_memory_compaction_limit_in_mb * 1024 * 1024;
@@ -1048,6 +1154,19 @@ public class DatabaseDescriptor
         return conf.commitlog_sync;
     }
 
+    /**
+     * @return the compressor of new commit log segments, or null if they are not compressed
+     */
+    public static ICompressor getCommitLogCompressor()
+    {
+        return commitLogCompressor;
+    }
+
+    public static void setCommitLogCompressor(ICompressor compressor)
+    {
+        commitLogCompressor = compressor;
+    }
+
     public static Config.DiskAccessMode getDiskAccessMode()
     {
         return conf.disk_access_mode;
@@ -1107,6 +1226,36 @@ public class DatabaseDescriptor
         return conf.index_interval;
     }
 
+    public static long getIndexSummaryCapacityInMB()
+    {
+        return indexSummaryCapacityInMB;
+    }
+
+    public static void setIndexSummaryCapacityInMB(long capacity)
+    {
+        indexSummaryCapacityInMB = capacity;
+    }
+
+    public static int getIndexSummaryResizeIntervalInMinutes()
+    {
+        return indexSummaryResizeIntervalInMinutes;
+    }
+
+    public static void setIndexSummaryResizeIntervalInMinutes(int interval)
+    {
+        indexSummaryResizeIntervalInMinutes = interval;
+    }
+
+    public static int getMinIndexInterval()
+    {
+        return conf.min_index_interval;
+    }
+
+    public static int getMaxIndexInterval()
+    {
+        return conf.max_index_interval;
+    }
+
     public static File getSerializedCachePath(String ksName, String cfName, CacheService.CacheType cacheType, String version)
     {
         return new File(conf.saved_caches_directory + File.separator + ksName + "-" + cfName + "-" + cacheType + (version == null ? "" : "-" + version + ".db"));
@@ -1217,11 +1366,63 @@ public class DatabaseDescriptor
         return conf.trickle_fsync_interval_in_kb;
     }
 
+    public static int getMetadataLogQueueSize()
+    {
+        return conf.metadata_log_queue_size;
+    }
+
+    public static int getMetadataLogBatchSize()
+    {
+        return conf.metadata_log_batch_size;
+    }
+
+    public static int getMetadataLogFlushInterval()
+    {
+        return conf.metadata_log_flush_interval_in_ms;
+    }
+
+    public static Config.MetadataLogFullPolicy getMetadataLogFullPolicy()
+    {
+        return conf.metadata_log_full_policy;
+    }
+
+    public static long getMetadataLogBucketSize()
+    {
+        return conf.metadata_log_bucket_in_minutes * 60 * 1000L;
+    }
+
+    /**
+     * @return the TTL of the log events having tag, 0 if they do not expire
+     */
+    public static int getMetadataLogTTL(String tag)
+    {
+        Integer ttl = conf.metadata_log_tag_ttl_in_seconds.get(tag);
+        return ttl == null ? conf.metadata_log_ttl_in_seconds : ttl;
+    }
+
+    /**
+     * @return the longest TTL of any log event, 0 if some events do not expire
+     */
+    public static int getMetadataLogMaxTTL()
+    {
+        if (conf.metadata_log_ttl_in_seconds == 0 || conf.metadata_log_tag_ttl_in_seconds.containsValue(0))
+            return 0;
+        int max = conf.metadata_log_ttl_in_seconds;
+        for (int ttl : conf.metadata_log_tag_ttl_in_seconds.values())
+            max = Math.max(max, ttl);
+        return max;
+    }
+
     public static long getKeyCacheSizeInMB()
     {
         return keyCacheSizeInMB;
     }
 
+    public static long getColumnIndexCacheSizeInMB()
+    {
+        return columnIndexCacheSizeInMB;
+    }
+
     public static int getKeyCacheSavePeriod()
     {
         return conf.key_cache_save_period;
@@ -1237,6 +1438,16 @@ public class DatabaseDescriptor
         return conf.key_cache_keys_to_save;
     }
 
+    public static Config.CacheAdmission getKeyCacheAdmission()
+    {
+        return conf.key_cache_admission;
+    }
+
+    public static boolean isKeyCacheOffHeap()
+    {
+        return conf.key_cache_off_heap;
+    }
+
     public static long getRowCacheSizeInMB()
     {
         return conf.row_cache_size_in_mb;
@@ -1262,6 +1473,21 @@ public class DatabaseDescriptor
         return rowCacheProvider;
     }
 
+    public static Config.CacheAdmission getRowCacheAdmission()
+    {
+        return conf.row_cache_admission;
+    }
+
+    public static int getConcurrentCacheLoads()
+    {
+        return conf.concurrent_cache_loads;
+    }
+
+    public static boolean isCacheLoadInBackground()
+    {
+        return conf.cache_load_in_background;
+    }
+
     public static int getStreamingSocketTimeout()
     {
         return conf.streaming_socket_timeout_in_ms;
@@ -104,7 +104,7 @@ public final class KSMetaData
     }
     
     public static KSMetaData metadataKeyspace(){
-    	List<CFMetaData> cfDefs = Arrays.asList(CFMetaData.MetadataRegistryCf, CFMetaData.MetadataLogCf);
+    	List<CFMetaData> cfDefs = Arrays.asList(CFMetaData.MetadataRegistryCf, CFMetaData.MetadataLogCf, CFMetaData.MetadataLogBucketsCf, CFMetaData.OldMetadataLogCf);
     	// TODO: replication factor and strategy should be configurable
         return new KSMetaData(Metadata.MetaData_KS, SimpleStrategy.class, ImmutableMap.of("replication_factor", "3"), true, cfDefs);
     }
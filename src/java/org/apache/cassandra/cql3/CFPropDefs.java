@@ -41,6 +41,8 @@ public class CFPropDefs extends PropertyDefinitions
     public static final String KW_REPLICATEONWRITE = "replicate_on_write";
     public static final String KW_CACHING = "caching";
     public static final String KW_POPULATE_IO_CACHE_ON_FLUSH = "populate_io_cache_on_flush";
+    public static final String KW_MEMTABLE_ALLOCATOR = "memtable_allocator";
+    public static final String KW_ROWS_PER_PARTITION_TO_CACHE = "rows_per_partition_to_cache";
     public static final String KW_BF_FP_CHANCE = "bloom_filter_fp_chance";
 
     public static final String KW_COMPACTION = "compaction";
@@ -60,6 +62,8 @@ public class CFPropDefs extends PropertyDefinitions
         keywords.add(KW_REPLICATEONWRITE);
         keywords.add(KW_CACHING);
         keywords.add(KW_POPULATE_IO_CACHE_ON_FLUSH);
+        keywords.add(KW_MEMTABLE_ALLOCATOR);
+        keywords.add(KW_ROWS_PER_PARTITION_TO_CACHE);
         keywords.add(KW_BF_FP_CHANCE);
         keywords.add(KW_COMPACTION);
         keywords.add(KW_COMPRESSION);
@@ -126,6 +130,8 @@ public class CFPropDefs extends PropertyDefinitions
         cfm.maxCompactionThreshold(toInt(KW_MAXCOMPACTIONTHRESHOLD, getCompactionOptions().get(KW_MAXCOMPACTIONTHRESHOLD), cfm.getMaxCompactionThreshold()));
         cfm.caching(CFMetaData.Caching.fromString(getString(KW_CACHING, cfm.getCaching().toString())));
         cfm.populateIoCacheOnFlush(getBoolean(KW_POPULATE_IO_CACHE_ON_FLUSH, cfm.populateIoCacheOnFlush()));
+        cfm.memtableAllocator(CFMetaData.MemtableAllocator.fromString(getString(KW_MEMTABLE_ALLOCATOR, cfm.getMemtableAllocator().toString())));
+        cfm.rowsPerPartitionToCache(getInt(KW_ROWS_PER_PARTITION_TO_CACHE, cfm.getRowsPerPartitionToCache()));
 
         if (compactionStrategyClass != null)
         {
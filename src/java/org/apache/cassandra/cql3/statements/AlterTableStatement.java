@@ -37,7 +37,7 @@ import org.apache.cassandra.metadata.*;
 import org.apache.cassandra.service.ClientState;
 import org.apache.cassandra.service.MigrationManager;
 import org.apache.cassandra.transport.messages.ResultMessage;
-import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.UUIDGen;
 
 import static org.apache.cassandra.thrift.ThriftValidation.validateColumnFamily;
 
@@ -218,7 +218,7 @@ public class AlterTableStatement extends SchemaAlteringStatement
                 	exists = MetadataRegistry.instance.query(target, Metadata.AlterColumnFamily_Drop_Tag);
                 	if(exists != null){
                 		String client = (clientState == null)? "" : clientState.getUser().getName();
-                		Metadata.mutate(MetadataLog.add(target, FBUtilities.timestampMicros(), client,
+                		MetadataLog.append(MetadataLog.add(target, UUIDGen.getTimeUUID(), client,
                 				Metadata.AlterColumnFamily_Drop_Tag, "Permanent Drop", ""));
 //                		// register the column in the CFMetadata
 //                		Metadata.mutate(MetadataRegistry.instance.add(keyspace() + "." + columnFamily() + "." + columnName.toString(),
@@ -18,7 +18,6 @@
 package org.apache.cassandra.cql3.statements;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
 import java.util.*;
 
 import org.apache.cassandra.cql3.*;
@@ -273,61 +272,11 @@ public class UpdateStatement extends ModificationStatement
         }
         else if(!cfDef.cfm.ksName.equals(Table.SYSTEM_KS)){
         	String dataTag = (operations == null)? Metadata.Insert_Tag : Metadata.Update_Tag;
-        	announceMetadataLogMigration(cfDef, key, cf, dataTag);
+        	MetadataLog.announceRow(cfDef, key, cf, dataTag, clientState, true);
         }
 
         return type == Type.COUNTER ? new CounterMutation(rm, cl) : rm;
     }
-    
-    
-    private void announceMetadataLogMigration(CFDefinition cfDef, ByteBuffer key, ColumnFamily cf, String dataTag){
-    	
-    	String partitioningKeyName = "";	
-		try {
-			if (cfDef.hasCompositeKey) {
-				for (int i = 0; i < cfDef.keys.size(); i++) {
-					ByteBuffer bb = CompositeType.extractComponent(key, i);
-					if (i != 0) partitioningKeyName += ".";
-					partitioningKeyName += ByteBufferUtil.string(bb);
-				}
-			} else {
-				partitioningKeyName = ByteBufferUtil.string(key);
-			}
-		} catch (CharacterCodingException e) {
-			return;
-		}
-			
-    	// Iterating Column Family to get columns
-    	//ArrayList<Pair<String,String>> targets = new ArrayList<Pair<String,String>>();
-    	partitioningKeyName = cfDef.cfm.ksName + "." + cfDef.cfm.cfName + "." + partitioningKeyName;
-    	String allValues = ""; 
-    	
-    	for( IColumn col: cf.getSortedColumns()){
-    		String colName = col.getString(cf.getComparator());
-
-    		// filter column markers
-    		if(colName.indexOf("::") != -1)
-    			continue;
-    		
-    		int colNameBoundary = colName.indexOf("false");
-    		if(colNameBoundary == -1) 
-    			colNameBoundary = colName.indexOf("true");
-
-    		colName = colName.substring(0, colNameBoundary-1);
-    		colName = colName.replace(':', '.');
-    		
-    		String colVal = new String(col.value().array());
-    		
-    		if(!colName.equals("")){
-        		allValues +=  colName + "=" + colVal + ";";
-        		//targets.add( Pair.create(partitioningKeyName + "." + colName, colVal));
-    		}
-    	}
-    	//targets.add( Pair.create(partitioningKeyName, allValues));
-    	
-    	String client = (clientState == null)? "" :  clientState.getUser().getName();
-    	MetadataLog.announce(partitioningKeyName, dataTag, client, allValues);
-    }
 
     public ParsedStatement.Prepared prepare(ColumnSpecification[] boundNames) throws InvalidRequestException
     {
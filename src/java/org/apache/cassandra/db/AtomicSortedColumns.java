@@ -19,14 +19,17 @@ package org.apache.cassandra.db;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import edu.stanford.ppl.concurrent.SnapTreeMap;
 
 import org.apache.cassandra.db.filter.ColumnSlice;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.metrics.ColumnFamilyMetrics;
 import org.apache.cassandra.utils.Allocator;
 
 
@@ -41,6 +44,12 @@ import org.apache.cassandra.utils.Allocator;
  * and in particular it's copy-on-write clone operation to achieve its
  * atomicity guarantee.
  *
+ * Updates are first attempted optimistically. When an update loses the
+ * race against a concurrent one, the partition is marked as contended and
+ * that update, as well as every later update, is applied while holding the
+ * partition monitor instead: concurrent writers of a hot partition then
+ * queue up rather than repeatedly redoing (and throwing away) their work.
+ *
  * WARNING: removing element through getSortedColumns().iterator() is *not*
  * isolated of other operations and could actually be fully ignored in the
  * face of a concurrent. Don't use it unless in a non-concurrent context.
@@ -50,38 +59,55 @@ import org.apache.cassandra.utils.Allocator;
 public class AtomicSortedColumns implements ISortedColumns
 {
     private final AtomicReference<Holder> ref;
+    // where update retries and contended partitions are accounted, may be null
+    private final ColumnFamilyMetrics metrics;
+    // whether updates are serialized once the partition is contended
+    private final boolean serializeOnContention;
+    // set to 1 once an update has lost a race: later updates are serialized
+    private volatile int contended;
+    private static final AtomicIntegerFieldUpdater<AtomicSortedColumns> contendedUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(AtomicSortedColumns.class, "contended");
 
-    public static final ISortedColumns.Factory factory = new Factory()
-    {
-        public ISortedColumns create(AbstractType<?> comparator, boolean insertReversed)
-        {
-            return new AtomicSortedColumns(comparator);
-        }
-
-        public ISortedColumns fromSorted(SortedMap<ByteBuffer, IColumn> sortedMap, boolean insertReversed)
-        {
-            return new AtomicSortedColumns(sortedMap);
-        }
-    };
+    public static final ISortedColumns.Factory factory = factory(null);
 
     public static ISortedColumns.Factory factory()
     {
         return factory;
     }
 
-    private AtomicSortedColumns(AbstractType<?> comparator)
+    /**
+     * @return a factory of instances accounting their contention in metrics
+     */
+    public static ISortedColumns.Factory factory(ColumnFamilyMetrics metrics)
     {
-        this(new Holder(comparator));
+        return factory(metrics, true);
     }
 
-    private AtomicSortedColumns(SortedMap<ByteBuffer, IColumn> columns)
+    /**
+     * @param serializeOnContention false to always retry updates optimistically, for comparison purposes
+     */
+    @VisibleForTesting
+    static ISortedColumns.Factory factory(final ColumnFamilyMetrics metrics, final boolean serializeOnContention)
     {
-        this(new Holder(columns));
+        return new Factory()
+        {
+            public ISortedColumns create(AbstractType<?> comparator, boolean insertReversed)
+            {
+                return new AtomicSortedColumns(new Holder(comparator), metrics, serializeOnContention);
+            }
+
+            public ISortedColumns fromSorted(SortedMap<ByteBuffer, IColumn> sortedMap, boolean insertReversed)
+            {
+                return new AtomicSortedColumns(new Holder(sortedMap), metrics, serializeOnContention);
+            }
+        };
     }
 
-    private AtomicSortedColumns(Holder holder)
+    private AtomicSortedColumns(Holder holder, ColumnFamilyMetrics metrics, boolean serializeOnContention)
     {
         this.ref = new AtomicReference<Holder>(holder);
+        this.metrics = metrics;
+        this.serializeOnContention = serializeOnContention;
     }
 
     public AbstractType<?> getComparator()
@@ -96,7 +122,7 @@ public class AtomicSortedColumns implements ISortedColumns
 
     public ISortedColumns cloneMe()
     {
-        return new AtomicSortedColumns(ref.get().cloneMe());
+        return new AtomicSortedColumns(ref.get().cloneMe(), metrics, serializeOnContention);
     }
 
     public DeletionInfo getDeletionInfo()
@@ -174,6 +200,50 @@ public class AtomicSortedColumns implements ISortedColumns
     }
 
     public long addAllWithSizeDelta(ISortedColumns cm, Allocator allocator, Function<IColumn, IColumn> transformation, SecondaryIndexManager.Updater indexer)
+    {
+        if (contended == 0)
+        {
+            long sizeDelta = tryAddAll(cm, allocator, transformation, indexer);
+            if (sizeDelta != Long.MIN_VALUE)
+                return sizeDelta;
+
+            // we've been beaten: rather than racing again, queue up behind the other writers
+            if (metrics != null)
+                metrics.memtableUpdateRetries.inc();
+            // only the writer marking the partition accounts for it
+            if (serializeOnContention && contendedUpdater.compareAndSet(this, 0, 1) && metrics != null)
+                metrics.memtableContendedPartitions.inc();
+        }
+
+        if (!serializeOnContention)
+            return addAllOptimistically(cm, allocator, transformation, indexer);
+
+        synchronized (this)
+        {
+            // the writers that read contended before it was set may still race with us
+            return addAllOptimistically(cm, allocator, transformation, indexer);
+        }
+    }
+
+    private long addAllOptimistically(ISortedColumns cm, Allocator allocator, Function<IColumn, IColumn> transformation, SecondaryIndexManager.Updater indexer)
+    {
+        while (true)
+        {
+            long sizeDelta = tryAddAll(cm, allocator, transformation, indexer);
+            if (sizeDelta != Long.MIN_VALUE)
+                return sizeDelta;
+            if (metrics != null)
+                metrics.memtableUpdateRetries.inc();
+        }
+    }
+
+    /**
+     * Attempt to add all the columns of cm at once.
+     *
+     * @return the size delta of the update, or Long.MIN_VALUE if it has been beaten by a concurrent update and
+     * nothing was added
+     */
+    private long tryAddAll(ISortedColumns cm, Allocator allocator, Function<IColumn, IColumn> transformation, SecondaryIndexManager.Updater indexer)
     {
         /*
          * This operation needs to atomicity and isolation. To that end, we
@@ -186,29 +256,23 @@ public class AtomicSortedColumns implements ISortedColumns
          * beaten by another thread after every column addition. If we have,
          * we bail early, avoiding unnecessary work if possible.
          */
-        Holder current, modified;
-        long sizeDelta;
+        long sizeDelta = 0;
+        Holder current = ref.get();
+        DeletionInfo newDelInfo = current.deletionInfo.copy().add(cm.getDeletionInfo());
+        Holder modified = new Holder(current.map.clone(), newDelInfo);
 
-        main_loop:
-        do
+        for (IColumn column : cm.getSortedColumns())
         {
-            sizeDelta = 0;
-            current = ref.get();
-            DeletionInfo newDelInfo = current.deletionInfo.copy().add(cm.getDeletionInfo());
-            modified = new Holder(current.map.clone(), newDelInfo);
-
-            for (IColumn column : cm.getSortedColumns())
-            {
-                sizeDelta += modified.addColumn(transformation.apply(column), allocator, indexer);
-                // bail early if we know we've been beaten
-                if (ref.get() != current)
-                    continue main_loop;
-            }
+            sizeDelta += modified.addColumn(transformation.apply(column), allocator, indexer);
+            // bail early if we know we've been beaten
+            if (ref.get() != current)
+                return Long.MIN_VALUE;
         }
-        while (!ref.compareAndSet(current, modified));
 
-        indexer.updateRowLevelIndexes();
+        if (!ref.compareAndSet(current, modified))
+            return Long.MIN_VALUE;
 
+        indexer.updateRowLevelIndexes();
         return sizeDelta;
     }
 
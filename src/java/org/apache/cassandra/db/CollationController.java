@@ -200,6 +200,7 @@ public class CollationController
             for (OnDiskAtomIterator iter : iterators)
                 FileUtils.closeQuietly(iter);
             SSTableReader.releaseReferences(view.sstables);
+            Memtable.releaseReferences(view.memtables);
         }
     }
 
@@ -298,6 +299,7 @@ public class CollationController
             for (OnDiskAtomIterator iter : iterators)
                 FileUtils.closeQuietly(iter);
             SSTableReader.releaseReferences(view.sstables);
+            Memtable.releaseReferences(view.memtables);
         }
     }
 
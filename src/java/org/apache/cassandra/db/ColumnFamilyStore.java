@@ -35,14 +35,18 @@ import com.google.common.util.concurrent.Futures;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.cassandra.cache.CachedPartitionHead;
 import org.apache.cassandra.cache.IRowCacheEntry;
+import org.apache.cassandra.cache.RefCountedMemory;
 import org.apache.cassandra.cache.RowCacheKey;
 import org.apache.cassandra.cache.RowCacheSentinel;
+import org.apache.cassandra.cache.SerializedRowCacheEntry;
 import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.cql3.CFDefinition;
 import org.apache.cassandra.db.columniterator.OnDiskAtomIterator;
 import org.apache.cassandra.db.commitlog.CommitLog;
 import org.apache.cassandra.db.commitlog.ReplayPosition;
@@ -50,10 +54,13 @@ import org.apache.cassandra.db.compaction.AbstractCompactionStrategy;
 import org.apache.cassandra.db.compaction.CompactionManager;
 import org.apache.cassandra.db.compaction.LeveledCompactionStrategy;
 import org.apache.cassandra.db.compaction.OperationType;
+import org.apache.cassandra.db.filter.ColumnSlice;
 import org.apache.cassandra.db.filter.ExtendedFilter;
 import org.apache.cassandra.db.filter.IDiskAtomFilter;
+import org.apache.cassandra.db.filter.NamesQueryFilter;
 import org.apache.cassandra.db.filter.QueryFilter;
 import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.db.filter.SliceQueryFilter;
 import org.apache.cassandra.db.index.SecondaryIndex;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.db.marshal.AbstractType;
@@ -265,7 +272,7 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         }
 
         if (caching == Caching.ALL || caching == Caching.KEYS_ONLY)
-            CacheService.instance.keyCache.loadSaved(this);
+            CacheService.instance.keyCache.scheduleLoading(this);
 
         // compaction strategy should be created after the CFS has been prepared
         this.compactionStrategy = metadata.createCompactionStrategyInstance(this);
@@ -445,15 +452,7 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         if (!isRowCacheEnabled())
             return;
 
-        long start = System.currentTimeMillis();
-
-        int cachedRowsRead = CacheService.instance.rowCache.loadSaved(this);
-        if (cachedRowsRead > 0)
-            logger.info(String.format("completed loading (%d ms; %d keys) row cache for %s.%s",
-                        System.currentTimeMillis() - start,
-                        cachedRowsRead,
-                        table.name,
-                        columnFamily));
+        CacheService.instance.rowCache.scheduleLoading(this);
     }
 
     /**
@@ -624,7 +623,7 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
                 // it from the memtable pending flush right away.
                 if (memtable.isClean())
                 {
-                    cfs.replaceFlushed(memtable, null);
+                    cfs.replaceFlushed(memtable, Collections.<SSTableReader>emptyList());
                     latch.countDown();
                 }
                 else
@@ -712,10 +711,12 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
 
         RowCacheKey cacheKey = new RowCacheKey(metadata.cfId, key);
 
-        // always invalidate a copying cache value
+        // always invalidate a copying cache value, unless it is the head of the partition: heads are small enough to
+        // be copied and updated
         if (CacheService.instance.rowCache.isPutCopying())
         {
-            invalidateCachedRow(cacheKey);
+            if (metadata.getRowsPerPartitionToCache() == 0 || !updateCopiedPartitionHead(cacheKey, columnFamily))
+                invalidateCachedRow(cacheKey);
             return;
         }
 
@@ -725,6 +726,8 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         {
             if (cachedRow instanceof RowCacheSentinel)
                 invalidateCachedRow(cacheKey);
+            else if (cachedRow instanceof CachedPartitionHead)
+                updatePartitionHead(cacheKey, (CachedPartitionHead) cachedRow, columnFamily);
             else
                 // columnFamily is what is written in the commit log. Because of the PeriodicCommitLog, this can be done in concurrency
                 // with this. So columnFamily shouldn't be modified and if it contains super columns, neither should they. So for super
@@ -733,6 +736,69 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         }
     }
 
+    /**
+     * Update in place the head of a partition cached in a non-copying row cache, replacing it by a trimmed copy if
+     * the update added rows to it.
+     */
+    private void updatePartitionHead(RowCacheKey cacheKey, CachedPartitionHead head, ColumnFamily columnFamily)
+    {
+        head.update(columnFamily);
+        CachedPartitionHead trimmed = trimPartitionHead(head);
+        if (trimmed != head && !CacheService.instance.rowCache.replace(cacheKey, head, trimmed))
+            invalidateCachedRow(cacheKey);
+    }
+
+    /**
+     * Update the head of a partition cached in a copying row cache. Each write to a cached head costs deserializing
+     * the head, copying it and serializing it twice: once to check that it has not changed concurrently, and once
+     * to store the updated head.
+     *
+     * @return false if the cached value could not be updated, because it is a sentinel or has been changed concurrently
+     */
+    private boolean updateCopiedPartitionHead(RowCacheKey cacheKey, ColumnFamily columnFamily)
+    {
+        IRowCacheEntry cachedRow = CacheService.instance.rowCache.getInternal(cacheKey);
+        if (cachedRow == null)
+            return true;
+        if (!(cachedRow instanceof CachedPartitionHead))
+            return false;
+
+        CachedPartitionHead head = (CachedPartitionHead) cachedRow;
+        CachedPartitionHead updated = new CachedPartitionHead(head.columns.cloneMe(), head.end);
+        updated.update(columnFamily);
+        return CacheService.instance.rowCache.replace(cacheKey, head, trimPartitionHead(updated));
+    }
+
+    /**
+     * Writes in a cached partition head can add rows to it. Trim such a head back to the rows to cache, moving its end
+     * back to the last column of the last of them.
+     *
+     * @return the trimmed head, or head itself if it holds no more than the rows to cache
+     */
+    private CachedPartitionHead trimPartitionHead(CachedPartitionHead head)
+    {
+        SliceQueryFilter headFilter = partitionHeadFilter();
+        ColumnFamily trimmed = head.columns.cloneMeShallow();
+        headFilter.collectReducedColumns(trimmed, head.columns.iterator(), Integer.MIN_VALUE);
+        if (headFilter.lastCounted() <= headFilter.count)
+            return head;
+
+        return new CachedPartitionHead(trimmed, trimmed.getReverseSortedColumns().iterator().next().name());
+    }
+
+    /**
+     * @return a filter selecting the first rows of a partition, counted like CQL3 queries do
+     */
+    private SliceQueryFilter partitionHeadFilter()
+    {
+        CFDefinition cfDef = metadata.getCfDef();
+        return new SliceQueryFilter(ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                                    ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                                    false,
+                                    metadata.getRowsPerPartitionToCache(),
+                                    cfDef.isCompact ? -1 : cfDef.columns.size());
+    }
+
     /**
      * Insert/Update the column family for this key.
      * Caller is responsible for acquiring Table.flusherLock!
@@ -1027,10 +1093,10 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         data.replaceCompactedSSTables(sstables, replacements, compactionType);
     }
 
-    void replaceFlushed(Memtable memtable, SSTableReader sstable)
+    void replaceFlushed(Memtable memtable, Collection<SSTableReader> sstables)
     {
-        data.replaceFlushed(memtable, sstable);
-        if (sstable != null)
+        data.replaceFlushed(memtable, sstables);
+        if (!sstables.isEmpty())
             CompactionManager.instance.submitBackground(this);
     }
 
@@ -1172,10 +1238,10 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
      * @param cfId the column family to read the row from
      * @param filter the columns being queried.  Note that we still cache entire rows, but if a row is uncached
      *               and we race to cache it, only the winner will read the entire row
-     * @return the entire row for filter.key, if present in the cache (or we can cache it), or just the column
-     *         specified by filter otherwise
+     * @return the entire row for filter.key, or its head if only the first rows of partitions are cached, if present in
+     *         the cache (or we can cache it), or just the column specified by filter otherwise
      */
-    private ColumnFamily getThroughCache(UUID cfId, QueryFilter filter)
+    private IRowCacheEntry getThroughCache(UUID cfId, QueryFilter filter)
     {
         assert isRowCacheEnabled()
                : String.format("Row cache is not enabled on column family [" + getColumnFamilyName() + "]");
@@ -1194,26 +1260,48 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
                 return getTopLevelColumns(filter, Integer.MIN_VALUE, false);
             }
             Tracing.trace("Row cache hit");
-            return (ColumnFamily) cached;
+            return cached;
         }
 
         Tracing.trace("Row cache miss");
         RowCacheSentinel sentinel = new RowCacheSentinel();
-        boolean sentinelSuccess = CacheService.instance.rowCache.putIfAbsent(key, sentinel);
+        if (!CacheService.instance.rowCache.putIfAbsent(key, sentinel))
+        {
+            // The row is not admitted in the cache, or some other read is trying to cache it: just do a normal
+            // non-caching read
+            Tracing.trace("Row cache miss (not cached)");
+            return getTopLevelColumns(filter, Integer.MIN_VALUE, false);
+        }
+        return readAndCache(key, filter.key, sentinel);
+    }
 
+    /**
+     * Read what the row cache keeps of a row missing from the cache, and cache it unless the cache doesn't admit it
+     * or a concurrent read is already caching it.
+     *
+     * @return the row, or its head, or null if there is no data for dk or it is not cached
+     */
+    public IRowCacheEntry readAndCache(RowCacheKey key, DecoratedKey dk)
+    {
+        RowCacheSentinel sentinel = new RowCacheSentinel();
+        return CacheService.instance.rowCache.putIfAbsent(key, sentinel) ? readAndCache(key, dk, sentinel) : null;
+    }
+
+    // read what the row cache keeps of dk and replace the sentinel put under key with it
+    private IRowCacheEntry readAndCache(RowCacheKey key, DecoratedKey dk, RowCacheSentinel sentinel)
+    {
+        IRowCacheEntry data = null;
         try
         {
-            ColumnFamily data = getTopLevelColumns(QueryFilter.getIdentityFilter(filter.key, new QueryPath(columnFamily)),
-                                                   Integer.MIN_VALUE,
-                                                   true);
-            if (sentinelSuccess && data != null)
+            data = readRowCacheEntry(dk);
+            if (data != null)
                 CacheService.instance.rowCache.replace(key, sentinel, data);
 
             return data;
         }
         finally
         {
-            if (sentinelSuccess && data == null)
+            if (data == null)
                 CacheService.instance.rowCache.remove(key);
         }
     }
@@ -1236,26 +1324,24 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
                     return null;
                 }
 
-                ColumnFamily cached = getThroughCache(cfId, filter);
-                if (cached == null)
+                if (CacheService.instance.rowCache.isSerializing() && metadata.cfType == ColumnFamilyType.Standard)
                 {
-                    logger.trace("cached row is empty");
-                    return null;
+                    result = getThroughSerializedCache(cfId, filter, gcBefore);
+                }
+                else
+                {
+                    IRowCacheEntry cached = getThroughCache(cfId, filter);
+                    if (cached == null)
+                    {
+                        logger.trace("cached row is empty");
+                        return null;
+                    }
+                    result = filterCachedEntry(cached, filter, gcBefore);
                 }
-
-                result = filterColumnFamily(cached, filter, gcBefore);
             }
             else
             {
-                ColumnFamily cf = getTopLevelColumns(filter, gcBefore, false);
-
-                if (cf == null)
-                    return null;
-
-                // TODO this is necessary because when we collate supercolumns together, we don't check
-                // their subcolumns for relevance, so we need to do a second prune post facto here.
-                result = cf.isSuper() ? removeDeleted(cf, gcBefore) : removeDeletedCF(cf, gcBefore);
-
+                result = getUncachedColumnFamily(filter, gcBefore);
             }
             removeDroppedColumns(result);
         }
@@ -1267,6 +1353,176 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         return result;
     }
 
+    /**
+     * Like getThroughCache followed by the filtering of the cached entry, for a serializing row cache: a cached row is
+     * filtered in its serialized form, only the columns selected by filter being deserialized.
+     *
+     * @return the columns of filter.key selected by filter
+     */
+    private ColumnFamily getThroughSerializedCache(UUID cfId, QueryFilter filter, int gcBefore)
+    {
+        RowCacheKey key = new RowCacheKey(cfId, filter.key);
+        RefCountedMemory serialized = CacheService.instance.rowCache.getSerialized(key);
+        if (serialized == null)
+        {
+            Tracing.trace("Row cache miss");
+            RowCacheSentinel sentinel = new RowCacheSentinel();
+            if (!CacheService.instance.rowCache.putIfAbsent(key, sentinel))
+            {
+                // The row is not admitted in the cache, or some other read is trying to cache it
+                Tracing.trace("Row cache miss (not cached)");
+                return getUncachedColumnFamily(filter, gcBefore);
+            }
+            IRowCacheEntry cached = readAndCache(key, filter.key, sentinel);
+            if (cached == null)
+            {
+                logger.trace("cached row is empty");
+                return null;
+            }
+            return filterCachedEntry(cached, filter, gcBefore);
+        }
+
+        try
+        {
+            SerializedRowCacheEntry cached = new SerializedRowCacheEntry(serialized);
+            if (cached.isSentinel())
+            {
+                // Some other read is trying to cache the value, just do a normal non-caching read
+                Tracing.trace("Row cache miss (race)");
+            }
+            else
+            {
+                Tracing.trace("Row cache hit");
+                ByteBuffer end = cached.headEnd();
+                if (end.remaining() == 0 || headCovers(end, filter.filter))
+                    return filterSerializedEntry(cached, filter, gcBefore);
+                if (isForwardSlice(filter.filter))
+                {
+                    ColumnFamily cf = filterSerializedEntry(cached, filter, gcBefore);
+                    if (isCountedInHead(filter.filter))
+                        return cf;
+                }
+                Tracing.trace("Query not covered by the cached partition head");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.debug("Cannot read the cached row, reading it from disk", e);
+        }
+        finally
+        {
+            serialized.unreference();
+        }
+        return getUncachedColumnFamily(filter, gcBefore);
+    }
+
+    private ColumnFamily getUncachedColumnFamily(QueryFilter filter, int gcBefore)
+    {
+        ColumnFamily cf = getTopLevelColumns(filter, gcBefore, false);
+
+        if (cf == null)
+            return null;
+
+        // TODO this is necessary because when we collate supercolumns together, we don't check
+        // their subcolumns for relevance, so we need to do a second prune post facto here.
+        return cf.isSuper() ? removeDeleted(cf, gcBefore) : removeDeletedCF(cf, gcBefore);
+    }
+
+    /**
+     * Read what the row cache keeps of the partition of key: all of it, or only its head if the column family caches
+     * the first rows of partitions. The head is read by a slice counting rows like CQL3 queries do, which stops on the
+     * first column of the row following the head.
+     *
+     * @return the value to cache, or null if there is no data for key
+     */
+    public IRowCacheEntry readRowCacheEntry(DecoratedKey key)
+    {
+        int rowsToCache = metadata.getRowsPerPartitionToCache();
+        if (rowsToCache == 0)
+            return getTopLevelColumns(QueryFilter.getIdentityFilter(key, new QueryPath(columnFamily)), Integer.MIN_VALUE, true);
+
+        SliceQueryFilter headFilter = partitionHeadFilter();
+        ColumnFamily head = getTopLevelColumns(new QueryFilter(key, new QueryPath(columnFamily), headFilter), Integer.MIN_VALUE, true);
+        if (head == null)
+            return null;
+
+        ByteBuffer end = headFilter.lastCounted() > rowsToCache
+                       ? head.getReverseSortedColumns().iterator().next().name()
+                       : ByteBufferUtil.EMPTY_BYTE_BUFFER;
+        return new CachedPartitionHead(head, end);
+    }
+
+    private ColumnFamily filterCachedEntry(IRowCacheEntry cached, QueryFilter filter, int gcBefore)
+    {
+        if (!(cached instanceof CachedPartitionHead))
+            return filterColumnFamily((ColumnFamily) cached, filter, gcBefore);
+
+        CachedPartitionHead head = (CachedPartitionHead) cached;
+        if (head.isWholePartition() || headCovers(head.end, filter.filter))
+            return filterColumnFamily(head.columns, filter, gcBefore);
+        if (isForwardSlice(filter.filter))
+        {
+            ColumnFamily cf = filterColumnFamily(head.columns, filter, gcBefore);
+            if (isCountedInHead(filter.filter))
+                return cf;
+        }
+        Tracing.trace("Query not covered by the cached partition head");
+        return getUncachedColumnFamily(filter, gcBefore);
+    }
+
+    /**
+     * A cached partition head holds all the columns a filter may select if they are the columns of a names query, or
+     * of slices, ending in the head. It may also hold all the columns selected by forward slices whose count is
+     * reached before the end of the head, which is only known once the head has been filtered.
+     *
+     * @return whether all the columns filter may select are in a partition head ending at end
+     */
+    private boolean headCovers(ByteBuffer end, IDiskAtomFilter filter)
+    {
+        AbstractType<?> comparator = getComparator();
+        if (filter instanceof NamesQueryFilter)
+        {
+            for (ByteBuffer name : ((NamesQueryFilter) filter).columns)
+                if (comparator.compare(name, end) > 0)
+                    return false;
+            return true;
+        }
+
+        SliceQueryFilter sliceFilter = (SliceQueryFilter) filter;
+        for (ColumnSlice slice : sliceFilter.slices)
+        {
+            // reversed slices end on their start
+            ByteBuffer last = sliceFilter.reversed ? slice.start : slice.finish;
+            if (last.remaining() == 0 || comparator.compare(last, end) > 0)
+                return false;
+        }
+        return true;
+    }
+
+    // a reversed slice starts past the head
+    private boolean isForwardSlice(IDiskAtomFilter filter)
+    {
+        return filter instanceof SliceQueryFilter && !((SliceQueryFilter) filter).reversed;
+    }
+
+    // whether filter, once it has filtered a partition head, has counted a column past its count
+    private boolean isCountedInHead(IDiskAtomFilter filter)
+    {
+        SliceQueryFilter sliceFilter = (SliceQueryFilter) filter;
+        return sliceFilter.lastCounted() > sliceFilter.count;
+    }
+
+    /**
+     * Same as filterColumnFamily, for a row cache entry filtered in its serialized form.
+     */
+    private ColumnFamily filterSerializedEntry(SerializedRowCacheEntry cached, QueryFilter filter, int gcBefore) throws IOException
+    {
+        ColumnFamily cf = cached.emptyColumnFamily(ArrayBackedSortedColumns.factory(), filter.filter.isReversed());
+        OnDiskAtomIterator ci = cached.iterator(cf.cloneMeShallow(), filter.key, filter.filter);
+        filter.collateOnDiskAtom(cf, Collections.singletonList(ci), gcBefore);
+        return removeDeletedCF(cf, gcBefore);
+    }
+
     /**
      *  Filter a cached row, which will not be modified by the filter, but may be modified by throwing out
      *  tombstones that are no longer relevant.
@@ -1327,25 +1583,27 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
     private ViewFragment markReferenced(AbstractViewSSTableFinder finder)
     {
         List<SSTableReader> sstables;
-        DataTracker.View view;
+        Iterable<Memtable> memtables;
 
         while (true)
         {
-            view = data.getView();
+            DataTracker.View view = data.getView();
+            memtables = Iterables.concat(Collections.singleton(view.memtable), view.memtablesPendingFlush);
 
-            if (view.intervalTree.isEmpty())
+            sstables = view.intervalTree.isEmpty()
+                     ? Collections.<SSTableReader>emptyList()
+                     : finder.findSSTables(view);
+            if (SSTableReader.acquireReferences(sstables))
             {
-                sstables = Collections.emptyList();
-                break;
+                // off-heap memtables are freed once flushed, in which case their sstable is in the new view
+                if (Memtable.acquireReferences(memtables))
+                    break;
+                SSTableReader.releaseReferences(sstables);
             }
-
-            sstables = finder.findSSTables(view);
-            if (SSTableReader.acquireReferences(sstables))
-                break;
             // retry w/ new view
         }
 
-        return new ViewFragment(sstables, Iterables.concat(Collections.singleton(view.memtable), view.memtablesPendingFlush));
+        return new ViewFragment(sstables, memtables);
     }
 
     /**
@@ -1415,6 +1673,7 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         }
         finally {
             SSTableReader.releaseReferences(view.sstables);
+            Memtable.releaseReferences(view.memtables);
         }
     }
 
@@ -1492,6 +1751,7 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
                 public void close() throws IOException
                 {
                     SSTableReader.releaseReferences(view.sstables);
+                    Memtable.releaseReferences(view.memtables);
                     iterator.close();
                 }
             };
@@ -1500,6 +1760,7 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         {
             // In case getIterator() throws, otherwise the iteror close method releases the references.
             SSTableReader.releaseReferences(view.sstables);
+            Memtable.releaseReferences(view.memtables);
             throw e;
         }
     }
@@ -1511,7 +1772,11 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
 
     public List<Row> getRangeSlice(ByteBuffer superColumn, final AbstractBounds<RowPosition> range, int maxResults, IDiskAtomFilter columnFilter, List<IndexExpression> rowFilter, boolean countCQL3Rows, boolean isPaging)
     {
-        return filter(getSequentialIterator(superColumn, range, columnFilter), ExtendedFilter.create(this, columnFilter, rowFilter, maxResults, countCQL3Rows, isPaging));
+        // paging and CQL3 row counting update the column filter as rows are returned, which rows read ahead would miss
+        AbstractScanIterator iterator = countCQL3Rows || isPaging
+                                      ? getSequentialIterator(superColumn, range, columnFilter)
+                                      : ParallelRangeScan.getIterator(this, superColumn, range, columnFilter, maxResults);
+        return filter(iterator, ExtendedFilter.create(this, columnFilter, rowFilter, maxResults, countCQL3Rows, isPaging));
     }
 
     public List<Row> search(List<IndexExpression> clause, AbstractBounds<RowPosition> range, int maxResults, IDiskAtomFilter dataFilter)
@@ -1704,6 +1969,8 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
             return null; // secondary index
 
         IRowCacheEntry cached = CacheService.instance.rowCache.getInternal(new RowCacheKey(metadata.cfId, key));
+        if (cached instanceof CachedPartitionHead)
+            return ((CachedPartitionHead) cached).isWholePartition() ? ((CachedPartitionHead) cached).columns : null;
         return cached == null || cached instanceof RowCacheSentinel ? null : (ColumnFamily) cached;
     }
 
@@ -118,11 +118,12 @@ public class DataTracker
             newView = currentView.renewMemtable(newMemtable);
         }
         while (!view.compareAndSet(currentView, newView));
+        currentView.memtable.discard();
     }
 
-    public void replaceFlushed(Memtable memtable, SSTableReader sstable)
+    public void replaceFlushed(Memtable memtable, Collection<SSTableReader> sstables)
     {
-        // sstable may be null if we flushed batchlog and nothing needed to be retained
+        // sstables may be empty if we flushed batchlog and nothing needed to be retained
 
         if (!cfstore.isValid())
         {
@@ -130,30 +131,33 @@ public class DataTracker
             do
             {
                 currentView = view.get();
-                newView = currentView.replaceFlushed(memtable, sstable);
-                if (sstable != null)
-                    newView = newView.replace(Arrays.asList(sstable), Collections.<SSTableReader>emptyList());
+                newView = currentView.replaceFlushed(memtable, sstables);
+                if (!sstables.isEmpty())
+                    newView = newView.replace(sstables, Collections.<SSTableReader>emptyList());
             }
             while (!view.compareAndSet(currentView, newView));
+            memtable.discard();
             return;
         }
 
         // back up before creating a new View (which makes the new one eligible for compaction)
-        if (sstable != null)
+        for (SSTableReader sstable : sstables)
             maybeIncrementallyBackup(sstable);
 
         View currentView, newView;
         do
         {
             currentView = view.get();
-            newView = currentView.replaceFlushed(memtable, sstable);
+            newView = currentView.replaceFlushed(memtable, sstables);
         }
         while (!view.compareAndSet(currentView, newView));
+        memtable.discard();
 
-        if (sstable != null)
+        if (!sstables.isEmpty())
         {
-            addNewSSTablesSize(Arrays.asList(sstable));
-            notifyAdded(sstable);
+            addNewSSTablesSize(sstables);
+            for (SSTableReader sstable : sstables)
+                notifyAdded(sstable);
         }
     }
 
@@ -496,12 +500,13 @@ public class DataTracker
             return new View(newMemtable, memtablesPendingFlush, sstables, compacting, intervalTree);
         }
 
-        public View replaceFlushed(Memtable flushedMemtable, SSTableReader newSSTable)
+        public View replaceFlushed(Memtable flushedMemtable, Collection<SSTableReader> flushedSSTables)
         {
             Set<Memtable> newPending = ImmutableSet.copyOf(Sets.difference(memtablesPendingFlush, Collections.singleton(flushedMemtable)));
-            Set<SSTableReader> newSSTables = newSSTable == null
+            // not performance-sensitive, don't obsess over doing a selection merge here
+            Set<SSTableReader> newSSTables = flushedSSTables.isEmpty()
                                             ? sstables
-                                            : newSSTables(newSSTable);
+                                            : newSSTables(Collections.<SSTableReader>emptyList(), flushedSSTables);
             SSTableIntervalTree intervalTree = buildIntervalTree(newSSTables);
             return new View(memtable, newPending, newSSTables, compacting, intervalTree);
         }
@@ -525,13 +530,6 @@ public class DataTracker
             return new View(memtable, memtablesPendingFlush, sstables, compactingNew, intervalTree);
         }
 
-        private Set<SSTableReader> newSSTables(SSTableReader newSSTable)
-        {
-            assert newSSTable != null;
-            // not performance-sensitive, don't obsess over doing a selection merge here
-            return newSSTables(Collections.<SSTableReader>emptyList(), Collections.singletonList(newSSTable));
-        }
-
         private Set<SSTableReader> newSSTables(Collection<SSTableReader> oldSSTables, Iterable<SSTableReader> replacements)
         {
             ImmutableSet<SSTableReader> oldSet = ImmutableSet.copyOf(oldSSTables);
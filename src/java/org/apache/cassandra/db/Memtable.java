@@ -18,6 +18,7 @@
 package org.apache.cassandra.db;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
@@ -28,6 +29,7 @@ import com.google.common.base.Throwables;
 
 import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
 import org.apache.cassandra.concurrent.StageManager;
+import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.io.util.DiskAwareRunnable;
@@ -48,7 +50,10 @@ import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.io.sstable.SSTableMetadata;
 import org.apache.cassandra.io.sstable.SSTableReader;
 import org.apache.cassandra.io.sstable.SSTableWriter;
+import org.apache.cassandra.utils.HeapAllocator;
+import org.apache.cassandra.utils.OffHeapAllocator;
 import org.apache.cassandra.utils.SlabAllocator;
+import org.apache.cassandra.utils.WrappedRunnable;
 
 public class Memtable
 {
@@ -74,6 +79,18 @@ public class Memtable
                                                new NamedThreadFactory("FlushWriter"),
                                                "internal");
 
+    /*
+     * A memtable flush split in several ranges writes its first range itself and the others on this executor.
+     * Its queue is implicitly bounded by the number of flushWriter threads times the number of ranges per flush.
+     */
+    private static final ExecutorService flushRangeWriter
+            = new JMXEnabledThreadPoolExecutor(DatabaseDescriptor.getFlushWriters(),
+                                               StageManager.KEEPALIVE,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new NamedThreadFactory("FlushRangeWriter"),
+                                               "internal");
+
     // size in memory can never be less than serialized size
     private static final double MIN_SANE_LIVE_RATIO = 1.0;
     // max liveratio seen w/ 1-byte columns on a 64-bit jvm was 19. If it gets higher than 64 something is probably broken.
@@ -114,7 +131,7 @@ public class Memtable
     public final ColumnFamilyStore cfs;
     private final long creationTime;
 
-    private final SlabAllocator allocator = new SlabAllocator();
+    private final SlabAllocator allocator;
     // We really only need one column by allocator but one by memtable is not a big waste and avoids needing allocators to know about CFS
     private final Function<IColumn, IColumn> localCopyFunction = new Function<IColumn, IColumn>()
     {
@@ -123,6 +140,8 @@ public class Memtable
             return c.localCopy(cfs, allocator);
         };
     };
+    // partitions account their update contention in the CF metrics
+    private final ISortedColumns.Factory columnsFactory;
 
     // Record the comparator of the CFS at the creation of the memtable. This
     // is only used when a user update the CF comparator, to know if the
@@ -134,6 +153,10 @@ public class Memtable
         this.cfs = cfs;
         this.creationTime = System.currentTimeMillis();
         this.initialComparator = cfs.metadata.comparator;
+        this.allocator = cfs.metadata.getMemtableAllocator() == CFMetaData.MemtableAllocator.OFFHEAP
+                       ? new OffHeapAllocator()
+                       : new SlabAllocator();
+        this.columnsFactory = AtomicSortedColumns.factory(cfs.metric);
 
         Callable<Set<Object>> provider = new Callable<Set<Object>>()
         {
@@ -256,7 +279,7 @@ public class Memtable
         if (previous == null)
         {
             // AtomicSortedColumns doesn't work for super columns (see #3821)
-            ColumnFamily empty = cf.cloneMeShallow(cf.isSuper() ? ThreadSafeSortedColumns.factory() : AtomicSortedColumns.factory(), false);
+            ColumnFamily empty = cf.cloneMeShallow(cf.isSuper() ? ThreadSafeSortedColumns.factory() : columnsFactory, false);
             // We'll add the columns later. This avoids wasting works if we get beaten in the putIfAbsent
             previous = columnFamilies.putIfAbsent(new DecoratedKey(key.token, allocator.clone(key.key)), empty);
             if (previous == null)
@@ -285,7 +308,101 @@ public class Memtable
 
     public void flushAndSignal(final CountDownLatch latch, final Future<ReplayPosition> context)
     {
-        flushWriter.execute(new FlushRunnable(latch, context));
+        flushWriter.execute(new WrappedRunnable()
+        {
+            public void runMayThrow() throws Exception
+            {
+                writeRanges(latch, context);
+            }
+        });
+    }
+
+    /**
+     * Split the memtable in consecutive key ranges written concurrently, each to its own sstable. Memtables
+     * are split in ranges of at least memtable_flush_split_size_in_mb, and in at most as many ranges as there
+     * are flush writers. The flushed sstables replace the memtable at once, when all the ranges are written;
+     * if any range fails, the sstables of the others are deleted.
+     */
+    private void writeRanges(CountDownLatch latch, Future<ReplayPosition> context) throws InterruptedException
+    {
+        List<FlushRunnable> runnables = createFlushRunnables(context);
+        List<Future<?>> futures = new ArrayList<Future<?>>(runnables.size() - 1);
+        for (FlushRunnable runnable : runnables.subList(1, runnables.size()))
+            futures.add(flushRangeWriter.submit(runnable));
+
+        Throwable failure = null;
+        try
+        {
+            runnables.get(0).run();
+        }
+        catch (Throwable t)
+        {
+            failure = t;
+        }
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+
+        List<SSTableReader> sstables = new ArrayList<SSTableReader>(runnables.size());
+        for (FlushRunnable runnable : runnables)
+        {
+            if (runnable.sstable != null)
+                sstables.add(runnable.sstable);
+        }
+        if (failure != null)
+        {
+            for (SSTableReader sstable : sstables)
+            {
+                sstable.markCompacted();
+                sstable.releaseReference();
+            }
+            throw Throwables.propagate(failure);
+        }
+
+        cfs.replaceFlushed(this, sstables);
+        latch.countDown();
+    }
+
+    private List<FlushRunnable> createFlushRunnables(Future<ReplayPosition> context)
+    {
+        int rows = columnFamilies.size();
+        int ranges = (int) Math.max(1, Math.min(Math.min(DatabaseDescriptor.getFlushWriters(), rows),
+                                                currentSize.get() / DatabaseDescriptor.getMemtableFlushSplitSize()));
+        List<FlushRunnable> runnables = new ArrayList<FlushRunnable>(ranges);
+
+        RowPosition start = null;
+        long keySize = 0;
+        int rangeRows = 0;
+        int row = 0;
+        for (RowPosition key : columnFamilies.keySet())
+        {
+            //  make sure we don't write non-sensical keys
+            assert key instanceof DecoratedKey;
+            // the range ends right before the first row of the next one
+            if (runnables.size() < ranges - 1 && row == (long) rows * (runnables.size() + 1) / ranges)
+            {
+                runnables.add(new FlushRunnable(context, start, key, keySize, rangeRows, rows));
+                start = key;
+                keySize = 0;
+                rangeRows = 0;
+            }
+            keySize += ((DecoratedKey)key).key.remaining();
+            rangeRows++;
+            row++;
+        }
+        runnables.add(new FlushRunnable(context, start, null, keySize, rangeRows, rows));
+        // rows are never removed from a memtable, so we can't have found less ranges than expected
+        assert runnables.size() == ranges;
+        return runnables;
     }
 
     public String toString()
@@ -316,6 +433,13 @@ public class Memtable
                 Map.Entry<RowPosition, ColumnFamily> entry = iter.next();
                 // Actual stored key should be true DecoratedKey
                 assert entry.getKey() instanceof DecoratedKey;
+                if (isOffHeap())
+                {
+                    // the key ends up in the rows returned, which outlive our reference
+                    DecoratedKey key = (DecoratedKey) entry.getKey();
+                    return new AbstractMap.SimpleImmutableEntry<DecoratedKey, ColumnFamily>(new DecoratedKey(key.token, HeapAllocator.instance.clone(key.key)),
+                                                                                            entry.getValue());
+                }
                 return (Map.Entry<DecoratedKey, ColumnFamily>)(Object)entry; // yes, it's ugly
             }
 
@@ -326,6 +450,114 @@ public class Memtable
         };
     }
 
+    public boolean isOffHeap()
+    {
+        return allocator instanceof OffHeapAllocator;
+    }
+
+    /**
+     * Reference the memory of this memtable, so that it is not freed while being read.
+     * Memtables on the heap are always successfully referenced.
+     *
+     * @return true if the memory has been referenced, false if it has been freed already
+     */
+    public boolean acquireReference()
+    {
+        return !isOffHeap() || ((OffHeapAllocator) allocator).reference();
+    }
+
+    public void releaseReference()
+    {
+        if (isOffHeap())
+            ((OffHeapAllocator) allocator).unreference();
+    }
+
+    public static boolean acquireReferences(Iterable<Memtable> memtables)
+    {
+        Memtable failed = null;
+        for (Memtable memtable : memtables)
+        {
+            if (!memtable.acquireReference())
+            {
+                failed = memtable;
+                break;
+            }
+        }
+
+        if (failed == null)
+            return true;
+
+        for (Memtable memtable : memtables)
+        {
+            if (memtable == failed)
+                break;
+            memtable.releaseReference();
+        }
+        return false;
+    }
+
+    public static void releaseReferences(Iterable<Memtable> memtables)
+    {
+        for (Memtable memtable : memtables)
+            memtable.releaseReference();
+    }
+
+    /**
+     * Release the reference the memtable holds on its own memory, once it has been removed from the
+     * view of its column family store. Off-heap memory is freed when the last reader is done.
+     */
+    public void discard()
+    {
+        releaseReference();
+    }
+
+    /**
+     * Columns of an off-heap memtable cannot be returned as is to readers, who may use them after
+     * the memtable memory has been freed.
+     *
+     * @return iter if the memtable is on the heap, an iterator over copies on the heap of the atoms
+     * of iter otherwise
+     */
+    public OnDiskAtomIterator onHeap(final OnDiskAtomIterator iter)
+    {
+        if (iter == null || !isOffHeap())
+            return iter;
+
+        return new OnDiskAtomIterator()
+        {
+            public ColumnFamily getColumnFamily()
+            {
+                return iter.getColumnFamily();
+            }
+
+            public DecoratedKey getKey()
+            {
+                return iter.getKey();
+            }
+
+            public boolean hasNext()
+            {
+                return iter.hasNext();
+            }
+
+            public OnDiskAtom next()
+            {
+                OnDiskAtom atom = iter.next();
+                return atom instanceof IColumn ? ((IColumn) atom).localCopy(cfs, HeapAllocator.instance) : atom;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() throws IOException
+            {
+                iter.close();
+            }
+        };
+    }
+
     public boolean isClean()
     {
         return columnFamilies.isEmpty();
@@ -414,25 +646,25 @@ public class Memtable
 
     class FlushRunnable extends DiskAwareRunnable
     {
-        private final CountDownLatch latch;
         private final Future<ReplayPosition> context;
+        // the rows from start inclusive to end exclusive are written, null bounds being the ends of the memtable
+        private final RowPosition start;
+        private final RowPosition end;
+        private final int rows;
         private final long estimatedSize;
+        // the written sstable, if any rows needed to be retained
+        volatile SSTableReader sstable;
 
-        FlushRunnable(CountDownLatch latch, Future<ReplayPosition> context)
+        FlushRunnable(Future<ReplayPosition> context, RowPosition start, RowPosition end, long keySize, int rows, int totalRows)
         {
-            this.latch = latch;
             this.context = context;
+            this.start = start;
+            this.end = end;
+            this.rows = rows;
 
-            long keySize = 0;
-            for (RowPosition key : columnFamilies.keySet())
-            {
-                //  make sure we don't write non-sensical keys
-                assert key instanceof DecoratedKey;
-                keySize += ((DecoratedKey)key).key.remaining();
-            }
             estimatedSize = (long) ((keySize // index entries
                                     + keySize // keys in data file
-                                    + currentSize.get()) // data
+                                    + currentSize.get() * rows / Math.max(1, totalRows)) // data
                                     * 1.2); // bloom filter and row index overhead
         }
 
@@ -445,9 +677,7 @@ public class Memtable
         {
             assert sstableDirectory != null : "Flush task is not bound to any disk";
 
-            SSTableReader sstable = writeSortedContents(context, sstableDirectory);
-            cfs.replaceFlushed(Memtable.this, sstable);
-            latch.countDown();
+            sstable = writeSortedContents(context, sstableDirectory);
         }
 
         protected Directories getDirectories()
@@ -458,7 +688,10 @@ public class Memtable
         private SSTableReader writeSortedContents(Future<ReplayPosition> context, File sstableDirectory)
         throws ExecutionException, InterruptedException
         {
-            logger.info("Writing " + Memtable.this.toString());
+            if (start == null && end == null)
+                logger.info("Writing " + Memtable.this.toString());
+            else
+                logger.info("Writing {} rows of {} from {} to {}", new Object[]{ rows, Memtable.this, start, end });
 
             SSTableReader ssTable;
             // errors when creating the writer that may leave empty temp files.
@@ -467,7 +700,7 @@ public class Memtable
             {
                 // (we can't clear out the map as-we-go to free up memory,
                 //  since the memtable is being used for queries in the "pending flush" category)
-                for (Map.Entry<RowPosition, ColumnFamily> entry : columnFamilies.entrySet())
+                for (Map.Entry<RowPosition, ColumnFamily> entry : rowsToWrite().entrySet())
                 {
                     ColumnFamily cf = entry.getValue();
                     if (cf.isMarkedForDelete())
@@ -511,11 +744,18 @@ public class Memtable
             }
         }
 
+        private SortedMap<RowPosition, ColumnFamily> rowsToWrite()
+        {
+            if (start == null)
+                return end == null ? columnFamilies : columnFamilies.headMap(end, false);
+            return end == null ? columnFamilies.tailMap(start, true) : columnFamilies.subMap(start, true, end, false);
+        }
+
         public SSTableWriter createFlushWriter(String filename) throws ExecutionException, InterruptedException
         {
             SSTableMetadata.Collector sstableMetadataCollector = SSTableMetadata.createCollector().replayPosition(context.get());
             return new SSTableWriter(filename,
-                                     columnFamilies.size(),
+                                     rows,
                                      cfs.metadata,
                                      cfs.partitioner,
                                      sstableMetadataCollector);
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.concurrent.StageManager;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
+import org.apache.cassandra.db.filter.SliceQueryFilter;
+import org.apache.cassandra.dht.AbstractBounds;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.tracing.Tracing;
+import org.apache.cassandra.utils.Pair;
+
+/**
+ * Scans a range of a column family as consecutive sub-ranges read concurrently.
+ *
+ * The range is split at the sampled keys of the sstables, each sub-range being expected to hold at least
+ * range_scan_split_rows rows, and all of them together at most the number of rows the scan can return: the sub-ranges
+ * cover the start of the range, the last one extending to its end. The first sub-range is read lazily by the caller,
+ * the others ahead of it on the RangeScan executor, each up to that number of rows. The rows of a sub-range are
+ * returned once those of the previous one are, so they come in the same order as from a sequential scan.
+ */
+public class ParallelRangeScan
+{
+    private static final ExecutorService executor
+            = new JMXEnabledThreadPoolExecutor(DatabaseDescriptor.getRangeScanParallelism(),
+                                               StageManager.KEEPALIVE,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new NamedThreadFactory("RangeScan"),
+                                               "internal");
+
+    /**
+     * @return an iterator over the rows of range, scanning sub-ranges of it concurrently if it is expected to hold
+     * enough rows. The column filter must not be updated while the rows are iterated: the sub-ranges are read ahead.
+     */
+    public static ColumnFamilyStore.AbstractScanIterator getIterator(ColumnFamilyStore cfs,
+                                                                     ByteBuffer superColumn,
+                                                                     AbstractBounds<RowPosition> range,
+                                                                     IDiskAtomFilter columnFilter,
+                                                                     int maxRows)
+    {
+        List<AbstractBounds<RowPosition>> splits;
+        ColumnFamilyStore.ViewFragment view = cfs.markReferenced(range);
+        try
+        {
+            splits = split(range, view.sstables, maxRows, DatabaseDescriptor.getRangeScanParallelism(), DatabaseDescriptor.getRangeScanSplitRows());
+        }
+        finally
+        {
+            SSTableReader.releaseReferences(view.sstables);
+            Memtable.releaseReferences(view.memtables);
+        }
+
+        if (splits.size() == 1)
+            return cfs.getSequentialIterator(superColumn, range, columnFilter);
+
+        Tracing.trace("Scanning {} sub-ranges concurrently", splits.size());
+        return new ParallelScanIterator(cfs, superColumn, splits, columnFilter, maxRows);
+    }
+
+    /**
+     * Split range at sampled keys of sstables in up to parallelism sub-ranges of at least splitRows rows each.
+     *
+     * @return the sub-ranges, in token order, or range alone if it is not worth splitting
+     */
+    @VisibleForTesting
+    static List<AbstractBounds<RowPosition>> split(AbstractBounds<RowPosition> range,
+                                                   Collection<SSTableReader> sstables,
+                                                   int maxRows,
+                                                   int parallelism,
+                                                   int splitRows)
+    {
+        List<AbstractBounds<RowPosition>> splits = Collections.singletonList(range);
+        if (parallelism < 2 || sstables.isEmpty() || maxRows < 2 * splitRows)
+            return splits;
+
+        Token left = range.left.getToken();
+        Token right = range.right.getToken();
+        // a token range can not express a range within a single token
+        if (left.equals(right) && !range.right.isMinimum())
+            return splits;
+        Range<Token> tokenRange = new Range<Token>(left, right);
+
+        // each sample stands for about interval rows, the first maxRows / interval samples are all expected to be read
+        long intervals = 0;
+        for (SSTableReader sstable : sstables)
+            intervals += sstable.getIndexInterval();
+        int interval = (int) (intervals / sstables.size());
+        int maxSamples = maxRows / interval;
+
+        SortedSet<DecoratedKey> samples = new TreeSet<DecoratedKey>();
+        for (SSTableReader sstable : sstables)
+        {
+            int added = 0;
+            for (DecoratedKey sample : sstable.getKeySamples(tokenRange))
+            {
+                if (!range.contains(sample) || (!range.right.isMinimum() && sample.compareTo(range.right) >= 0))
+                    continue;
+                samples.add(sample);
+                if (++added >= maxSamples)
+                    break;
+            }
+        }
+
+        List<DecoratedKey> usable = new ArrayList<DecoratedKey>(samples).subList(0, Math.min(samples.size(), maxSamples));
+        int count = (int) Math.min(parallelism, (long) usable.size() * interval / splitRows);
+        if (count < 2)
+            return splits;
+
+        splits = new ArrayList<AbstractBounds<RowPosition>>(count);
+        AbstractBounds<RowPosition> remainder = range;
+        for (int i = 1; i < count; i++)
+        {
+            Pair<AbstractBounds<RowPosition>, AbstractBounds<RowPosition>> split = remainder.split(usable.get(usable.size() * i / count));
+            if (split == null)
+                continue;
+            splits.add(split.left);
+            remainder = split.right;
+        }
+        splits.add(remainder);
+        return splits;
+    }
+
+    private static class ParallelScanIterator extends ColumnFamilyStore.AbstractScanIterator
+    {
+        private final ColumnFamilyStore cfs;
+        private final ByteBuffer superColumn;
+        private final List<AbstractBounds<RowPosition>> splits;
+        private final IDiskAtomFilter columnFilter;
+        private final int maxRows;
+
+        // the rows of the splits after the first one, read ahead
+        private final List<Future<List<Row>>> readAhead;
+        private volatile boolean closed;
+
+        private int split = -1;
+        private Iterator<Row> rows = Collections.<Row>emptyList().iterator();
+        // the split being read in place, if any
+        private ColumnFamilyStore.AbstractScanIterator sequential;
+        // whether the rows read ahead for the current split stopped before its end
+        private boolean truncated;
+        private DecoratedKey lastKey;
+
+        ParallelScanIterator(ColumnFamilyStore cfs, ByteBuffer superColumn, List<AbstractBounds<RowPosition>> splits, IDiskAtomFilter columnFilter, int maxRows)
+        {
+            this.cfs = cfs;
+            this.superColumn = superColumn;
+            this.splits = splits;
+            this.columnFilter = columnFilter;
+            this.maxRows = maxRows;
+
+            readAhead = new ArrayList<Future<List<Row>>>(splits.size() - 1);
+            for (AbstractBounds<RowPosition> bounds : splits.subList(1, splits.size()))
+                readAhead.add(executor.submit(readAhead(bounds)));
+        }
+
+        private Callable<List<Row>> readAhead(final AbstractBounds<RowPosition> bounds)
+        {
+            // slice filters keep the count of the last row they collated, they can not be shared between threads
+            final IDiskAtomFilter filter = columnFilter instanceof SliceQueryFilter
+                                         ? ((SliceQueryFilter) columnFilter).withUpdatedCount(((SliceQueryFilter) columnFilter).count)
+                                         : columnFilter;
+            return new Callable<List<Row>>()
+            {
+                public List<Row> call() throws IOException
+                {
+                    List<Row> rows = new ArrayList<Row>();
+                    if (closed)
+                        return rows;
+
+                    ColumnFamilyStore.AbstractScanIterator iterator = cfs.getSequentialIterator(superColumn, bounds, filter);
+                    try
+                    {
+                        while (!closed && rows.size() < maxRows && iterator.hasNext())
+                            rows.add(iterator.next());
+                        return rows;
+                    }
+                    finally
+                    {
+                        iterator.close();
+                    }
+                }
+            };
+        }
+
+        protected Row computeNext()
+        {
+            while (true)
+            {
+                if (rows.hasNext())
+                {
+                    Row row = rows.next();
+                    lastKey = row.key;
+                    return row;
+                }
+                closeSequential();
+
+                if (truncated)
+                {
+                    // read the rest of the split in place
+                    truncated = false;
+                    Pair<AbstractBounds<RowPosition>, AbstractBounds<RowPosition>> rest = splits.get(split).split(lastKey);
+                    if (rest != null)
+                        rows = sequential = cfs.getSequentialIterator(superColumn, rest.right, columnFilter);
+                    continue;
+                }
+
+                if (++split == splits.size())
+                    return endOfData();
+
+                if (split == 0)
+                {
+                    rows = sequential = cfs.getSequentialIterator(superColumn, splits.get(0), columnFilter);
+                }
+                else
+                {
+                    List<Row> read = get(readAhead.get(split - 1));
+                    truncated = read.size() >= maxRows;
+                    rows = read.iterator();
+                }
+            }
+        }
+
+        private static List<Row> get(Future<List<Row>> future)
+        {
+            try
+            {
+                return future.get();
+            }
+            catch (InterruptedException e)
+            {
+                throw new AssertionError(e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        private void closeSequential()
+        {
+            if (sequential == null)
+                return;
+            try
+            {
+                sequential.close();
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            sequential = null;
+        }
+
+        public void close() throws IOException
+        {
+            closed = true;
+            for (Future<List<Row>> future : readAhead)
+                future.cancel(false);
+            if (sequential != null)
+                sequential.close();
+        }
+    }
+}
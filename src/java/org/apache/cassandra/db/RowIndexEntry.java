@@ -21,12 +21,14 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import org.apache.cassandra.cache.IMeasurableMemory;
 import org.apache.cassandra.io.sstable.Descriptor;
 import org.apache.cassandra.io.sstable.IndexHelper;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.io.sstable.SerializedColumnIndex;
+import org.apache.cassandra.io.util.FileDataInput;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.utils.FilterFactory;
@@ -73,7 +75,7 @@ public class RowIndexEntry implements IMeasurableMemory
      */
     public boolean isIndexed()
     {
-        return !columnsIndex().isEmpty();
+        return false;
     }
 
     public DeletionTime deletionTime()
@@ -81,9 +83,13 @@ public class RowIndexEntry implements IMeasurableMemory
         throw new UnsupportedOperationException();
     }
 
-    public List<IndexHelper.IndexInfo> columnsIndex()
+    /**
+     * @return the column index of the row, empty if the row is not indexed, referenced for the caller to
+     * unreference once done with it
+     */
+    public SerializedColumnIndex columnIndex(SSTableReader sstable) throws IOException
     {
-        return Collections.emptyList();
+        return SerializedColumnIndex.EMPTY;
     }
 
     public long memorySize()
@@ -98,11 +104,14 @@ public class RowIndexEntry implements IMeasurableMemory
             out.writeLong(rie.position);
             out.writeInt(rie.promotedSize());
 
+            // a shallow entry does not hold its column index, and is never written
+            assert !(rie instanceof ShallowIndexedEntry) : rie;
             if (rie.isIndexed())
             {
-                DeletionTime.serializer.serialize(rie.deletionTime(), out);
-                out.writeInt(rie.columnsIndex().size());
-                for (IndexHelper.IndexInfo info : rie.columnsIndex())
+                IndexedEntry indexed = (IndexedEntry) rie;
+                DeletionTime.serializer.serialize(indexed.deletionTime, out);
+                out.writeInt(indexed.columnsIndex.size());
+                for (IndexHelper.IndexInfo info : indexed.columnsIndex)
                     info.serialize(out);
             }
         }
@@ -140,6 +149,27 @@ public class RowIndexEntry implements IMeasurableMemory
             }
         }
 
+        /**
+         * Deserialize an entry but leave its column index in the primary index: the entry only records where the
+         * column index starts, for it to be read when needed (see SSTableReader.getColumnIndex).
+         */
+        public RowIndexEntry deserializeShallow(FileDataInput in, Descriptor.Version version) throws IOException
+        {
+            if (!version.hasPromotedIndexes)
+                return deserialize(in, version);
+
+            long position = in.readLong();
+            int size = in.readInt();
+            if (size <= 0)
+                return new RowIndexEntry(position);
+
+            long start = in.getFilePointer();
+            DeletionTime deletionTime = DeletionTime.serializer.deserialize(in);
+            long indexPosition = in.getFilePointer();
+            FileUtils.skipBytesFully(in, size - (int) (indexPosition - start));
+            return new ShallowIndexedEntry(position, deletionTime, indexPosition);
+        }
+
         public void skip(DataInput in, Descriptor.Version version) throws IOException
         {
             in.readLong();
@@ -181,9 +211,15 @@ public class RowIndexEntry implements IMeasurableMemory
         }
 
         @Override
-        public List<IndexHelper.IndexInfo> columnsIndex()
+        public boolean isIndexed()
+        {
+            return true;
+        }
+
+        @Override
+        public SerializedColumnIndex columnIndex(SSTableReader sstable)
         {
-            return columnsIndex;
+            return SerializedColumnIndex.create(columnsIndex);
         }
 
         @Override
@@ -215,4 +251,64 @@ public class RowIndexEntry implements IMeasurableMemory
                    + ObjectSizes.getArraySize(columnsIndex.size(), ObjectSizes.getReferenceSize()) + entrySize + 4;
         }
     }
+
+    /**
+     * An entry for a row whose columns are indexed, the column index being left in the primary index file.
+     */
+    public static class ShallowIndexedEntry extends RowIndexEntry
+    {
+        private final DeletionTime deletionTime;
+        // position of the column index in the primary index file
+        public final long indexPosition;
+
+        public ShallowIndexedEntry(long position, DeletionTime deletionTime, long indexPosition)
+        {
+            super(position);
+            assert deletionTime != null;
+            this.deletionTime = deletionTime;
+            this.indexPosition = indexPosition;
+        }
+
+        @Override
+        public boolean isIndexed()
+        {
+            return true;
+        }
+
+        @Override
+        public DeletionTime deletionTime()
+        {
+            return deletionTime;
+        }
+
+        @Override
+        public SerializedColumnIndex columnIndex(SSTableReader sstable) throws IOException
+        {
+            return sstable.getColumnIndex(indexPosition);
+        }
+
+        @Override
+        public int promotedSize()
+        {
+            // what this entry holds, not the size of the promoted index it was read from
+            TypeSizes typeSizes = TypeSizes.NATIVE;
+            return (int) DeletionTime.serializer.serializedSize(deletionTime, typeSizes) + typeSizes.sizeof(indexPosition);
+        }
+
+        @Override
+        public long memorySize()
+        {
+            return ObjectSizes.getSuperClassFieldSize(TypeSizes.NATIVE.sizeof(position))
+                   + ObjectSizes.getFieldSize(// deletionTime
+                                              ObjectSizes.getReferenceSize() +
+                                              TypeSizes.NATIVE.sizeof(indexPosition))
+                   + deletionTime.memorySize();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("ShallowIndexedEntry(position=%d, indexPosition=%d)", position, indexPosition);
+        }
+    }
 }
@@ -64,7 +64,7 @@ public class RowIteratorFactory
         // memtables
         for (Memtable memtable : memtables)
         {
-            iterators.add(new ConvertToColumnIterator(filter, memtable.getEntryIterator(startWith, stopAt)));
+            iterators.add(new ConvertToColumnIterator(filter, memtable, memtable.getEntryIterator(startWith, stopAt)));
         }
 
         for (SSTableReader sstable : sstables)
@@ -125,11 +125,13 @@ public class RowIteratorFactory
     private static class ConvertToColumnIterator implements CloseableIterator<OnDiskAtomIterator>
     {
         private final QueryFilter filter;
+        private final Memtable memtable;
         private final Iterator<Map.Entry<DecoratedKey, ColumnFamily>> iter;
 
-        public ConvertToColumnIterator(QueryFilter filter, Iterator<Map.Entry<DecoratedKey, ColumnFamily>> iter)
+        public ConvertToColumnIterator(QueryFilter filter, Memtable memtable, Iterator<Map.Entry<DecoratedKey, ColumnFamily>> iter)
         {
             this.filter = filter;
+            this.memtable = memtable;
             this.iter = iter;
         }
 
@@ -152,7 +154,7 @@ public class RowIteratorFactory
             {
                 public OnDiskAtomIterator create()
                 {
-                    return filter.getMemtableColumnIterator(entry.getValue(), entry.getKey());
+                    return memtable.onHeap(filter.getMemtableColumnIterator(entry.getValue(), entry.getKey()));
                 }
             });
         }
@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.List;
 
 import com.google.common.collect.AbstractIterator;
 
@@ -36,8 +35,8 @@ import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.io.sstable.CorruptSSTableException;
 import org.apache.cassandra.io.sstable.Descriptor;
 import org.apache.cassandra.io.sstable.IndexHelper;
-import org.apache.cassandra.io.sstable.IndexHelper.IndexInfo;
 import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.io.sstable.SerializedColumnIndex;
 import org.apache.cassandra.io.util.FileDataInput;
 import org.apache.cassandra.io.util.FileMark;
 import org.apache.cassandra.tracing.Tracing;
@@ -52,7 +51,8 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
     private final ColumnFamily emptyColumnFamily;
 
     private final SSTableReader sstable;
-    private final List<IndexHelper.IndexInfo> indexes;
+    // referenced until the reader is closed
+    private SerializedColumnIndex indexes;
     private final FileDataInput originalInput;
     private FileDataInput file;
     private final boolean reversed;
@@ -85,7 +85,7 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
             Descriptor.Version version = sstable.descriptor.version;
             if (version.hasPromotedIndexes)
             {
-                this.indexes = indexEntry.columnsIndex();
+                this.indexes = sstable.getColumnIndex(indexEntry);
                 if (indexes.isEmpty())
                 {
                     setToRowStart(sstable, indexEntry, input);
@@ -104,7 +104,7 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
             {
                 setToRowStart(sstable, indexEntry, input);
                 IndexHelper.skipBloomFilter(file);
-                this.indexes = IndexHelper.deserializeIndex(file);
+                this.indexes = SerializedColumnIndex.create(IndexHelper.deserializeIndex(file));
                 this.emptyColumnFamily = ColumnFamily.create(sstable.metadata);
                 emptyColumnFamily.delete(DeletionTime.serializer.deserialize(file));
                 fetcher = indexes.isEmpty()
@@ -115,6 +115,8 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
         }
         catch (IOException e)
         {
+            if (indexes != null)
+                indexes.unreference();
             sstable.markSuspect();
             throw new CorruptSSTableException(e, file.getPath());
         }
@@ -175,6 +177,7 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
 
     public void close() throws IOException
     {
+        indexes.unreference();
         if (originalInput == null && file != null)
             file.close();
     }
@@ -280,21 +283,20 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
         {
             while (++currentSliceIdx < slices.length)
             {
-                nextIndexIdx = IndexHelper.indexFor(slices[currentSliceIdx].start, indexes, comparator, reversed, nextIndexIdx);
+                nextIndexIdx = indexes.indexFor(slices[currentSliceIdx].start, comparator, reversed, nextIndexIdx);
                 if (nextIndexIdx < 0 || nextIndexIdx >= indexes.size())
                     // no index block for that slice
                     continue;
 
                 // Check if we can exclude this slice entirely from the index
-                IndexInfo info = indexes.get(nextIndexIdx);
                 if (reversed)
                 {
-                    if (!isBeforeSliceStart(info.lastName))
+                    if (!isBeforeSliceStart(indexes.lastName(nextIndexIdx)))
                         return true;
                 }
                 else
                 {
-                    if (!isAfterSliceFinish(info.firstName))
+                    if (!isAfterSliceFinish(indexes.firstName(nextIndexIdx)))
                         return true;
                 }
             }
@@ -373,10 +375,9 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
             if (lastDeserializedBlock < 0 || lastDeserializedBlock >= indexes.size())
                 return false;
 
-            IndexInfo currentIndex = indexes.get(lastDeserializedBlock);
-
             /* seek to the correct offset to the data, and calculate the data size */
-            long positionToSeek = basePosition + currentIndex.offset;
+            long positionToSeek = basePosition + indexes.offset(lastDeserializedBlock);
+            long width = indexes.width(lastDeserializedBlock);
 
             // With new promoted indexes, our first seek in the data file will happen at that point.
             if (file == null)
@@ -391,7 +392,7 @@ class IndexedSliceReader extends AbstractIterator<OnDiskAtom> implements OnDiskA
 
             // scan from index start
             OnDiskAtom column = null;
-            while (file.bytesPastMark(mark) < currentIndex.width)
+            while (file.bytesPastMark(mark) < width)
             {
                 // Only fetch a new column if we haven't dealt with the previous one.
                 if (column == null)
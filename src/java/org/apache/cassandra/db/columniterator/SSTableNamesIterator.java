@@ -30,6 +30,7 @@ import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.io.sstable.CorruptSSTableException;
 import org.apache.cassandra.io.sstable.IndexHelper;
 import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.io.sstable.SerializedColumnIndex;
 import org.apache.cassandra.io.util.FileDataInput;
 import org.apache.cassandra.io.util.FileMark;
 import org.apache.cassandra.io.util.FileUtils;
@@ -103,7 +104,7 @@ public class SSTableNamesIterator extends SimpleAbstractColumnIterator implement
     private void read(SSTableReader sstable, FileDataInput file, RowIndexEntry indexEntry)
     throws IOException
     {
-        List<IndexHelper.IndexInfo> indexList;
+        SerializedColumnIndex indexList;
 
         // If the entry is not indexed or the index is not promoted, read from the row start
         if (!indexEntry.isIndexed())
@@ -122,15 +123,28 @@ public class SSTableNamesIterator extends SimpleAbstractColumnIterator implement
 
         if (sstable.descriptor.version.hasPromotedIndexes)
         {
-            indexList = indexEntry.columnsIndex();
+            indexList = sstable.getColumnIndex(indexEntry);
         }
         else
         {
             assert file != null;
             IndexHelper.skipBloomFilter(file);
-            indexList = IndexHelper.deserializeIndex(file);
+            indexList = SerializedColumnIndex.create(IndexHelper.deserializeIndex(file));
         }
 
+        try
+        {
+            read(sstable, file, indexEntry, indexList);
+        }
+        finally
+        {
+            indexList.unreference();
+        }
+    }
+
+    private void read(SSTableReader sstable, FileDataInput file, RowIndexEntry indexEntry, SerializedColumnIndex indexList)
+    throws IOException
+    {
         if (!indexEntry.isIndexed())
         {
             ColumnFamilySerializer serializer = ColumnFamily.serializer;
@@ -202,34 +216,34 @@ public class SSTableNamesIterator extends SimpleAbstractColumnIterator implement
     private void readIndexedColumns(CFMetaData metadata,
                                     FileDataInput file,
                                     SortedSet<ByteBuffer> columnNames,
-                                    List<IndexHelper.IndexInfo> indexList,
+                                    SerializedColumnIndex indexList,
                                     long basePosition,
                                     List<OnDiskAtom> result)
     throws IOException
     {
         /* get the various column ranges we have to read */
         AbstractType<?> comparator = metadata.comparator;
-        List<IndexHelper.IndexInfo> ranges = new ArrayList<IndexHelper.IndexInfo>();
+        List<Integer> ranges = new ArrayList<Integer>();
         int lastIndexIdx = -1;
         for (ByteBuffer name : columns)
         {
-            int index = IndexHelper.indexFor(name, indexList, comparator, false, lastIndexIdx);
+            int index = indexList.indexFor(name, comparator, false, lastIndexIdx);
             if (index < 0 || index == indexList.size())
                 continue;
-            IndexHelper.IndexInfo indexInfo = indexList.get(index);
             // Check the index block does contain the column names and that we haven't inserted this block yet.
-            if (comparator.compare(name, indexInfo.firstName) < 0 || index == lastIndexIdx)
+            if (index == lastIndexIdx || comparator.compare(name, indexList.firstName(index)) < 0)
                 continue;
-            ranges.add(indexInfo);
+            ranges.add(index);
             lastIndexIdx = index;
         }
 
         if (ranges.isEmpty())
             return;
 
-        for (IndexHelper.IndexInfo indexInfo : ranges)
+        for (int index : ranges)
         {
-            long positionToSeek = basePosition + indexInfo.offset;
+            long positionToSeek = basePosition + indexList.offset(index);
+            long width = indexList.width(index);
 
             // With new promoted indexes, our first seek in the data file will happen at that point.
             if (file == null)
@@ -239,7 +253,7 @@ public class SSTableNamesIterator extends SimpleAbstractColumnIterator implement
             file.seek(positionToSeek);
             FileMark mark = file.mark();
             // TODO only completely deserialize columns we are interested in
-            while (file.bytesPastMark(mark) < indexInfo.width)
+            while (file.bytesPastMark(mark) < width)
             {
                 OnDiskAtom column = atomSerializer.deserializeFromSSTable(file, sstable.descriptor.version);
                 // we check vs the original Set, not the filtered List, for efficiency
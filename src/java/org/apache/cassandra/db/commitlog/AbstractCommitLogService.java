@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.commitlog;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.io.FSWriteError;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.WrappedRunnable;
+
+/**
+ * Syncs the commit log in the background. Mutations are written to the commit log segments by the threads
+ * adding them; a single syncer thread then flushes the segments to disk at least every pollIntervalMillis,
+ * or sooner when a writer requests it, and wakes up all the writers waiting for a sync at once.
+ *
+ * A failed sync is handled according to the disk failure policy, and fails the writes waiting for it.
+ */
+public abstract class AbstractCommitLogService
+{
+    private static final Logger logger = LoggerFactory.getLogger(AbstractCommitLogService.class);
+
+    private final Thread thread;
+    private volatile boolean shutdown = false;
+
+    // signalled when a sync has been requested
+    private final Semaphore haveWork = new Semaphore(0);
+    // notified after each sync
+    private final Object syncComplete = new Object();
+    // the number of failed syncs, and the error of the last one; guarded by syncComplete
+    private long syncFailures = 0;
+    private FSWriteError lastSyncError;
+    // the start time of the last completed sync
+    protected volatile long lastSyncedAt = System.currentTimeMillis();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+
+    AbstractCommitLogService(final CommitLog commitLog, final String name, final long pollIntervalMillis)
+    {
+        this(name, pollIntervalMillis, new Runnable()
+        {
+            public void run()
+            {
+                commitLog.sync();
+            }
+        });
+    }
+
+    /**
+     * @param sync forces the commit log to disk; only replaced by tests
+     */
+    AbstractCommitLogService(final String name, final long pollIntervalMillis, final Runnable sync)
+    {
+        if (pollIntervalMillis < 1)
+            throw new IllegalArgumentException(String.format("Commit log flush interval must be positive: %dms", pollIntervalMillis));
+
+        Runnable runnable = new WrappedRunnable()
+        {
+            public void runMayThrow() throws Exception
+            {
+                while (true)
+                {
+                    // sync once more after shutdown was requested
+                    boolean run = !shutdown;
+
+                    long syncStarted = System.currentTimeMillis();
+                    FSWriteError error = null;
+                    try
+                    {
+                        sync.run();
+                        lastSyncedAt = syncStarted;
+                    }
+                    catch (FSWriteError e)
+                    {
+                        error = e;
+                    }
+                    catch (Throwable t)
+                    {
+                        error = new FSWriteError(t, DatabaseDescriptor.getCommitLogLocation());
+                    }
+
+                    if (error != null)
+                    {
+                        logger.error("Commit log sync failed", error);
+                        FileUtils.handleFSError(error);
+                    }
+
+                    synchronized (syncComplete)
+                    {
+                        if (error != null)
+                        {
+                            syncFailures++;
+                            lastSyncError = error;
+                        }
+                        syncComplete.notifyAll();
+                    }
+
+                    if (!run)
+                        break;
+
+                    long sleep = syncStarted + pollIntervalMillis - System.currentTimeMillis();
+                    if (sleep > 0)
+                        haveWork.tryAcquire(sleep, TimeUnit.MILLISECONDS);
+                    haveWork.drainPermits();
+                }
+            }
+        };
+        thread = new Thread(runnable, name);
+        thread.start();
+    }
+
+    /**
+     * Called by the writer of a mutation once its entry, ending at position, has been written to segment.
+     * Blocks until the entry is synced if the sync mode requires it.
+     */
+    public void finishWriteFor(CommitLogSegment segment, int position)
+    {
+        written.incrementAndGet();
+        maybeWaitForSync(segment, position);
+    }
+
+    protected abstract void maybeWaitForSync(CommitLogSegment segment, int position);
+
+    /**
+     * Request a sync and block until the entries of segment up to position are on disk.
+     *
+     * @throws FSWriteError if a sync failed before the entries reached the disk
+     */
+    protected void waitForSync(CommitLogSegment segment, int position)
+    {
+        pending.incrementAndGet();
+        try
+        {
+            synchronized (syncComplete)
+            {
+                long failures = syncFailures;
+                while (!segment.isSynced(position))
+                {
+                    requestSync();
+                    syncComplete.wait();
+                    if (syncFailures != failures && !segment.isSynced(position))
+                        throw new FSWriteError(lastSyncError.getCause(), lastSyncError.path);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new AssertionError(e);
+        }
+        finally
+        {
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake up the syncer thread without waiting for the end of the poll interval.
+     */
+    public void requestSync()
+    {
+        haveWork.release();
+    }
+
+    /**
+     * Sync the pending writes and stop the syncer thread.
+     */
+    public void shutdown()
+    {
+        shutdown = true;
+        requestSync();
+    }
+
+    /**
+     * Blocks until shutdown is complete.
+     */
+    public void awaitTermination() throws InterruptedException
+    {
+        thread.join();
+    }
+
+    /**
+     * @return the number of mutations written to the commit log
+     */
+    public long getCompletedTasks()
+    {
+        return written.get();
+    }
+
+    /**
+     * @return the number of writers waiting for a sync
+     */
+    public long getPendingTasks()
+    {
+        return pending.get();
+    }
+}
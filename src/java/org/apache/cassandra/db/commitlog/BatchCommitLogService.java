@@ -17,35 +17,22 @@
  */
 package org.apache.cassandra.db.commitlog;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
+import org.apache.cassandra.config.DatabaseDescriptor;
 
 /**
- * Like ExecutorService, but customized for batch and periodic commitlog execution.
+ * Acknowledges a write only once it is on disk. Each writer requests a sync and waits for it; all the writes
+ * completed while a sync is in progress are made durable together by the next one. The batch window bounds
+ * the time between two syncs when no writer requests one.
  */
-public interface ICommitLogExecutorService
+class BatchCommitLogService extends AbstractCommitLogService
 {
-    /**
-     * Get the number of completed tasks
-     */
-    public long getCompletedTasks();
-
-    /**
-     * Get the number of tasks waiting to be executed
-     */
-    public long getPendingTasks();
-
-
-    public <T> Future<T> submit(Callable<T> task);
-
-    /**
-     * submits the adder for execution and blocks for it to be synced, if necessary
-     */
-    public void add(CommitLog.LogRecordAdder adder);
-
-    /** shuts down the CommitLogExecutor in an orderly fashion */
-    public void shutdown();
-
-    /** Blocks until shutdown is complete. */
-    public void awaitTermination() throws InterruptedException;
+    public BatchCommitLogService(CommitLog commitLog)
+    {
+        super(commitLog, "COMMIT-LOG-WRITER", Math.max(1, (long) DatabaseDescriptor.getCommitLogSyncBatchWindow()));
+    }
+
+    protected void maybeWaitForSync(CommitLogSegment segment, int position)
+    {
+        waitForSync(segment, position);
+    }
 }
@@ -20,12 +20,11 @@ package org.apache.cassandra.db.commitlog;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import com.google.common.util.concurrent.Futures;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,9 +32,9 @@ import org.slf4j.LoggerFactory;
 import org.apache.cassandra.config.Config;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.*;
-import org.apache.cassandra.io.FSWriteError;
 import org.apache.cassandra.metrics.CommitLogMetrics;
 import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.FBUtilities;
 
 /*
  * Commit Log tracks every write operation into the system. The aim of the commit log is to be able to
@@ -47,7 +46,7 @@ public class CommitLog implements CommitLogMBean
 
     public static final CommitLog instance = new CommitLog();
 
-    private final ICommitLogExecutorService executor;
+    private final AbstractCommitLogService service;
 
     public final CommitLogAllocator allocator;
 
@@ -56,7 +55,7 @@ public class CommitLog implements CommitLogMBean
     public static final int END_OF_SEGMENT_MARKER = 0;          // this is written out at the end of a segment
     public static final int END_OF_SEGMENT_MARKER_SIZE = 4;     // number of bytes of ^^^
 
-    public CommitLogSegment activeSegment;
+    public volatile CommitLogSegment activeSegment;
 
     private final CommitLogMetrics metrics;
 
@@ -67,9 +66,9 @@ public class CommitLog implements CommitLogMBean
         allocator = new CommitLogAllocator();
         activateNextSegment();
 
-        executor = DatabaseDescriptor.getCommitLogSync() == Config.CommitLogSync.batch
-                 ? new BatchCommitLogExecutorService()
-                 : new PeriodicCommitLogExecutorService(this);
+        service = DatabaseDescriptor.getCommitLogSync() == Config.CommitLogSync.batch
+                ? new BatchCommitLogService(this)
+                : new PeriodicCommitLogService(this);
 
         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
         try
@@ -82,13 +81,13 @@ public class CommitLog implements CommitLogMBean
         }
 
         // register metrics
-        metrics = new CommitLogMetrics(executor, allocator);
+        metrics = new CommitLogMetrics(service, allocator);
     }
 
     /**
      * FOR TESTING PURPOSES. See CommitLogAllocator.
      */
-    public void resetUnsafe()
+    public synchronized void resetUnsafe()
     {
         allocator.resetUnsafe();
         activateNextSegment();
@@ -156,19 +155,14 @@ public class CommitLog implements CommitLogMBean
     }
 
     /**
-     * @return a Future representing a ReplayPosition such that when it is ready,
-     * all commitlog tasks enqueued prior to the getContext call will be complete (i.e., appended to the log)
+     * @return a Future representing a ReplayPosition such that when it is ready, all the mutations added prior
+     * to the getContext call have been given a position before it. Mutations are appended by the threads adding
+     * them, so the position is immediately available; it is only up to the caller to make sure no mutation it
+     * cares about is still being added, as flushes do by holding the switch lock.
      */
     public Future<ReplayPosition> getContext()
     {
-        Callable<ReplayPosition> task = new Callable<ReplayPosition>()
-        {
-            public ReplayPosition call()
-            {
-                return activeSegment.getContext();
-            }
-        };
-        return executor.submit(task);
+        return Futures.immediateFuture(activeSegment.getContext());
     }
 
     /**
@@ -188,7 +182,53 @@ public class CommitLog implements CommitLogMBean
      */
     public void add(RowMutation rm)
     {
-        executor.add(new LogRecordAdder(rm));
+        long totalSize = RowMutation.serializer.serializedSize(rm, MessagingService.current_version) + CommitLogSegment.ENTRY_OVERHEAD_SIZE;
+        if (totalSize > DatabaseDescriptor.getCommitLogSegmentSize())
+        {
+            logger.warn("Skipping commitlog append of extremely large mutation ({} bytes)", totalSize);
+            return;
+        }
+
+        // serialized by the calling thread, concurrently with the other writers
+        byte[] serializedRow;
+        try
+        {
+            serializedRow = FBUtilities.serialize(rm, RowMutation.serializer, MessagingService.current_version);
+        }
+        catch (IOException e)
+        {
+            // serializing to memory does not do any I/O
+            throw new AssertionError(e);
+        }
+        while (true)
+        {
+            CommitLogSegment segment = activeSegment;
+            int position = segment.write(rm, serializedRow);
+            if (position >= 0)
+            {
+                service.finishWriteFor(segment, position);
+                return;
+            }
+            advanceSegment(segment);
+        }
+    }
+
+    /**
+     * Replace full as the active segment, unless another writer already did.
+     */
+    private synchronized void advanceSegment(CommitLogSegment full)
+    {
+        if (activeSegment != full)
+            return;
+
+        // smaller mutations could still fit in full, but it must not receive any write once archived
+        full.discardUnusedTail();
+        activateNextSegment();
+        // make sure the writes in progress on the old segment are on disk before archiving it
+        full.sync();
+        // Now we can run the user defined command just before switching to the new commit log.
+        // (Do this here instead of in the recycle call so we can get a head start on the archive.)
+        archiver.maybeArchive(full.getPath(), full.getName());
     }
 
     /**
@@ -198,65 +238,44 @@ public class CommitLog implements CommitLogMBean
      * @param cfId    the column family ID that was flushed
      * @param context the replay position of the flush
      */
-    public void discardCompletedSegments(final UUID cfId, final ReplayPosition context)
+    public synchronized void discardCompletedSegments(UUID cfId, ReplayPosition context)
     {
-        Callable task = new Callable()
+        logger.debug("discard completed log segments for {}, column family {}", context, cfId);
+
+        // Go thru the active segment files, which are ordered oldest to newest, marking the
+        // flushed CF as clean, until we reach the segment file containing the ReplayPosition passed
+        // in the arguments. Any segments that become unused after they are marked clean will be
+        // recycled or discarded.
+        for (Iterator<CommitLogSegment> iter = allocator.getActiveSegments().iterator(); iter.hasNext();)
         {
-            public Object call()
-            {
-                logger.debug("discard completed log segments for {}, column family {}", context, cfId);
+            CommitLogSegment segment = iter.next();
+            segment.markClean(cfId, context);
 
-                // Go thru the active segment files, which are ordered oldest to newest, marking the
-                // flushed CF as clean, until we reach the segment file containing the ReplayPosition passed
-                // in the arguments. Any segments that become unused after they are marked clean will be
-                // recycled or discarded.
-                for (Iterator<CommitLogSegment> iter = allocator.getActiveSegments().iterator(); iter.hasNext();)
+            // If the segment is no longer needed, and we have another spare segment in the hopper
+            // (to keep the last segment from getting discarded), pursue either recycling or deleting
+            // this segment file.
+            if (iter.hasNext())
+            {
+                if (segment.isUnused())
                 {
-                    CommitLogSegment segment = iter.next();
-                    segment.markClean(cfId, context);
-
-                    // If the segment is no longer needed, and we have another spare segment in the hopper
-                    // (to keep the last segment from getting discarded), pursue either recycling or deleting
-                    // this segment file.
-                    if (iter.hasNext())
-                    {
-                        if (segment.isUnused())
-                        {
-                            logger.debug("Commit log segment {} is unused", segment);
-                            allocator.recycleSegment(segment);
-                        }
-                        else
-                        {
-                            logger.debug("Not safe to delete commit log segment {}; dirty is {}",
-                                         segment, segment.dirtyString());
-                        }
-                    }
-                    else
-                    {
-                        logger.debug("Not deleting active commitlog segment {}", segment);
-                    }
-
-                    // Don't mark or try to delete any newer segments once we've reached the one containing the
-                    // position of the flush.
-                    if (segment.contains(context))
-                        break;
+                    logger.debug("Commit log segment {} is unused", segment);
+                    allocator.recycleSegment(segment);
                 }
-
-                return null;
+                else
+                {
+                    logger.debug("Not safe to delete commit log segment {}; dirty is {}",
+                                 segment, segment.dirtyString());
+                }
+            }
+            else
+            {
+                logger.debug("Not deleting active commitlog segment {}", segment);
             }
-        };
 
-        try
-        {
-            executor.submit(task).get();
-        }
-        catch (InterruptedException e)
-        {
-            throw new RuntimeException(e);
-        }
-        catch (ExecutionException e)
-        {
-            throw new RuntimeException(e);
+            // Don't mark or try to delete any newer segments once we've reached the one containing the
+            // position of the flush.
+            if (segment.contains(context))
+                break;
         }
     }
 
@@ -272,7 +291,7 @@ public class CommitLog implements CommitLogMBean
     }
 
     /**
-     * @return the number of tasks completed by the commit log executor
+     * @return the number of mutations written to the commit log
      */
     public long getCompletedTasks()
     {
@@ -280,7 +299,7 @@ public class CommitLog implements CommitLogMBean
     }
 
     /**
-     * @return the depth of pending commit log executor queue
+     * @return the number of writers waiting for the commit log to be synced
      */
     public long getPendingTasks()
     {
@@ -324,54 +343,9 @@ public class CommitLog implements CommitLogMBean
      */
     public void shutdownBlocking() throws InterruptedException
     {
-        executor.shutdown();
-        executor.awaitTermination();
+        service.shutdown();
+        service.awaitTermination();
         allocator.shutdown();
         allocator.awaitTermination();
     }
-
-    // TODO this should be a Runnable since it doesn't actually return anything, but it's difficult to do that
-    // without breaking the fragile CheaterFutureTask in BatchCLES.
-    class LogRecordAdder implements Callable, Runnable
-    {
-        final RowMutation rowMutation;
-
-        LogRecordAdder(RowMutation rm)
-        {
-            this.rowMutation = rm;
-        }
-
-        public void run()
-        {
-            long totalSize = RowMutation.serializer.serializedSize(rowMutation, MessagingService.current_version) + CommitLogSegment.ENTRY_OVERHEAD_SIZE;
-            if (totalSize > DatabaseDescriptor.getCommitLogSegmentSize())
-            {
-                logger.warn("Skipping commitlog append of extremely large mutation ({} bytes)", totalSize);
-                return;
-            }
-
-            if (!activeSegment.hasCapacityFor(totalSize))
-            {
-                CommitLogSegment oldSegment = activeSegment;
-                activateNextSegment();
-                // Now we can run the user defined command just before switching to the new commit log.
-                // (Do this here instead of in the recycle call so we can get a head start on the archive.)
-                archiver.maybeArchive(oldSegment.getPath(), oldSegment.getName());
-            }
-            try
-            {
-                activeSegment.write(rowMutation);
-            }
-            catch (IOException e)
-            {
-                throw new FSWriteError(e, activeSegment.getPath());
-            }
-        }
-
-        public Object call()
-        {
-            run();
-            return null;
-        }
-    }
 }
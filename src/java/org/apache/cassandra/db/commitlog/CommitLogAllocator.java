@@ -193,7 +193,7 @@ public class CommitLogAllocator
         {
             public void run()
             {
-                CommitLogSegment segment = new CommitLogSegment(file.getPath());
+                CommitLogSegment segment = CommitLogSegment.createSegment(file.getPath());
                 internalAddReadySegment(segment);
             }
         });
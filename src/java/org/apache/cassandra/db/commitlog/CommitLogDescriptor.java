@@ -35,6 +35,8 @@ public class CommitLogDescriptor
 
     public static final int LEGACY_VERSION = 1;
     public static final int VERSION_12 = 2;
+    // VERSION_12 entries, compressed in sections (see CompressedCommitLogSegment)
+    public static final int VERSION_12_COMPRESSED = 3;
     /**
      * Increment this number if there is a changes in the commit log disc layout or MessagingVersion changes.
      * Note: make sure to handle {@link #getMessagingVersion()}
@@ -81,12 +83,18 @@ public class CommitLogDescriptor
             case LEGACY_VERSION:
                 return MessagingService.VERSION_11;
             case VERSION_12:
+            case VERSION_12_COMPRESSED:
                 return MessagingService.VERSION_12;
             default:
                 throw new IllegalStateException("Unknown commitlog version " + version);
         }
     }
 
+    public boolean isCompressed()
+    {
+        return version == VERSION_12_COMPRESSED;
+    }
+
     public String fileName()
     {
         return FILENAME_PREFIX + version + SEPARATOR + id + FILENAME_EXTENSION;
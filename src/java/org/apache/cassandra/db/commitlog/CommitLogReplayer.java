@@ -22,9 +22,20 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.Checksum;
 
 import com.google.common.collect.Ordering;
@@ -32,14 +43,17 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.apache.cassandra.concurrent.Stage;
-import org.apache.cassandra.concurrent.StageManager;
+import org.apache.cassandra.concurrent.DebuggableThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.config.Schema;
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.io.IColumnSerializer;
+import org.apache.cassandra.io.compress.CompressionParameters;
+import org.apache.cassandra.io.compress.ICompressor;
 import org.apache.cassandra.io.util.FastByteArrayInputStream;
 import org.apache.cassandra.io.util.FileUtils;
-import org.apache.cassandra.io.util.RandomAccessReader;
 import org.apache.cassandra.utils.*;
 
 import org.cliffc.high_scale_lib.NonBlockingHashSet;
@@ -48,22 +62,44 @@ public class CommitLogReplayer
 {
     private static final Logger logger = LoggerFactory.getLogger(CommitLogReplayer.class);
     private static final int MAX_OUTSTANDING_REPLAY_COUNT = 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 10000;
 
     private final Set<Table> tablesRecovered;
     private final List<Future<?>> futures;
-    private final Map<UUID, AtomicInteger> invalidMutations;
+    private final ConcurrentMap<UUID, AtomicInteger> invalidMutations;
     private final AtomicInteger replayedCount;
     private final Map<UUID, ReplayPosition> cfPositions;
     private final ReplayPosition globalPosition;
     private final Checksum checksum;
     private byte[] buffer;
 
+    // mutations are replayed by single threaded shards, so that the mutations of a partition are applied in order
+    private final ExecutorService[] shards;
+    // the first error replaying a mutation
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    private final long progressIntervalMillis;
+    private final long startTime = System.currentTimeMillis();
+    private long lastProgressLog = startTime;
+    private long totalBytes;
+    // the size of the segment files read so far
+    private long filesBytesRead;
+
     public CommitLogReplayer()
     {
+        this(PROGRESS_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param progressIntervalMillis the interval between two logs of the replay progress
+     */
+    CommitLogReplayer(long progressIntervalMillis)
+    {
+        this.progressIntervalMillis = progressIntervalMillis;
         this.tablesRecovered = new NonBlockingHashSet<Table>();
         this.futures = new ArrayList<Future<?>>();
         this.buffer = new byte[4096];
-        this.invalidMutations = new HashMap<UUID, AtomicInteger>();
+        this.invalidMutations = new ConcurrentHashMap<UUID, AtomicInteger>();
         // count the number of replayed mutation. We don't really care about atomicity, but we need it to be a reference.
         this.replayedCount = new AtomicInteger();
         this.checksum = new PureJavaCrc32();
@@ -89,23 +125,48 @@ public class CommitLogReplayer
         }
         globalPosition = replayPositionOrdering.min(cfPositions.values());
         logger.debug("Global replay position is {} from columnfamilies {}", globalPosition, FBUtilities.toString(cfPositions));
+
+        shards = new ExecutorService[DatabaseDescriptor.getConcurrentWriters()];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new DebuggableThreadPoolExecutor(1,
+                                                         Integer.MAX_VALUE,
+                                                         TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(MAX_OUTSTANDING_REPLAY_COUNT),
+                                                         new NamedThreadFactory("CommitLogReplay" + i));
     }
 
     public void recover(File[] clogs) throws IOException
     {
+        for (File file : clogs)
+            totalBytes += file.length();
         for (final File file : clogs)
+        {
             recover(file);
+            filesBytesRead += file.length();
+        }
     }
 
     public int blockForWrites()
     {
+        // wait for all the writes to finish on the replay shards
+        for (ExecutorService shard : shards)
+            shard.shutdown();
+        try
+        {
+            for (ExecutorService shard : shards)
+                shard.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            throw new AssertionError(e);
+        }
+        if (failure.get() != null)
+            throw new RuntimeException(failure.get());
+        logger.debug("Finished waiting on mutations from recovery");
+
         for (Map.Entry<UUID, AtomicInteger> entry : invalidMutations.entrySet())
             logger.info(String.format("Skipped %d mutations from unknown (probably removed) CF with id %s", entry.getValue().intValue(), entry.getKey()));
 
-        // wait for all the writes to finish on the mutation stage
-        FBUtilities.waitOnFutures(futures);
-        logger.debug("Finished waiting on mutations from recovery");
-
         // flush replayed tables
         futures.clear();
         for (Table table : tablesRecovered)
@@ -120,10 +181,10 @@ public class CommitLogReplayer
         CommitLogDescriptor desc = CommitLogDescriptor.fromFileName(file.getName());
         final long segment = desc.id;
         int version = desc.getMessagingVersion();
-        RandomAccessReader reader = RandomAccessReader.open(new File(file.getAbsolutePath()), true);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
         try
         {
-            assert reader.length() <= Integer.MAX_VALUE;
+            assert raf.length() <= Integer.MAX_VALUE;
             int replayPosition;
             if (globalPosition.segment < segment)
             {
@@ -141,140 +202,299 @@ public class CommitLogReplayer
 
             if (logger.isDebugEnabled())
                 logger.debug("Replaying " + file + " starting at " + replayPosition);
-            reader.seek(replayPosition);
 
-            /* read the logs populate RowMutation and apply */
-            while (!reader.isEOF())
+            if (desc.isCompressed())
             {
-                if (logger.isDebugEnabled())
-                    logger.debug("Reading mutation at " + reader.getFilePointer());
-
-                long claimedCRC32;
-                int serializedSize;
+                replayCompressed(raf, segment, version, replayPosition);
+            }
+            else if (raf.length() > 0)
+            {
+                MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
                 try
                 {
-                    // any of the reads may hit EOF
-                    serializedSize = reader.readInt();
-                    if (serializedSize == CommitLog.END_OF_SEGMENT_MARKER)
-                    {
-                        logger.debug("Encountered end of segment marker at " + reader.getFilePointer());
-                        break;
-                    }
-
-                    // RowMutation must be at LEAST 10 bytes:
-                    // 3 each for a non-empty Table and Key (including the
-                    // 2-byte length from writeUTF/writeWithShortLength) and 4 bytes for column count.
-                    // This prevents CRC by being fooled by special-case garbage in the file; see CASSANDRA-2128
-                    if (serializedSize < 10)
-                        break;
-                    long claimedSizeChecksum = reader.readLong();
-                    checksum.reset();
-                    checksum.update(serializedSize);
-                    if (checksum.getValue() != claimedSizeChecksum)
-                        break; // entry wasn't synced correctly/fully. that's
-                               // ok.
-
-                    if (serializedSize > buffer.length)
-                        buffer = new byte[(int) (1.2 * serializedSize)];
-                    reader.readFully(buffer, 0, serializedSize);
-                    claimedCRC32 = reader.readLong();
+                    mapped.position(Math.min(replayPosition, mapped.limit()));
+                    replayEntries(mapped, 0, segment, version, true);
                 }
-                catch (EOFException eof)
+                finally
                 {
-                    break; // last CL entry didn't get completely written. that's ok.
+                    FileUtils.clean(mapped);
                 }
+            }
+        }
+        finally
+        {
+            FileUtils.closeQuietly(raf);
+            logger.info("Finished reading " + file);
+        }
+    }
 
-                checksum.update(buffer, 0, serializedSize);
-                if (claimedCRC32 != checksum.getValue())
-                {
-                    // this entry must not have been fsynced. probably the rest is bad too,
-                    // but just in case there is no harm in trying them (since we still read on an entry boundary)
-                    continue;
-                }
+    /**
+     * Replay the sections of a compressed segment (see CompressedCommitLogSegment) that end after replayPosition,
+     * stopping at the first one that was not fully written.
+     */
+    private void replayCompressed(RandomAccessFile raf, long segment, int version, int replayPosition) throws IOException
+    {
+        ICompressor compressor;
+        try
+        {
+            compressor = new CompressionParameters(raf.readUTF(), null, Collections.<String, String>emptyMap()).sstableCompressor;
+        }
+        catch (EOFException e)
+        {
+            return; // nothing was synced
+        }
+        catch (ConfigurationException e)
+        {
+            throw new IOException("Cannot create the compressor of commit log segment " + segment, e);
+        }
 
-                /* deserialize the commit log entry */
-                FastByteArrayInputStream bufIn = new FastByteArrayInputStream(buffer, 0, serializedSize);
-                RowMutation rm;
-                try
-                {
-                    // assuming version here. We've gone to lengths to make sure what gets written to the CL is in
-                    // the current version. so do make sure the CL is drained prior to upgrading a node.
-                    rm = RowMutation.serializer.deserialize(new DataInputStream(bufIn), version, IColumnSerializer.Flag.LOCAL);
-                }
-                catch (UnknownColumnFamilyException ex)
+        byte[] marker = new byte[CompressedCommitLogSegment.SYNC_MARKER_SIZE];
+        byte[] compressed = new byte[0];
+        byte[] uncompressed = new byte[0];
+        int start = 0;
+        while (true)
+        {
+            int end;
+            int compressedLength;
+            try
+            {
+                raf.readFully(marker);
+                ByteBuffer markerBuffer = ByteBuffer.wrap(marker);
+                end = markerBuffer.getInt();
+                compressedLength = markerBuffer.getInt();
+                checksum.reset();
+                checksum.update(marker, 0, 8);
+                if (checksum.getValue() != markerBuffer.getLong() || end <= start || compressedLength <= 0)
+                    break; // section wasn't synced correctly/fully. that's ok.
+
+                if (compressedLength > compressed.length)
+                    compressed = new byte[compressedLength];
+                raf.readFully(compressed, 0, compressedLength);
+            }
+            catch (EOFException eof)
+            {
+                break; // last section didn't get completely written. that's ok.
+            }
+
+            int length = end - start;
+            if (length > uncompressed.length)
+                uncompressed = new byte[length];
+            try
+            {
+                if (compressor.uncompress(compressed, 0, compressedLength, uncompressed, 0) != length)
+                    break;
+            }
+            catch (IOException e)
+            {
+                logger.debug("Unreadable commit log section at " + start + " in segment " + segment, e);
+                break;
+            }
+
+            if (end > replayPosition)
+            {
+                ByteBuffer section = ByteBuffer.wrap(uncompressed, 0, length);
+                if (replayPosition > start)
+                    section.position(replayPosition - start);
+                replayEntries(section, start, segment, version, false);
+            }
+            start = end;
+            maybeLogProgress(raf.getFilePointer());
+        }
+    }
+
+    /**
+     * Replay the entries of in, from its position to its limit.
+     *
+     * @param offset the position in the segment of the start of in
+     * @param positionsInFile whether positions in the segment are positions in its file, for progress reporting
+     */
+    private void replayEntries(ByteBuffer in, int offset, final long segment, int version, boolean positionsInFile) throws IOException
+    {
+        /* read the logs populate RowMutation and apply */
+        while (in.hasRemaining())
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Reading mutation at " + (offset + in.position()));
+
+            long claimedCRC32;
+            int serializedSize;
+            try
+            {
+                // any of the reads may hit EOF
+                serializedSize = in.getInt();
+                if (serializedSize == CommitLog.END_OF_SEGMENT_MARKER)
                 {
-                    if (ex.cfId == null)
-                        continue;
-                    AtomicInteger i = invalidMutations.get(ex.cfId);
-                    if (i == null)
-                    {
-                        i = new AtomicInteger(1);
-                        invalidMutations.put(ex.cfId, i);
-                    }
-                    else
-                        i.incrementAndGet();
-                    continue;
+                    logger.debug("Encountered end of segment marker at " + (offset + in.position()));
+                    break;
                 }
 
-                if (logger.isDebugEnabled())
-                    logger.debug(String.format("replaying mutation for %s.%s: %s", rm.getTable(), ByteBufferUtil.bytesToHex(rm.key()), "{" + StringUtils.join(rm.getColumnFamilies().iterator(), ", ")
-                            + "}"));
+                // RowMutation must be at LEAST 10 bytes:
+                // 3 each for a non-empty Table and Key (including the
+                // 2-byte length from writeUTF/writeWithShortLength) and 4 bytes for column count.
+                // This prevents CRC by being fooled by special-case garbage in the file; see CASSANDRA-2128
+                if (serializedSize < 10)
+                    break;
+                long claimedSizeChecksum = in.getLong();
+                checksum.reset();
+                checksum.update(serializedSize);
+                if (checksum.getValue() != claimedSizeChecksum)
+                    break; // entry wasn't synced correctly/fully. that's
+                           // ok.
+
+                if (serializedSize > buffer.length)
+                    buffer = new byte[(int) (1.2 * serializedSize)];
+                in.get(buffer, 0, serializedSize);
+                claimedCRC32 = in.getLong();
+            }
+            catch (BufferUnderflowException eof)
+            {
+                break; // last CL entry didn't get completely written. that's ok.
+            }
+
+            checksum.update(buffer, 0, serializedSize);
+            if (claimedCRC32 != checksum.getValue())
+            {
+                // this entry must not have been fsynced. probably the rest is bad too,
+                // but just in case there is no harm in trying them (since we still read on an entry boundary)
+                continue;
+            }
 
-                final long entryLocation = reader.getFilePointer();
-                final RowMutation frm = rm;
-                Runnable runnable = new WrappedRunnable()
+            final byte[] serializedRow = Arrays.copyOf(buffer, serializedSize);
+            final long entryLocation = offset + in.position();
+            final int messagingVersion = version;
+            Runnable runnable = new Runnable()
+            {
+                public void run()
                 {
-                    public void runMayThrow() throws IOException
+                    try
                     {
-                        if (Schema.instance.getKSMetaData(frm.getTable()) == null)
-                            return;
-                        if (pointInTimeExceeded(frm))
-                            return;
-
-                        final Table table = Table.open(frm.getTable());
-                        RowMutation newRm = new RowMutation(frm.getTable(), frm.key());
-
-                        // Rebuild the row mutation, omitting column families that 
-                        // a) have already been flushed,
-                        // b) are part of a cf that was dropped. Keep in mind that the cf.name() is suspect. do every thing based on the cfid instead.
-                        for (ColumnFamily columnFamily : frm.getColumnFamilies())
-                        {
-                            if (Schema.instance.getCF(columnFamily.id()) == null)
-                                // null means the cf has been dropped
-                                continue;
-
-                            ReplayPosition rp = cfPositions.get(columnFamily.id());
-
-                            // replay if current segment is newer than last flushed one or, 
-                            // if it is the last known segment, if we are after the replay position
-                            if (segment > rp.segment || (segment == rp.segment && entryLocation > rp.position))
-                            {
-                                newRm.add(columnFamily);
-                                replayedCount.incrementAndGet();
-                            }
-                        }
-                        if (!newRm.isEmpty())
-                        {
-                            Table.open(newRm.getTable()).apply(newRm, false);
-                            tablesRecovered.add(table);
-                        }
+                        replayMutation(serializedRow, messagingVersion, segment, entryLocation);
+                    }
+                    catch (Throwable t)
+                    {
+                        failure.compareAndSet(null, t);
                     }
-                };
-                futures.add(StageManager.getStage(Stage.MUTATION).submit(runnable));
-                if (futures.size() > MAX_OUTSTANDING_REPLAY_COUNT)
-                {
-                    FBUtilities.waitOnFutures(futures);
-                    futures.clear();
                 }
+            };
+            shards[shard(serializedRow)].execute(runnable);
+            if (positionsInFile)
+                maybeLogProgress(offset + in.position());
+        }
+    }
+
+    /**
+     * Deserialize and apply a mutation read from segment at entryLocation.
+     */
+    private void replayMutation(byte[] serializedRow, int version, long segment, long entryLocation) throws IOException
+    {
+        /* deserialize the commit log entry */
+        FastByteArrayInputStream bufIn = new FastByteArrayInputStream(serializedRow);
+        RowMutation rm;
+        try
+        {
+            // assuming version here. We've gone to lengths to make sure what gets written to the CL is in
+            // the current version. so do make sure the CL is drained prior to upgrading a node.
+            rm = RowMutation.serializer.deserialize(new DataInputStream(bufIn), version, IColumnSerializer.Flag.LOCAL);
+        }
+        catch (UnknownColumnFamilyException ex)
+        {
+            if (ex.cfId == null)
+                return;
+            AtomicInteger i = invalidMutations.get(ex.cfId);
+            if (i == null)
+            {
+                i = invalidMutations.putIfAbsent(ex.cfId, new AtomicInteger(1));
+                if (i == null)
+                    return;
             }
+            i.incrementAndGet();
+            return;
         }
-        finally
+
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("replaying mutation for %s.%s: %s", rm.getTable(), ByteBufferUtil.bytesToHex(rm.key()), "{" + StringUtils.join(rm.getColumnFamilies().iterator(), ", ")
+                    + "}"));
+
+        if (Schema.instance.getKSMetaData(rm.getTable()) == null)
+            return;
+        if (pointInTimeExceeded(rm))
+            return;
+
+        final Table table = Table.open(rm.getTable());
+        RowMutation newRm = new RowMutation(rm.getTable(), rm.key());
+
+        // Rebuild the row mutation, omitting column families that 
+        // a) have already been flushed,
+        // b) are part of a cf that was dropped. Keep in mind that the cf.name() is suspect. do every thing based on the cfid instead.
+        for (ColumnFamily columnFamily : rm.getColumnFamilies())
         {
-            FileUtils.closeQuietly(reader);
-            logger.info("Finished reading " + file);
+            if (Schema.instance.getCF(columnFamily.id()) == null)
+                // null means the cf has been dropped
+                continue;
+
+            ReplayPosition rp = cfPositions.get(columnFamily.id());
+
+            // replay if current segment is newer than last flushed one or, 
+            // if it is the last known segment, if we are after the replay position
+            if (segment > rp.segment || (segment == rp.segment && entryLocation > rp.position))
+            {
+                newRm.add(columnFamily);
+                replayedCount.incrementAndGet();
+            }
+        }
+        if (!newRm.isEmpty())
+        {
+            Table.open(newRm.getTable()).apply(newRm, false);
+            tablesRecovered.add(table);
         }
     }
 
+    /**
+     * @return the shard replaying the mutations of the partition key of serializedRow
+     */
+    private int shard(byte[] serializedRow)
+    {
+        // a serialized mutation starts with its table name and its key, see RowMutation.RowMutationSerializer
+        ByteBuffer in = ByteBuffer.wrap(serializedRow);
+        in.position(2 + (in.getShort(0) & 0xFFFF));
+        int keyLength = in.getShort() & 0xFFFF;
+        in.limit(in.position() + keyLength);
+        return (in.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Log the replay throughput and remaining time every progressIntervalMillis.
+     *
+     * @param filePosition the position read in the current segment file
+     */
+    private void maybeLogProgress(long filePosition)
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastProgressLog < progressIntervalMillis)
+            return;
+        lastProgressLog = now;
+
+        long bytesRead = Math.min(filesBytesRead + filePosition, totalBytes);
+        double elapsedSeconds = Math.max(1, now - startTime) / 1000.0;
+        double bytesPerSecond = bytesRead / elapsedSeconds;
+        long eta = bytesPerSecond == 0 ? -1 : (long) ((totalBytes - bytesRead) / bytesPerSecond);
+        logProgress(bytesRead, totalBytes, elapsedSeconds, eta);
+    }
+
+    /**
+     * @param eta the estimated number of seconds left, or -1 if nothing has been read yet
+     */
+    protected void logProgress(long bytesRead, long totalBytes, double elapsedSeconds, long eta)
+    {
+        logger.info(String.format("Replayed %d mutations (%.0f/s), read %d of %d MB (%.1f MB/s), about %d seconds left",
+                                  replayedCount.get(),
+                                  replayedCount.get() / elapsedSeconds,
+                                  bytesRead / (1024 * 1024),
+                                  totalBytes / (1024 * 1024),
+                                  bytesRead / elapsedSeconds / (1024 * 1024),
+                                  eta));
+    }
+
     protected boolean pointInTimeExceeded(RowMutation frm)
     {
         long restoreTarget = CommitLog.instance.archiver.restorePointInTime;
@@ -20,16 +20,20 @@ package org.apache.cassandra.db.commitlog;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Checksum;
 
-import org.apache.cassandra.utils.FBUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,14 +43,18 @@ import org.apache.cassandra.config.Schema;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.RowMutation;
 import org.apache.cassandra.io.FSWriteError;
+import org.apache.cassandra.io.compress.ICompressor;
 import org.apache.cassandra.io.util.FileUtils;
-import org.apache.cassandra.net.MessagingService;
 import org.apache.cassandra.utils.PureJavaCrc32;
 
 /*
  * A single commit log file on disk. Manages creation of the file and writing row mutations to disk,
  * as well as tracking the last mutation position of any "dirty" CFs covered by the segment file. Segment
  * files are initially allocated to a fixed size and can grow to accomidate a larger value if necessary.
+ *
+ * Mutations are written concurrently by the threads adding them: each reserves its room in the segment
+ * with a CAS on the allocation position, then writes its entry there. Entries are not followed by an
+ * end of segment marker, the unwritten part of a segment being zeroed instead.
  */
 public class CommitLogSegment
 {
@@ -59,18 +67,29 @@ public class CommitLogSegment
     static final int ENTRY_OVERHEAD_SIZE = 4 + 8 + 8;
 
     // cache which cf is dirty in this segment to avoid having to lookup all ReplayPositions to decide if we can delete this segment
-    private final HashMap<UUID, Integer> cfLastWrite = new HashMap<UUID, Integer>();
+    private final ConcurrentMap<UUID, Integer> cfLastWrite = new ConcurrentHashMap<UUID, Integer>();
 
     public final long id;
 
     private final File logFile;
-    private final RandomAccessFile logFileAccessor;
-
-    private boolean needsSync = false;
+    protected final RandomAccessFile logFileAccessor;
 
-    private final MappedByteBuffer buffer;
+    // the entries of the segment, set to null by segments that release it once it has been fully synced
+    protected ByteBuffer buffer;
+    private final int capacity;
     private boolean closed;
 
+    // the end of the last reserved entry
+    private final AtomicInteger allocatePosition = new AtomicInteger();
+    // the end of the last entry once the segment does not accept writes anymore
+    private volatile int endOfData = Integer.MAX_VALUE;
+    // the position up to which the segment is known to be on disk
+    private volatile int lastSyncedOffset;
+
+    // writers hold the read lock while reserving and writing an entry, so that once sync() has acquired
+    // the write lock every entry below the allocation position is complete
+    private final ReadWriteLock syncBarrier = new ReentrantReadWriteLock();
+
     public final CommitLogDescriptor descriptor;
 
     /**
@@ -78,7 +97,19 @@ public class CommitLogSegment
      */
     public static CommitLogSegment freshSegment()
     {
-        return new CommitLogSegment(null);
+        return createSegment(null);
+    }
+
+    /**
+     * @param filePath  if not null, the file to recycle
+     * @return a segment compressed with the configured commit log compressor, if any
+     */
+    static CommitLogSegment createSegment(String filePath)
+    {
+        ICompressor compressor = DatabaseDescriptor.getCommitLogCompressor();
+        return compressor == null
+               ? new CommitLogSegment(filePath)
+               : new CompressedCommitLogSegment(filePath, compressor);
     }
 
     public static long getNextId()
@@ -91,9 +122,14 @@ public class CommitLogSegment
      * @param filePath  if not null, recycles the existing file by renaming it and truncating it to CommitLog.SEGMENT_SIZE.
      */
     CommitLogSegment(String filePath)
+    {
+        this(filePath, CommitLogDescriptor.current_version);
+    }
+
+    protected CommitLogSegment(String filePath, int version)
     {
         id = getNextId();
-        descriptor = new CommitLogDescriptor(id);
+        descriptor = new CommitLogDescriptor(version, id);
         logFile = new File(DatabaseDescriptor.getCommitLogLocation(), descriptor.fileName());
         boolean isCreating = true;
 
@@ -118,14 +154,8 @@ public class CommitLogSegment
             if (isCreating)
                 logger.debug("Creating new commit log segment {}", logFile.getPath());
 
-            // Map the segment, extending or truncating it to the standard segment size
-            logFileAccessor.setLength(DatabaseDescriptor.getCommitLogSegmentSize());
-
-            buffer = logFileAccessor.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DatabaseDescriptor.getCommitLogSegmentSize());
-            buffer.putInt(CommitLog.END_OF_SEGMENT_MARKER);
-            buffer.position(0);
-
-            needsSync = true;
+            buffer = createBuffer(!isCreating);
+            capacity = buffer.capacity();
         }
         catch (IOException e)
         {
@@ -133,6 +163,30 @@ public class CommitLogSegment
         }
     }
 
+    /**
+     * Map the segment, extending or truncating it to the standard segment size.
+     *
+     * @param recycled  whether the file held a previous segment
+     * @return the buffer entries are written to
+     */
+    protected ByteBuffer createBuffer(boolean recycled) throws IOException
+    {
+        logFileAccessor.setLength(DatabaseDescriptor.getCommitLogSegmentSize());
+
+        MappedByteBuffer mapped = logFileAccessor.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DatabaseDescriptor.getCommitLogSegmentSize());
+        if (recycled)
+        {
+            // entries are not followed by an end of segment marker, so the content of the recycled
+            // segment must not be mistaken for entries of this one
+            byte[] zeros = new byte[64 * 1024];
+            while (mapped.hasRemaining())
+                mapped.put(zeros, 0, Math.min(zeros.length, mapped.remaining()));
+            mapped.force();
+            mapped.position(0);
+        }
+        return mapped;
+    }
+
     /**
      * Completely discards a segment file by deleting it. (Potentially blocking operation)
      */
@@ -151,38 +205,64 @@ public class CommitLogSegment
      */
     public CommitLogSegment recycle()
     {
-        // writes an end-of-segment marker at the very beginning of the file and closes it
-        buffer.position(0);
-        buffer.putInt(CommitLog.END_OF_SEGMENT_MARKER);
-        buffer.position(0);
-
         try
         {
-            sync();
+            discardContent();
         }
-        catch (FSWriteError e)
+        catch (Exception e) // MappedByteBuffer.force() does not declare IOException but can actually throw it
         {
             logger.error("I/O error flushing " + this + " " + e);
-            throw e;
+            throw new FSWriteError(e, getPath());
         }
 
         close();
 
-        return new CommitLogSegment(getPath());
+        return createSegment(getPath());
+    }
+
+    /**
+     * Make sure the entries of the segment cannot be replayed once it is recycled.
+     */
+    protected void discardContent() throws IOException
+    {
+        // writes an end-of-segment marker at the very beginning of the file
+        MappedByteBuffer mapped = (MappedByteBuffer) buffer;
+        mapped.putInt(0, CommitLog.END_OF_SEGMENT_MARKER);
+        mapped.force();
+    }
+
+    /**
+     * Reserve size bytes at the end of the segment.
+     *
+     * @return the position of the reserved room, or -1 if the segment is full
+     */
+    private int allocate(int size)
+    {
+        while (true)
+        {
+            int prev = allocatePosition.get();
+            int next = prev + size;
+            if (next > capacity)
+                return -1;
+            if (allocatePosition.compareAndSet(prev, next))
+                return prev;
+        }
     }
 
     /**
-     * @return true if there is room to write() @param size to this segment
+     * Prevent any further write to this segment. Writes in progress may still complete.
      */
-    public boolean hasCapacityFor(long size)
+    void discardUnusedTail()
     {
-        return size <= buffer.remaining();
+        int end = allocatePosition.getAndSet(capacity);
+        if (end < endOfData)
+            endOfData = end;
     }
 
     /**
      * mark all of the column families we're modifying as dirty at this position
      */
-    private void markDirty(RowMutation rowMutation, ReplayPosition repPos)
+    private void markDirty(RowMutation rowMutation, int position)
     {
         for (ColumnFamily columnFamily : rowMutation.getColumnFamilies())
         {
@@ -195,62 +275,107 @@ public class CommitLogSegment
             }
             else
             {
-                markCFDirty(cfm.cfId, repPos.position);
+                markCFDirty(cfm.cfId, position);
             }
         }
     }
 
-   /**
-     * Appends a row mutation onto the commit log.  Requres that hasCapacityFor has already been checked.
+    /**
+     * Appends a row mutation onto the commit log, if there is room left for it in this segment. May be called
+     * concurrently by any number of threads.
      *
      * @param   rowMutation   the mutation to append to the commit log.
-     * @return  the position of the appended mutation
+     * @param   serializedRow the serialized mutation
+     * @return  the position of the end of the appended entry, or -1 if the segment is full
      */
-    public ReplayPosition write(RowMutation rowMutation) throws IOException
+    public int write(RowMutation rowMutation, byte[] serializedRow)
     {
-        assert !closed;
-        ReplayPosition repPos = getContext();
-        markDirty(rowMutation, repPos);
-
-        Checksum checksum = new PureJavaCrc32();
-        byte[] serializedRow = FBUtilities.serialize(rowMutation, RowMutation.serializer, MessagingService.current_version);
-
-        checksum.update(serializedRow.length);
-        buffer.putInt(serializedRow.length);
-        buffer.putLong(checksum.getValue());
-
-        buffer.put(serializedRow);
-        checksum.update(serializedRow, 0, serializedRow.length);
-        buffer.putLong(checksum.getValue());
-
-        if (buffer.remaining() >= 4)
+        Lock barrier = syncBarrier.readLock();
+        barrier.lock();
+        try
         {
-            // writes end of segment marker and rewinds back to position where it starts
-            buffer.putInt(CommitLog.END_OF_SEGMENT_MARKER);
-            buffer.position(buffer.position() - CommitLog.END_OF_SEGMENT_MARKER_SIZE);
+            int position = allocate(serializedRow.length + ENTRY_OVERHEAD_SIZE);
+            if (position < 0)
+                return -1;
+            markDirty(rowMutation, position);
+
+            Checksum checksum = new PureJavaCrc32();
+            ByteBuffer out = buffer.duplicate();
+            out.position(position);
+
+            checksum.update(serializedRow.length);
+            out.putInt(serializedRow.length);
+            out.putLong(checksum.getValue());
+
+            out.put(serializedRow);
+            checksum.update(serializedRow, 0, serializedRow.length);
+            out.putLong(checksum.getValue());
+            return out.position();
+        }
+        finally
+        {
+            barrier.unlock();
         }
-
-        needsSync = true;
-        return repPos;
     }
 
     /**
-     * Forces a disk flush for this segment file.
+     * Forces a disk flush for this segment file, once the writes in progress are complete.
      */
-    public void sync()
+    public synchronized void sync()
     {
-        if (needsSync)
+        if (closed)
+            return;
+
+        int position;
+        Lock barrier = syncBarrier.writeLock();
+        barrier.lock();
+        try
+        {
+            position = Math.min(allocatePosition.get(), endOfData);
+        }
+        finally
+        {
+            barrier.unlock();
+        }
+
+        if (position > lastSyncedOffset)
         {
             try
             {
-                buffer.force();
+                flush(lastSyncedOffset, position);
             }
             catch (Exception e) // MappedByteBuffer.force() does not declare IOException but can actually throw it
             {
                 throw new FSWriteError(e, getPath());
             }
-            needsSync = false;
+            lastSyncedOffset = position;
         }
+
+        if (position == endOfData)
+            writesSynced();
+    }
+
+    /**
+     * Write the entries between start and end to disk.
+     */
+    protected void flush(int start, int end) throws IOException
+    {
+        ((MappedByteBuffer) buffer).force();
+    }
+
+    /**
+     * Called by sync() once all the writes to this segment are on disk.
+     */
+    protected void writesSynced()
+    {
+    }
+
+    /**
+     * @return true if the entries up to position are on disk
+     */
+    public boolean isSynced(int position)
+    {
+        return lastSyncedOffset >= position;
     }
 
     /**
@@ -258,7 +383,7 @@ public class CommitLogSegment
      */
     public ReplayPosition getContext()
     {
-        return new ReplayPosition(id, buffer.position());
+        return new ReplayPosition(id, allocatePosition.get());
     }
 
     /**
@@ -280,14 +405,15 @@ public class CommitLogSegment
     /**
      * Close the segment file.
      */
-    public void close()
+    public synchronized void close()
     {
         if (closed)
             return;
 
         try
         {
-            FileUtils.clean(buffer);
+            if (buffer instanceof MappedByteBuffer)
+                FileUtils.clean((MappedByteBuffer) buffer);
             logFileAccessor.close();
             closed = true;
         }
@@ -303,9 +429,15 @@ public class CommitLogSegment
      * @param cfId      the column family ID that is now dirty
      * @param position  the position the last write for this CF was written at
      */
-    private void markCFDirty(UUID cfId, Integer position)
+    private void markCFDirty(UUID cfId, int position)
     {
-        cfLastWrite.put(cfId, position);
+        // entries are written concurrently, so keep the greatest position
+        while (true)
+        {
+            Integer lastWritten = cfLastWrite.putIfAbsent(cfId, position);
+            if (lastWritten == null || lastWritten >= position || cfLastWrite.replace(cfId, lastWritten, position))
+                return;
+        }
     }
 
     /**
@@ -322,7 +454,8 @@ public class CommitLogSegment
 
         if (lastWritten != null && (!contains(context) || lastWritten < context.position))
         {
-            cfLastWrite.remove(cfId);
+            // a concurrent write may have marked the CF dirty again
+            cfLastWrite.remove(cfId, lastWritten);
         }
     }
 
@@ -339,7 +472,17 @@ public class CommitLogSegment
      */
     public boolean isUnused()
     {
-        return cfLastWrite.isEmpty();
+        // wait for the writes in progress, which may not have marked their CF dirty yet
+        Lock barrier = syncBarrier.writeLock();
+        barrier.lock();
+        try
+        {
+            return cfLastWrite.isEmpty();
+        }
+        finally
+        {
+            barrier.unlock();
+        }
     }
 
     /**
@@ -373,7 +516,7 @@ public class CommitLogSegment
 
     public int position()
     {
-        return buffer.position();
+        return allocatePosition.get();
     }
 
     
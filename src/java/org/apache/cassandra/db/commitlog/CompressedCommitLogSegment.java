@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.commitlog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.io.compress.ICompressor;
+import org.apache.cassandra.utils.PureJavaCrc32;
+
+/*
+ * A commit log segment compressed on sync. Entries are written to an in-memory buffer exactly like they are
+ * to the mapped file of an uncompressed segment, and positions in the segment are positions in that buffer.
+ * Each sync compresses the entries written since the previous one and appends them to the file as a section:
+ *
+ *   header:   compressor class name (writeUTF)
+ *   section:  end:int compressedLength:int crc:long (compressed entries)
+ *
+ * where end is the position in the buffer of the end of the section, which starts at the end of the previous
+ * one, and crc is the checksum of end and compressedLength. The sync marker lets the replayer stop at the first
+ * section that was not fully written. The buffer is released once the segment is full and fully synced.
+ *
+ * Unlike the mapped file of an uncompressed segment, the buffer is on heap and does not survive the JVM: in
+ * periodic sync mode, the entries written since the last sync are lost if the process crashes.
+ */
+public class CompressedCommitLogSegment extends CommitLogSegment
+{
+    static final int SYNC_MARKER_SIZE = 4 + 4 + 8;
+
+    // totals over all the compressed segments, for metrics
+    static final AtomicLong uncompressedBytes = new AtomicLong();
+    static final AtomicLong compressedBytes = new AtomicLong();
+
+    private final ICompressor compressor;
+    private final ICompressor.WrappedArray compressed = new ICompressor.WrappedArray(new byte[0]);
+    private final Checksum checksum = new PureJavaCrc32();
+    // the end of the last section in the file
+    private long filePosition;
+
+    CompressedCommitLogSegment(String filePath, ICompressor compressor)
+    {
+        super(filePath, CommitLogDescriptor.VERSION_12_COMPRESSED);
+        this.compressor = compressor;
+    }
+
+    @Override
+    protected ByteBuffer createBuffer(boolean recycled) throws IOException
+    {
+        // the file only holds the sections synced so far
+        logFileAccessor.setLength(0);
+        return ByteBuffer.allocate(DatabaseDescriptor.getCommitLogSegmentSize());
+    }
+
+    @Override
+    protected void flush(int start, int end) throws IOException
+    {
+        if (filePosition == 0)
+        {
+            logFileAccessor.seek(0);
+            logFileAccessor.writeUTF(compressor.getClass().getName());
+            filePosition = logFileAccessor.getFilePointer();
+        }
+
+        int length = end - start;
+        int maxCompressedLength = compressor.initialCompressedBufferLength(length);
+        if (compressed.buffer.length < maxCompressedLength)
+            compressed.buffer = new byte[maxCompressedLength];
+        int compressedLength = compressor.compress(buffer.array(), buffer.arrayOffset() + start, length, compressed, 0);
+
+        ByteBuffer marker = ByteBuffer.allocate(SYNC_MARKER_SIZE);
+        marker.putInt(end);
+        marker.putInt(compressedLength);
+        checksum.reset();
+        checksum.update(marker.array(), 0, 8);
+        marker.putLong(checksum.getValue());
+        marker.flip();
+
+        FileChannel channel = logFileAccessor.getChannel();
+        long position = filePosition;
+        while (marker.hasRemaining())
+            position += channel.write(marker, position);
+        ByteBuffer section = ByteBuffer.wrap(compressed.buffer, 0, compressedLength);
+        while (section.hasRemaining())
+            position += channel.write(section, position);
+        channel.force(false);
+        filePosition = position;
+
+        uncompressedBytes.addAndGet(length);
+        compressedBytes.addAndGet(SYNC_MARKER_SIZE + compressedLength);
+    }
+
+    @Override
+    protected void writesSynced()
+    {
+        // the segment does not accept writes anymore and everything is in the file
+        buffer = null;
+    }
+
+    @Override
+    protected void discardContent() throws IOException
+    {
+        logFileAccessor.setLength(0);
+        logFileAccessor.getChannel().force(true);
+    }
+
+    /**
+     * @return the compressed size of the commit log segments over their uncompressed size, since startup
+     */
+    public static double getCompressionRatio()
+    {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1.0 : (double) compressedBytes.get() / uncompressed;
+    }
+
+    /**
+     * @return the number of bytes compression saved writing the commit log, since startup
+     */
+    public static long getBytesSaved()
+    {
+        return uncompressedBytes.get() - compressedBytes.get();
+    }
+}
@@ -17,39 +17,25 @@
  */
 package org.apache.cassandra.db.commitlog;
 
-import java.util.List;
-import java.util.concurrent.AbstractExecutorService;
-import java.util.concurrent.TimeUnit;
+import org.apache.cassandra.config.DatabaseDescriptor;
 
-public abstract class AbstractCommitLogExecutorService extends AbstractExecutorService implements ICommitLogExecutorService
+/**
+ * Syncs the commit log every commitlog_sync_period_in_ms, acknowledging writes without waiting for them
+ * to be on disk. Writers only block when the syncer falls behind by half a period or more.
+ */
+class PeriodicCommitLogService extends AbstractCommitLogService
 {
-    protected volatile long completedTaskCount = 0;
-
-    /**
-     * Get the number of completed tasks
-     */
-    public long getCompletedTasks()
-    {
-        return completedTaskCount;
-    }
-
-    public boolean isTerminated()
-    {
-        throw new UnsupportedOperationException();
-    }
-
-    public boolean isShutdown()
-    {
-        throw new UnsupportedOperationException();
-    }
+    private final long blockWhenSyncLagsMillis;
 
-    public List<Runnable> shutdownNow()
+    public PeriodicCommitLogService(CommitLog commitLog)
     {
-        throw new UnsupportedOperationException();
+        super(commitLog, "PERIODIC-COMMIT-LOG-SYNCER", DatabaseDescriptor.getCommitLogSyncPeriod());
+        blockWhenSyncLagsMillis = (long) (DatabaseDescriptor.getCommitLogSyncPeriod() * 1.5);
     }
 
-    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    protected void maybeWaitForSync(CommitLogSegment segment, int position)
     {
-        throw new UnsupportedOperationException();
+        if (System.currentTimeMillis() - lastSyncedAt > blockWhenSyncLagsMillis)
+            waitForSync(segment, position);
     }
 }
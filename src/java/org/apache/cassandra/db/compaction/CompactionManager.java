@@ -851,6 +851,25 @@ public class CompactionManager implements CompactionManagerMBean
         return executor.submit(runnable);
     }
 
+    /**
+     * Load a saved cache on the calling thread rather than on the compaction executor, which it would keep from
+     * compacting until the load is done, reporting its progress with the compactions.
+     *
+     * @return the number of entries read from the saved cache
+     */
+    public int runCacheLoad(AutoSavingCache<?, ?>.Loader loader)
+    {
+        metrics.beginCompaction(loader);
+        try
+        {
+            return loader.load();
+        }
+        finally
+        {
+            metrics.finishCompaction(loader);
+        }
+    }
+
     public Future<?> submitTruncate(final ColumnFamilyStore main, final long truncatedAt)
     {
         Runnable runnable = new Runnable()
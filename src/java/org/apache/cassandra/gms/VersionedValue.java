@@ -139,6 +139,11 @@ public class VersionedValue implements Comparable<VersionedValue>
             return new VersionedValue(newVersion.toString());
         }
 
+        public VersionedValue metadataRegistry(UUID newVersion)
+        {
+            return new VersionedValue(newVersion.toString());
+        }
+
         public VersionedValue leaving(Collection<Token> tokens)
         {
             return new VersionedValue(versionString(VersionedValue.STATUS_LEAVING,
@@ -17,52 +17,115 @@
  */
 package org.apache.cassandra.io.sstable;
 
-import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cassandra.config.DatabaseDescriptor;
-import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.RowPosition;
 import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.io.util.Memory;
 import org.apache.cassandra.utils.ByteBufferUtil;
 
+/**
+ * The sampled keys of the primary index, and their position in the index file.
+ *
+ * The summary is held outside of the heap in a single buffer: first the offset in the buffer of each entry
+ * (one int each), then the entries, each one a key followed by its long position. The buffer is searched in
+ * place, without creating per-key objects. A summary loaded from its component is mmapped, otherwise it is
+ * allocated off-heap.
+ *
+ * The buffer is released explicitly, unmapped or freed, once the summary has been replaced or its sstable closed and
+ * the last reader holding a reference to it has released it.
+ */
 public class IndexSummary
 {
     public static final IndexSummarySerializer serializer = new IndexSummarySerializer();
 
-    private final long[] positions;
-    private final byte[][] keys;
     private final IPartitioner partitioner;
+    private final int indexInterval;
+    private final int size;
+    // the memory the buffer is a view of, null if the buffer is mapped
+    private final Memory memory;
+    private final ByteBuffer bytes;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param bytes the summary, mapped from its component
+     */
+    public IndexSummary(IPartitioner partitioner, MappedByteBuffer bytes, int size, int indexInterval)
+    {
+        this(partitioner, null, bytes, size, indexInterval);
+    }
+
+    /**
+     * @param memory the summary, which is freed along with it
+     */
+    public IndexSummary(IPartitioner partitioner, Memory memory, int size, int indexInterval)
+    {
+        this(partitioner, memory, memory.asByteBuffer(0, (int) memory.size()), size, indexInterval);
+    }
 
-    public IndexSummary(IPartitioner partitioner, byte[][] keys, long[] positions)
+    private IndexSummary(IPartitioner partitioner, Memory memory, ByteBuffer bytes, int size, int indexInterval)
     {
+        assert size > 0;
+        assert bytes.position() == 0 && bytes.limit() >= size * 4;
         this.partitioner = partitioner;
-        assert keys != null && keys.length > 0;
-        assert keys.length == positions.length;
+        this.memory = memory;
+        this.bytes = bytes;
+        this.size = size;
+        this.indexInterval = indexInterval;
+    }
 
-        this.keys = keys;
-        this.positions = positions;
+    /**
+     * Reference the summary before reading its entries.
+     *
+     * @return false if the summary has already been released, true if it can be read until it is unreferenced
+     */
+    public boolean reference()
+    {
+        while (true)
+        {
+            int n = references.get();
+            if (n <= 0)
+                return false;
+            if (references.compareAndSet(n, n + 1))
+                return true;
+        }
     }
 
-    public byte[][] getKeys()
+    /**
+     * Release a reference to the summary, releasing its buffer along with the last one. The summary is created
+     * with one reference, released by whoever replaces or closes it.
+     */
+    public void unreference()
     {
-        return keys;
+        int n = references.decrementAndGet();
+        assert n >= 0 : "Reference counter " + n;
+        if (n > 0)
+            return;
+
+        if (memory != null)
+            memory.free();
+        else
+            FileUtils.clean((MappedByteBuffer) bytes);
     }
 
     // binary search is notoriously more difficult to get right than it looks; this is lifted from
     // Harmony's Collections implementation
     public int binarySearch(RowPosition key)
     {
-        int low = 0, mid = keys.length, high = mid - 1, result = -1;
+        int low = 0, mid = size, high = mid - 1, result = -1;
 
         while (low <= high)
         {
             mid = (low + high) >> 1;
-            result = -partitioner.decorateKey(ByteBuffer.wrap(keys[mid])).compareTo(key);
+            result = -partitioner.decorateKey(getKeyBuffer(mid)).compareTo(key);
 
             if (result > 0)
             {
@@ -81,50 +144,104 @@ public class IndexSummary
         return -mid - (result < 0 ? 1 : 2);
     }
 
+    private int getEntryOffset(int index)
+    {
+        return bytes.getInt(index * 4);
+    }
+
+    private int getEntryEnd(int index)
+    {
+        return index == size - 1 ? bytes.limit() : getEntryOffset(index + 1);
+    }
+
+    /**
+     * @return a view of the key at index in the summary buffer
+     */
+    public ByteBuffer getKeyBuffer(int index)
+    {
+        ByteBuffer key = bytes.duplicate();
+        key.position(getEntryOffset(index)).limit(getEntryEnd(index) - 8);
+        return key;
+    }
+
     public byte[] getKey(int index)
     {
-        return keys[index];
+        return ByteBufferUtil.getArray(getKeyBuffer(index));
     }
 
     public long getPosition(int index)
     {
-        return positions[index];
+        return bytes.getLong(getEntryEnd(index) - 8);
     }
 
     public int size()
     {
-        return positions.length;
+        return size;
+    }
+
+    /**
+     * @return the number of index entries each summary entry stands for
+     */
+    public int getIndexInterval()
+    {
+        return indexInterval;
+    }
+
+    /**
+     * @return the size of the summary buffer, in bytes
+     */
+    public long getMemorySize()
+    {
+        return bytes.limit();
     }
 
     public static class IndexSummarySerializer
     {
+        // distinguishes the summaries of the current format from those made of one key and position after another
+        private static final int MAGIC = 0x53554D32;
+        // magic, index interval, size and length of the buffer
+        private static final int HEADER_SIZE = 16;
+
         public void serialize(IndexSummary t, DataOutput out) throws IOException
         {
-            out.writeInt(DatabaseDescriptor.getIndexInterval());
-            out.writeInt(t.keys.length);
-            for (int i = 0; i < t.keys.length; i++)
+            out.writeInt(MAGIC);
+            out.writeInt(t.indexInterval);
+            out.writeInt(t.size);
+            out.writeInt(t.bytes.limit());
+
+            // the buffer is not on the heap, copy it in chunks
+            ByteBuffer bytes = t.bytes.duplicate();
+            byte[] chunk = new byte[4096];
+            while (bytes.hasRemaining())
             {
-                out.writeLong(t.getPosition(i));
-                ByteBufferUtil.writeWithLength(t.keys[i], out);
+                int length = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, length);
+                out.write(chunk, 0, length);
             }
         }
 
-        public IndexSummary deserialize(DataInput in, IPartitioner partitioner) throws IOException
+        /**
+         * Map the summary at the beginning of a summary component file.
+         *
+         * @param in the stream of the file, positioned after the summary when done
+         * @param channel the channel of the file, which the summary buffer is mapped from
+         */
+        public IndexSummary deserialize(DataInputStream in, FileChannel channel, IPartitioner partitioner) throws IOException
         {
-            if (in.readInt() != DatabaseDescriptor.getIndexInterval())
+            if (in.readInt() != MAGIC)
+                throw new IOException("Cannot read the saved summary because its format changed.");
+            int indexInterval = in.readInt();
+            if (indexInterval != DatabaseDescriptor.getIndexInterval())
                 throw new IOException("Cannot read the saved summary because Index Interval changed.");
 
             int size = in.readInt();
-            long[] positions = new long[size];
-            byte[][] keys = new byte[size][];
-
-            for (int i = 0; i < size; i++)
-            {
-                positions[i] = in.readLong();
-                keys[i] = ByteBufferUtil.readBytes(in, in.readInt());
-            }
+            int length = in.readInt();
+            if (size <= 0 || length < size * 12 || HEADER_SIZE + (long) length > channel.size())
+                throw new IOException("Corrupted summary of " + size + " entries in " + length + " bytes");
 
-            return new IndexSummary(partitioner, keys, positions);
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length);
+            FileUtils.skipBytesFully(in, length);
+            return new IndexSummary(partitioner, bytes, size, indexInterval);
         }
     }
 }
@@ -17,16 +17,16 @@
  */
 package org.apache.cassandra.io.sstable;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.util.Memory;
 import org.apache.cassandra.utils.ByteBufferUtil;
 
 public class IndexSummaryBuilder
@@ -35,11 +35,21 @@ public class IndexSummaryBuilder
 
     private final ArrayList<Long> positions;
     private final ArrayList<byte[]> keys;
+    private final int indexInterval;
     private long keysWritten = 0;
 
     public IndexSummaryBuilder(long expectedKeys)
     {
-        long expectedEntries = expectedKeys / DatabaseDescriptor.getIndexInterval();
+        this(expectedKeys, DatabaseDescriptor.getIndexInterval());
+    }
+
+    /**
+     * @param indexInterval one key out of indexInterval is sampled
+     */
+    public IndexSummaryBuilder(long expectedKeys, int indexInterval)
+    {
+        this.indexInterval = indexInterval;
+        long expectedEntries = expectedKeys / indexInterval;
         if (expectedEntries > Integer.MAX_VALUE)
         {
             // that's a _lot_ of keys, and a very low interval
@@ -47,7 +57,7 @@ public class IndexSummaryBuilder
             expectedEntries = expectedKeys / effectiveInterval;
             assert expectedEntries <= Integer.MAX_VALUE : expectedEntries;
             logger.warn("Index interval of {} is too low for {} expected keys; using interval of {} instead",
-                        DatabaseDescriptor.getIndexInterval(), expectedKeys, effectiveInterval);
+                        indexInterval, expectedKeys, effectiveInterval);
         }
         positions = new ArrayList<Long>((int)expectedEntries);
         keys = new ArrayList<byte[]>((int)expectedEntries);
@@ -55,9 +65,14 @@ public class IndexSummaryBuilder
 
     public IndexSummaryBuilder maybeAddEntry(DecoratedKey decoratedKey, long indexPosition)
     {
-        if (keysWritten % DatabaseDescriptor.getIndexInterval() == 0)
+        return maybeAddEntry(decoratedKey.key, indexPosition);
+    }
+
+    public IndexSummaryBuilder maybeAddEntry(ByteBuffer key, long indexPosition)
+    {
+        if (keysWritten % indexInterval == 0)
         {
-            keys.add(ByteBufferUtil.getArray(decoratedKey.key));
+            keys.add(ByteBufferUtil.getArray(key));
             positions.add(indexPosition);
         }
         keysWritten++;
@@ -67,10 +82,32 @@ public class IndexSummaryBuilder
 
     public IndexSummary build(IPartitioner partitioner)
     {
-        byte[][] keysArray = new byte[keys.size()][];
-        for (int i = 0; i < keys.size(); i++)
-            keysArray[i] = keys.get(i);
+        return build(partitioner, indexInterval);
+    }
+
+    /**
+     * @param indexInterval the number of index entries each sampled key stands for, which differs from the
+     * sampling interval of the builder when sampling the keys of another summary
+     */
+    public IndexSummary build(IPartitioner partitioner, int indexInterval)
+    {
+        // the offsets, then each key followed by its position
+        long length = keys.size() * 4L + keys.size() * 8L;
+        for (byte[] key : keys)
+            length += key.length;
+        assert length <= Integer.MAX_VALUE : "Index summary of " + keys.size() + " keys is too large: " + length + " bytes";
 
-        return new IndexSummary(partitioner, keysArray, Longs.toArray(positions));
+        Memory memory = Memory.allocate(length);
+        ByteBuffer bytes = memory.asByteBuffer(0, (int) length);
+        int offset = keys.size() * 4;
+        for (int i = 0; i < keys.size(); i++)
+        {
+            bytes.putInt(i * 4, offset);
+            bytes.position(offset);
+            bytes.put(keys.get(i));
+            bytes.putLong(positions.get(i));
+            offset = bytes.position();
+        }
+        return new IndexSummary(partitioner, memory, keys.size(), indexInterval);
     }
 }
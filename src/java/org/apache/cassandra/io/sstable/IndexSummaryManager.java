@@ -0,0 +1,391 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.io.sstable;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.WrappedRunnable;
+
+/**
+ * Periodically resamples the index summaries of all the live sstables so that they fit in a global memory
+ * budget. The budget is shared according to the read rate of the sstables: frequently read sstables are
+ * sampled more densely, saving index scans, and rarely read ones more sparsely, saving memory.
+ *
+ * The intervals an sstable can be sampled at are index_interval times a power of two, between
+ * min_index_interval and max_index_interval. Summaries are rebuilt aside and swapped in, so reads are never
+ * blocked. Resampled summaries are not saved: sstables opened at startup are sampled every index_interval
+ * until the next redistribution.
+ */
+public class IndexSummaryManager implements IndexSummaryManagerMBean
+{
+    private static final Logger logger = LoggerFactory.getLogger(IndexSummaryManager.class);
+
+    public static final String MBEAN_NAME = "org.apache.cassandra.db:type=IndexSummaries";
+    public static final IndexSummaryManager instance = new IndexSummaryManager();
+
+    // weight of the last period in the read rate of an sstable
+    private static final double RATE_SMOOTHING = 0.5;
+
+    private ScheduledFuture<?> future;
+
+    // the read rate of the sstables as of the last redistribution
+    private Map<SSTableReader, ReadRate> readRates = new HashMap<SSTableReader, ReadRate>();
+    private long lastRedistribution = System.nanoTime();
+
+    private IndexSummaryManager()
+    {
+    }
+
+    public void start()
+    {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            mbs.registerMBean(this, new ObjectName(MBEAN_NAME));
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+        schedule(DatabaseDescriptor.getIndexSummaryResizeIntervalInMinutes());
+    }
+
+    private synchronized void schedule(int resizeIntervalInMinutes)
+    {
+        if (future != null)
+        {
+            future.cancel(false); // do not interrupt an in-progress redistribution
+            future = null;
+        }
+        if (resizeIntervalInMinutes <= 0)
+            return;
+
+        Runnable runnable = new WrappedRunnable()
+        {
+            protected void runMayThrow() throws Exception
+            {
+                redistributeSummaries();
+            }
+        };
+        future = StorageService.optionalTasks.scheduleWithFixedDelay(runnable,
+                                                                     resizeIntervalInMinutes,
+                                                                     resizeIntervalInMinutes,
+                                                                     TimeUnit.MINUTES);
+    }
+
+    public long getMemoryPoolCapacityInMB()
+    {
+        return DatabaseDescriptor.getIndexSummaryCapacityInMB();
+    }
+
+    public void setMemoryPoolCapacityInMB(long memoryPoolCapacityInMB)
+    {
+        DatabaseDescriptor.setIndexSummaryCapacityInMB(memoryPoolCapacityInMB);
+    }
+
+    public double getMemoryPoolSizeInMB()
+    {
+        long size = 0;
+        for (SSTableReader sstable : allSSTables())
+            size += sstable.getIndexSummaryMemorySize();
+        return size / 1024.0 / 1024.0;
+    }
+
+    public int getResizeIntervalInMinutes()
+    {
+        return DatabaseDescriptor.getIndexSummaryResizeIntervalInMinutes();
+    }
+
+    public void setResizeIntervalInMinutes(int resizeIntervalInMinutes)
+    {
+        DatabaseDescriptor.setIndexSummaryResizeIntervalInMinutes(resizeIntervalInMinutes);
+        schedule(resizeIntervalInMinutes);
+    }
+
+    public Map<String, Integer> getIndexIntervals()
+    {
+        Map<String, Integer> intervals = new TreeMap<String, Integer>();
+        for (SSTableReader sstable : allSSTables())
+            intervals.put(sstable.getFilename(), sstable.getIndexInterval());
+        return intervals;
+    }
+
+    public double getAverageIndexInterval()
+    {
+        long keys = 0, samples = 0;
+        for (SSTableReader sstable : allSSTables())
+        {
+            keys += sstable.estimatedKeys();
+            samples += sstable.getKeySampleSize();
+        }
+        return samples == 0 ? 0 : (double) keys / samples;
+    }
+
+    private static List<SSTableReader> allSSTables()
+    {
+        List<SSTableReader> sstables = new ArrayList<SSTableReader>();
+        for (Table table : Table.all())
+        {
+            for (ColumnFamilyStore cfs : table.getColumnFamilyStores())
+            {
+                for (ColumnFamilyStore store : cfs.concatWithIndexes())
+                    sstables.addAll(store.getSSTables());
+            }
+        }
+        return sstables;
+    }
+
+    public synchronized void redistributeSummaries() throws IOException
+    {
+        List<SSTableReader> sstables = new ArrayList<SSTableReader>();
+        for (Table table : Table.all())
+        {
+            for (ColumnFamilyStore cfs : table.getColumnFamilyStores())
+            {
+                for (ColumnFamilyStore store : cfs.concatWithIndexes())
+                    sstables.addAll(store.markCurrentSSTablesReferenced());
+            }
+        }
+
+        try
+        {
+            redistributeSummaries(sstables, DatabaseDescriptor.getIndexSummaryCapacityInMB() * 1024 * 1024);
+        }
+        finally
+        {
+            SSTableReader.releaseReferences(sstables);
+        }
+    }
+
+    /**
+     * Resample the summaries of sstables, which must be referenced, to fit in capacity bytes.
+     */
+    @VisibleForTesting
+    synchronized void redistributeSummaries(List<SSTableReader> sstables, long capacity) throws IOException
+    {
+        long now = System.nanoTime();
+        double elapsedSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(now - lastRedistribution));
+        lastRedistribution = now;
+
+        Map<SSTableReader, ReadRate> newReadRates = new HashMap<SSTableReader, ReadRate>();
+        List<Candidate> candidates = new ArrayList<Candidate>(sstables.size());
+        long memoryBefore = 0;
+        for (SSTableReader sstable : sstables)
+        {
+            long reads = sstable.getSummaryReads();
+            ReadRate previous = readRates.get(sstable);
+            double periodRate = (reads - (previous == null ? 0 : previous.reads)) / elapsedSeconds;
+            double rate = previous == null ? periodRate : RATE_SMOOTHING * periodRate + (1 - RATE_SMOOTHING) * previous.rate;
+            newReadRates.put(sstable, new ReadRate(reads, rate));
+
+            long memory = sstable.getIndexSummaryMemorySize();
+            memoryBefore += memory;
+            candidates.add(new Candidate(sstable,
+                                         sstable.estimatedKeys(),
+                                         (double) memory / sstable.getKeySampleSize(),
+                                         rate,
+                                         sstable.getIndexInterval()));
+        }
+        // forget the sstables that are gone
+        readRates = newReadRates;
+
+        int indexInterval = DatabaseDescriptor.getIndexInterval();
+        List<Integer> levels = intervalLevels(indexInterval,
+                                              DatabaseDescriptor.getMinIndexInterval(),
+                                              DatabaseDescriptor.getMaxIndexInterval());
+        long memoryAfter = distribute(candidates, levels, indexInterval, capacity);
+
+        int resampled = 0;
+        // sparser first, to free memory before using more
+        Collections.sort(candidates, new Comparator<Candidate>()
+        {
+            public int compare(Candidate c1, Candidate c2)
+            {
+                return c2.interval - c1.interval;
+            }
+        });
+        for (Candidate candidate : candidates)
+        {
+            if (candidate.interval == candidate.sstable.getIndexInterval())
+                continue;
+            candidate.sstable.resampleSummary(candidate.interval);
+            resampled++;
+        }
+        logger.info("Resampled {} index summaries of {} sstables, from {} to about {} bytes for a capacity of {} bytes",
+                    new Object[]{ resampled, sstables.size(), memoryBefore, memoryAfter, capacity });
+    }
+
+    /**
+     * @return the intervals sstables may be sampled at, densest first: indexInterval times the powers of two
+     * between minInterval and maxInterval, and at least indexInterval
+     */
+    @VisibleForTesting
+    static List<Integer> intervalLevels(int indexInterval, int minInterval, int maxInterval)
+    {
+        LinkedList<Integer> levels = new LinkedList<Integer>();
+        levels.add(indexInterval);
+        for (int interval = indexInterval; interval % 2 == 0 && interval / 2 >= minInterval; interval /= 2)
+            levels.addFirst(interval / 2);
+        for (long interval = indexInterval * 2L; interval <= maxInterval; interval *= 2)
+            levels.addLast((int) interval);
+        return new ArrayList<Integer>(levels);
+    }
+
+    /**
+     * Pick the interval of each candidate so that their summaries fit in capacity bytes, if possible. Each candidate
+     * first gets a share of the capacity proportional to its read rate (to its number of keys if nothing is read).
+     * Cold candidates are then made sparser while the total exceeds the capacity, and hot ones denser with what is
+     * left. Candidates that are not read at all are never sampled more densely than indexInterval.
+     *
+     * @return the estimated memory used by the summaries at the picked intervals
+     */
+    @VisibleForTesting
+    static long distribute(List<Candidate> candidates, List<Integer> levels, int indexInterval, long capacity)
+    {
+        double totalRate = 0;
+        long totalKeys = 0;
+        for (Candidate candidate : candidates)
+        {
+            totalRate += candidate.readRate;
+            totalKeys += candidate.keys;
+        }
+
+        long total = 0;
+        for (int i = 0; i < candidates.size(); i++)
+        {
+            Candidate candidate = candidates.get(i);
+            candidate.rank = i;
+            double share = totalRate > 0 ? candidate.readRate / totalRate : (double) candidate.keys / Math.max(1, totalKeys);
+            candidate.level = levels.size() - 1;
+            for (int level = 0; level < levels.size(); level++)
+            {
+                if (candidate.memory(levels.get(level)) <= share * capacity)
+                {
+                    candidate.level = level;
+                    break;
+                }
+            }
+            total += candidate.memory(levels.get(candidate.level));
+        }
+
+        // each step makes the coldest candidate that can still be made sparser one level sparser
+        Comparator<Candidate> coldestFirst = new Comparator<Candidate>()
+        {
+            public int compare(Candidate c1, Candidate c2)
+            {
+                int cmp = Double.compare(c1.hotness(), c2.hotness());
+                return cmp == 0 ? c1.rank - c2.rank : cmp;
+            }
+        };
+        PriorityQueue<Candidate> steps = new PriorityQueue<Candidate>(Math.max(1, candidates.size()), coldestFirst);
+        for (Candidate candidate : candidates)
+        {
+            if (candidate.level < levels.size() - 1)
+                steps.add(candidate);
+        }
+        while (total > capacity && !steps.isEmpty())
+        {
+            Candidate candidate = steps.poll();
+            total -= candidate.memory(levels.get(candidate.level)) - candidate.memory(levels.get(candidate.level + 1));
+            candidate.level++;
+            if (candidate.level < levels.size() - 1)
+                steps.add(candidate);
+        }
+
+        // then each step makes the hottest candidate whose next level fits one level denser. The total only grows, so
+        // a candidate whose next level does not fit never will
+        steps = new PriorityQueue<Candidate>(Math.max(1, candidates.size()), Collections.reverseOrder(coldestFirst));
+        steps.addAll(candidates);
+        while (!steps.isEmpty())
+        {
+            Candidate candidate = steps.poll();
+            if (candidate.level == 0 || (candidate.readRate == 0 && levels.get(candidate.level) <= indexInterval))
+                continue;
+            long delta = candidate.memory(levels.get(candidate.level - 1)) - candidate.memory(levels.get(candidate.level));
+            if (total + delta > capacity)
+                continue;
+            total += delta;
+            candidate.level--;
+            steps.add(candidate);
+        }
+
+        for (Candidate candidate : candidates)
+            candidate.interval = levels.get(candidate.level);
+        return total;
+    }
+
+    @VisibleForTesting
+    static class Candidate
+    {
+        final SSTableReader sstable;
+        final long keys;
+        final double entrySize;
+        final double readRate;
+        // the picked interval, initially the current one
+        int interval;
+        int level;
+        // position among the candidates, breaking ties in hotness
+        int rank;
+
+        Candidate(SSTableReader sstable, long keys, double entrySize, double readRate, int interval)
+        {
+            this.sstable = sstable;
+            this.keys = keys;
+            this.entrySize = entrySize;
+            this.readRate = readRate;
+            this.interval = interval;
+        }
+
+        long memory(int interval)
+        {
+            return (long) (entrySize * ((keys + interval - 1) / interval));
+        }
+
+        // reads per key
+        double hotness()
+        {
+            return readRate / Math.max(1, keys);
+        }
+    }
+
+    private static class ReadRate
+    {
+        final long reads;
+        final double rate;
+
+        ReadRate(long reads, double rate)
+        {
+            this.reads = reads;
+            this.rate = rate;
+        }
+    }
+}
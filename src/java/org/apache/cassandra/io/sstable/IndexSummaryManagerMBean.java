@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.io.sstable;
+
+import java.io.IOException;
+import java.util.Map;
+
+public interface IndexSummaryManagerMBean
+{
+    /**
+     * @return the memory all the index summaries are resampled to fit in, in megabytes
+     */
+    public long getMemoryPoolCapacityInMB();
+    public void setMemoryPoolCapacityInMB(long memoryPoolCapacityInMB);
+
+    /**
+     * @return the memory currently used by all the index summaries, in megabytes
+     */
+    public double getMemoryPoolSizeInMB();
+
+    /**
+     * @return how often index summaries are resampled, -1 if they are not
+     */
+    public int getResizeIntervalInMinutes();
+    public void setResizeIntervalInMinutes(int resizeIntervalInMinutes);
+
+    /**
+     * @return the index interval of each live sstable, by data file name
+     */
+    public Map<String, Integer> getIndexIntervals();
+
+    /**
+     * @return the average index interval of the live sstables, weighted by their number of keys
+     */
+    public double getAverageIndexInterval();
+
+    /**
+     * Resample the index summaries of all the live sstables now.
+     */
+    public void redistributeSummaries() throws IOException;
+}
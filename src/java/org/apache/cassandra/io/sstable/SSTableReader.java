@@ -29,6 +29,7 @@ import com.google.common.util.concurrent.RateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.cassandra.cache.ColumnIndexCacheKey;
 import org.apache.cassandra.cache.InstrumentingCache;
 import org.apache.cassandra.cache.KeyCacheKey;
 import org.apache.cassandra.concurrent.DebuggableThreadPoolExecutor;
@@ -87,10 +88,12 @@ public class SSTableReader extends SSTable
     private SegmentedFile ifile;
     private SegmentedFile dfile;
 
-    private IndexSummary indexSummary;
+    // replaced when resampled, the summary must be read once per operation
+    private volatile IndexSummary indexSummary;
     private IFilter bf;
 
     private InstrumentingCache<KeyCacheKey, RowIndexEntry> keyCache;
+    private InstrumentingCache<ColumnIndexCacheKey, SerializedColumnIndex> columnIndexCache;
 
     private final BloomFilterTracker bloomFilterTracker = new BloomFilterTracker();
 
@@ -105,6 +108,8 @@ public class SSTableReader extends SSTable
 
     private final AtomicLong keyCacheHit = new AtomicLong(0);
     private final AtomicLong keyCacheRequest = new AtomicLong(0);
+    // reads looked up in the index summary, to sample the index according to how often it is used
+    private final AtomicLong summaryReads = new AtomicLong(0);
 
     public static long getApproximateKeyCount(Iterable<SSTableReader> sstables)
     {
@@ -112,8 +117,8 @@ public class SSTableReader extends SSTable
 
         for (SSTableReader sstable : sstables)
         {
-            int indexKeyCount = sstable.getKeySamples().length;
-            count = count + (indexKeyCount + 1) * DatabaseDescriptor.getIndexInterval();
+            IndexSummary summary = sstable.indexSummary;
+            count = count + (summary.size() + 1) * (long) summary.getIndexInterval();
             if (logger.isDebugEnabled())
                 logger.debug("index size for bloom filter calc for file  : " + sstable.getFilename() + "   : " + count);
         }
@@ -352,6 +357,7 @@ public class SSTableReader extends SSTable
         // e.g. by BulkLoader, which does not initialize the cache.  As a kludge, we set up the cache
         // here when we know we're being wired into the rest of the server infrastructure.
         keyCache = CacheService.instance.keyCache;
+        columnIndexCache = CacheService.instance.columnIndexCache;
     }
 
     void loadBloomFilter() throws IOException
@@ -391,7 +397,9 @@ public class SSTableReader extends SSTable
 
         ifile = ibuilder.complete(descriptor.filenameFor(Component.PRIMARY_INDEX));
         dfile = dbuilder.complete(descriptor.filenameFor(Component.DATA));
-        if (recreatebloom || !summaryLoaded) // save summary information to disk
+        // save summary information to disk, unless it was loaded from there: it is mapped from the file then,
+        // and rebuilding the bloom filter doesn't change it
+        if (!summaryLoaded)
             saveSummary(this, ibuilder, dbuilder);
     }
 
@@ -487,8 +495,9 @@ public class SSTableReader extends SSTable
         DataInputStream iStream = null;
         try
         {
-            iStream = new DataInputStream(new FileInputStream(summariesFile));
-            reader.indexSummary = IndexSummary.serializer.deserialize(iStream, reader.partitioner);
+            FileInputStream fileStream = new FileInputStream(summariesFile);
+            iStream = new DataInputStream(new BufferedInputStream(fileStream));
+            reader.indexSummary = IndexSummary.serializer.deserialize(iStream, fileStream.getChannel(), reader.partitioner);
             reader.first = decodeKey(reader.partitioner, reader.descriptor, ByteBufferUtil.readWithLength(iStream));
             reader.last = decodeKey(reader.partitioner, reader.descriptor, ByteBufferUtil.readWithLength(iStream));
             ibuilder.deserializeBounds(iStream);
@@ -497,6 +506,11 @@ public class SSTableReader extends SSTable
         catch (IOException e)
         {
             logger.debug("Cannot deserialize SSTable Summary: ", e);
+            if (reader.indexSummary != null)
+            {
+                reader.indexSummary.unreference();
+                reader.indexSummary = null;
+            }
             // corrupted hence delete it and let it load it now.
             if (summariesFile.exists())
                 summariesFile.delete();
@@ -520,7 +534,7 @@ public class SSTableReader extends SSTable
         DataOutputStream oStream = null;
         try
         {
-            oStream = new DataOutputStream(new FileOutputStream(summariesFile));
+            oStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(summariesFile)));
             IndexSummary.serializer.serialize(reader.indexSummary, oStream);
             ByteBufferUtil.writeWithLength(reader.first.key, oStream);
             ByteBufferUtil.writeWithLength(reader.last.key, oStream);
@@ -549,6 +563,33 @@ public class SSTableReader extends SSTable
 
     /** get the position in the index file to start scanning to find the given key (at most indexInterval keys away) */
     public long getIndexScanPosition(RowPosition key)
+    {
+        IndexSummary summary = referenceSummary();
+        try
+        {
+            return getIndexScanPosition(summary, key);
+        }
+        finally
+        {
+            summary.unreference();
+        }
+    }
+
+    /**
+     * @return the current index summary, referenced so that it can be read: the caller must unreference it when done
+     */
+    private IndexSummary referenceSummary()
+    {
+        while (true)
+        {
+            // a summary that cannot be referenced has been replaced
+            IndexSummary summary = indexSummary;
+            if (summary.reference())
+                return summary;
+        }
+    }
+
+    private static long getIndexScanPosition(IndexSummary indexSummary, RowPosition key)
     {
         int index = indexSummary.binarySearch(key);
         if (index < 0)
@@ -603,7 +644,8 @@ public class SSTableReader extends SSTable
      */
     public long estimatedKeys()
     {
-        return ((long) indexSummary.size()) * DatabaseDescriptor.getIndexInterval();
+        IndexSummary summary = indexSummary;
+        return ((long) summary.size()) * summary.getIndexInterval();
     }
 
     /**
@@ -613,18 +655,126 @@ public class SSTableReader extends SSTable
     public long estimatedKeysForRanges(Collection<Range<Token>> ranges)
     {
         long sampleKeyCount = 0;
-        List<Pair<Integer, Integer>> sampleIndexes = getSampleIndexesForRanges(indexSummary, ranges);
+        IndexSummary summary = referenceSummary();
+        List<Pair<Integer, Integer>> sampleIndexes;
+        try
+        {
+            sampleIndexes = getSampleIndexesForRanges(summary, ranges);
+        }
+        finally
+        {
+            summary.unreference();
+        }
         for (Pair<Integer, Integer> sampleIndexRange : sampleIndexes)
             sampleKeyCount += (sampleIndexRange.right - sampleIndexRange.left + 1);
-        return Math.max(1, sampleKeyCount * DatabaseDescriptor.getIndexInterval());
+        return Math.max(1, sampleKeyCount * summary.getIndexInterval());
+    }
+
+    /**
+     * @return the number of keys sampled in the index summary, approximately 1/INDEX_INTERVALth of the keys in this SSTable.
+     */
+    public int getKeySampleSize()
+    {
+        return indexSummary.size();
+    }
+
+    public byte[] getKeySample(int index)
+    {
+        IndexSummary summary = referenceSummary();
+        try
+        {
+            return summary.getKey(index);
+        }
+        finally
+        {
+            summary.unreference();
+        }
+    }
+
+    /**
+     * @return the number of index entries each key sample stands for
+     */
+    public int getIndexInterval()
+    {
+        return indexSummary.getIndexInterval();
+    }
+
+    /**
+     * @return the number of reads that looked up the index summary since the sstable was opened
+     */
+    public long getSummaryReads()
+    {
+        return summaryReads.get();
+    }
+
+    /**
+     * @return the memory used by the index summary, in bytes
+     */
+    public long getIndexSummaryMemorySize()
+    {
+        return indexSummary.getMemorySize();
     }
 
     /**
-     * @return Approximately 1/INDEX_INTERVALth of the keys in this SSTable.
+     * Sample the keys of the index every indexInterval keys. Memory is traded for read latency: a larger
+     * interval shrinks the summary but lookups scan more index entries. Reads are not blocked: they go on
+     * with the previous summary until the new one replaces it, and the previous one is released once the
+     * last of them is done with it.
      */
-    public byte[][] getKeySamples()
+    public void resampleSummary(int indexInterval) throws IOException
     {
-        return indexSummary.getKeys();
+        IndexSummary current = referenceSummary();
+        try
+        {
+            resampleSummary(current, indexInterval);
+        }
+        finally
+        {
+            current.unreference();
+        }
+    }
+
+    private void resampleSummary(IndexSummary current, int indexInterval) throws IOException
+    {
+        if (indexInterval == current.getIndexInterval())
+            return;
+
+        IndexSummary resampled;
+        if (indexInterval % current.getIndexInterval() == 0)
+        {
+            // coarser sampling, pick from the current samples
+            IndexSummaryBuilder builder = new IndexSummaryBuilder(current.size(), indexInterval / current.getIndexInterval());
+            for (int i = 0; i < current.size(); i++)
+                builder.maybeAddEntry(current.getKeyBuffer(i), current.getPosition(i));
+            resampled = builder.build(partitioner, indexInterval);
+        }
+        else
+        {
+            // denser sampling, or not aligned with the current one: rebuild from the index
+            IndexSummaryBuilder builder = new IndexSummaryBuilder(estimatedKeys(), indexInterval);
+            RandomAccessReader primaryIndex = RandomAccessReader.open(new File(descriptor.filenameFor(Component.PRIMARY_INDEX)), true);
+            try
+            {
+                long indexSize = primaryIndex.length();
+                long indexPosition;
+                while ((indexPosition = primaryIndex.getFilePointer()) != indexSize)
+                {
+                    ByteBuffer key = ByteBufferUtil.readWithShortLength(primaryIndex);
+                    RowIndexEntry.serializer.skip(primaryIndex, descriptor.version);
+                    builder.maybeAddEntry(key, indexPosition);
+                }
+            }
+            finally
+            {
+                FileUtils.closeQuietly(primaryIndex);
+            }
+            resampled = builder.build(partitioner, indexInterval);
+        }
+        indexSummary = resampled;
+        // release the reference the reader held on the previous summary
+        current.unreference();
+        logger.debug("Resampled the index summary of {} every {} keys ({} bytes)",
+                     new Object[]{ this, indexInterval, resampled.getMemorySize() });
     }
 
     private static List<Pair<Integer,Integer>> getSampleIndexesForRanges(IndexSummary summary, Collection<Range<Token>> ranges)
@@ -671,50 +821,22 @@ public class SSTableReader extends SSTable
 
     public Iterable<DecoratedKey> getKeySamples(final Range<Token> range)
     {
-        final List<Pair<Integer, Integer>> indexRanges = getSampleIndexesForRanges(indexSummary, Collections.singletonList(range));
-
-        if (indexRanges.isEmpty())
-            return Collections.emptyList();
-
-        return new Iterable<DecoratedKey>()
+        // the samples are copied: the summary cannot be left referenced until an iterator is done with it
+        IndexSummary summary = referenceSummary();
+        try
         {
-            public Iterator<DecoratedKey> iterator()
+            List<DecoratedKey> samples = new ArrayList<DecoratedKey>();
+            for (Pair<Integer, Integer> indexRange : getSampleIndexesForRanges(summary, Collections.singletonList(range)))
             {
-                return new Iterator<DecoratedKey>()
-                {
-                    private Iterator<Pair<Integer, Integer>> rangeIter = indexRanges.iterator();
-                    private Pair<Integer, Integer> current;
-                    private int idx;
-
-                    public boolean hasNext()
-                    {
-                        if (current == null || idx > current.right)
-                        {
-                            if (rangeIter.hasNext())
-                            {
-                                current = rangeIter.next();
-                                idx = current.left;
-                                return true;
-                            }
-                            return false;
-                        }
-
-                        return true;
-                    }
-
-                    public DecoratedKey next()
-                    {
-                        byte[] bytes = indexSummary.getKey(idx++);
-                        return partitioner.decorateKey(ByteBuffer.wrap(bytes));
-                    }
-
-                    public void remove()
-                    {
-                        throw new UnsupportedOperationException();
-                    }
-                };
+                for (int idx = indexRange.left; idx <= indexRange.right; idx++)
+                    samples.add(partitioner.decorateKey(ByteBuffer.wrap(summary.getKey(idx))));
             }
-        };
+            return samples;
+        }
+        finally
+        {
+            summary.unreference();
+        }
     }
 
     /**
@@ -764,25 +886,24 @@ public class SSTableReader extends SSTable
     }
 
     public RowIndexEntry getCachedPosition(DecoratedKey key, boolean updateStats)
-    {
-        return getCachedPosition(new KeyCacheKey(descriptor, key.key), updateStats);
-    }
-
-    private RowIndexEntry getCachedPosition(KeyCacheKey unifiedKey, boolean updateStats)
     {
         if (keyCache != null && keyCache.getCapacity() > 0) {
+            RowIndexEntry cachedEntry;
+            // an off-heap key cache is looked up without copying the key
+            if (keyCache.isOffHeapKeyCache())
+                cachedEntry = keyCache.getKeyCacheEntry(descriptor, key.key, updateStats);
+            else if (updateStats)
+                cachedEntry = keyCache.get(new KeyCacheKey(descriptor, key.key));
+            else
+                return keyCache.getInternal(new KeyCacheKey(descriptor, key.key));
+
             if (updateStats)
             {
-                RowIndexEntry cachedEntry = keyCache.get(unifiedKey);
                 keyCacheRequest.incrementAndGet();
                 if (cachedEntry != null)
                     keyCacheHit.incrementAndGet();
-                return cachedEntry;
-            }
-            else
-            {
-                return keyCache.getInternal(unifiedKey);
             }
+            return cachedEntry;
         }
         return null;
     }
@@ -819,9 +940,7 @@ public class SSTableReader extends SSTable
         // next, the key cache (only make sense for valid row key)
         if ((op == Operator.EQ || op == Operator.GE) && (key instanceof DecoratedKey))
         {
-            DecoratedKey decoratedKey = (DecoratedKey)key;
-            KeyCacheKey cacheKey = new KeyCacheKey(descriptor, decoratedKey.key);
-            RowIndexEntry cachedPosition = getCachedPosition(cacheKey, updateCacheAndStats);
+            RowIndexEntry cachedPosition = getCachedPosition((DecoratedKey)key, updateCacheAndStats);
             if (cachedPosition != null)
             {
                 Tracing.trace("Key cache hit for sstable {}", descriptor.generation);
@@ -830,7 +949,19 @@ public class SSTableReader extends SSTable
         }
 
         // next, see if the sampled index says it's impossible for the key to be present
-        long sampledPosition = getIndexScanPosition(key);
+        if (updateCacheAndStats)
+            summaryReads.incrementAndGet();
+        IndexSummary summary = referenceSummary();
+        long sampledPosition;
+        try
+        {
+            sampledPosition = getIndexScanPosition(summary, key);
+        }
+        finally
+        {
+            // the index interval, read below, remains valid
+            summary.unreference();
+        }
         if (sampledPosition == -1)
         {
             if (op == Operator.EQ && updateCacheAndStats)
@@ -856,12 +987,12 @@ public class SSTableReader extends SSTable
         // of the next interval).
         int i = 0;
         Iterator<FileDataInput> segments = ifile.iterator(sampledPosition, INDEX_FILE_BUFFER_BYTES);
-        while (segments.hasNext() && i <= DatabaseDescriptor.getIndexInterval())
+        while (segments.hasNext() && i <= summary.getIndexInterval())
         {
             FileDataInput in = segments.next();
             try
             {
-                while (!in.isEOF() && i <= DatabaseDescriptor.getIndexInterval())
+                while (!in.isEOF() && i <= summary.getIndexInterval())
                 {
                     i++;
 
@@ -892,7 +1023,10 @@ public class SSTableReader extends SSTable
                     if (opSatisfied)
                     {
                         // read data position from index entry
-                        RowIndexEntry indexEntry = RowIndexEntry.serializer.deserialize(in, descriptor.version);
+                        // when column indexes are cached, leave them in the index until they are read
+                        RowIndexEntry indexEntry = isColumnIndexCacheEnabled()
+                                                 ? RowIndexEntry.serializer.deserializeShallow(in, descriptor.version)
+                                                 : RowIndexEntry.serializer.deserialize(in, descriptor.version);
                         if (exactMatch && updateCacheAndStats)
                         {
                             assert key instanceof DecoratedKey; // key can be == to the index key only if it's a true row key
@@ -913,7 +1047,7 @@ public class SSTableReader extends SSTable
                         }
                         if (op == Operator.EQ && updateCacheAndStats)
                             bloomFilterTracker.addTruePositive();
-                        Tracing.trace("Partition index with {} entries found for sstable {}", indexEntry.columnsIndex().size(), descriptor.generation);
+                        Tracing.trace("Partition index {}found for sstable {}", indexEntry.isIndexed() ? "with column index " : "", descriptor.generation);
                         return indexEntry;
                     }
 
@@ -937,6 +1071,48 @@ public class SSTableReader extends SSTable
         return null;
     }
 
+    private boolean isColumnIndexCacheEnabled()
+    {
+        return columnIndexCache != null && columnIndexCache.getCapacity() > 0;
+    }
+
+    /**
+     * @return the column index of the partition of indexEntry, empty if the partition is not indexed, referenced
+     * for the caller to unreference once done with it
+     */
+    public SerializedColumnIndex getColumnIndex(RowIndexEntry indexEntry) throws IOException
+    {
+        return indexEntry.columnIndex(this);
+    }
+
+    /**
+     * @return the column index starting at indexPosition in the primary index, referenced for the caller to
+     * unreference once done with it. The index is looked up in the column index cache, and read and cached if it is
+     * not there.
+     */
+    public SerializedColumnIndex getColumnIndex(long indexPosition) throws IOException
+    {
+        ColumnIndexCacheKey cacheKey = new ColumnIndexCacheKey(descriptor, indexPosition);
+        // a cached index is returned referenced
+        SerializedColumnIndex columnIndex = columnIndexCache == null ? null : columnIndexCache.get(cacheKey);
+        if (columnIndex != null)
+            return columnIndex;
+
+        FileDataInput in = ifile.getSegment(cacheKey.indexPosition);
+        try
+        {
+            columnIndex = SerializedColumnIndex.deserialize(in);
+        }
+        finally
+        {
+            FileUtils.closeQuietly(in);
+        }
+        // the index is created referenced for the caller, the cache references it again
+        if (isColumnIndexCacheEnabled())
+            columnIndexCache.put(cacheKey, columnIndex);
+        return columnIndex;
+    }
+
     /**
      * @return The length in bytes of the data for this SSTable. For
      * compressed files, this is not the same thing as the on disk size (see
@@ -976,6 +1152,7 @@ public class SSTableReader extends SSTable
             // Force finalizing mmapping if necessary
             ifile.cleanup();
             dfile.cleanup();
+            indexSummary.unreference();
 
             deletingTask.schedule();
             // close the BF so it can be opened later.
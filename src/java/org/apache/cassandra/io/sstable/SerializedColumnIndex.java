@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.io.sstable;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.cassandra.cache.IMeasurableMemory;
+import org.apache.cassandra.cache.RefCountedMemory;
+import org.apache.cassandra.db.TypeSizes;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.ObjectSizes;
+
+/**
+ * The column index of a partition kept serialized off-heap, so that it can be cached off-heap and searched without
+ * deserializing its IndexInfo.
+ *
+ * The memory holds the offset of each block in the memory, as an int, followed by the blocks serialized by
+ * IndexInfo.serialize: first name, last name, offset and width. It is reference counted: the index is created
+ * referenced once, by its reader, and every other holder, such as a cache, references it again. The memory is freed
+ * along with the last reference. An index already deserialized, that is not cached, is wrapped as it is instead.
+ */
+public class SerializedColumnIndex implements IMeasurableMemory
+{
+    public static final SerializedColumnIndex EMPTY = new SerializedColumnIndex(null, ByteBuffer.allocate(0), 0);
+
+    // null if the index is not off-heap
+    private final RefCountedMemory memory;
+    // a view of memory
+    private final ByteBuffer buffer;
+    private final int size;
+
+    private SerializedColumnIndex(RefCountedMemory memory, ByteBuffer buffer, int size)
+    {
+        this.memory = memory;
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Wrap a deserialized column index, without copying it. The index is not meant to be cached.
+     */
+    public static SerializedColumnIndex create(List<IndexHelper.IndexInfo> columnsIndex)
+    {
+        return columnsIndex.isEmpty() ? EMPTY : new Deserialized(columnsIndex);
+    }
+
+    /**
+     * Read a promoted column index, that is its number of blocks followed by the blocks, copying the blocks as they
+     * are serialized in an off-heap buffer.
+     */
+    public static SerializedColumnIndex deserialize(DataInput in) throws IOException
+    {
+        int size = in.readInt();
+        if (size == 0)
+            return EMPTY;
+
+        int[] offsets = new int[size];
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (int i = 0; i < size; i++)
+        {
+            offsets[i] = out.getLength();
+            ByteBufferUtil.writeWithShortLength(ByteBufferUtil.readWithShortLength(in), out); // first name
+            ByteBufferUtil.writeWithShortLength(ByteBufferUtil.readWithShortLength(in), out); // last name
+            out.writeLong(in.readLong()); // offset
+            out.writeLong(in.readLong()); // width
+        }
+        return create(offsets, out);
+    }
+
+    private static SerializedColumnIndex create(int[] offsets, DataOutputBuffer blocks)
+    {
+        int header = offsets.length * 4;
+        RefCountedMemory memory = new RefCountedMemory(header + blocks.getLength());
+        ByteBuffer buffer = memory.asByteBuffer(0, header + blocks.getLength());
+        for (int offset : offsets)
+            buffer.putInt(header + offset);
+        buffer.put(blocks.getData(), 0, blocks.getLength());
+        buffer.flip();
+        return new SerializedColumnIndex(memory, buffer, offsets.length);
+    }
+
+    /**
+     * Reference the index, for it to remain readable until unreferenced.
+     *
+     * @return false if the index has already been freed
+     */
+    public boolean reference()
+    {
+        return memory == null || memory.reference();
+    }
+
+    /**
+     * Release a reference to the index, freeing it along with the last one.
+     */
+    public void unreference()
+    {
+        if (memory != null)
+            memory.unreference();
+    }
+
+    /**
+     * @return the number of blocks of the index
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public ByteBuffer firstName(int i)
+    {
+        return name(blockPosition(i));
+    }
+
+    public ByteBuffer lastName(int i)
+    {
+        return name(skipName(blockPosition(i)));
+    }
+
+    /**
+     * @return the offset of the block from the start of the partition columns
+     */
+    public long offset(int i)
+    {
+        return buffer.getLong(skipName(skipName(blockPosition(i))));
+    }
+
+    public long width(int i)
+    {
+        return buffer.getLong(skipName(skipName(blockPosition(i))) + 8);
+    }
+
+    private int blockPosition(int i)
+    {
+        assert i >= 0 && i < size : i;
+        return buffer.getInt(i * 4);
+    }
+
+    private int skipName(int position)
+    {
+        return position + 2 + (buffer.getShort(position) & 0xFFFF);
+    }
+
+    private ByteBuffer name(int position)
+    {
+        ByteBuffer name = buffer.duplicate();
+        name.limit(skipName(position));
+        name.position(position + 2);
+        return name;
+    }
+
+    /**
+     * The index of the block in which a scan starting with name should begin, as IndexHelper.indexFor does for a
+     * deserialized index.
+     */
+    public int indexFor(ByteBuffer name, AbstractType<?> comparator, boolean reversed, int lastIndex)
+    {
+        if (name.remaining() == 0 && reversed)
+            return size - 1;
+
+        if (lastIndex >= size)
+            return -1;
+
+        // forward, search the first block whose last name is not before name; reversed, the last block whose first
+        // name is not after name
+        int low = 0, high = size - 1;
+        if (lastIndex >= 0)
+        {
+            if (reversed)
+                high = lastIndex;
+            else
+                low = lastIndex;
+        }
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = comparator.compare(reversed ? firstName(mid) : lastName(mid), name);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return reversed ? low - 1 : low;
+    }
+
+    /**
+     * @return the size of the off-heap buffer
+     */
+    public int serializedSize()
+    {
+        return buffer.capacity();
+    }
+
+    public long memorySize()
+    {
+        // the buffer is off-heap, but it is what the cache holding the index is sized for
+        return ObjectSizes.getFieldSize(2 * ObjectSizes.getReferenceSize() + TypeSizes.NATIVE.sizeof(size)) + serializedSize();
+    }
+
+    private static class Deserialized extends SerializedColumnIndex
+    {
+        private final List<IndexHelper.IndexInfo> columnsIndex;
+
+        Deserialized(List<IndexHelper.IndexInfo> columnsIndex)
+        {
+            super(null, EMPTY.buffer, columnsIndex.size());
+            this.columnsIndex = columnsIndex;
+        }
+
+        @Override
+        public ByteBuffer firstName(int i)
+        {
+            return columnsIndex.get(i).firstName;
+        }
+
+        @Override
+        public ByteBuffer lastName(int i)
+        {
+            return columnsIndex.get(i).lastName;
+        }
+
+        @Override
+        public long offset(int i)
+        {
+            return columnsIndex.get(i).offset;
+        }
+
+        @Override
+        public long width(int i)
+        {
+            return columnsIndex.get(i).width;
+        }
+    }
+}
@@ -20,6 +20,9 @@ package org.apache.cassandra.io.util;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * An off-heap region of memory that must be manually free'd when no longer needed.
@@ -28,6 +31,11 @@ public class Memory
 {
     private static final Unsafe unsafe;
 
+    // used to build direct ByteBuffers over memory that they do not own
+    private static final Class<?> directBufferClass = ByteBuffer.allocateDirect(0).getClass();
+    private static final long bufferAddressOffset;
+    private static final long bufferCapacityOffset;
+
     static
     {
         try
@@ -35,6 +43,8 @@ public class Memory
             Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
             field.setAccessible(true);
             unsafe = (sun.misc.Unsafe) field.get(null);
+            bufferAddressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+            bufferCapacityOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("capacity"));
         }
         catch (Exception e)
         {
@@ -141,6 +151,39 @@ public class Memory
             buffer[bufferOffset++] = unsafe.getByte(peer + memoryOffset++);
     }
 
+    /**
+     * @return a direct ByteBuffer over length bytes of this memory starting at offset. The buffer does not
+     * own the memory: it must not be used once this memory has been freed.
+     */
+    public ByteBuffer asByteBuffer(long offset, int length)
+    {
+        if (length > 0)
+        {
+            checkPosition(offset);
+            checkPosition(offset + length - 1);
+        }
+
+        return wrap(peer + offset, length);
+    }
+
+    private static ByteBuffer wrap(long address, int length)
+    {
+        ByteBuffer buffer;
+        try
+        {
+            buffer = (ByteBuffer) unsafe.allocateInstance(directBufferClass);
+        }
+        catch (InstantiationException e)
+        {
+            throw new AssertionError(e);
+        }
+        unsafe.putLong(buffer, bufferAddressOffset, address);
+        unsafe.putInt(buffer, bufferCapacityOffset, length);
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
     private void checkPosition(long offset)
     {
         assert peer != 0 : "Memory was freed";
@@ -159,6 +202,71 @@ public class Memory
         return size;
     }
 
+    /**
+     * Access to native memory by address, for structures that keep the addresses of their allocations in native
+     * memory themselves, rather than Memory objects on the heap. Nothing is checked: the caller is responsible for
+     * the bounds and the lifetime of the allocations.
+     */
+    public static final class Address
+    {
+        private Address()
+        {
+        }
+
+        public static long allocate(long bytes)
+        {
+            return unsafe.allocateMemory(bytes);
+        }
+
+        public static void free(long address)
+        {
+            unsafe.freeMemory(address);
+        }
+
+        public static void setMemory(long address, long bytes, byte b)
+        {
+            unsafe.setMemory(address, bytes, b);
+        }
+
+        public static byte getByte(long address)
+        {
+            return unsafe.getByte(address);
+        }
+
+        public static void setByte(long address, byte b)
+        {
+            unsafe.putByte(address, b);
+        }
+
+        public static int getInt(long address)
+        {
+            return unsafe.getInt(address);
+        }
+
+        public static void setInt(long address, int i)
+        {
+            unsafe.putInt(address, i);
+        }
+
+        public static long getLong(long address)
+        {
+            return unsafe.getLong(address);
+        }
+
+        public static void setLong(long address, long l)
+        {
+            unsafe.putLong(address, l);
+        }
+
+        /**
+         * @return a direct ByteBuffer over length bytes starting at address, that does not own them
+         */
+        public static ByteBuffer asByteBuffer(long address, int length)
+        {
+            return wrap(address, length);
+        }
+    }
+
     @Override
     public boolean equals(Object o)
     {
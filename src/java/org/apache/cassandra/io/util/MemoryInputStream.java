@@ -53,6 +53,11 @@ public class MemoryInputStream extends AbstractDataInput
         return position;
     }
 
+    public void seek(int pos)
+    {
+        seekInternal(pos);
+    }
+
     public int skipBytes(int n) throws IOException
     {
         seekInternal(getPosition() + n);
@@ -0,0 +1,166 @@
+package org.apache.cassandra.metadata;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.locator.AbstractReplicationStrategy;
+import org.apache.cassandra.locator.TokenMetadata;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.UUIDGen;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks that the ranges recorded by a decommissioned node are replicated by the endpoints they were
+ * streamed to. Ranges are grouped per keyspace and each distinct token is resolved once against a
+ * single copy of the token map. Keyspaces are split in chunks of CHUNK_SIZE tokens verified in
+ * parallel, and the verified ranges of a keyspace are logged as a single event.
+ */
+public class DecommissionVerifier {
+
+	private static final Logger logger = LoggerFactory.getLogger(DecommissionVerifier.class);
+
+	public static final int CHUNK_SIZE = 256;
+
+	public interface ProgressListener {
+		void progress(String keyspace, int verified, int failed, int total);
+	}
+
+	private final TokenMetadata tokenMetadata;
+	private final ExecutorService executor;
+
+	/**
+	 * @param tokenMetadata the token map ranges are checked against, expected not to change during verification
+	 */
+	public DecommissionVerifier(TokenMetadata tokenMetadata, ExecutorService executor) {
+		this.tokenMetadata = tokenMetadata;
+		this.executor = executor;
+	}
+
+	/**
+	 * Group the ranges recorded by the decommission events by keyspace, then by token.
+	 *
+	 * @return keyspace -> (range right token -> endpoint the range was streamed to)
+	 */
+	public static Map<String, Multimap<Token, InetAddress>> ranges(Iterable<MetadataLog.Event> events) {
+		Token.TokenFactory tf = StorageService.getPartitioner().getTokenFactory();
+		Map<String, Multimap<Token, InetAddress>> ranges = new LinkedHashMap<String, Multimap<Token, InetAddress>>();
+		for (MetadataLog.Event event : events) {
+			for (MetadataLogValue.Entry entry : MetadataLogValue.decode(event.value)) {
+				try {
+					String keyspace = ByteBufferUtil.string(entry.name.get(0));
+					Multimap<Token, InetAddress> keyspaceRanges = ranges.get(keyspace);
+					if (keyspaceRanges == null) {
+						keyspaceRanges = LinkedHashMultimap.create();
+						ranges.put(keyspace, keyspaceRanges);
+					}
+					keyspaceRanges.put(tf.fromByteArray(entry.name.get(1)), InetAddress.getByAddress(ByteBufferUtil.getArray(entry.value)));
+				} catch (IOException e) {
+					logger.warn("Ignoring unreadable decommission record of event " + event.time, e);
+				}
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Verify the ranges of every keyspace, logging the verified ones as events of target.
+	 *
+	 * @return the number of ranges that could not be verified
+	 */
+	public int verify(String target, Map<String, Multimap<Token, InetAddress>> ranges, ProgressListener listener) throws InterruptedException {
+		ExecutorCompletionService<Chunk> completion = new ExecutorCompletionService<Chunk>(executor);
+		Map<String, int[]> progress = new LinkedHashMap<String, int[]>(); // keyspace -> verified, failed, total
+		Map<String, List<MetadataLogValue.Entry>> verified = new LinkedHashMap<String, List<MetadataLogValue.Entry>>();
+		int chunks = 0;
+		for (Map.Entry<String, Multimap<Token, InetAddress>> entry : ranges.entrySet()) {
+			String keyspace = entry.getKey();
+			progress.put(keyspace, new int[]{ 0, 0, entry.getValue().size() });
+			verified.put(keyspace, new ArrayList<MetadataLogValue.Entry>());
+			for (List<Token> tokens : Lists.partition(new ArrayList<Token>(entry.getValue().keySet()), CHUNK_SIZE)) {
+				completion.submit(new Chunk(keyspace, tokens, entry.getValue()));
+				chunks++;
+			}
+		}
+
+		int failed = 0;
+		for (int i = 0; i < chunks; i++) {
+			Chunk chunk;
+			try {
+				chunk = completion.take().get();
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			int[] counts = progress.get(chunk.keyspace);
+			counts[0] += chunk.verified.size();
+			counts[1] += chunk.failed;
+			failed += chunk.failed;
+			verified.get(chunk.keyspace).addAll(chunk.verified);
+			if (listener != null)
+				listener.progress(chunk.keyspace, counts[0], counts[1], counts[2]);
+
+			// all the chunks of the keyspace are done, log its verified ranges at once
+			if (counts[0] + counts[1] == counts[2] && !verified.get(chunk.keyspace).isEmpty())
+				MetadataLog.append(MetadataLog.add(target, UUIDGen.getTimeUUID(), "", Metadata.DecommissionVerified_Tag,
+						MetadataLogValue.encode(verified.remove(chunk.keyspace)), ""));
+		}
+		return failed;
+	}
+
+	/**
+	 * The verification of some tokens of a keyspace.
+	 */
+	private class Chunk implements Callable<Chunk> {
+		final String keyspace;
+		final List<Token> tokens;
+		final Multimap<Token, InetAddress> ranges;
+
+		final List<MetadataLogValue.Entry> verified = new ArrayList<MetadataLogValue.Entry>();
+		int failed;
+
+		Chunk(String keyspace, List<Token> tokens, Multimap<Token, InetAddress> ranges) {
+			this.keyspace = keyspace;
+			this.tokens = tokens;
+			this.ranges = ranges;
+		}
+
+		public Chunk call() {
+			if (Schema.instance.getKSMetaData(keyspace) == null) {
+				// the keyspace has been dropped since
+				for (Token token : tokens)
+					failed += ranges.get(token).size();
+				return this;
+			}
+
+			AbstractReplicationStrategy strategy = Table.open(keyspace).getReplicationStrategy();
+			for (Token token : tokens) {
+				Collection<InetAddress> expected = ranges.get(token);
+				List<InetAddress> endpoints = strategy.calculateNaturalEndpoints(token, tokenMetadata);
+				for (InetAddress endpoint : expected) {
+					if (endpoints.contains(endpoint))
+						verified.add(MetadataLog.rangeEntry(keyspace, token, endpoint));
+					else
+						failed++;
+				}
+			}
+			return this;
+		}
+	}
+}
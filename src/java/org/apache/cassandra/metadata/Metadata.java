@@ -1,6 +1,8 @@
 package org.apache.cassandra.metadata;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.cassandra.concurrent.Stage;
 import org.apache.cassandra.concurrent.StageManager;
@@ -14,7 +16,10 @@ public class Metadata {
 	public static final String MetaData_KS = "system_metadata";
 
 	public static final String MetadataRegistry_CF = "registry";
-	public static final String MetadataLog_CF = "log";
+	public static final String MetadataLog_CF = "events";
+	public static final String MetadataLogBuckets_CF = "event_buckets";
+	// text-keyed log of earlier versions, migrated to MetadataLog_CF at startup
+	public static final String OldMetadataLog_CF = "log";
 
 	public static final String AlterKeyspace_Tag = "a_ks";
 	public static final String DropKeyspace_Tag = "d_ks";
@@ -31,6 +36,53 @@ public class Metadata {
 	public static final String Update_Tag = "u_r";
 	public static final String delete_Tag = "d_r";
 
+	public static final String Decommission_Tag = "decommission";
+	public static final String DecommissionVerified_Tag = "decommission_verified";
+
+	// metrics snapshot attached to an event, logged with the same time and client as the event
+	public static final String Metrics_Tag = "metrics";
+
+	// Dictionary of the tags stored in the log, a tag being stored as its index in this array.
+	// Indexes are persisted: new tags must be appended and existing ones never reordered.
+	private static final String[] TAGS = {
+		AlterKeyspace_Tag, DropKeyspace_Tag,
+		AlterColumnFamily_Alter_Tag, AlterColumnFamily_Add_Tag, AlterColumnFamily_Drop_Tag,
+		AlterColumnFamily_Rename_Tag, AlterColumnFamily_Prob_Tag, DropColumnFamily_Tag, TruncateColumnFamily_Tag,
+		Insert_Tag, Update_Tag, delete_Tag,
+		Decommission_Tag, DecommissionVerified_Tag,
+		Metrics_Tag
+	};
+
+	private static final Map<String, Integer> TAG_IDS = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < TAGS.length; i++)
+			TAG_IDS.put(TAGS[i], i);
+	}
+
+	/**
+	 * @return the dictionary id of tag
+	 * @throws IllegalArgumentException if tag is not a known log tag
+	 */
+	public static int tagId(String tag) {
+		Integer id = TAG_IDS.get(tag);
+		if (id == null)
+			throw new IllegalArgumentException("Unknown metadata log tag " + tag);
+		return id;
+	}
+
+	/**
+	 * @return whether tag is a known log tag, that has a dictionary id
+	 */
+	public static boolean isTag(String tag) {
+		return TAG_IDS.containsKey(tag);
+	}
+
+	public static String tagName(int id) {
+		if (id < 0 || id >= TAGS.length)
+			throw new IllegalArgumentException("Unknown metadata log tag id " + id);
+		return TAGS[id];
+	}
+
 	public static void mutate(final RowMutation mutation){
 		StageManager.getStage(Stage.MUTATION).execute(new WrappedRunnable() {
 			public void runMayThrow() throws Exception {
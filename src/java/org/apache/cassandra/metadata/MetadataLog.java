@@ -1,89 +1,546 @@
 package org.apache.cassandra.metadata;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Multimap;
 
 import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.cql3.CFDefinition;
 import org.apache.cassandra.db.Column;
 import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.DeletedColumn;
+import org.apache.cassandra.db.ExpiringColumn;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.RowPosition;
 import org.apache.cassandra.db.SliceFromReadCommand;
 import org.apache.cassandra.db.Table;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
+import org.apache.cassandra.db.filter.NamesQueryFilter;
 import org.apache.cassandra.db.filter.QueryFilter;
 import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.service.ClientState;
 import org.apache.cassandra.service.StorageProxy;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.UUIDGen;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * The metadata log, one partition per target and time bucket. Events are clustered by a timeuuid,
+ * so that they are kept in time order and a time range is read as a single slice per bucket, then by
+ * their dictionary encoded tag and by client. The table uses compact storage, each event being stored
+ * as a single cell. The buckets holding events of a target are recorded in MetadataLogBuckets_CF so
+ * that its history can be read without probing empty buckets.
+ */
 public class MetadataLog extends Metadata {
 	
-	public static RowMutation add(String target, long time, String client, String tag, String value, String adminTag) {
+	private static final Logger logger = LoggerFactory.getLogger(MetadataLog.class);
+	
+	// number of events read at once when scanning the log
+	public static final int PAGE_SIZE = 1000;
+	
+	// number of transferred ranges recorded by a single event
+	public static final int MAX_RANGES_PER_EVENT = 512;
+	
+	private static final CompositeType comparator = (CompositeType) CFMetaData.MetadataLogCf.comparator;
+	private static final CompositeType keyValidator = (CompositeType) CFMetaData.MetadataLogCf.getKeyValidator();
+	
+	public static RowMutation add(String target, UUID time, String client, String tag, String value, String adminTag) {
+		return add(target, time, client, tag, ByteBufferUtil.bytes(value), adminTag);
+	}
+	
+	public static RowMutation add(String target, UUID time, String client, String tag, ByteBuffer value, String adminTag) {
 		long timestamp = FBUtilities.timestampMicros();
-
-		// attach admin data
-		//value += new MetricsCollector(target, adminTag).getMetrics();
 		
-		RowMutation rm = new RowMutation(Metadata.MetaData_KS, ByteBufferUtil.bytes(target)); // row key
+		RowMutation rm = new RowMutation(Metadata.MetaData_KS, key(target, bucket(UUIDGen.unixTimestamp(time)))); // row key
 
 		ColumnFamily cf = rm.addOrGet(CFMetaData.MetadataLogCf);
-		cf.addColumn(Column.create("", timestamp, String.valueOf(time), client, tag, ""));
-		cf.addColumn(Column.create(ByteBufferUtil.bytes(value), timestamp, String.valueOf(time), client, tag, "value"));
+		int ttl = DatabaseDescriptor.getMetadataLogTTL(tag);
+		if (ttl > 0)
+			cf.addColumn(new ExpiringColumn(name(time, tag, client), value, timestamp, ttl));
+		else
+			cf.addColumn(new Column(name(time, tag, client), value, timestamp));
 
 		return rm;
 	}
 	
-	public static RowMutation drop(String target, long time, String client, String tag) {
+	public static RowMutation drop(String target, UUID time, String client, String tag) {
 		long timestamp = FBUtilities.timestampMicros();
-		RowMutation rm = new RowMutation(Metadata.MetaData_KS, ByteBufferUtil.bytes(target)); // row key
+		RowMutation rm = new RowMutation(Metadata.MetaData_KS, key(target, bucket(UUIDGen.unixTimestamp(time)))); // row key
 
 		ColumnFamily cf = rm.addOrGet(CFMetaData.MetadataLogCf);
 		int ldt = (int) (System.currentTimeMillis() / 1000);
 		
-		cf.addColumn(DeletedColumn.create(ldt, timestamp, String.valueOf(time), client, tag, ""));
-		cf.addColumn(DeletedColumn.create(ldt, timestamp, String.valueOf(time), client, tag, "value"));
+		cf.addColumn(new DeletedColumn(name(time, tag, client), ldt, timestamp));
 
 		return rm;
 	}
 	
+	/**
+	 * @return the mutation recording in MetadataLogBuckets_CF the bucket of a log mutation, or
+	 * null if rm holds no log event
+	 */
+	public static RowMutation bucket(RowMutation rm) {
+		ColumnFamily events = rm.getColumnFamily(CFMetaData.MetadataLogCf.cfId);
+		if (events == null)
+			return null;
+		
+		ByteBuffer target = CompositeType.extractComponent(rm.key(), 0);
+		ByteBuffer bucket = CompositeType.extractComponent(rm.key(), 1);
+		RowMutation bucketRm = new RowMutation(Metadata.MetaData_KS, target);
+		ColumnFamily cf = bucketRm.addOrGet(CFMetaData.MetadataLogBucketsCf);
+		// the bucket must be remembered for as long as any of its events
+		int ttl = DatabaseDescriptor.getMetadataLogMaxTTL();
+		if (ttl > 0)
+			cf.addColumn(new ExpiringColumn(bucket, ByteBufferUtil.EMPTY_BYTE_BUFFER, events.maxTimestamp(), ttl));
+		else
+			cf.addColumn(new Column(bucket, ByteBufferUtil.EMPTY_BYTE_BUFFER, events.maxTimestamp()));
+		return bucketRm;
+	}
+	
+	/**
+	 * @return the start, in milliseconds, of the bucket holding the events logged at time
+	 */
+	static long bucket(long time) {
+		long size = DatabaseDescriptor.getMetadataLogBucketSize();
+		return time - (((time % size) + size) % size);
+	}
+	
+	private static ByteBuffer key(String target, long bucket) {
+		return keyValidator.build(ByteBufferUtil.bytes(target), ByteBufferUtil.bytes(bucket));
+	}
+	
+	private static ByteBuffer name(UUID time, String tag, String client) {
+		return comparator.build(ByteBuffer.wrap(UUIDGen.decompose(time)),
+				ByteBufferUtil.bytes(Metadata.tagId(tag)),
+				ByteBufferUtil.bytes(client));
+	}
+	
 	public static void announce(String target, String dataTag, ClientState state, String logValue) {
 		String client = (state == null)? "" : state.getUser().getName();
 		announce(target, dataTag, client, logValue);
 	}
 	
 	public static void announce(String target, String dataTag, String client, String logValue) {
-		if(client == null) client = "";
-    	
-    	String exists = MetadataRegistry.instance.query(target, dataTag);
-    	if(exists == null){
+    	MetadataLogPolicy policy = admit(target, dataTag);
+    	if(policy == null){
     		return;
     	}
     	
-    	mutate(MetadataLog.add(target, FBUtilities.timestampMicros(), client, dataTag, logValue, ""));
+    	if(client == null) client = "";
+    	append(event(target, dataTag, client, ByteBufferUtil.bytes(logValue), policy));
 	}
 	
-	public static ColumnFamily remoteStorageQuery(String target, String dataTag){
+	/**
+	 * Log a row event of a CQL3 write if its "ks.cf.key" target is registered for dataTag.
+	 * The columns of cf are logged in the binary form of {@link MetadataLogValue}.
+	 *
+	 * @param withValues whether column values are logged along with their names
+	 */
+	public static void announceRow(CFDefinition cfDef, ByteBuffer key, ColumnFamily cf, String dataTag, ClientState state, boolean withValues) {
+		// skip tables without any registered target before building names
+		if(!MetadataRegistry.instance.mayContain(cfDef.cfm.ksName, cfDef.cfm.cfName))
+			return;
+		
+		String target;
 		try {
-			List<ReadCommand> command = new ArrayList<ReadCommand>();
-			command.add(new SliceFromReadCommand(
-					Metadata.MetaData_KS,
-					ByteBufferUtil.bytes(target), 
-					new QueryPath(Metadata.MetadataLog_CF),
-					Column.decomposeName(String.valueOf(0) , "", dataTag, "value"),
-					Column.decomposeName(String.valueOf(Long.MAX_VALUE) , "", dataTag, "value"),
-					false,
-					Integer.MAX_VALUE));
+			target = MetadataLogValue.target(cfDef, key);
+		} catch (CharacterCodingException e) {
+			return;
+		}
+		
+		// sample before encoding the event
+		MetadataLogPolicy policy = admit(target, dataTag);
+		if(policy == null)
+			return;
+		
+		String client = (state == null)? "" : state.getUser().getName();
+		append(event(target, dataTag, client, MetadataLogValue.encode(cfDef, cf, withValues), policy));
+	}
+	
+	/**
+	 * @return the mutation logging an admitted event, along with the snapshot of the metrics of its policy
+	 */
+	static RowMutation event(String target, String dataTag, String client, ByteBuffer value, MetadataLogPolicy policy) {
+		UUID time = UUIDGen.getTimeUUID();
+		RowMutation rm = MetadataLog.add(target, time, client, dataTag, value, policy.adminTag);
+		if(policy.metrics != null)
+			rm.addAll(MetadataLog.add(target, time, client, Metadata.Metrics_Tag, policy.metrics.snapshot(), policy.adminTag));
+		return rm;
+	}
+	
+	/**
+	 * @return the policy of (target, dataTag) if the event is to be logged, null if the target is not
+	 * registered or the policy suppresses the event
+	 */
+	static MetadataLogPolicy admit(String target, String dataTag) {
+		MetadataLogPolicy policy = MetadataRegistry.instance.policy(target, dataTag);
+		if(policy == null)
+			return null;
+		
+		if(!policy.isUnlimited() && !policy.admit()) {
+			MetadataLogWriter.instance.metrics.suppressedEvents.inc();
+			return null;
+		}
+		MetadataLogWriter.instance.metrics.admittedEvents.inc();
+		return policy;
+	}
+	
+	/**
+	 * Log an event for a target already known to be registered for dataTag.
+	 */
+	public static void log(String target, String dataTag, String client, String logValue, String adminTag) {
+		if(client == null) client = "";
+    	
+    	append(MetadataLog.add(target, UUIDGen.getTimeUUID(), client, dataTag, logValue, adminTag));
+	}
+	
+	/**
+	 * Hand a log mutation to the background writer.
+	 */
+	public static void append(RowMutation rm) {
+		MetadataLogWriter.instance.append(rm);
+	}
+	
+	/**
+	 * Write log mutations synchronously, for events that must not be lost to a full queue.
+	 */
+	public static void appendNow(List<RowMutation> rms) throws Exception {
+		MetadataLogWriter.instance.writeNow(rms);
+	}
+	
+	/**
+	 * @return the events of target having dataTag, in time order. Events are read a page at a time
+	 * while iterating.
+	 */
+	public static Iterable<Event> query(String target, String dataTag) {
+		return query(target, dataTag, ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER,
+				ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER);
+	}
+	
+	/**
+	 * @return the events of target having dataTag logged between from and to (in milliseconds, inclusive),
+	 * in time order. Events are read a page at a time while iterating.
+	 */
+	public static Iterable<Event> query(String target, String dataTag, long from, long to) {
+		ByteBuffer start = comparator.builder().add(ByteBuffer.wrap(UUIDGen.decompose(UUIDGen.minTimeUUID(from)))).build();
+		ByteBuffer finish = comparator.builder().add(ByteBuffer.wrap(UUIDGen.decompose(UUIDGen.maxTimeUUID(to)))).buildAsEndOfRange();
+		return query(target, dataTag, ByteBufferUtil.bytes(bucket(from)), ByteBufferUtil.bytes(bucket(to)), start, finish);
+	}
+	
+	private static Iterable<Event> query(final String target, String dataTag, final ByteBuffer firstBucket, final ByteBuffer lastBucket,
+			final ByteBuffer start, final ByteBuffer finish) {
+		final int tagId = Metadata.tagId(dataTag);
+		return new Iterable<Event>() {
+			public Iterator<Event> iterator() {
+				final Iterator<IColumn> buckets = pagedQuery(Metadata.MetadataLogBuckets_CF, ByteBufferUtil.bytes(target), firstBucket, lastBucket);
+				
+				return new AbstractIterator<Event>() {
+					private Iterator<IColumn> events = Iterators.emptyIterator();
+					
+					protected Event computeNext() {
+						while (true) {
+							while (events.hasNext()) {
+								IColumn col = events.next();
+								if (ByteBufferUtil.toInt(CompositeType.extractComponent(col.name(), 1)) == tagId)
+									return new Event(col);
+							}
+							
+							// move on to the next bucket
+							if (!buckets.hasNext())
+								return endOfData();
+							ByteBuffer key = key(target, ByteBufferUtil.toLong(buckets.next().name()));
+							events = pagedQuery(Metadata.MetadataLog_CF, key, start, finish);
+						}
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * @return the live columns of a slice of a partition of the log tables, read PAGE_SIZE columns at a
+	 * time while iterating
+	 */
+	private static Iterator<IColumn> pagedQuery(final String columnFamily, final ByteBuffer key, final ByteBuffer start, final ByteBuffer finish) {
+		return new AbstractIterator<IColumn>() {
+			private Iterator<IColumn> page = Iterators.emptyIterator();
+			private ByteBuffer lastName;
+			private boolean exhausted;
+			
+			protected IColumn computeNext() {
+				while (true) {
+					while (page.hasNext()) {
+						IColumn col = page.next();
+						lastName = col.name();
+						if (!col.isMarkedForDelete())
+							return col;
+					}
+					
+					if (exhausted)
+						return endOfData();
+					
+					// the first column of a page following another one is the last column of that page
+					ColumnFamily cf = remoteStorageQuery(columnFamily, key, lastName == null ? start : lastName, finish, PAGE_SIZE);
+					exhausted = cf.getColumnCount() < PAGE_SIZE;
+					page = cf.iterator();
+					if (lastName != null && page.hasNext())
+						page.next();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Read a slice of at most count columns of a partition of the log tables.
+	 */
+	public static ColumnFamily remoteStorageQuery(String columnFamily, ByteBuffer key, ByteBuffer start, ByteBuffer finish, int count){
+		List<ReadCommand> command = new ArrayList<ReadCommand>();
+		command.add(new SliceFromReadCommand(
+				Metadata.MetaData_KS,
+				key, 
+				new QueryPath(columnFamily),
+				start,
+				finish,
+				false,
+				count));
 
-			List<Row> rows = StorageProxy.read(command, ConsistencyLevel.ANY);
-			return rows.get(0).cf;
-			 
+		List<Row> rows;
+		try {
+			rows = StorageProxy.read(command, ConsistencyLevel.ANY);
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to read the metadata log", e);
+		}
+		ColumnFamily cf = rows.get(0).cf;
+		return cf == null ? ColumnFamily.create(Metadata.MetaData_KS, columnFamily) : cf;
+	}
+	
+	/**
+	 * Move the events of the text keyed log of earlier versions to the current log. Each node
+	 * migrates the rows it stores locally.
+	 */
+	public static void upgradeOldLog() throws ExecutionException, InterruptedException {
+		upgradeOldLog(PAGE_SIZE);
+	}
+	
+	/**
+	 * Migrate the old log reading pageSize partitions, then pageSize cells of a partition, at a time,
+	 * so that the size of the old log does not matter.
+	 */
+	static void upgradeOldLog(int pageSize) throws ExecutionException, InterruptedException {
+		ColumnFamilyStore oldLogCfs = Table.open(Metadata.MetaData_KS).getColumnFamilyStore(Metadata.OldMetadataLog_CF);
+		if (oldLogCfs.getSSTables().isEmpty())
+			return;
+		
+		logger.info("Old metadata log found in {}.{}; migrating to new format in {}.{}",
+				new Object[]{ Metadata.MetaData_KS, Metadata.OldMetadataLog_CF, Metadata.MetaData_KS, Metadata.MetadataLog_CF });
+		
+		OldLogMigration migration = new OldLogMigration();
+		IPartitioner<?> p = StorageService.getPartitioner();
+		RowPosition minPos = p.getMinimumToken().minKeyBound();
+		RowPosition lastKey = minPos;
+		IDiskAtomFilter keysOnly = new NamesQueryFilter(ImmutableSortedSet.<ByteBuffer>of());
+		while (true) {
+			// from the last partition of the previous page, excluded, to the end of the ring
+			List<Row> partitions = oldLogCfs.getRangeSlice(null, new Range<RowPosition>(lastKey, minPos, p), pageSize, keysOnly, null);
+			for (Row partition : partitions)
+				migration.migrate(oldLogCfs, partition.key, pageSize);
+			if (partitions.size() < pageSize)
+				break;
+			lastKey = partitions.get(partitions.size() - 1).key;
+		}
+		logger.info("Migrated {} metadata log events, skipped {} unreadable ones and {} with unknown tags",
+				new Object[]{ migration.migrated, migration.unreadable, migration.unknown });
+		
+		oldLogCfs.truncate().get();
+	}
+	
+	/**
+	 * The migration of the old log, one partition at a time. A row of the old log is stored as cells
+	 * named (time, client, tag, column), column being empty for the row marker and "value" for its value.
+	 */
+	private static class OldLogMigration {
+		private int migrated, unreadable, unknown;
+		private final Set<String> unknownTags = new HashSet<String>();
+		
+		// the row being read, whose cells may span pages
+		private List<ByteBuffer> rowPrefix;
+		private String time, client, tag;
+		private ByteBuffer value;
+		
+		void migrate(ColumnFamilyStore oldLogCfs, DecoratedKey key, int pageSize) {
+			String target;
+			try {
+				target = ByteBufferUtil.string(key.key);
+			} catch (CharacterCodingException e) {
+				logger.debug("Unable to migrate metadata log partition", e);
+				unreadable++;
+				return;
+			}
+			
+			ByteBuffer start = ByteBufferUtil.EMPTY_BYTE_BUFFER;
+			while (true) {
+				QueryFilter filter = QueryFilter.getSliceFilter(key, new QueryPath(Metadata.OldMetadataLog_CF), start,
+						ByteBufferUtil.EMPTY_BYTE_BUFFER, false, pageSize);
+				ColumnFamily cf = oldLogCfs.getColumnFamily(filter);
+				if (cf == null)
+					break;
+				
+				for (IColumn col : cf) {
+					// the first cell of a page following another one is the last cell of that page
+					if (start.hasRemaining() && col.name().equals(start))
+						continue;
+					if (!col.isMarkedForDelete())
+						add(target, col);
+				}
+				if (cf.getColumnCount() < pageSize)
+					break;
+				start = cf.getReverseSortedColumns().iterator().next().name();
+			}
+			flush(target);
+		}
+		
+		private void add(String target, IColumn col) {
+			ByteBuffer name = col.name();
+			List<ByteBuffer> prefix = Arrays.asList(CompositeType.extractComponent(name, 0),
+					CompositeType.extractComponent(name, 1), CompositeType.extractComponent(name, 2));
+			try {
+				if (!prefix.equals(rowPrefix)) {
+					flush(target);
+					rowPrefix = prefix;
+					time = ByteBufferUtil.string(CompositeType.extractComponent(name, 0));
+					client = ByteBufferUtil.string(CompositeType.extractComponent(name, 1));
+					tag = ByteBufferUtil.string(CompositeType.extractComponent(name, 2));
+				}
+				if (ByteBufferUtil.string(CompositeType.extractComponent(name, 3)).equals("value"))
+					value = col.value();
+			} catch (CharacterCodingException e) {
+				logger.debug("Unable to migrate metadata log event", e);
+				rowPrefix = null;
+				unreadable++;
+			}
+		}
+		
+		private void flush(String target) {
+			if (rowPrefix == null)
+				return;
+			
+			if (!Metadata.isTag(tag) && !tag.startsWith(OLD_DECOMMISSION_VERIFIED_PREFIX)) {
+				if (unknownTags.add(tag))
+					logger.warn("Skipping old metadata log events tagged {}, which is unknown to this version", tag);
+				unknown++;
+			} else {
+				RowMutation rm = upgrade(target, time, client, tag, value == null ? ByteBufferUtil.EMPTY_BYTE_BUFFER : value);
+				if (rm == null) {
+					unreadable++;
+				} else {
+					rm.apply();
+					bucket(rm).apply();
+					migrated++;
+				}
+			}
+			rowPrefix = null;
+			value = null;
+		}
+	}
+	
+	// verifications of decommissions were tagged with the decommissioned address in the old log
+	private static final String OLD_DECOMMISSION_VERIFIED_PREFIX = "verifed decommission for ";
+	
+	static RowMutation upgrade(String target, String timeString, String client, String tag, ByteBuffer value) {
+		try {
+			long micros = Long.parseLong(timeString);
+			UUID time = UUIDGen.getUUID(ByteBuffer.wrap(UUIDGen.getTimeUUIDBytes(micros / 1000, (int) (micros % 1000) * 10)));
+			
+			// decommission records were "keyspace:token:address" strings
+			if (tag.equals(Metadata.Decommission_Tag) || tag.startsWith(OLD_DECOMMISSION_VERIFIED_PREFIX)) {
+				String[] fields = ByteBufferUtil.string(value).split(":");
+				Token.TokenFactory tf = StorageService.getPartitioner().getTokenFactory();
+				value = MetadataLogValue.encode(Collections.singletonList(rangeEntry(fields[0], tf.fromString(fields[1]), InetAddress.getByName(fields[2]))));
+				tag = tag.equals(Metadata.Decommission_Tag) ? Metadata.Decommission_Tag : Metadata.DecommissionVerified_Tag;
+			}
+			
+			return add(target, time, client, tag, value, "");
 		} catch (Exception e) {
+			logger.debug("Unable to migrate metadata log event", e);
 			return null;
 		}
 	}
+	
+	/**
+	 * @return the events recording that ranges of keyspace have been transferred, each holding at most
+	 * MAX_RANGES_PER_EVENT ranges so that their size does not depend on the number of tokens moved
+	 */
+	public static List<RowMutation> rangeEvents(String target, String tag, String keyspace, Multimap<Range<Token>, InetAddress> ranges) {
+		List<RowMutation> events = new ArrayList<RowMutation>(ranges.size() / MAX_RANGES_PER_EVENT + 1);
+		List<MetadataLogValue.Entry> entries = new ArrayList<MetadataLogValue.Entry>(Math.min(ranges.size(), MAX_RANGES_PER_EVENT));
+		for (Map.Entry<Range<Token>, InetAddress> range : ranges.entries()) {
+			entries.add(rangeEntry(keyspace, range.getKey().right, range.getValue()));
+			if (entries.size() == MAX_RANGES_PER_EVENT) {
+				events.add(add(target, UUIDGen.getTimeUUID(), "", tag, MetadataLogValue.encode(entries), ""));
+				entries.clear();
+			}
+		}
+		if (!entries.isEmpty())
+			events.add(add(target, UUIDGen.getTimeUUID(), "", tag, MetadataLogValue.encode(entries), ""));
+		return events;
+	}
+	
+	/**
+	 * @return the entry of a decommission event recording that endpoint replicates the range ending at token in keyspace
+	 */
+	public static MetadataLogValue.Entry rangeEntry(String keyspace, Token<?> token, InetAddress endpoint) {
+		List<ByteBuffer> name = Arrays.asList(ByteBufferUtil.bytes(keyspace), StorageService.getPartitioner().getTokenFactory().toByteArray(token));
+		return new MetadataLogValue.Entry(name, ByteBuffer.wrap(endpoint.getAddress()));
+	}
+	
+	/**
+	 * An event read from the log.
+	 */
+	public static class Event {
+		public final UUID time;
+		public final String tag;
+		public final String client;
+		public final ByteBuffer value;
+		
+		Event(IColumn col) {
+			ByteBuffer name = col.name();
+			this.time = UUIDGen.getUUID(CompositeType.extractComponent(name, 0));
+			this.tag = Metadata.tagName(ByteBufferUtil.toInt(CompositeType.extractComponent(name, 1)));
+			try {
+				this.client = ByteBufferUtil.string(CompositeType.extractComponent(name, 2));
+			} catch (CharacterCodingException e) {
+				throw new RuntimeException(e);
+			}
+			this.value = col.value();
+		}
+	}
 }
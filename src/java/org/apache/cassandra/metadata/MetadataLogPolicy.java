@@ -0,0 +1,103 @@
+package org.apache.cassandra.metadata;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which events of a registered (target, data tag) are logged. The policy is read from
+ * the admin tag of the registry entry, a list of "option=value" separated by ';':
+ * <pre>
+ *   every=N     log one event out of N
+ *   sample=P    log each event with probability P (0 to 1)
+ *   rate=R      log at most R events per second, bursts of up to max(1, R) events being allowed
+ * </pre>
+ * An event is logged when every option admits it. Any other admin tag, including the empty one,
+ * logs every event. A policy keeps its state (event count, tokens) for as long as the registry
+ * entry is unchanged.
+ *
+ * The admin tag may also name metrics whose snapshot is logged along with each event, see
+ * {@link MetricsCollector}.
+ */
+public class MetadataLogPolicy {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetadataLogPolicy.class);
+
+	private static final Random random = new Random();
+
+	public final String adminTag;
+	// null if no metric is attached to the events
+	public final MetricsCollector metrics;
+
+	private final long every;
+	private final double sample;
+	private final double rate;
+
+	private final AtomicLong count = new AtomicLong();
+	private double tokens;
+	private long lastRefill;
+
+	public MetadataLogPolicy(String target, String adminTag) {
+		this.adminTag = adminTag;
+		this.metrics = MetricsCollector.compile(target, adminTag);
+
+		long every = 1;
+		double sample = 1;
+		double rate = 0;
+		if (adminTag != null) {
+			for (String option : adminTag.split(";")) {
+				int eq = option.indexOf('=');
+				if (eq == -1)
+					continue;
+				String name = option.substring(0, eq).trim();
+				String value = option.substring(eq + 1).trim();
+				try {
+					if (name.equals("every"))
+						every = Math.max(1, Long.parseLong(value));
+					else if (name.equals("sample"))
+						sample = Math.min(1, Math.max(0, Double.parseDouble(value)));
+					else if (name.equals("rate"))
+						rate = Math.max(0, Double.parseDouble(value));
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring invalid metadata log option {} in admin tag {}", option, adminTag);
+				}
+			}
+		}
+		this.every = every;
+		this.sample = sample;
+		this.rate = rate;
+		this.tokens = Math.max(1, rate);
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * @return whether all events are logged, in which case admit() need not be called
+	 */
+	public boolean isUnlimited() {
+		return every == 1 && sample == 1 && rate == 0;
+	}
+
+	/**
+	 * @return whether the next event is logged
+	 */
+	public boolean admit() {
+		if (every > 1 && count.getAndIncrement() % every != 0)
+			return false;
+		if (sample < 1 && random.nextDouble() >= sample)
+			return false;
+		return rate == 0 || acquire(System.nanoTime());
+	}
+
+	// token bucket holding up to rate tokens, and at least one so that rates below 1 log anything, refilled at rate tokens per second
+	synchronized boolean acquire(long now) {
+		tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+		if (tokens < 1)
+			return false;
+		tokens--;
+		return true;
+	}
+}
@@ -0,0 +1,189 @@
+package org.apache.cassandra.metadata;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cassandra.cql3.CFDefinition;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Binary encoding of the columns touched by a row event (insert, update or delete).
+ *
+ * A value is a sequence of columns, each encoded as
+ * <pre>
+ *   components:byte (length:short bytes)*   the column name, one entry per name component
+ *   length:int bytes                        the column value, length is -1 when no value is logged
+ * </pre>
+ * For CQL3 tables the name components are the clustering values followed by the CQL column name,
+ * read straight from the CompositeType cell name without going through strings. CQL row markers
+ * are not logged.
+ */
+public class MetadataLogValue {
+
+	public static final int NO_VALUE = -1;
+
+	/**
+	 * @return the "keyspace.columnFamily.key" target of a row event, composite partition
+	 * keys having their components separated by '.'
+	 */
+	public static String target(CFDefinition cfDef, ByteBuffer key) throws CharacterCodingException {
+		StringBuilder sb = new StringBuilder(cfDef.cfm.ksName.length() + cfDef.cfm.cfName.length() + key.remaining() + 2);
+		sb.append(cfDef.cfm.ksName).append('.').append(cfDef.cfm.cfName).append('.');
+		if (cfDef.hasCompositeKey) {
+			for (int i = 0; i < cfDef.keys.size(); i++) {
+				if (i != 0) sb.append('.');
+				sb.append(ByteBufferUtil.string(CompositeType.extractComponent(key, i)));
+			}
+		} else {
+			sb.append(ByteBufferUtil.string(key));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Encode the columns of cf. The result is allocated once, at its exact size.
+	 *
+	 * @param withValues whether the column values are logged (false for deletions)
+	 */
+	public static ByteBuffer encode(CFDefinition cfDef, ColumnFamily cf, boolean withValues) {
+		boolean composite = cfDef.isComposite;
+
+		int size = 0;
+		for (IColumn col : cf) {
+			ByteBuffer name = col.name();
+			if (composite && isRowMarker(cfDef, name))
+				continue;
+			size += 1 + (composite ? name.remaining() - componentCount(name) : 2 + name.remaining());
+			size += 4 + (withValues ? col.value().remaining() : 0);
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		for (IColumn col : cf) {
+			ByteBuffer name = col.name();
+			if (composite && isRowMarker(cfDef, name))
+				continue;
+
+			if (composite) {
+				out.put((byte) componentCount(name));
+				// copy each component with its length, leaving out the end-of-component byte
+				int pos = name.position();
+				while (pos < name.limit()) {
+					int length = shortLength(name, pos);
+					ByteBufferUtil.arrayCopy(name, pos, out, out.position(), 2 + length);
+					out.position(out.position() + 2 + length);
+					pos += 2 + length + 1;
+				}
+			} else {
+				out.put((byte) 1);
+				out.putShort((short) name.remaining());
+				ByteBufferUtil.arrayCopy(name, name.position(), out, out.position(), name.remaining());
+				out.position(out.position() + name.remaining());
+			}
+
+			if (withValues) {
+				ByteBuffer value = col.value();
+				out.putInt(value.remaining());
+				ByteBufferUtil.arrayCopy(value, value.position(), out, out.position(), value.remaining());
+				out.position(out.position() + value.remaining());
+			} else {
+				out.putInt(NO_VALUE);
+			}
+		}
+		assert !out.hasRemaining();
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Encode entries built by the caller, for events that are not row events.
+	 */
+	public static ByteBuffer encode(List<Entry> entries) {
+		int size = 0;
+		for (Entry entry : entries) {
+			size += 1 + 4 + (entry.value == null ? 0 : entry.value.remaining());
+			for (ByteBuffer component : entry.name)
+				size += 2 + component.remaining();
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		for (Entry entry : entries) {
+			out.put((byte) entry.name.size());
+			for (ByteBuffer component : entry.name) {
+				out.putShort((short) component.remaining());
+				out.put(component.duplicate());
+			}
+			if (entry.value == null) {
+				out.putInt(NO_VALUE);
+			} else {
+				out.putInt(entry.value.remaining());
+				out.put(entry.value.duplicate());
+			}
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Decode a value written by encode(). Returned buffers share the content of value.
+	 */
+	public static List<Entry> decode(ByteBuffer value) {
+		List<Entry> entries = new ArrayList<Entry>();
+		ByteBuffer in = value.duplicate();
+		while (in.hasRemaining()) {
+			int count = in.get() & 0xFF;
+			List<ByteBuffer> name = new ArrayList<ByteBuffer>(count);
+			for (int i = 0; i < count; i++)
+				name.add(slice(in, in.getShort() & 0xFFFF));
+			int length = in.getInt();
+			entries.add(new Entry(name, length == NO_VALUE ? null : slice(in, length)));
+		}
+		return entries;
+	}
+
+	// the CQL3 row marker is the cell whose column name component is empty
+	private static boolean isRowMarker(CFDefinition cfDef, ByteBuffer name) {
+		if (cfDef.isCompact)
+			return false;
+		int pos = name.position();
+		for (int i = 0; i < cfDef.columns.size(); i++)
+			pos += 2 + shortLength(name, pos) + 1;
+		return pos >= name.limit() || shortLength(name, pos) == 0;
+	}
+
+	private static int componentCount(ByteBuffer name) {
+		int count = 0;
+		int pos = name.position();
+		while (pos < name.limit()) {
+			pos += 2 + shortLength(name, pos) + 1;
+			count++;
+		}
+		return count;
+	}
+
+	private static int shortLength(ByteBuffer bb, int pos) {
+		return ((bb.get(pos) & 0xFF) << 8) | (bb.get(pos + 1) & 0xFF);
+	}
+
+	// changes in position
+	private static ByteBuffer slice(ByteBuffer in, int length) {
+		ByteBuffer bytes = in.duplicate();
+		bytes.limit(bytes.position() + length);
+		in.position(in.position() + length);
+		return bytes;
+	}
+
+	public static class Entry {
+		public final List<ByteBuffer> name;
+		public final ByteBuffer value;
+
+		public Entry(List<ByteBuffer> name, ByteBuffer value) {
+			this.name = name;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package org.apache.cassandra.metadata;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.config.Config;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.metrics.MetadataLogMetrics;
+import org.apache.cassandra.service.StorageProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes metadata log events in the background. Events are queued in a bounded queue and
+ * written in batches by a single thread, events for the same target row being coalesced
+ * into one mutation. A batch is written when batchSize events are pending or flushInterval
+ * has elapsed since the first event of the batch was taken, whichever comes first.
+ * The buckets of the written events are recorded along with them.
+ */
+public class MetadataLogWriter implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetadataLogWriter.class);
+
+	public static final MetadataLogWriter instance = new MetadataLogWriter(DatabaseDescriptor.getMetadataLogQueueSize(),
+			DatabaseDescriptor.getMetadataLogBatchSize(),
+			DatabaseDescriptor.getMetadataLogFlushInterval(),
+			DatabaseDescriptor.getMetadataLogFullPolicy(),
+			true);
+
+	private final BlockingQueue<RowMutation> queue;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final Config.MetadataLogFullPolicy fullPolicy;
+
+	public final MetadataLogMetrics metrics;
+
+	MetadataLogWriter(int queueSize, int batchSize, long flushIntervalMillis, Config.MetadataLogFullPolicy fullPolicy, boolean start) {
+		this.queue = new ArrayBlockingQueue<RowMutation>(queueSize);
+		this.batchSize = batchSize;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		this.fullPolicy = fullPolicy;
+		this.metrics = new MetadataLogMetrics(queue);
+
+		if (start) {
+			Thread thread = new Thread(this, "MetadataLogWriter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Queue a log mutation. Depending on the configured policy, the event is dropped or
+	 * the caller waits when the queue is full.
+	 */
+	public void append(RowMutation rm) {
+		assert rm.getTable().equals(Metadata.MetaData_KS) : rm;
+
+		if (fullPolicy == Config.MetadataLogFullPolicy.block) {
+			try {
+				queue.put(rm);
+			} catch (InterruptedException e) {
+				metrics.droppedEvents.inc();
+				Thread.currentThread().interrupt();
+				return;
+			}
+		} else if (!queue.offer(rm)) {
+			metrics.droppedEvents.inc();
+			return;
+		}
+		metrics.events.mark();
+	}
+
+	/**
+	 * Write log mutations right away, along with their buckets, bypassing the queue and its
+	 * full policy. For events that must not be dropped; failures are thrown to the caller.
+	 */
+	public void writeNow(List<RowMutation> events) throws Exception {
+		write(withBuckets(coalesce(events)));
+		metrics.events.mark(events.size());
+	}
+
+	public void run() {
+		List<RowMutation> events = new ArrayList<RowMutation>(batchSize);
+		while (true) {
+			try {
+				takeBatch(events);
+				write(withBuckets(coalesce(events)));
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable t) {
+				metrics.failedEvents.inc(events.size());
+				logger.warn("Unable to write " + events.size() + " metadata log events", t);
+			} finally {
+				events.clear();
+			}
+		}
+	}
+
+	/**
+	 * Block until at least one event is available, then gather events until the batch
+	 * is full or the flush interval has elapsed.
+	 */
+	void takeBatch(List<RowMutation> events) throws InterruptedException {
+		events.add(queue.take());
+		long deadline = System.nanoTime() + flushIntervalNanos;
+		while (events.size() < batchSize) {
+			if (queue.drainTo(events, batchSize - events.size()) > 0)
+				continue;
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				break;
+			RowMutation rm = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (rm == null)
+				break;
+			events.add(rm);
+		}
+	}
+
+	/**
+	 * Merge the events of a batch into one mutation per target row, keeping the order
+	 * in which targets were first seen.
+	 */
+	static List<RowMutation> coalesce(List<RowMutation> events) {
+		Map<ByteBuffer, RowMutation> byKey = new LinkedHashMap<ByteBuffer, RowMutation>();
+		for (RowMutation rm : events) {
+			RowMutation existing = byKey.get(rm.key());
+			if (existing == null)
+				byKey.put(rm.key(), rm);
+			else
+				existing.addAll(rm);
+		}
+		return new ArrayList<RowMutation>(byKey.values());
+	}
+
+	/**
+	 * Add to coalesced log mutations the recording of their buckets, once per target.
+	 */
+	static List<RowMutation> withBuckets(List<RowMutation> mutations) {
+		List<RowMutation> buckets = new ArrayList<RowMutation>(mutations.size());
+		for (RowMutation rm : mutations) {
+			RowMutation bucketRm = MetadataLog.bucket(rm);
+			if (bucketRm != null)
+				buckets.add(bucketRm);
+		}
+		List<RowMutation> all = new ArrayList<RowMutation>(mutations);
+		all.addAll(coalesce(buckets));
+		return all;
+	}
+
+	protected void write(List<RowMutation> mutations) throws Exception {
+		metrics.batchSize.update(mutations.size());
+		StorageProxy.mutate(mutations, ConsistencyLevel.ANY);
+	}
+
+	public int getPendingEvents() {
+		return queue.size();
+	}
+}
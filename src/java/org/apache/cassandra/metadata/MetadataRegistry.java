@@ -1,14 +1,30 @@
 package org.apache.cassandra.metadata;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.cassandra.config.CFMetaData;
-import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.apache.cassandra.cql3.UntypedResultSet;
 import org.apache.cassandra.db.Column;
 import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.DeletionInfo;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.RowMutation;
@@ -16,25 +32,60 @@ import org.apache.cassandra.db.SliceFromReadCommand;
 import org.apache.cassandra.db.Table;
 import org.apache.cassandra.db.filter.QueryFilter;
 import org.apache.cassandra.db.filter.QueryPath;
-import org.apache.cassandra.db.filter.SliceQueryFilter;
-import org.apache.cassandra.exceptions.IsBootstrappingException;
-import org.apache.cassandra.exceptions.ReadTimeoutException;
-import org.apache.cassandra.exceptions.UnavailableException;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.gms.ApplicationState;
+import org.apache.cassandra.gms.EndpointState;
+import org.apache.cassandra.gms.Gossiper;
+import org.apache.cassandra.gms.IEndpointStateChangeSubscriber;
+import org.apache.cassandra.gms.VersionedValue;
+import org.apache.cassandra.metrics.MetadataRegistryMetrics;
 import org.apache.cassandra.service.StorageProxy;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.Pair;
+import org.apache.cassandra.utils.UUIDGen;
+import org.apache.cassandra.utils.WrappedRunnable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The registry of tagged targets. Lookups are answered from an in-memory copy of
+ * system_metadata.registry which is loaded at startup, updated by the registry
+ * mutations applied on this node (see {@link MetadataRegistryIndex}) and reloaded
+ * whenever another node gossips a new registry version.
+ */
+public class MetadataRegistry extends Metadata implements IEndpointStateChangeSubscriber {
 
+	private static final Logger logger = LoggerFactory.getLogger(MetadataRegistry.class);
 
-public class MetadataRegistry extends Metadata{
+	public static final MetadataRegistry instance = new MetadataRegistry();
+
+	// delay before reloading after a remote change, so that a burst of changes costs a single reload
+	public static final int RELOAD_DELAY_IN_MS = 1000;
+
+	private static final String SELECT_ALL = "SELECT target, data_tag, admin_tag FROM " + Metadata.MetaData_KS + ".\"" + Metadata.MetadataRegistry_CF + "\" LIMIT " + Integer.MAX_VALUE;
+
+	public final MetadataRegistryMetrics metrics = new MetadataRegistryMetrics(this);
+
+	// target -> (data tag -> policy built from the admin tag)
+	private volatile ConcurrentMap<String, ConcurrentMap<String, MetadataLogPolicy>> entries = new ConcurrentHashMap<String, ConcurrentMap<String, MetadataLogPolicy>>();
+	// keyspace -> column families having at least one "ks.cf[.key]" target, so untagged tables are skipped without building a target name
+	private volatile Map<String, Set<String>> tables = new HashMap<String, Set<String>>();
+	private volatile boolean loaded = false;
+	private volatile UUID version = UUIDGen.getTimeUUID();
+
+	private final AtomicBoolean reloadScheduled = new AtomicBoolean(false);
+
+	// registry rows refreshed while a load is in progress, replayed on the loaded registry
+	private List<Pair<String, ColumnFamily>> pendingChanges;
+	private int loadsInProgress;
+
+	// policies of the registry read from storage before it is loaded, kept for their state
+	private final ConcurrentMap<String, ConcurrentMap<String, MetadataLogPolicy>> fallbackPolicies = new ConcurrentHashMap<String, ConcurrentMap<String, MetadataLogPolicy>>();
+
+	private MetadataRegistry() {}
 
-    private static final Logger logger = LoggerFactory.getLogger(Schema.class);
-    
-    public static final MetadataRegistry instance = new MetadataRegistry();
-			
 	public RowMutation add(String target, String dataTag, String adminTag) {
 		long timestamp = FBUtilities.timestampMicros();
 
@@ -43,50 +94,282 @@ public class MetadataRegistry extends Metadata{
 		ColumnFamily cf = rm.addOrGet(CFMetaData.MetadataRegistryCf);
 		cf.addColumn(Column.create("", timestamp, dataTag, ""));
 		cf.addColumn(Column.create(ByteBufferUtil.bytes(adminTag), timestamp, dataTag, "admin_tag"));
-		
+
 		return rm;
 	}
-	
+
 	public RowMutation drop(String target) {
 		long timestamp = FBUtilities.timestampMicros();
 		RowMutation rm = new RowMutation(Metadata.MetaData_KS, ByteBufferUtil.bytes(target)); // row key
 
 		ColumnFamily cf = rm.addOrGet(CFMetaData.MetadataRegistryCf);
 		int ldt = (int) (System.currentTimeMillis() / 1000);
-		
+
 		cf.delete(new DeletionInfo(timestamp, ldt));
-				
+
 		return rm;
 	}
-	
+
+	/**
+	 * @return the admin tag registered for (target, dataTag) or null if the target is not tagged
+	 */
 	public String query(String target, String dataTag){
-		String value = null;
-		ColumnFamily cf = remoteStorageQuery(target, dataTag); // localStorageQuery(target, dataTag);
-		if (cf != null && !cf.isEmpty()) {
-				value = new String(cf.getColumn(Column.decomposeName(dataTag, "admin_tag")).value().array());
-		} 
-		return value;
-	}
-	
-	private ColumnFamily localStorageQuery(String target, String dataTag){
-		Table table = Table.open(Metadata.MetaData_KS);
-		QueryFilter filter = QueryFilter.getSliceFilter(
-				StorageService.getPartitioner().decorateKey(ByteBufferUtil.bytes(target)),
-				new QueryPath(Metadata.MetadataRegistry_CF),
-				Column.decomposeName(dataTag, "admin_tag"),
-				Column.decomposeName(dataTag, "admin_tag"),
-				false,
-				Integer.MAX_VALUE);
-		
-		return table.getColumnFamilyStore(Metadata.MetadataRegistry_CF).getColumnFamily(filter);
-	}
-	
+		MetadataLogPolicy policy = policy(target, dataTag);
+		return policy == null ? null : policy.adminTag;
+	}
+
+	/**
+	 * @return the logging policy of (target, dataTag) or null if the target is not tagged
+	 */
+	public MetadataLogPolicy policy(String target, String dataTag){
+		metrics.requests.mark();
+		if (!loaded) {
+			// registry not loaded yet, fall back to reading it
+			metrics.misses.mark();
+			String adminTag = storageQuery(target, dataTag);
+			if (adminTag == null)
+				return null;
+			Map<String, MetadataLogPolicy> tags = fallbackPolicies.get(target);
+			MetadataLogPolicy policy = tags == null ? null : tags.get(dataTag);
+			if (policy == null || !policy.adminTag.equals(adminTag)) {
+				policy = new MetadataLogPolicy(target, adminTag);
+				put(fallbackPolicies, target, dataTag, policy);
+			}
+			return policy;
+		}
+
+		metrics.hits.mark();
+		Map<String, MetadataLogPolicy> tags = entries.get(target);
+		return tags == null ? null : tags.get(dataTag);
+	}
+
+	/**
+	 * @return false if no target of the form "keyspace.columnFamily[.key]" is registered, in which
+	 * case no write to that column family can be tagged
+	 */
+	public boolean mayContain(String keyspace, String columnFamily) {
+		if (!loaded)
+			return true;
+		Set<String> cfs = tables.get(keyspace);
+		return cfs != null && cfs.contains(columnFamily);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Map<String, MetadataLogPolicy> tags : entries.values())
+			size += tags.size();
+		return size;
+	}
+
+	public UUID getVersion() {
+		return version;
+	}
+
+	/**
+	 * Update the in-memory registry of a target with its registry row as stored on this node, once a
+	 * registry mutation of the target has been applied, and announce the new version. The whole row is
+	 * read rather than the mutation applied, so that deleted rows and columns are accounted for.
+	 *
+	 * @param key the target
+	 */
+	public void refresh(ByteBuffer key) {
+		String target;
+		try {
+			target = ByteBufferUtil.string(key);
+		} catch (CharacterCodingException e) {
+			logger.warn("Ignoring registry mutation of unreadable target " + ByteBufferUtil.bytesToHex(key), e);
+			return;
+		}
+
+		// read under the lock, so that concurrent refreshes of a target are applied in the order of their reads
+		synchronized (this) {
+			ColumnFamily cf = localRow(key);
+			replace(entries, target, cf);
+			if (pendingChanges != null)
+				pendingChanges.add(Pair.create(target, cf));
+		}
+		rebuildTables();
+		announceVersion();
+	}
+
+	private static ColumnFamily localRow(ByteBuffer key) {
+		ColumnFamilyStore cfs = Table.open(Metadata.MetaData_KS).getColumnFamilyStore(Metadata.MetadataRegistry_CF);
+		DecoratedKey dk = StorageService.getPartitioner().decorateKey(key);
+		ColumnFamily cf = cfs.getColumnFamily(QueryFilter.getIdentityFilter(dk, new QueryPath(Metadata.MetadataRegistry_CF)));
+		return cf == null ? ColumnFamily.create(CFMetaData.MetadataRegistryCf) : cf;
+	}
+
+	/**
+	 * Load the registry from the local replicas. Called at startup, before this node joins the ring.
+	 */
+	public void loadLocal() {
+		beginLoad();
+		try {
+			load(QueryProcessor.processInternal(SELECT_ALL));
+		} catch (RuntimeException e) {
+			logger.warn("Unable to load the metadata registry from local storage", e);
+		} finally {
+			endLoad();
+		}
+	}
+
+	/**
+	 * Reload the whole registry from the cluster, replacing the in-memory copy.
+	 */
+	public void reload() {
+		if (!StorageService.instance.isJoined()) {
+			loadLocal();
+			return;
+		}
+
+		beginLoad();
+		try {
+			load(QueryProcessor.process(SELECT_ALL, ConsistencyLevel.ONE));
+		} catch (Exception e) {
+			logger.warn("Unable to reload the metadata registry, keeping version " + version, e);
+		} finally {
+			endLoad();
+		}
+	}
+
+	public void scheduleReload() {
+		if (!reloadScheduled.compareAndSet(false, true))
+			return;
+
+		StorageService.optionalTasks.schedule(new WrappedRunnable() {
+			protected void runMayThrow() throws Exception {
+				reloadScheduled.set(false);
+				reload();
+			}
+		}, RELOAD_DELAY_IN_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void load(UntypedResultSet rows) {
+		ConcurrentMap<String, ConcurrentMap<String, MetadataLogPolicy>> loadedEntries = new ConcurrentHashMap<String, ConcurrentMap<String, MetadataLogPolicy>>();
+		if (rows != null) {
+			for (UntypedResultSet.Row row : rows) {
+				String target = row.getString("target");
+				String dataTag = row.getString("data_tag");
+				String adminTag = row.has("admin_tag") ? row.getString("admin_tag") : "";
+
+				// keep the state of unchanged policies
+				Map<String, MetadataLogPolicy> tags = entries.get(target);
+				MetadataLogPolicy policy = tags == null ? null : tags.get(dataTag);
+				if (policy == null || !policy.adminTag.equals(adminTag))
+					policy = new MetadataLogPolicy(target, adminTag);
+				put(loadedEntries, target, dataTag, policy);
+			}
+		}
+
+		synchronized (this) {
+			// the rows may have been read before mutations applied since the load started
+			for (Pair<String, ColumnFamily> change : pendingChanges)
+				replace(loadedEntries, change.left, change.right);
+			pendingChanges.clear();
+			entries = loadedEntries;
+		}
+		rebuildTables();
+		loaded = true;
+		fallbackPolicies.clear();
+		metrics.reloads.inc();
+		logger.debug("Loaded {} metadata registry entries", size());
+	}
+
+	private synchronized void beginLoad() {
+		if (loadsInProgress++ == 0)
+			pendingChanges = new ArrayList<Pair<String, ColumnFamily>>();
+	}
+
+	private synchronized void endLoad() {
+		if (--loadsInProgress == 0)
+			pendingChanges = null;
+	}
+
+	// replace the entries of target with its registry row, as load() reads it: a data tag is registered
+	// as long as its row has a live cell, with an empty admin tag if admin_tag is not one of them
+	private static void replace(ConcurrentMap<String, ConcurrentMap<String, MetadataLogPolicy>> entries, String target, ColumnFamily cf) {
+		Map<String, MetadataLogPolicy> current = entries.get(target);
+		Map<String, String> adminTags = new HashMap<String, String>();
+		for (IColumn column : cf) {
+			if (column.isMarkedForDelete() || cf.deletionInfo().isDeleted(column))
+				continue;
+			try {
+				String dataTag = ByteBufferUtil.string(CompositeType.extractComponent(column.name(), 0));
+				if (ByteBufferUtil.string(CompositeType.extractComponent(column.name(), 1)).equals("admin_tag"))
+					adminTags.put(dataTag, ByteBufferUtil.string(column.value()));
+				else if (!adminTags.containsKey(dataTag))
+					adminTags.put(dataTag, "");
+			} catch (CharacterCodingException e) {
+				logger.warn("Ignoring unreadable registry column of target " + target, e);
+			}
+		}
+
+		if (adminTags.isEmpty()) {
+			entries.remove(target);
+			return;
+		}
+
+		ConcurrentMap<String, MetadataLogPolicy> tags = new ConcurrentHashMap<String, MetadataLogPolicy>();
+		for (Map.Entry<String, String> entry : adminTags.entrySet()) {
+			// keep the state of unchanged policies
+			MetadataLogPolicy policy = current == null ? null : current.get(entry.getKey());
+			if (policy == null || !policy.adminTag.equals(entry.getValue()))
+				policy = new MetadataLogPolicy(target, entry.getValue());
+			tags.put(entry.getKey(), policy);
+		}
+		entries.put(target, tags);
+	}
+
+	private static void put(ConcurrentMap<String, ConcurrentMap<String, MetadataLogPolicy>> entries, String target, String dataTag, MetadataLogPolicy policy) {
+		ConcurrentMap<String, MetadataLogPolicy> tags = entries.get(target);
+		if (tags == null) {
+			ConcurrentMap<String, MetadataLogPolicy> newTags = new ConcurrentHashMap<String, MetadataLogPolicy>();
+			tags = entries.putIfAbsent(target, newTags);
+			if (tags == null)
+				tags = newTags;
+		}
+		tags.put(dataTag, policy);
+	}
+
+	private synchronized void rebuildTables() {
+		Map<String, Set<String>> newTables = new HashMap<String, Set<String>>();
+		for (String target : entries.keySet()) {
+			int first = target.indexOf('.');
+			if (first == -1)
+				continue;
+			int second = target.indexOf('.', first + 1);
+			String keyspace = target.substring(0, first);
+			String columnFamily = second == -1 ? target.substring(first + 1) : target.substring(first + 1, second);
+
+			Set<String> cfs = newTables.get(keyspace);
+			if (cfs == null) {
+				cfs = new HashSet<String>();
+				newTables.put(keyspace, cfs);
+			}
+			cfs.add(columnFamily);
+		}
+		tables = newTables;
+	}
+
+	private void announceVersion() {
+		version = UUIDGen.getTimeUUID();
+		if (Gossiper.instance.isEnabled())
+			Gossiper.instance.addLocalApplicationState(ApplicationState.METADATA_REGISTRY, StorageService.instance.valueFactory.metadataRegistry(version));
+	}
+
+	private String storageQuery(String target, String dataTag){
+		ColumnFamily cf = remoteStorageQuery(target, dataTag);
+		if (cf == null || cf.isEmpty())
+			return null;
+		return new String(cf.getColumn(Column.decomposeName(dataTag, "admin_tag")).value().array());
+	}
+
 	private ColumnFamily remoteStorageQuery(String target, String dataTag){
 		try {
 			List<ReadCommand> command = new ArrayList<ReadCommand>();
 			command.add(new SliceFromReadCommand(
 					Metadata.MetaData_KS,
-					ByteBufferUtil.bytes(target), 
+					ByteBufferUtil.bytes(target),
 					new QueryPath(Metadata.MetadataRegistry_CF),
 					Column.decomposeName(dataTag, "admin_tag"),
 					Column.decomposeName(dataTag, "admin_tag"),
@@ -95,9 +378,30 @@ public class MetadataRegistry extends Metadata{
 
 			List<Row> rows = StorageProxy.read(command, ConsistencyLevel.ANY);
 			return rows.get(0).cf;
-			 
+
 		} catch (Exception e) {
 			return null;
 		}
 	}
+
+	public void onJoin(InetAddress endpoint, EndpointState epState) {
+		onAlive(endpoint, epState);
+	}
+
+	public void onChange(InetAddress endpoint, ApplicationState state, VersionedValue value) {
+		if (state != ApplicationState.METADATA_REGISTRY || endpoint.equals(FBUtilities.getBroadcastAddress()))
+			return;
+		scheduleReload();
+	}
+
+	public void onAlive(InetAddress endpoint, EndpointState state) {
+		if (!endpoint.equals(FBUtilities.getBroadcastAddress()) && state.getApplicationState(ApplicationState.METADATA_REGISTRY) != null)
+			scheduleReload();
+	}
+
+	public void onDead(InetAddress endpoint, EndpointState state) {}
+
+	public void onRestart(InetAddress endpoint, EndpointState state) {}
+
+	public void onRemove(InetAddress endpoint) {}
 }
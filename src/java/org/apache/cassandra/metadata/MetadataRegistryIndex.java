@@ -0,0 +1,75 @@
+package org.apache.cassandra.metadata;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.index.PerRowSecondaryIndex;
+import org.apache.cassandra.db.index.SecondaryIndexSearcher;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.exceptions.ConfigurationException;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Keeps the in-memory registry up to date with the registry mutations applied on this node. It is
+ * declared as a custom index of the registry table, so that it is called by the write path of that
+ * table only, once a mutation of a target has been applied to the memtable. It does not index anything
+ * and cannot be searched: the registry is loaded at startup, so there is nothing to build either.
+ */
+public class MetadataRegistryIndex extends PerRowSecondaryIndex {
+	
+	public static final String NAME = "registry_admin_tag";
+	
+	private static final ByteBuffer ADMIN_TAG = ByteBufferUtil.bytes("admin_tag");
+	
+	public void index(ByteBuffer rowKey) {
+		MetadataRegistry.instance.refresh(rowKey);
+	}
+	
+	public void index(ByteBuffer rowKey, ColumnFamily cf) {
+		// building the index, the registry is loaded from the table already
+	}
+	
+	public void delete(DecoratedKey key) {
+		// the registry only changes with mutations
+	}
+	
+	/**
+	 * @return whether name, a (data_tag, column) composite, is the name of an admin_tag cell
+	 */
+	public boolean indexes(ByteBuffer name) {
+		return CompositeType.extractComponent(name, 1).equals(ADMIN_TAG);
+	}
+	
+	public void init() {}
+	
+	public void reload() {}
+	
+	public void validateOptions() throws ConfigurationException {}
+	
+	public String getIndexName() {
+		return NAME;
+	}
+	
+	protected SecondaryIndexSearcher createSecondaryIndexSearcher(Set<ByteBuffer> columns) {
+		throw new UnsupportedOperationException("The metadata registry cannot be searched by admin tag");
+	}
+	
+	public void forceBlockingFlush() {}
+	
+	public long getLiveSize() {
+		return 0;
+	}
+	
+	public ColumnFamilyStore getIndexCfs() {
+		return null;
+	}
+	
+	public void removeIndex(ByteBuffer columnName) {}
+	
+	public void invalidate() {}
+	
+	public void truncate(long truncatedAt) {}
+}
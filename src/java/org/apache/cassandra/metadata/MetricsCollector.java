@@ -1,60 +1,163 @@
 package org.apache.cassandra.metadata;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
-import org.apache.cassandra.db.ColumnFamilyStore;
-import org.apache.cassandra.db.Table;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Summarizable;
 
-import java.lang.reflect.*;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Snapshot of metrics attached to the log events of a registry entry. Metrics are named in the admin
+ * tag by ';' separated specs of the form
+ * <pre>
+ *   type=ColumnFamily,scope=keyspace.columnFamily,name=ReadLatency
+ * </pre>
+ * naming a metric of the org.apache.cassandra.metrics group. For ColumnFamily and IndexColumnFamily
+ * metrics the scope defaults to the keyspace and column family of the target.
+ *
+ * Specs are resolved to metric names once, when the collector is built. A snapshot looks the metrics
+ * up by name, so that the metrics of a column family dropped and recreated since are the current ones,
+ * and reads the value of a gauge or counter, the mean of a timer or histogram and the one minute rate
+ * of a meter. Metrics not registered anymore are left out of the snapshot.
+ */
 public class MetricsCollector {
-	
-	private String[] target;
-	private String[] metrics;
-	
-	public MetricsCollector(String target, String metrics){
-		this.metrics = metrics.split(";");
-		this.target = target.split("\\.");
-	}
-
-	public String getMetrics() {
-		String collectedMetrics = "";
-		try{
-			for(String metric: metrics){
-				
-				String[] specs = metric.split(",");
-				String type = specs[0].trim().substring(specs[0].trim().indexOf("type=")+5);
-				String scope = specs[1].trim().substring(specs[0].trim().indexOf("scope=")+7);
-				String name = specs[2].trim().substring(specs[0].trim().indexOf("name=")+6);
-				
-				if(type.equals("ColumnFamily") || metric.equals("IndexColumnFamily")){
-					String keyspace = target[0];
-					String columnFamily = "user"; //target[1];
-					collectedMetrics += getColumnFamilyMetrics(keyspace, columnFamily, name);
-				}
+
+	private static final Logger logger = LoggerFactory.getLogger(MetricsCollector.class);
+
+	public static final String GROUP_NAME = "org.apache.cassandra.metrics";
+
+	private enum Kind { GAUGE, COUNTER, SUMMARY, METER }
+
+	private final MetricName[] metricNames;
+	private final List<ByteBuffer>[] names;
+
+	@SuppressWarnings("unchecked")
+	private MetricsCollector(List<MetricName> resolvedNames) {
+		this.metricNames = resolvedNames.toArray(new MetricName[resolvedNames.size()]);
+		this.names = new List[metricNames.length];
+		for (int i = 0; i < names.length; i++) {
+			MetricName name = resolvedNames.get(i);
+			names[i] = Collections.singletonList(ByteBufferUtil.bytes(name.getType() + "." + name.getName()));
+		}
+	}
+
+	/**
+	 * @return the collector of the metrics named in adminTag, or null if it names none that can be resolved
+	 */
+	public static MetricsCollector compile(String target, String adminTag) {
+		if (adminTag == null || adminTag.indexOf("type=") == -1)
+			return null;
+
+		Map<MetricName, Metric> all = Metrics.defaultRegistry().allMetrics();
+		List<MetricName> resolvedNames = new ArrayList<MetricName>();
+		for (String spec : adminTag.split(";")) {
+			String type = null, scope = null, name = null;
+			for (String field : spec.split(",")) {
+				int eq = field.indexOf('=');
+				if (eq == -1)
+					continue;
+				String key = field.substring(0, eq).trim();
+				String value = field.substring(eq + 1).trim();
+				if (key.equals("type"))
+					type = value;
+				else if (key.equals("scope"))
+					scope = value;
+				else if (key.equals("name"))
+					name = value;
 			}
-		}catch(Exception ex){
-			collectedMetrics = "";
+			if (type == null || name == null)
+				continue;
+			if (scope == null && (type.equals("ColumnFamily") || type.equals("IndexColumnFamily")))
+				scope = columnFamilyScope(target);
+
+			MetricName metricName = find(all, type, scope, name);
+			Metric metric = metricName == null ? null : all.get(metricName);
+			if (metric == null || kind(metric) == null) {
+				logger.debug("Ignoring metric {} of admin tag {}: no such metric", spec, adminTag);
+				continue;
+			}
+			resolvedNames.add(metricName);
 		}
-		return collectedMetrics;
-	}
-
-	
-	
-	private String getColumnFamilyMetrics(String keyspace, String columnFamily, String metricName){
-		
-		String collectedMetrics;
-		try{
-			ColumnFamilyStore cfs = Table.open(keyspace).getColumnFamilyStore(columnFamily);
-			
-			Method method = cfs.getClass().getMethod("get" + metricName, null);
-			
-			collectedMetrics =  metricName + ":" + method.invoke(cfs, null).toString();
-		}catch(Exception ex){
-			collectedMetrics = "";
+		return resolvedNames.isEmpty() ? null : new MetricsCollector(resolvedNames);
+	}
+
+	/**
+	 * @return the current value of the metrics, encoded as {@link MetadataLogValue} entries named by the
+	 * metric type and name and holding a double
+	 */
+	public ByteBuffer snapshot() {
+		Map<MetricName, Metric> all = Metrics.defaultRegistry().allMetrics();
+		List<MetadataLogValue.Entry> entries = new ArrayList<MetadataLogValue.Entry>(metricNames.length);
+		for (int i = 0; i < metricNames.length; i++) {
+			Metric metric = all.get(metricNames[i]);
+			Kind kind = metric == null ? null : kind(metric);
+			if (kind != null)
+				entries.add(new MetadataLogValue.Entry(names[i], ByteBufferUtil.bytes(value(metric, kind))));
 		}
-		return collectedMetrics;
+		return MetadataLogValue.encode(entries);
+	}
+
+	public int size() {
+		return metricNames.length;
 	}
 
+	private static double value(Metric metric, Kind kind) {
+		switch (kind) {
+			case GAUGE:
+				return ((Number) ((Gauge<?>) metric).value()).doubleValue();
+			case COUNTER:
+				return ((Counter) metric).count();
+			case SUMMARY:
+				return ((Summarizable) metric).mean();
+			case METER:
+				return ((Metered) metric).oneMinuteRate();
+			default:
+				throw new AssertionError(kind);
+		}
+	}
 
+	// timers are both metered and summarizable, their mean latency is the more useful value
+	private static Kind kind(Metric metric) {
+		if (metric instanceof Gauge)
+			return ((Gauge<?>) metric).value() instanceof Number ? Kind.GAUGE : null;
+		if (metric instanceof Counter)
+			return Kind.COUNTER;
+		if (metric instanceof Summarizable)
+			return Kind.SUMMARY;
+		if (metric instanceof Metered)
+			return Kind.METER;
+		return null;
+	}
+
+	private static MetricName find(Map<MetricName, Metric> all, String type, String scope, String name) {
+		for (MetricName metricName : all.keySet()) {
+			if (metricName.getGroup().equals(GROUP_NAME)
+					&& metricName.getType().equals(type)
+					&& metricName.getName().equals(name)
+					&& (scope == null ? !metricName.hasScope() : scope.equals(metricName.getScope())))
+				return metricName;
+		}
+		return null;
+	}
+
+	// "ks.cf[.key]" -> "ks.cf"
+	private static String columnFamilyScope(String target) {
+		int first = target.indexOf('.');
+		if (first == -1)
+			return null;
+		int second = target.indexOf('.', first + 1);
+		return second == -1 ? target : target.substring(0, second);
+	}
 }
@@ -48,6 +48,8 @@ public class CacheMetrics
     public final Gauge<Long> size;
     /** Total number of cache entries */
     public final Gauge<Integer> entries;
+    /** Total number of new entries not admitted in the full cache */
+    public final Meter admissionRejections;
 
     private final AtomicLong lastRequests = new AtomicLong(0);
     private final AtomicLong lastHits = new AtomicLong(0);
@@ -95,6 +97,7 @@ public class CacheMetrics
                 return cache.size();
             }
         });
+        admissionRejections = Metrics.newMeter(new MetricName(GROUP_NAME, TYPE_NAME, "AdmissionRejections", type), "rejections", TimeUnit.SECONDS);
     }
 
     // for backward compatibility
@@ -41,6 +41,10 @@ public class ColumnFamilyMetrics
     public final Gauge<Long> memtableColumnsCount;
     /** Number of times flush has resulted in the memtable being switched out. */
     public final Counter memtableSwitchCount;
+    /** Number of memtable partition updates that were beaten by a concurrent update and had to be redone */
+    public final Counter memtableUpdateRetries;
+    /** Number of memtable partitions on which concurrent updates have been serialized */
+    public final Counter memtableContendedPartitions;
     /** Current compression ratio for all SSTables */
     public final Gauge<Double> compressionRatio;
     /** Histogram of estimated row size (in bytes). */
@@ -110,6 +114,8 @@ public class ColumnFamilyMetrics
             }
         });
         memtableSwitchCount = Metrics.newCounter(factory.createMetricName("MemtableSwitchCount"));
+        memtableUpdateRetries = Metrics.newCounter(factory.createMetricName("MemtableUpdateRetries"));
+        memtableContendedPartitions = Metrics.newCounter(factory.createMetricName("MemtableContendedPartitions"));
         estimatedRowSizeHistogram = Metrics.newGauge(factory.createMetricName("EstimatedRowSizeHistogram"), new Gauge<long[]>()
         {
             public long[] value()
@@ -314,6 +320,8 @@ public class ColumnFamilyMetrics
         Metrics.defaultRegistry().removeMetric(factory.createMetricName("MemtableColumnsCount"));
         Metrics.defaultRegistry().removeMetric(factory.createMetricName("MemtableDataSize"));
         Metrics.defaultRegistry().removeMetric(factory.createMetricName("MemtableSwitchCount"));
+        Metrics.defaultRegistry().removeMetric(factory.createMetricName("MemtableUpdateRetries"));
+        Metrics.defaultRegistry().removeMetric(factory.createMetricName("MemtableContendedPartitions"));
         Metrics.defaultRegistry().removeMetric(factory.createMetricName("CompressionRatio"));
         Metrics.defaultRegistry().removeMetric(factory.createMetricName("EstimatedRowSizeHistogram"));
         Metrics.defaultRegistry().removeMetric(factory.createMetricName("EstimatedColumnCountHistogram"));
@@ -22,7 +22,8 @@ import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.MetricName;
 
 import org.apache.cassandra.db.commitlog.CommitLogAllocator;
-import org.apache.cassandra.db.commitlog.ICommitLogExecutorService;
+import org.apache.cassandra.db.commitlog.CompressedCommitLogSegment;
+import org.apache.cassandra.db.commitlog.AbstractCommitLogService;
 
 /**
  * Metrics for commit log
@@ -32,27 +33,31 @@ public class CommitLogMetrics
     public static final String GROUP_NAME = "org.apache.cassandra.metrics";
     public static final String TYPE_NAME = "CommitLog";
 
-    /** Number of completed tasks */
+    /** Number of mutations written to the commit log */
     public final Gauge<Long> completedTasks;
-    /** Number of pending tasks */
+    /** Number of writers waiting for the commit log to be synced */
     public final Gauge<Long> pendingTasks;
     /** Current size used by all the commit log segments */
     public final Gauge<Long> totalCommitLogSize;
+    /** Compressed size over uncompressed size of the compressed commit log segments written */
+    public final Gauge<Double> compressionRatio;
+    /** Number of bytes compression saved writing the commit log */
+    public final Gauge<Long> bytesSavedByCompression;
 
-    public CommitLogMetrics(final ICommitLogExecutorService executor, final CommitLogAllocator allocator)
+    public CommitLogMetrics(final AbstractCommitLogService service, final CommitLogAllocator allocator)
     {
         completedTasks = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "CompletedTasks"), new Gauge<Long>()
         {
             public Long value()
             {
-                return executor.getCompletedTasks();
+                return service.getCompletedTasks();
             }
         });
         pendingTasks = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "PendingTasks"), new Gauge<Long>()
         {
             public Long value()
             {
-                return executor.getPendingTasks();
+                return service.getPendingTasks();
             }
         });
         totalCommitLogSize = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "TotalCommitLogSize"), new Gauge<Long>()
@@ -62,5 +67,19 @@ public class CommitLogMetrics
                 return allocator.bytesUsed();
             }
         });
+        compressionRatio = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "CompressionRatio"), new Gauge<Double>()
+        {
+            public Double value()
+            {
+                return CompressedCommitLogSegment.getCompressionRatio();
+            }
+        });
+        bytesSavedByCompression = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "BytesSavedByCompression"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return CompressedCommitLogSegment.getBytesSaved();
+            }
+        });
     }
 }
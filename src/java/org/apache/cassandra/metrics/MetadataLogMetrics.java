@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metrics;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Metrics for the metadata log writer.
+ */
+public class MetadataLogMetrics
+{
+    public static final String GROUP_NAME = "org.apache.cassandra.metrics";
+    public static final String TYPE_NAME = "MetadataLog";
+
+    /** Number of events waiting to be written */
+    public final Gauge<Integer> pendingEvents;
+    /** Events accepted by the writer */
+    public final Meter events;
+    /** Number of mutations (one per target row) sent per batch */
+    public final Histogram batchSize;
+    /** Events dropped because the queue was full */
+    public final Counter droppedEvents;
+    /** Events lost because their batch could not be written */
+    public final Counter failedEvents;
+    /** Events of registered targets admitted by their logging policy */
+    public final Counter admittedEvents;
+    /** Events of registered targets left out by their logging policy (sampling or rate limit) */
+    public final Counter suppressedEvents;
+
+    public MetadataLogMetrics(final BlockingQueue<?> queue)
+    {
+        pendingEvents = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "PendingEvents"), new Gauge<Integer>()
+        {
+            public Integer value()
+            {
+                return queue.size();
+            }
+        });
+        events = Metrics.newMeter(new MetricName(GROUP_NAME, TYPE_NAME, "Events"), "events", TimeUnit.SECONDS);
+        batchSize = Metrics.newHistogram(new MetricName(GROUP_NAME, TYPE_NAME, "BatchSize"), true);
+        droppedEvents = Metrics.newCounter(new MetricName(GROUP_NAME, TYPE_NAME, "DroppedEvents"));
+        failedEvents = Metrics.newCounter(new MetricName(GROUP_NAME, TYPE_NAME, "FailedEvents"));
+        admittedEvents = Metrics.newCounter(new MetricName(GROUP_NAME, TYPE_NAME, "AdmittedEvents"));
+        suppressedEvents = Metrics.newCounter(new MetricName(GROUP_NAME, TYPE_NAME, "SuppressedEvents"));
+    }
+}
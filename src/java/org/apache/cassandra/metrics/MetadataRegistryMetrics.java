@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.util.RatioGauge;
+
+import org.apache.cassandra.metadata.MetadataRegistry;
+
+/**
+ * Metrics for the in-memory {@link MetadataRegistry} cache.
+ */
+public class MetadataRegistryMetrics
+{
+    public static final String GROUP_NAME = "org.apache.cassandra.metrics";
+    public static final String TYPE_NAME = "MetadataRegistry";
+
+    /** Total number of registry lookups */
+    public final Meter requests;
+    /** Number of lookups answered from the in-memory registry */
+    public final Meter hits;
+    /** Number of lookups that had to fall back to reading system_metadata.registry */
+    public final Meter misses;
+    /** Registry hit rate */
+    public final Gauge<Double> hitRate;
+    /** Number of (target, data tag) pairs currently registered */
+    public final Gauge<Integer> entries;
+    /** Number of full reloads of the registry */
+    public final Counter reloads;
+
+    public MetadataRegistryMetrics(final MetadataRegistry registry)
+    {
+        requests = Metrics.newMeter(new MetricName(GROUP_NAME, TYPE_NAME, "Requests"), "requests", TimeUnit.SECONDS);
+        hits = Metrics.newMeter(new MetricName(GROUP_NAME, TYPE_NAME, "Hits"), "hits", TimeUnit.SECONDS);
+        misses = Metrics.newMeter(new MetricName(GROUP_NAME, TYPE_NAME, "Misses"), "misses", TimeUnit.SECONDS);
+        hitRate = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "HitRate"), new RatioGauge()
+        {
+            protected double getNumerator()
+            {
+                return hits.count();
+            }
+
+            protected double getDenominator()
+            {
+                return requests.count();
+            }
+        });
+        entries = Metrics.newGauge(new MetricName(GROUP_NAME, TYPE_NAME, "Entries"), new Gauge<Integer>()
+        {
+            public Integer value()
+            {
+                return registry.size();
+            }
+        });
+        reloads = Metrics.newCounter(new MetricName(GROUP_NAME, TYPE_NAME, "Reloads"));
+    }
+}
@@ -25,14 +25,14 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
-import com.google.common.util.concurrent.Futures;
 import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
 import org.github.jamm.MemoryMeter;
 import org.slf4j.Logger;
@@ -40,21 +40,18 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.cassandra.cache.*;
 import org.apache.cassandra.cache.AutoSavingCache.CacheSerializer;
-import org.apache.cassandra.concurrent.Stage;
-import org.apache.cassandra.concurrent.StageManager;
+import org.apache.cassandra.cache.AutoSavingCache.SavedEntry;
+import org.apache.cassandra.config.Config;
 import org.apache.cassandra.config.DatabaseDescriptor;
-import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.RowIndexEntry;
-import org.apache.cassandra.db.filter.QueryFilter;
-import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.io.sstable.Descriptor;
 import org.apache.cassandra.io.sstable.SSTableReader;
 import org.apache.cassandra.io.sstable.SSTableReader.Operator;
+import org.apache.cassandra.io.sstable.SerializedColumnIndex;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
-import org.apache.cassandra.utils.Pair;
 
 public class CacheService implements CacheServiceMBean
 {
@@ -65,7 +62,8 @@ public class CacheService implements CacheServiceMBean
     public static enum CacheType
     {
         KEY_CACHE("KeyCache"),
-        ROW_CACHE("RowCache");
+        ROW_CACHE("RowCache"),
+        COLUMN_INDEX_CACHE("ColumnIndexCache");
 
         private final String name;
 
@@ -80,10 +78,14 @@ public class CacheService implements CacheServiceMBean
         }
     }
 
+    // how often the admission sketches are sized for the number of entries the caches hold
+    private static final int ADMISSION_RESIZE_PERIOD_IN_SECONDS = 10;
+
     public final static CacheService instance = new CacheService();
 
     public final AutoSavingCache<KeyCacheKey, RowIndexEntry> keyCache;
     public final AutoSavingCache<RowCacheKey, IRowCacheEntry> rowCache;
+    public final InstrumentingCache<ColumnIndexCacheKey, SerializedColumnIndex> columnIndexCache;
 
     private CacheService()
     {
@@ -100,6 +102,20 @@ public class CacheService implements CacheServiceMBean
 
         keyCache = initKeyCache();
         rowCache = initRowCache();
+        columnIndexCache = initColumnIndexCache();
+
+        Runnable resizeAdmission = new Runnable()
+        {
+            public void run()
+            {
+                keyCache.resizeAdmission();
+                rowCache.resizeAdmission();
+            }
+        };
+        StorageService.optionalTasks.scheduleWithFixedDelay(resizeAdmission,
+                                                            ADMISSION_RESIZE_PERIOD_IN_SECONDS,
+                                                            ADMISSION_RESIZE_PERIOD_IN_SECONDS,
+                                                            TimeUnit.SECONDS);
     }
 
     /**
@@ -115,7 +131,11 @@ public class CacheService implements CacheServiceMBean
         // as values are constant size we can use singleton weigher
         // where 48 = 40 bytes (average size of the key) + 8 bytes (size of value)
         ICache<KeyCacheKey, RowIndexEntry> kc;
-        if (MemoryMeter.isInitialized())
+        if (DatabaseDescriptor.isKeyCacheOffHeap())
+        {
+            kc = new OffHeapKeyCache(keyCacheInMemoryCapacity);
+        }
+        else if (MemoryMeter.isInitialized())
         {
             kc = ConcurrentLinkedHashCache.create(keyCacheInMemoryCapacity);
         }
@@ -134,6 +154,7 @@ public class CacheService implements CacheServiceMBean
             kc = ConcurrentLinkedHashCache.create(keyCacheInMemoryCapacity, weigher);
         }
         AutoSavingCache<KeyCacheKey, RowIndexEntry> keyCache = new AutoSavingCache<KeyCacheKey, RowIndexEntry>(kc, CacheType.KEY_CACHE, new KeyCacheSerializer());
+        keyCache.getAdmission().setPolicy(DatabaseDescriptor.getKeyCacheAdmission());
 
         int keyCacheKeysToSave = DatabaseDescriptor.getKeyCacheKeysToSave();
 
@@ -160,6 +181,7 @@ public class CacheService implements CacheServiceMBean
         // cache object
         ICache<RowCacheKey, IRowCacheEntry> rc = DatabaseDescriptor.getRowCacheProvider().create(rowCacheInMemoryCapacity);
         AutoSavingCache<RowCacheKey, IRowCacheEntry> rowCache = new AutoSavingCache<RowCacheKey, IRowCacheEntry>(rc, CacheType.ROW_CACHE, new RowCacheSerializer());
+        rowCache.getAdmission().setPolicy(DatabaseDescriptor.getRowCacheAdmission());
 
         int rowCacheKeysToSave = DatabaseDescriptor.getRowCacheKeysToSave();
 
@@ -172,6 +194,19 @@ public class CacheService implements CacheServiceMBean
         return rowCache;
     }
 
+    /**
+     * The column index cache is not saved: it is filled again from the primary indexes as wide rows are read.
+     * @return initialized column index cache
+     */
+    private InstrumentingCache<ColumnIndexCacheKey, SerializedColumnIndex> initColumnIndexCache()
+    {
+        logger.info("Initializing column index cache with capacity of {} MBs.", DatabaseDescriptor.getColumnIndexCacheSizeInMB());
+
+        long columnIndexCacheCapacity = DatabaseDescriptor.getColumnIndexCacheSizeInMB() * 1024 * 1024;
+        ICache<ColumnIndexCacheKey, SerializedColumnIndex> cic = ColumnIndexCache.create(columnIndexCacheCapacity);
+        return new InstrumentingCache<ColumnIndexCacheKey, SerializedColumnIndex>(CacheType.COLUMN_INDEX_CACHE.toString(), cic);
+    }
+
     public long getKeyCacheHits()
     {
         return keyCache.getMetrics().hits.count();
@@ -240,6 +275,11 @@ public class CacheService implements CacheServiceMBean
         rowCache.clear();
     }
 
+    public void invalidateColumnIndexCache()
+    {
+        columnIndexCache.clear();
+    }
+
     public long getRowCacheCapacityInBytes()
     {
         return rowCache.getMetrics().capacity.value();
@@ -277,6 +317,59 @@ public class CacheService implements CacheServiceMBean
         keyCache.setCapacity(MemoryMeter.isInitialized() ? weightedCapacity : (weightedCapacity / 48));
     }
 
+    public String getKeyCacheAdmission()
+    {
+        return keyCache.getAdmission().getPolicy().name();
+    }
+
+    public void setKeyCacheAdmission(String policy)
+    {
+        keyCache.getAdmission().setPolicy(Config.CacheAdmission.valueOf(policy));
+    }
+
+    public Map<String, Double> getKeyCacheHitRateByAdmission()
+    {
+        return keyCache.getAdmission().getHitRates();
+    }
+
+    public String getRowCacheAdmission()
+    {
+        return rowCache.getAdmission().getPolicy().name();
+    }
+
+    public void setRowCacheAdmission(String policy)
+    {
+        rowCache.getAdmission().setPolicy(Config.CacheAdmission.valueOf(policy));
+    }
+
+    public Map<String, Double> getRowCacheHitRateByAdmission()
+    {
+        return rowCache.getAdmission().getHitRates();
+    }
+
+    public long getColumnIndexCacheCapacityInMB()
+    {
+        return columnIndexCache.getCapacity() / 1024 / 1024;
+    }
+
+    public void setColumnIndexCacheCapacityInMB(long capacity)
+    {
+        if (capacity < 0)
+            throw new RuntimeException("capacity should not be negative.");
+
+        columnIndexCache.setCapacity(capacity * 1024 * 1024);
+    }
+
+    public long getColumnIndexCacheSize()
+    {
+        return columnIndexCache.weightedSize();
+    }
+
+    public double getColumnIndexCacheHitRate()
+    {
+        return columnIndexCache.getMetrics().hitRate.value();
+    }
+
     public long getRowCacheSize()
     {
         return rowCache.getMetrics().size.value();
@@ -313,6 +406,15 @@ public class CacheService implements CacheServiceMBean
         keyCache.reduceCacheSize();
     }
 
+    /**
+     * Start loading the saved key and row caches of the column families opened so far, and of those opened later.
+     */
+    public void startLoading()
+    {
+        keyCache.startLoading();
+        rowCache.startLoading();
+    }
+
     public void saveCaches() throws ExecutionException, InterruptedException
     {
         List<Future<?>> futures = new ArrayList<Future<?>>(2);
@@ -332,18 +434,19 @@ public class CacheService implements CacheServiceMBean
             ByteBufferUtil.writeWithLength(key.key, out);
         }
 
-        public Future<Pair<RowCacheKey, IRowCacheEntry>> deserialize(DataInputStream in, final ColumnFamilyStore cfs) throws IOException
+        public SavedEntry deserialize(DataInputStream in, final ColumnFamilyStore cfs) throws IOException
         {
-            final ByteBuffer buffer = ByteBufferUtil.readWithLength(in);
-            return StageManager.getStage(Stage.READ).submit(new Callable<Pair<RowCacheKey, IRowCacheEntry>>()
+            // merged from all sstables, so sorting by key reads each of them sequentially
+            return new SavedEntry(null, cfs.partitioner.decorateKey(ByteBufferUtil.readWithLength(in)))
             {
-                public Pair<RowCacheKey, IRowCacheEntry> call() throws Exception
+                public void load()
                 {
-                    DecoratedKey key = cfs.partitioner.decorateKey(buffer);
-                    ColumnFamily data = cfs.getTopLevelColumns(QueryFilter.getIdentityFilter(key, new QueryPath(cfs.columnFamily)), Integer.MIN_VALUE, true);
-                    return Pair.create(new RowCacheKey(cfs.metadata.cfId, key), (IRowCacheEntry) data);
+                    RowCacheKey cacheKey = new RowCacheKey(cfs.metadata.cfId, key);
+                    // the node may be serving reads already, which may have cached the row
+                    if (!rowCache.containsKey(cacheKey))
+                        cfs.readAndCache(cacheKey, key);
                 }
-            });
+            };
         }
 
         public void load(Set<ByteBuffer> buffers, ColumnFamilyStore cfs)
@@ -351,7 +454,7 @@ public class CacheService implements CacheServiceMBean
             for (ByteBuffer key : buffers)
             {
                 DecoratedKey dk = cfs.partitioner.decorateKey(key);
-                ColumnFamily data = cfs.getTopLevelColumns(QueryFilter.getIdentityFilter(dk, new QueryPath(cfs.columnFamily)), Integer.MIN_VALUE, true);
+                IRowCacheEntry data = cfs.readRowCacheEntry(dk);
                 if (data != null)
                     rowCache.put(new RowCacheKey(cfs.metadata.cfId, dk), data);
             }
@@ -368,17 +471,19 @@ public class CacheService implements CacheServiceMBean
             ByteBufferUtil.writeWithLength(key.key, out);
             Descriptor desc = key.desc;
             out.writeInt(desc.generation);
-            out.writeBoolean(desc.version.hasPromotedIndexes);
-            if (!desc.version.hasPromotedIndexes)
+            // entries whose column index was left in the primary index are looked up again when loaded
+            boolean serializeEntry = desc.version.hasPromotedIndexes && !(entry instanceof RowIndexEntry.ShallowIndexedEntry);
+            out.writeBoolean(serializeEntry);
+            if (!serializeEntry)
                 return;
             RowIndexEntry.serializer.serialize(entry, out);
         }
 
-        public Future<Pair<KeyCacheKey, RowIndexEntry>> deserialize(DataInputStream input, ColumnFamilyStore cfs) throws IOException
+        public SavedEntry deserialize(DataInputStream input, ColumnFamilyStore cfs) throws IOException
         {
-            ByteBuffer key = ByteBufferUtil.readWithLength(input);
+            final ByteBuffer buffer = ByteBufferUtil.readWithLength(input);
             int generation = input.readInt();
-            SSTableReader reader = findDesc(generation, cfs.getSSTables());
+            final SSTableReader reader = findDesc(generation, cfs.getSSTables());
             boolean promotedIndexes = input.readBoolean();
             if (reader == null)
             {
@@ -386,10 +491,28 @@ public class CacheService implements CacheServiceMBean
                     RowIndexEntry.serializer.skip(input, Descriptor.Version.CURRENT);
                 return null;
             }
-            RowIndexEntry entry = promotedIndexes
-                                ? RowIndexEntry.serializer.deserialize(input, reader.descriptor.version)
-                                : reader.getPosition(reader.partitioner.decorateKey(key), Operator.EQ, false);
-            return Futures.immediateFuture(Pair.create(new KeyCacheKey(reader.descriptor, key), entry));
+            final RowIndexEntry entry = promotedIndexes
+                                      ? RowIndexEntry.serializer.deserialize(input, reader.descriptor.version)
+                                      : null;
+            return new SavedEntry(reader, reader.partitioner.decorateKey(buffer))
+            {
+                public void load()
+                {
+                    // the sstable may have been compacted away since the node started
+                    if (!reader.acquireReference())
+                        return;
+                    try
+                    {
+                        RowIndexEntry loaded = entry == null ? reader.getPosition(key, Operator.EQ, false) : entry;
+                        if (loaded != null)
+                            keyCache.put(new KeyCacheKey(reader.descriptor, buffer), loaded);
+                    }
+                    finally
+                    {
+                        reader.releaseReference();
+                    }
+                }
+            };
         }
 
         private SSTableReader findDesc(int generation, Collection<SSTableReader> collection)
@@ -17,6 +17,7 @@
  */
 package org.apache.cassandra.service;
 
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 public interface CacheServiceMBean
@@ -37,10 +38,50 @@ public interface CacheServiceMBean
      */
     public void invalidateRowCache();
 
+    /**
+     * invalidate the column index cache of wide rows
+     */
+    public void invalidateColumnIndexCache();
+
     public void setRowCacheCapacityInMB(long capacity);
 
     public void setKeyCacheCapacityInMB(long capacity);
 
+    /**
+     * @return how new keys are admitted in the full key cache: lru or tinylfu
+     */
+    public String getKeyCacheAdmission();
+    public void setKeyCacheAdmission(String policy);
+
+    /**
+     * @return the hit rate of the key cache while each admission policy was in use, by policy
+     */
+    public Map<String, Double> getKeyCacheHitRateByAdmission();
+
+    /**
+     * @return how new rows are admitted in the full row cache: lru or tinylfu
+     */
+    public String getRowCacheAdmission();
+    public void setRowCacheAdmission(String policy);
+
+    /**
+     * @return the hit rate of the row cache while each admission policy was in use, by policy
+     */
+    public Map<String, Double> getRowCacheHitRateByAdmission();
+
+    public long getColumnIndexCacheCapacityInMB();
+    public void setColumnIndexCacheCapacityInMB(long capacity);
+
+    /**
+     * @return the memory used by the column index cache, in bytes, most of it off-heap
+     */
+    public long getColumnIndexCacheSize();
+
+    /**
+     * @see org.apache.cassandra.metrics.CacheMetrics#hitRate
+     */
+    public double getColumnIndexCacheHitRate();
+
     /**
      * sets each cache's maximum capacity to "reduce_cache_capacity_to" of its current size
      */
@@ -45,6 +45,8 @@ import org.apache.cassandra.db.commitlog.CommitLog;
 import org.apache.cassandra.db.compaction.CompactionManager;
 import org.apache.cassandra.io.FSError;
 import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.metadata.MetadataLog;
+import org.apache.cassandra.metadata.MetadataRegistry;
 import org.apache.cassandra.thrift.ThriftServer;
 import org.apache.cassandra.tracing.Tracing;
 import org.apache.cassandra.utils.CLibrary;
@@ -341,6 +343,18 @@ public class CassandraDaemon
 
         SystemTable.finishStartup();
 
+        try
+        {
+            MetadataLog.upgradeOldLog();
+        }
+        catch (Exception e)
+        {
+            logger.warn("Unable to migrate the old metadata log", e);
+        }
+
+        // answer metadata registry lookups from memory from now on
+        MetadataRegistry.instance.loadLocal();
+
         // start server internals
         StorageService.instance.registerDaemon(this);
         try
@@ -354,6 +368,9 @@ public class CassandraDaemon
             System.exit(1);
         }
 
+        // warm the saved caches up now that the node serves requests
+        CacheService.instance.startLoading();
+
         Mx4jTool.maybeLoad();
 
         // Thift
@@ -45,6 +45,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.cassandra.auth.Auth;
 import org.apache.cassandra.concurrent.DebuggableScheduledThreadPoolExecutor;
+import org.apache.cassandra.concurrent.DebuggableThreadPoolExecutor;
 import org.apache.cassandra.concurrent.Stage;
 import org.apache.cassandra.concurrent.StageManager;
 import org.apache.cassandra.config.CFMetaData;
@@ -60,12 +61,16 @@ import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.apache.cassandra.exceptions.UnavailableException;
 import org.apache.cassandra.gms.*;
+import org.apache.cassandra.io.sstable.IndexSummaryManager;
 import org.apache.cassandra.io.sstable.SSTableDeletingTask;
 import org.apache.cassandra.io.sstable.SSTableLoader;
+import org.apache.cassandra.io.sstable.SSTableReader;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.locator.*;
+import org.apache.cassandra.metadata.DecommissionVerifier;
 import org.apache.cassandra.metadata.Metadata;
 import org.apache.cassandra.metadata.MetadataLog;
+import org.apache.cassandra.metadata.MetadataRegistry;
 import org.apache.cassandra.metrics.StorageMetrics;
 import org.apache.cassandra.net.IAsyncResult;
 import org.apache.cassandra.net.MessageOut;
@@ -581,6 +586,7 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
         appStates.put(ApplicationState.RELEASE_VERSION, valueFactory.releaseVersion());
         Gossiper.instance.register(this);
         Gossiper.instance.register(migrationManager);
+        Gossiper.instance.register(MetadataRegistry.instance);
         Gossiper.instance.start(SystemTable.incrementAndGetGeneration(), appStates); // needed for node-ring gathering.
         // gossip snitch infos (local DC and rack)
         gossipSnitchInfo();
@@ -593,6 +599,7 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
 
         HintedHandOffManager.instance.start();
         BatchlogManager.instance.start();
+        IndexSummaryManager.instance.start();
 
         // We bootstrap if we haven't successfully bootstrapped before, as long as we are not a seed.
         // If we are a seed, or if the user manually sets auto_bootstrap to false,
@@ -810,6 +817,8 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
             assert tokenMetadata.sortedTokens().size() > 0;
 
             Auth.setup();
+            // pick up registrations held by replicas other than this node
+            MetadataRegistry.instance.scheduleReload();
         }
         else
         {
@@ -849,6 +858,8 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
             assert tokenMetadata.sortedTokens().size() > 0;
 
             Auth.setup();
+            // pick up registrations held by replicas other than this node
+            MetadataRegistry.instance.scheduleReload();
         }
     }
 
@@ -2685,9 +2696,28 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
     {
         Table t = Table.open(table);
         ColumnFamilyStore cfs = t.getColumnFamilyStore(cfName);
-        List<DecoratedKey> keys = keySamples(Collections.singleton(cfs), range);
 
-        final long totalRowCountEstimate = (keys.size() + 1) * DatabaseDescriptor.getIndexInterval();
+        // each sample stands for as many rows as the index interval of its sstable, which may have been resampled
+        Map<DecoratedKey, Integer> intervals = new IdentityHashMap<DecoratedKey, Integer>();
+        List<DecoratedKey> keys = new ArrayList<DecoratedKey>();
+        for (SSTableReader sstable : cfs.getSSTables())
+        {
+            Integer interval = sstable.getIndexInterval();
+            for (DecoratedKey key : sstable.getKeySamples(range))
+            {
+                keys.add(key);
+                intervals.put(key, interval);
+            }
+        }
+        FBUtilities.sortSampledKeys(keys, range);
+
+        // rowCounts[i] is the estimated number of rows up to the i-th token, the range bounds being the first and last
+        long[] rowCounts = new long[keys.size() + 2];
+        for (int i = 0; i < keys.size(); i++)
+            rowCounts[i + 1] = rowCounts[i] + intervals.get(keys.get(i));
+        rowCounts[keys.size() + 1] = rowCounts[keys.size()] + DatabaseDescriptor.getIndexInterval();
+
+        final long totalRowCountEstimate = rowCounts[keys.size() + 1];
 
         // splitCount should be much smaller than number of key samples, to avoid huge sampling error
         final int minSamplesPerSplit = 4;
@@ -2695,10 +2725,10 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
         final int splitCount = Math.max(1, Math.min(maxSplitCount, (int)(totalRowCountEstimate / keysPerSplit)));
 
         List<Token> tokens = keysToTokens(range, keys);
-        return getSplits(tokens, splitCount);
+        return getSplits(tokens, rowCounts, splitCount);
     }
 
-    private List<Pair<Range<Token>, Long>> getSplits(List<Token> tokens, int splitCount)
+    private List<Pair<Range<Token>, Long>> getSplits(List<Token> tokens, long[] rowCounts, int splitCount)
     {
         final double step = (double) (tokens.size() - 1) / splitCount;
         int prevIndex = 0;
@@ -2708,7 +2738,7 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
         {
             int index = (int) Math.round(i * step);
             Token token = tokens.get(index);
-            long rowCountEstimate = (index - prevIndex) * DatabaseDescriptor.getIndexInterval();
+            long rowCountEstimate = rowCounts[index] - rowCounts[prevIndex];
             splits.add(Pair.create(new Range<Token>(prevToken, token), rowCountEstimate));
             prevIndex = index;
             prevToken = token;
@@ -2841,10 +2871,11 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
             rangesToStream.put(table, rangesMM);
         }
 
+        // recorded before anything is transferred, so that a decommission cannot complete unrecorded
+        recordMetadata(rangesToStream);
+
         setMode(Mode.LEAVING, "streaming data to other nodes", true);
 
-        recordMetadata(rangesToStream);
-        
         CountDownLatch latch = streamRanges(rangesToStream);
         CountDownLatch hintsLatch = streamHints();
 
@@ -2864,63 +2895,58 @@ public class StorageService extends NotificationBroadcasterSupport implements IE
         onFinish.run();
     }
     
-    private void recordMetadata(Map<String, Multimap<Range<Token>, InetAddress>> movedRanges){
-    	
-    	for(String table : movedRanges.keySet()){
-    		for(Multimap<Range<Token>, InetAddress> rangeAddress : movedRanges.values()){
-    			
-    			for(Map.Entry<Range<Token>, InetAddress> entry: rangeAddress.entries()){
-    			
-    				String value = table +
-    						//":(" + entry.getKey().right.toString() + "," + entry.getKey().left.toString() + "):" +
-    						":" + entry.getKey().right.toString() + ":" + 
-    						entry.getValue().getHostAddress();
-    				
-    				Metadata.mutate(MetadataLog.add(FBUtilities.getBroadcastAddress().getHostName(),
-    						FBUtilities.timestampMicros(), "", "decommission", value, ""));
-    			}
-    		}
-    	}
+    /**
+     * Record the ranges transferred to other nodes, so that decommission can be verified later.
+     * Ranges are recorded per keyspace, in as few events as their number allows. The events are written
+     * synchronously, not sampled nor rate limited: they must not be dropped by the background log writer.
+     */
+    private void recordMetadata(Map<String, Multimap<Range<Token>, InetAddress>> movedRanges)
+    {
+        String target = FBUtilities.getBroadcastAddress().getHostName();
+        List<RowMutation> events = new ArrayList<RowMutation>();
+        for (Map.Entry<String, Multimap<Range<Token>, InetAddress>> entry : movedRanges.entrySet())
+            events.addAll(MetadataLog.rangeEvents(target, Metadata.Decommission_Tag, entry.getKey(), entry.getValue()));
+
+        try
+        {
+            MetadataLog.appendNow(events);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Unable to record the decommissioned ranges", e);
+        }
     }
-    
-    public String verifyDecommission(String targetNode){
-    	ColumnFamily cf = MetadataLog.remoteStorageQuery(targetNode, "decommission");
-    	String value;
-    	boolean isSuccessful = true;
-    	if (cf != null && !cf.isEmpty()) {
-    		Token.TokenFactory tf = StorageService.getPartitioner().getTokenFactory();
-    		
-    		for(IColumn col : cf.getSortedColumns()){
-				value = new String(col.value().array());
-			
-				if(value != null && !value.equals("")){
-					String table = value.substring(0,value.indexOf(":"));
-					value = value.substring(value.indexOf(":") + 1);
-					String token = value.substring(0,value.indexOf(":"));
-					String addressToVerify = value.substring(value.indexOf(":") + 1);
-															
-					List<InetAddress> ipAddresses =  Table.open(table).getReplicationStrategy()
-							.calculateNaturalEndpoints(tf.fromString(token), tokenMetadata.cloneOnlyTokenMap());
-					boolean isFound = false;
-					for(InetAddress address: ipAddresses){
-						if(address.getHostAddress().equals(addressToVerify))
-						{
-							logger.error("verifed decommission for " + addressToVerify);
-							Metadata.mutate(MetadataLog.add(FBUtilities.getBroadcastAddress().getHostName(),
-		    						FBUtilities.timestampMicros(), "", "verifed decommission for " + addressToVerify, value, ""));
-							isFound = true;
-							break;
-						}
-					}	
-					
-					if(!isFound){
-						isSuccessful = false;
-					}
-				}
-    		}
-    	}
-    	
-    	return (isSuccessful)? "successfully verified" : "failed varification";
+
+    public String verifyDecommission(String targetNode) throws InterruptedException
+    {
+        Map<String, Multimap<Token, InetAddress>> ranges = DecommissionVerifier.ranges(MetadataLog.query(targetNode, Metadata.Decommission_Tag));
+        int total = 0;
+        for (Multimap<Token, InetAddress> keyspaceRanges : ranges.values())
+            total += keyspaceRanges.size();
+        sendNotification("verify_decommission", String.format("Verifying %d ranges of %s in %d keyspaces", total, targetNode, ranges.size()), null);
+
+        ExecutorService executor = DebuggableThreadPoolExecutor.createWithFixedPoolSize("DecommissionVerification", FBUtilities.getAvailableProcessors());
+        int failed;
+        try
+        {
+            DecommissionVerifier verifier = new DecommissionVerifier(tokenMetadata.cloneOnlyTokenMap(), executor);
+            failed = verifier.verify(FBUtilities.getBroadcastAddress().getHostName(), ranges, new DecommissionVerifier.ProgressListener()
+            {
+                public void progress(String keyspace, int verified, int failed, int total)
+                {
+                    String message = String.format("%s: %d/%d ranges verified, %d failed", keyspace, verified, total, failed);
+                    logger.debug(message);
+                    sendNotification("verify_decommission", message, new int[]{ verified, failed, total });
+                }
+            });
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        logger.info("Verified {} ranges of decommissioned node {}, {} failed", new Object[]{ total - failed, targetNode, failed });
+        return failed == 0 ? "successfully verified" : "failed varification";
     }
 
     private CountDownLatch streamHints()
@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Memtable;
 import org.apache.cassandra.db.Table;
 import org.apache.cassandra.db.RowPosition;
 import org.apache.cassandra.dht.Range;
@@ -139,6 +140,8 @@ public class StreamOut
             for (Range<Token> range : ranges)
                 rowBoundsList.add(range.toRowBounds());
             ColumnFamilyStore.ViewFragment view = cfStore.markReferenced(rowBoundsList);
+            // only sstables are streamed
+            Memtable.releaseReferences(view.memtables);
             sstables.addAll(view.sstables);
         }
 
@@ -1404,7 +1404,7 @@ public class CassandraServer implements Cassandra.Iface
             state().hasColumnFamilyAccess(cf_def.keyspace, cf_def.name, Permission.ALTER);
 
             CFMetaData.applyImplicitDefaults(cf_def);
-            CFMetaData cfm = CFMetaData.fromThrift(cf_def);
+            CFMetaData cfm = CFMetaData.fromThriftForUpdate(cf_def, oldCfm);
             CFMetaData.validateCompactionOptions(cfm.compactionStrategyClass, cfm.compactionStrategyOptions, false);
             cfm.addDefaultIndexNames();
             MigrationManager.announceColumnFamilyUpdate(cfm);
@@ -1140,7 +1140,7 @@ public class NodeCmd
 //                        System.exit(1);
 //                    }
                 	if( cmd.getOptionValue(VERIFY_DECOMMISSION.left) != null ){
-                		System.out.println(probe.verifyDecommission(cmd.getOptionValue(VERIFY_DECOMMISSION.left)));
+                		System.out.println(probe.verifyDecommission(System.out, cmd.getOptionValue(VERIFY_DECOMMISSION.left)));
                 	}
                 	else if(arguments.length == 0){
                 		probe.decommission();
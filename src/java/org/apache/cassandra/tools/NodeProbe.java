@@ -464,6 +464,34 @@ public class NodeProbe
         return ssProxy.verifyDecommission(targetNode);
     }
 
+    /**
+     * Verify the decommission of targetNode, printing the progress reported by the node to out.
+     */
+    public String verifyDecommission(final PrintStream out, String targetNode) throws IOException, InterruptedException
+    {
+        NotificationListener listener = new NotificationListener()
+        {
+            public void handleNotification(Notification notification, Object handback)
+            {
+                if ("verify_decommission".equals(notification.getType()))
+                    out.println(notification.getMessage());
+            }
+        };
+        ssProxy.addNotificationListener(listener, null, null);
+        try
+        {
+            return ssProxy.verifyDecommission(targetNode);
+        }
+        finally
+        {
+            try
+            {
+                ssProxy.removeNotificationListener(listener);
+            }
+            catch (ListenerNotFoundException ignored) {}
+        }
+    }
+
     public void move(String newToken) throws IOException, InterruptedException
     {
         ssProxy.move(newToken);
@@ -42,7 +42,7 @@ public abstract class MergeIterator<In,Out> extends AbstractIterator<Out> implem
             return reducer.trivialReduceIsTrivial()
                    ? new TrivialOneToOne<In, Out>(sources, reducer)
                    : new OneToOne<In, Out>(sources, reducer);
-        return new ManyToOne<In, Out>(sources, comparator, reducer);
+        return new TournamentTree<In, Out>(sources, comparator, reducer);
     }
 
     public Iterable<? extends CloseableIterator<In>> iterators()
@@ -67,8 +67,116 @@ public abstract class MergeIterator<In,Out> extends AbstractIterator<Out> implem
         reducer.close();
     }
 
-    /** A MergeIterator that consumes multiple input values per output value. */
-    private static final class ManyToOne<In,Out> extends MergeIterator<In,Out>
+    /**
+     * A MergeIterator that consumes multiple input values per output value, the head items of the inputs being kept in
+     * a tournament tree.
+     *
+     * Each internal node of the tree holds the winner of the match between the winners of its two children, and
+     * whether both were equal. Replacing the head item of an input only replays the matches on the path from its leaf
+     * to the root, one comparison per level, where a heap needs two per level to remove its head and more to add it
+     * back. The inputs holding an item equal to the overall winner are found following the tied matches down from
+     * the root, without comparing any item.
+     *
+     * Consumed inputs are advanced lazily, when the next item is asked for, and the merge allocates nothing per item.
+     */
+    static final class TournamentTree<In,Out> extends MergeIterator<In,Out>
+    {
+        private final Comparator<In> comparator;
+        // the head item of each input, null once the input is exhausted
+        private final Object[] items;
+        // node 1 is the root, node i has children 2i and 2i + 1, node size + i stands for the leaf of input i;
+        // winners[i] is the input winning at node i
+        private final int[] winners;
+        private final boolean[] tied;
+        // the inputs consumed by the last item, to advance before the next one
+        private final int[] consumed;
+        private int consumedCount;
+
+        public TournamentTree(List<? extends CloseableIterator<In>> iters, Comparator<In> comparator, Reducer<In,Out> reducer)
+        {
+            super(iters, reducer);
+            this.comparator = comparator;
+            int size = iters.size();
+            items = new Object[size];
+            winners = new int[2 * size];
+            tied = new boolean[size];
+            consumed = new int[size];
+            for (int i = 0; i < size; i++)
+            {
+                winners[size + i] = i;
+                advance(i);
+            }
+            for (int node = size - 1; node > 0; node--)
+                play(node);
+        }
+
+        private void advance(int input)
+        {
+            CloseableIterator<In> iter = iterators.get(input);
+            items[input] = iter.hasNext() ? iter.next() : null;
+        }
+
+        // play the match of node between the winners of its children; exhausted inputs lose against anything else
+        @SuppressWarnings("unchecked")
+        private void play(int node)
+        {
+            int left = winners[2 * node], right = winners[2 * node + 1];
+            Object x = items[left], y = items[right];
+            int cmp;
+            if (x == null)
+                cmp = y == null ? 0 : 1;
+            else if (y == null)
+                cmp = -1;
+            else
+                cmp = comparator.compare((In) x, (In) y);
+            tied[node] = cmp == 0 && x != null;
+            winners[node] = cmp <= 0 ? left : right;
+        }
+
+        // collect the inputs of the subtree of node holding an item equal to its winner
+        private void consumeEqual(int node)
+        {
+            while (node < items.length)
+            {
+                if (tied[node])
+                {
+                    consumeEqual(2 * node);
+                    node = 2 * node + 1;
+                }
+                else
+                {
+                    node = winners[2 * node] == winners[node] ? 2 * node : 2 * node + 1;
+                }
+            }
+            consumed[consumedCount++] = node - items.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected final Out computeNext()
+        {
+            int size = items.length;
+            for (int i = 0; i < consumedCount; i++)
+            {
+                int input = consumed[i];
+                advance(input);
+                for (int node = (size + input) >> 1; node > 0; node >>= 1)
+                    play(node);
+            }
+            consumedCount = 0;
+
+            if (size == 0 || items[winners[1]] == null)
+                return endOfData();
+
+            reducer.onKeyChange();
+            consumeEqual(1);
+            for (int i = 0; i < consumedCount; i++)
+                reducer.reduce((In) items[consumed[i]]);
+            return reducer.getReduced();
+        }
+    }
+
+    /** The heap based MergeIterator the tournament tree replaced, kept to compare against. */
+    static final class ManyToOne<In,Out> extends MergeIterator<In,Out>
     {
         // a queue for return: all candidates must be open and have at least one item
         protected final PriorityQueue<Candidate<In>> queue;
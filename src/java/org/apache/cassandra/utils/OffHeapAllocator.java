@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.cache.RefCountedMemory;
+
+/**
+ * A SlabAllocator whose regions, and allocations too large for a region, are allocated off-heap
+ * so that the column names and values of a memtable do not take room in the old generation.
+ * <p/>
+ * The allocator is reference counted. It is created with a single reference held by its owner, and
+ * its memory is freed once every reference has been released: buffers it allocated must not be read
+ * by anyone who does not hold a reference.
+ */
+public class OffHeapAllocator extends SlabAllocator
+{
+    private final Queue<RefCountedMemory> regions = new ConcurrentLinkedQueue<RefCountedMemory>();
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    @Override
+    protected ByteBuffer allocateBuffer(int size)
+    {
+        RefCountedMemory memory = new RefCountedMemory(size);
+        regions.add(memory);
+        return memory.asByteBuffer(0, size);
+    }
+
+    /**
+     * @return true if we succeed in referencing before the reference count reaches zero, that is before
+     * the memory of the allocator has been freed
+     */
+    public boolean reference()
+    {
+        while (true)
+        {
+            int n = references.get();
+            if (n <= 0)
+                return false;
+            if (references.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Decrement the reference count, freeing the memory of the allocator when it reaches zero.
+     */
+    public void unreference()
+    {
+        int n = references.decrementAndGet();
+        assert n >= 0 : "Unbalanced reference to " + this;
+        if (n > 0)
+            return;
+
+        RefCountedMemory memory;
+        while ((memory = regions.poll()) != null)
+            memory.unreference();
+    }
+}
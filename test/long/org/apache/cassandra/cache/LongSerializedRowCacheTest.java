@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.Util;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ArrayBackedSortedColumns;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Compares reading narrow slices of a large row cached by a SerializingCache once the whole row has been deserialized,
+ * and from the row filtered in its serialized form. Logs the time taken and the bytes allocated by the queries.
+ */
+public class LongSerializedRowCacheTest extends SchemaLoader
+{
+    private static final Logger logger = LoggerFactory.getLogger(LongSerializedRowCacheTest.class);
+
+    private static final int COLUMNS = 10000;
+    private static final int VALUE_SIZE = 100;
+    private static final int SLICE = 10;
+    private static final int QUERIES = 1000;
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void testNarrowSlices() throws IOException
+    {
+        CFMetaData cfm = Schema.instance.getCFMetaData("Keyspace1", "Standard1");
+        ColumnFamily cf = ColumnFamily.create(cfm, ArrayBackedSortedColumns.factory());
+        for (int i = 0; i < COLUMNS; i++)
+            cf.addColumn(new Column(name(i), ByteBuffer.wrap(new byte[VALUE_SIZE]), 0));
+
+        SerializingCache<RowCacheKey, IRowCacheEntry> cache = SerializingCache.create(Integer.MAX_VALUE, new SerializingCacheProvider.RowCacheSerializer());
+        DecoratedKey key = Util.dk("wide");
+        RowCacheKey cacheKey = new RowCacheKey(cfm.cfId, key);
+        cache.put(cacheKey, cf);
+
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            // the first rounds warm the JIT up
+            long[] deserialized = time(cache, cacheKey, key, false);
+            long[] inPlace = time(cache, cacheKey, key, true);
+            if (round >= ROUNDS / 2)
+                logger.info("{} slices of {} columns out of {}: deserialized {} ms, {} MB allocated, in place {} ms, {} MB allocated",
+                            new Object[]{ QUERIES, SLICE, COLUMNS, deserialized[0], deserialized[1] >> 20, inPlace[0], inPlace[1] >> 20 });
+        }
+    }
+
+    private static ByteBuffer name(int i)
+    {
+        return ByteBufferUtil.bytes(String.format("col%05d", i));
+    }
+
+    // returns the time taken in milliseconds and the bytes allocated
+    private static long[] time(SerializingCache<RowCacheKey, IRowCacheEntry> cache, RowCacheKey cacheKey, DecoratedKey key, boolean inPlace) throws IOException
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Random random = new Random(0);
+
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++)
+        {
+            QueryFilter filter = QueryFilter.getSliceFilter(key,
+                                                            new QueryPath("Standard1"),
+                                                            name(random.nextInt(COLUMNS - SLICE)),
+                                                            ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                                                            false,
+                                                            SLICE);
+            ColumnFamily result;
+            if (inPlace)
+            {
+                RefCountedMemory mem = cache.getSerialized(cacheKey);
+                try
+                {
+                    SerializedRowCacheEntry entry = new SerializedRowCacheEntry(mem);
+                    result = entry.emptyColumnFamily(ArrayBackedSortedColumns.factory(), false);
+                    filter.collateOnDiskAtom(result, Collections.singletonList(entry.iterator(result.cloneMeShallow(), key, filter.filter)), Integer.MIN_VALUE);
+                }
+                finally
+                {
+                    mem.unreference();
+                }
+            }
+            else
+            {
+                ColumnFamily cached = (ColumnFamily) cache.get(cacheKey);
+                result = cached.cloneMeShallow(ArrayBackedSortedColumns.factory(), false);
+                filter.collateOnDiskAtom(result, Collections.singletonList(filter.getMemtableColumnIterator(cached, null)), Integer.MIN_VALUE);
+            }
+            assert result.getColumnCount() == SLICE : result.getColumnCount();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        return new long[]{ elapsed, threads.getThreadAllocatedBytes(threadId) - allocated };
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Functions;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.db.index.SecondaryIndexManager;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.metrics.ColumnFamilyMetrics;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.HeapAllocator;
+
+/**
+ * Compares the throughput of many writers updating a single partition when updates are always retried
+ * optimistically and when they are serialized once the partition is contended.
+ */
+public class LongAtomicSortedColumnsTest extends SchemaLoader
+{
+    private static final Logger logger = LoggerFactory.getLogger(LongAtomicSortedColumnsTest.class);
+
+    private static final int THREADS = 32;
+    private static final int UPDATES = 20000;
+    private static final int COLUMNS = 20;
+    // updates overwrite the columns of a wide row, as a hot partition would
+    private static final int ROW_WIDTH = 10000;
+
+    @Test
+    public void timeit() throws Exception
+    {
+        ColumnFamilyMetrics metrics = Table.open("Keyspace1").getColumnFamilyStore("Standard1").metric;
+
+        // warm up both paths
+        run(metrics, false, UPDATES / 10);
+        run(metrics, true, UPDATES / 10);
+
+        for (boolean serialize : new boolean[]{ false, true })
+        {
+            long retriesBefore = metrics.memtableUpdateRetries.count();
+            long elapsed = run(metrics, serialize, UPDATES);
+            long retries = metrics.memtableUpdateRetries.count() - retriesBefore;
+            logger.info(String.format("%s: %d writers, %d updates/s, %.2f retries per update",
+                                      serialize ? "serialized on contention" : "optimistic",
+                                      THREADS,
+                                      (long) THREADS * UPDATES * 1000000000L / elapsed,
+                                      (double) retries / ((long) THREADS * UPDATES)));
+        }
+    }
+
+    private long run(ColumnFamilyMetrics metrics, boolean serializeOnContention, final int updates) throws Exception
+    {
+        final ISortedColumns partition = AtomicSortedColumns.factory(metrics, serializeOnContention).create(BytesType.instance, false);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int thread = t;
+            writers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new AssertionError(e);
+                    }
+                    for (int i = 0; i < updates; i++)
+                    {
+                        ISortedColumns update = ArrayBackedSortedColumns.factory().create(BytesType.instance, false);
+                        int first = (thread * updates + i) * COLUMNS % ROW_WIDTH;
+                        for (int j = 0; j < COLUMNS; j++)
+                        {
+                            ByteBuffer name = ByteBufferUtil.bytes((first + j) % ROW_WIDTH);
+                            update.addColumn(new Column(name, ByteBufferUtil.EMPTY_BYTE_BUFFER, i), HeapAllocator.instance);
+                        }
+                        partition.addAllWithSizeDelta(update, HeapAllocator.instance, Functions.<IColumn>identity(), SecondaryIndexManager.nullUpdater);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread writer : writers)
+            writer.join();
+        return System.nanoTime() - begin;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.cql3.CFDefinition;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Compares the cost of building a row mutation with and without encoding its metadata log event.
+ */
+public class LongMetadataLogValueTest extends SchemaLoader
+{
+    private static final Logger logger = LoggerFactory.getLogger(LongMetadataLogValueTest.class);
+
+    private static final int ITERATIONS = 1000000;
+    private static final int COLUMNS = 8;
+
+    @Test
+    public void timeit() throws Exception
+    {
+        // warm up both paths
+        run(false, ITERATIONS / 10);
+        run(true, ITERATIONS / 10);
+
+        long untagged = run(false, ITERATIONS);
+        long tagged = run(true, ITERATIONS);
+        logger.info(String.format("%d columns per mutation: %d ns/op untagged, %d ns/op tagged, tagging overhead %d ns/op",
+                                  COLUMNS, untagged / ITERATIONS, tagged / ITERATIONS, (tagged - untagged) / ITERATIONS));
+    }
+
+    private long run(boolean tagged, int iterations) throws Exception
+    {
+        CFDefinition cfDef = CFMetaData.MetadataRegistryCf.getCfDef();
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            RowMutation rm = new RowMutation(Metadata.MetaData_KS, ByteBufferUtil.bytes(i));
+            ColumnFamily cf = rm.addOrGet(CFMetaData.MetadataRegistryCf);
+            cf.addColumn(Column.create("", 0, "tag", ""));
+            for (int j = 0; j < COLUMNS; j++)
+                cf.addColumn(Column.create("value" + j, 0, "tag" + j, "admin_tag"));
+
+            if (tagged)
+                sink += MetadataLogValue.encode(cfDef, cf, true).remaining();
+            else
+                sink += cf.getColumnCount();
+        }
+        long elapsed = System.nanoTime() - start;
+        assert sink > 0;
+        return elapsed;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.utils;
+
+import java.io.IOException;
+import java.util.*;
+
+import com.google.common.collect.Ordering;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+
+/**
+ * Compares the tournament tree merge with the heap merge it replaced, merging the partitions of 2, 8 and 32 inputs as a
+ * compaction would. One partition out of ten is found in two inputs.
+ */
+public class LongMergeIteratorTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(LongMergeIteratorTest.class);
+
+    private static final int KEYS = 1000 * 1000;
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void testMerge2() throws IOException
+    {
+        compare(2);
+    }
+
+    @Test
+    public void testMerge8() throws IOException
+    {
+        compare(8);
+    }
+
+    @Test
+    public void testMerge32() throws IOException
+    {
+        compare(32);
+    }
+
+    private void compare(int size) throws IOException
+    {
+        List<List<DecoratedKey>> inputs = inputs(size);
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            // the first rounds warm the JIT up
+            boolean log = round >= ROUNDS / 2;
+            long heap = time(inputs, false, log);
+            long tournamentTree = time(inputs, true, log);
+            if (log)
+                logger.info("{} inputs: heap {} ms, tournament tree {} ms", new Object[]{ size, heap, tournamentTree });
+        }
+    }
+
+    private static List<List<DecoratedKey>> inputs(int size)
+    {
+        IPartitioner partitioner = new Murmur3Partitioner();
+        Random random = new Random(size);
+        List<List<DecoratedKey>> inputs = new ArrayList<List<DecoratedKey>>();
+        for (int i = 0; i < size; i++)
+            inputs.add(new ArrayList<DecoratedKey>());
+        for (int i = 0; i < KEYS; i++)
+        {
+            DecoratedKey key = partitioner.decorateKey(ByteBufferUtil.bytes(i));
+            int first = random.nextInt(size);
+            inputs.get(first).add(key);
+            int second = random.nextInt(size);
+            if (random.nextInt(10) == 0 && second != first)
+                inputs.get(second).add(key);
+        }
+        for (List<DecoratedKey> input : inputs)
+            Collections.sort(input);
+        return inputs;
+    }
+
+    private static long time(List<List<DecoratedKey>> inputs, boolean tournamentTree, boolean log) throws IOException
+    {
+        List<CloseableIterator<DecoratedKey>> iterators = new ArrayList<CloseableIterator<DecoratedKey>>();
+        for (List<DecoratedKey> input : inputs)
+            iterators.add(new MergeIteratorTest.CLI<DecoratedKey>(input.toArray(new DecoratedKey[input.size()])));
+        CountingComparator comparator = new CountingComparator();
+        Counter reducer = new Counter();
+
+        long start = System.nanoTime();
+        IMergeIterator<DecoratedKey, Integer> merge = tournamentTree
+                                                    ? new MergeIterator.TournamentTree<DecoratedKey, Integer>(iterators, comparator, reducer)
+                                                    : new MergeIterator.ManyToOne<DecoratedKey, Integer>(iterators, comparator, reducer);
+        int partitions = 0;
+        while (merge.hasNext())
+        {
+            merge.next();
+            partitions++;
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        merge.close();
+
+        assert partitions == KEYS : partitions;
+        if (log)
+            logger.info("{}: {} comparisons", tournamentTree ? "tournament tree" : "heap", comparator.comparisons);
+        return elapsed;
+    }
+
+    private static class CountingComparator extends Ordering<DecoratedKey>
+    {
+        long comparisons;
+
+        public int compare(DecoratedKey left, DecoratedKey right)
+        {
+            comparisons++;
+            return left.compareTo(right);
+        }
+    }
+
+    private static class Counter extends MergeIterator.Reducer<DecoratedKey, Integer>
+    {
+        int count;
+
+        public void reduce(DecoratedKey current)
+        {
+            count++;
+        }
+
+        protected void onKeyChange()
+        {
+            count = 0;
+        }
+
+        protected Integer getReduced()
+        {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import org.junit.Test;
+
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import org.apache.cassandra.config.Config;
+
+import static org.junit.Assert.*;
+
+public class AdmissionFilterTest
+{
+    private static final int CAPACITY = 100;
+
+    @Test
+    public void testFrequencySketch()
+    {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 10; i++)
+            sketch.increment(new Key(-1));
+        for (int i = 0; i < 20; i++)
+            sketch.increment(new Key(-2));
+        assertEquals(10, sketch.frequency(new Key(-1)));
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(new Key(-2)));
+
+        // counting 10 keys per long of the table halves all frequencies
+        for (int i = 0; i < 64 * 10; i++)
+            sketch.increment(new Key(i));
+        assertTrue(sketch.frequency(new Key(-1)) <= 6);
+        assertTrue(sketch.frequency(new Key(-2)) <= 8);
+    }
+
+    @Test
+    public void testScanResistance()
+    {
+        InstrumentingCache<Key, Key> lru = readThenScan(Config.CacheAdmission.lru);
+        assertEquals(0, hotKeys(lru));
+
+        InstrumentingCache<Key, Key> tinyLfu = readThenScan(Config.CacheAdmission.tinylfu);
+        // frequencies are estimated, so a few scanned keys may still be admitted
+        assertTrue(hotKeys(tinyLfu) >= CAPACITY * 9 / 10);
+        assertTrue(tinyLfu.getMetrics().admissionRejections.count() > 0);
+        // 400 hits out of 1500 requests
+        assertEquals(400.0 / 1500, tinyLfu.getAdmission().getHitRates().get("tinylfu"), 0.001);
+        assertNull(tinyLfu.getAdmission().getHitRates().get("lru"));
+    }
+
+    // read a working set filling the cache 5 times, then scan 10 times as many keys once
+    private static InstrumentingCache<Key, Key> readThenScan(Config.CacheAdmission policy)
+    {
+        ICache<Key, Key> map = ConcurrentLinkedHashCache.create(CAPACITY, new EntryWeigher<Key, Key>()
+        {
+            public int weightOf(Key key, Key value)
+            {
+                return 1;
+            }
+        });
+        InstrumentingCache<Key, Key> cache = new InstrumentingCache<Key, Key>("AdmissionFilterTest", map);
+        cache.getAdmission().setPolicy(policy);
+
+        for (int round = 0; round < 5; round++)
+        {
+            for (int i = 0; i < CAPACITY; i++)
+                read(cache, new Key(i));
+            // as CacheService does periodically
+            if (round == 0)
+                cache.resizeAdmission();
+        }
+        for (int i = 0; i < CAPACITY * 10; i++)
+            read(cache, new Key(CAPACITY + i));
+        return cache;
+    }
+
+    private static void read(InstrumentingCache<Key, Key> cache, Key key)
+    {
+        if (cache.get(key) == null)
+            cache.put(key, key);
+    }
+
+    private static int hotKeys(InstrumentingCache<Key, Key> cache)
+    {
+        int cached = 0;
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            if (cache.containsKey(new Key(i)))
+                cached++;
+        }
+        return cached;
+    }
+
+    private static class Key implements IMeasurableMemory
+    {
+        final int id;
+
+        Key(int id)
+        {
+            this.id = id;
+        }
+
+        public long memorySize()
+        {
+            return 4;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return id;
+        }
+    }
+}
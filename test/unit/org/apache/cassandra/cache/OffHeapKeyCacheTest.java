@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import org.apache.cassandra.db.DeletionTime;
+import org.apache.cassandra.db.RowIndexEntry;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.IndexHelper;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import static org.junit.Assert.*;
+
+public class OffHeapKeyCacheTest
+{
+    private final Descriptor desc1 = new Descriptor(new File("ks"), "ks", "cf", 1, false);
+    private final Descriptor desc2 = new Descriptor(new File("ks"), "ks", "cf", 2, false);
+
+    private static KeyCacheKey key(Descriptor desc, int i)
+    {
+        return new KeyCacheKey(desc, ByteBufferUtil.bytes("key" + i));
+    }
+
+    private static RowIndexEntry indexedEntry(long position) throws Exception
+    {
+        DataOutputBuffer out = new DataOutputBuffer();
+        out.writeLong(position);
+        DataOutputBuffer promoted = new DataOutputBuffer();
+        DeletionTime.serializer.serialize(new DeletionTime(5, 6), promoted);
+        promoted.writeInt(2);
+        new IndexHelper.IndexInfo(ByteBufferUtil.bytes("a"), ByteBufferUtil.bytes("b"), 0, 10).serialize(promoted);
+        new IndexHelper.IndexInfo(ByteBufferUtil.bytes("c"), ByteBufferUtil.bytes("d"), 10, 10).serialize(promoted);
+        out.writeInt(promoted.getLength());
+        out.write(promoted.getData(), 0, promoted.getLength());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.getData(), 0, out.getLength()));
+        return RowIndexEntry.serializer.deserialize(in, Descriptor.Version.CURRENT);
+    }
+
+    @Test
+    public void testEntries() throws Exception
+    {
+        OffHeapKeyCache cache = new OffHeapKeyCache(1 << 20);
+        cache.put(key(desc1, 1), new RowIndexEntry(42));
+        cache.put(key(desc1, 2), new RowIndexEntry.ShallowIndexedEntry(43, new DeletionTime(1, 2), 44));
+        cache.put(key(desc2, 1), indexedEntry(45));
+        assertEquals(3, cache.size());
+
+        assertEquals(42, cache.get(key(desc1, 1)).position);
+        assertNull(cache.get(key(desc1, 3)));
+
+        RowIndexEntry shallow = cache.get(desc1, ByteBufferUtil.bytes("key2"));
+        assertTrue(shallow instanceof RowIndexEntry.ShallowIndexedEntry);
+        assertEquals(43, shallow.position);
+        assertEquals(new DeletionTime(1, 2), shallow.deletionTime());
+        assertEquals(44, ((RowIndexEntry.ShallowIndexedEntry) shallow).indexPosition);
+
+        RowIndexEntry indexed = cache.get(key(desc2, 1));
+        assertEquals(45, indexed.position);
+        assertEquals(new DeletionTime(5, 6), indexed.deletionTime());
+        assertEquals(2, indexed.columnIndex(null).size());
+        assertEquals(ByteBufferUtil.bytes("c"), indexed.columnIndex(null).firstName(1));
+
+        // a key looked up in a larger buffer
+        ByteBuffer buffer = ByteBufferUtil.bytes("xkey1x");
+        buffer.position(1).limit(5);
+        assertEquals(42, cache.get(desc1, buffer).position);
+
+        assertFalse(cache.putIfAbsent(key(desc1, 1), new RowIndexEntry(1)));
+        assertFalse(cache.replace(key(desc1, 1), new RowIndexEntry(1), new RowIndexEntry(2)));
+        assertTrue(cache.replace(key(desc1, 1), new RowIndexEntry(42), new RowIndexEntry(2)));
+        assertEquals(2, cache.get(key(desc1, 1)).position);
+
+        cache.remove(key(desc1, 1));
+        assertFalse(cache.containsKey(key(desc1, 1)));
+        assertEquals(2, cache.keySet().size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weightedSize());
+        assertNull(cache.get(key(desc2, 1)));
+    }
+
+    @Test
+    public void testEviction()
+    {
+        OffHeapKeyCache cache = new OffHeapKeyCache(OffHeapKeyCache.SEGMENTS * 1024);
+        for (int i = 0; i < 10000; i++)
+            cache.put(key(desc1, i), new RowIndexEntry(i));
+        assertTrue(cache.weightedSize() <= cache.capacity());
+        assertTrue(cache.size() > 0);
+
+        // every remaining key is found, with its own entry
+        int found = 0;
+        for (int i = 0; i < 10000; i++)
+        {
+            RowIndexEntry entry = cache.get(key(desc1, i));
+            if (entry != null)
+            {
+                assertEquals(i, entry.position);
+                found++;
+            }
+        }
+        assertEquals(cache.size(), found);
+        assertEquals(found, cache.keySet().size());
+
+        cache.setCapacity(0);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testVictim()
+    {
+        OffHeapKeyCache cache = new OffHeapKeyCache(OffHeapKeyCache.SEGMENTS * 1024);
+        for (int i = 0; i < 10000; i++)
+            cache.put(key(desc1, i), new RowIndexEntry(i));
+
+        // the victim of a new key is the entry its put evicts, out of the same segment
+        int evicted = 0;
+        for (int i = 10000; i < 10100; i++)
+        {
+            KeyCacheKey victim = cache.victim(key(desc1, i));
+            assertTrue(cache.containsKey(victim));
+            cache.put(key(desc1, i), new RowIndexEntry(i));
+            if (!cache.containsKey(victim))
+                evicted++;
+        }
+        assertTrue(evicted >= 95);
+
+        // entries read since the hand passed them are spared
+        KeyCacheKey victim = cache.victim(key(desc1, 0));
+        cache.get(victim);
+        assertFalse(victim.equals(cache.victim(key(desc1, 0))));
+    }
+}
@@ -121,6 +121,19 @@ public class CFMetaDataTest extends SchemaLoader
         }
     }
 
+    @Test
+    public void testThriftUpdateKeepsOptionsUnknownToThrift() throws Exception
+    {
+        CFMetaData cfm = Schema.instance.getCFMetaData(KEYSPACE, COLUMN_FAMILY).clone();
+        cfm.memtableAllocator(CFMetaData.MemtableAllocator.OFFHEAP);
+        cfm.rowsPerPartitionToCache(10);
+
+        CFMetaData updated = CFMetaData.fromThriftForUpdate(cfm.toThrift().setComment("updated"), cfm);
+        assertEquals("updated", updated.getComment());
+        assertEquals(CFMetaData.MemtableAllocator.OFFHEAP, updated.getMemtableAllocator());
+        assertEquals(10, updated.getRowsPerPartitionToCache());
+    }
+
     private void checkInverses(CFMetaData cfm) throws Exception
     {
         DecoratedKey k = StorageService.getPartitioner().decorateKey(ByteBufferUtil.bytes(cfm.ksName));
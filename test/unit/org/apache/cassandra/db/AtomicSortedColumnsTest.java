@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Functions;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.db.index.SecondaryIndexManager;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.metrics.ColumnFamilyMetrics;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.HeapAllocator;
+
+public class AtomicSortedColumnsTest extends SchemaLoader
+{
+    private static final int THREADS = 8;
+    private static final int UPDATES = 200;
+    private static final int COLUMNS = 10;
+
+    @Test
+    public void testConcurrentAddAll() throws Exception
+    {
+        ColumnFamilyMetrics metrics = Table.open("Keyspace1").getColumnFamilyStore("Standard1").metric;
+        long contendedBefore = metrics.memtableContendedPartitions.count();
+        final ISortedColumns partition = AtomicSortedColumns.factory(metrics).create(BytesType.instance, false);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int thread = t;
+            writers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new AssertionError(e);
+                    }
+                    for (int i = 0; i < UPDATES; i++)
+                    {
+                        ISortedColumns update = ArrayBackedSortedColumns.factory().create(BytesType.instance, false);
+                        for (int j = 0; j < COLUMNS; j++)
+                            update.addColumn(new Column(ByteBufferUtil.bytes(thread + ":" + i + ":" + j)), HeapAllocator.instance);
+                        partition.addAllWithSizeDelta(update, HeapAllocator.instance, Functions.<IColumn>identity(), SecondaryIndexManager.nullUpdater);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers)
+            writer.join();
+
+        // no update is lost, whether it was applied optimistically or serialized
+        assertEquals(THREADS * UPDATES * COLUMNS, partition.size());
+        assertTrue(metrics.memtableContendedPartitions.count() - contendedBefore <= 1);
+    }
+}
@@ -49,6 +49,7 @@ import org.apache.cassandra.OrderedJUnit4ClassRunner;
 import org.apache.cassandra.SchemaLoader;
 import org.apache.cassandra.Util;
 import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.db.columniterator.IdentityQueryFilter;
 import org.apache.cassandra.db.filter.*;
@@ -56,6 +57,7 @@ import org.apache.cassandra.db.index.SecondaryIndex;
 import org.apache.cassandra.db.marshal.CompositeType;
 import org.apache.cassandra.db.marshal.LexicalUUIDType;
 import org.apache.cassandra.db.marshal.LongType;
+import org.apache.cassandra.dht.AbstractBounds;
 import org.apache.cassandra.dht.Bounds;
 import org.apache.cassandra.dht.ExcludingBounds;
 import org.apache.cassandra.dht.IPartitioner;
@@ -844,6 +846,95 @@ public class ColumnFamilyStoreTest extends SchemaLoader
         }
     }
 
+    @Test
+    public void testSplitFlush() throws Throwable
+    {
+        ColumnFamilyStore cfs = Table.open("Keyspace1").getColumnFamilyStore("Standard2");
+        cfs.truncate().get();
+
+        int flushWriters = DatabaseDescriptor.getFlushWriters();
+        long splitSize = DatabaseDescriptor.getMemtableFlushSplitSize();
+        DatabaseDescriptor.setFlushWriters(3);
+        DatabaseDescriptor.setMemtableFlushSplitSize(1);
+        try
+        {
+            // 4MB of data, split in as many ranges as there are flush writers
+            ByteBuffer value = ByteBuffer.wrap(new byte[16 * 1024]);
+            for (int i = 0; i < 256; i++)
+            {
+                RowMutation rm = new RowMutation("Keyspace1", bytes("key" + i));
+                rm.add(new QueryPath("Standard2", null, bytes("c")), value, 0);
+                rm.apply();
+            }
+            cfs.forceBlockingFlush();
+        }
+        finally
+        {
+            DatabaseDescriptor.setFlushWriters(flushWriters);
+            DatabaseDescriptor.setMemtableFlushSplitSize((int) (splitSize / (1024 * 1024)));
+        }
+
+        List<SSTableReader> sstables = new ArrayList<SSTableReader>(cfs.getSSTables());
+        assertEquals(3, sstables.size());
+        Collections.sort(sstables, SSTable.sstableComparator);
+        // the ranges don't overlap
+        for (int i = 1; i < sstables.size(); i++)
+            assertTrue(sstables.get(i - 1).last.compareTo(sstables.get(i).first) < 0);
+        assertEquals(256, Util.getRangeSlice(cfs).size());
+    }
+
+    @Test
+    public void testParallelRangeScan() throws Throwable
+    {
+        ColumnFamilyStore cfs = Table.open("Keyspace1").getColumnFamilyStore("Standard2");
+        cfs.truncate().get();
+
+        for (int i = 0; i < 2000; i++)
+        {
+            RowMutation rm = new RowMutation("Keyspace1", bytes("key" + i));
+            rm.add(new QueryPath("Standard2", null, bytes("c")), bytes(i), 0);
+            rm.apply();
+            if (i % 500 == 499)
+                cfs.forceBlockingFlush();
+        }
+
+        AbstractBounds<RowPosition> range = Util.range("", "");
+        SliceQueryFilter filter = new SliceQueryFilter(ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, 10);
+
+        int parallelism = DatabaseDescriptor.getRangeScanParallelism();
+        int splitRows = DatabaseDescriptor.getRangeScanSplitRows();
+        try
+        {
+            DatabaseDescriptor.setRangeScanParallelism(1);
+            List<Row> expected = cfs.getRangeSlice(null, range, 10000, filter, null);
+            List<Row> expectedLimited = cfs.getRangeSlice(null, range, 300, filter, null);
+
+            DatabaseDescriptor.setRangeScanParallelism(4);
+            DatabaseDescriptor.setRangeScanSplitRows(128);
+            assertEquals(4, ParallelRangeScan.split(range, cfs.getSSTables(), 10000, 4, 128).size());
+
+            // the sub-ranges return the rows of a sequential scan, in the same order
+            assertEquals(2000, expected.size());
+            assertSameRows(expected, cfs.getRangeSlice(null, range, 10000, filter, null));
+            assertSameRows(expectedLimited, cfs.getRangeSlice(null, range, 300, filter, null));
+        }
+        finally
+        {
+            DatabaseDescriptor.setRangeScanParallelism(parallelism);
+            DatabaseDescriptor.setRangeScanSplitRows(splitRows);
+        }
+    }
+
+    private static void assertSameRows(List<Row> expected, List<Row> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).key, actual.get(i).key);
+            assertEquals(expected.get(i).cf.getColumn(bytes("c")).value(), actual.get(i).cf.getColumn(bytes("c")).value());
+        }
+    }
+
     @Test
     public void testSuperSliceByNamesCommand() throws Throwable
     {
@@ -21,12 +21,19 @@ package org.apache.cassandra.db;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
 import junit.framework.Assert;
 
+import org.apache.commons.lang.StringUtils;
 import org.junit.Test;
 
 import org.apache.cassandra.SchemaLoader;
@@ -34,6 +41,7 @@ import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.commitlog.CommitLog;
 import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
 import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.io.compress.LZ4Compressor;
 import org.apache.cassandra.net.MessagingService;
 
 import static org.apache.cassandra.utils.ByteBufferUtil.bytes;
@@ -210,6 +218,88 @@ public class CommitLogTest extends SchemaLoader
         CommitLog.instance.recover(new File[]{ logFile }); //CASSANDRA-1119 / CASSANDRA-1179 throw on failure*/
     }
 
+    @Test
+    public void testConcurrentWriters() throws Exception
+    {
+        CommitLog.instance.resetUnsafe();
+        final int threads = 8;
+        final int mutationsPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            futures.add(executor.submit(new Runnable()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < mutationsPerThread; i++)
+                    {
+                        RowMutation rm = new RowMutation("Keyspace1", bytes("k" + thread));
+                        rm.add(new QueryPath("Standard1", null, bytes("c" + i)), ByteBuffer.allocate(1024), 0);
+                        CommitLog.instance.add(rm);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        // every entry written concurrently must be intact on replay
+        int replayed = CommitLog.instance.recover(activeSegmentFiles());
+        Assert.assertEquals(threads * mutationsPerThread, replayed);
+    }
+
+    @Test
+    public void testCompressedSegments() throws Exception
+    {
+        DatabaseDescriptor.setCommitLogCompressor(LZ4Compressor.create(Collections.<String, String>emptyMap()));
+        try
+        {
+            CommitLog.instance.resetUnsafe();
+            ByteBuffer value = ByteBuffer.wrap(StringUtils.repeat("compressible ", 100).getBytes());
+            for (int i = 0; i < 100; i++)
+            {
+                RowMutation rm = new RowMutation("Keyspace1", bytes("k"));
+                rm.add(new QueryPath("Standard1", null, bytes("c" + i)), value, 0);
+                CommitLog.instance.add(rm);
+            }
+            CommitLog.instance.sync();
+
+            File[] segments = activeSegmentFiles();
+            Assert.assertEquals(1, segments.length);
+            Assert.assertTrue(segments[0].length() < value.remaining() * 100);
+            Assert.assertEquals(100, CommitLog.instance.recover(segments));
+
+            // a partially written section is skipped, but the sections before it are replayed
+            File truncated = new File(System.getProperty("java.io.tmpdir"), segments[0].getName());
+            truncated.deleteOnExit();
+            byte[] content = new byte[(int) segments[0].length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(segments[0]));
+            in.readFully(content);
+            in.close();
+            OutputStream out = new FileOutputStream(truncated);
+            out.write(content, 0, content.length - 1);
+            out.close();
+            int replayed = CommitLog.instance.recover(new File[]{ truncated });
+            Assert.assertTrue(replayed < 100);
+        }
+        finally
+        {
+            DatabaseDescriptor.setCommitLogCompressor(null);
+            CommitLog.instance.resetUnsafe();
+        }
+    }
+
+    private File[] activeSegmentFiles()
+    {
+        List<File> segments = new ArrayList<File>();
+        for (String name : CommitLog.instance.getActiveSegmentNames())
+            segments.add(new File(DatabaseDescriptor.getCommitLogLocation(), name));
+        return segments.toArray(new File[segments.size()]);
+    }
+
     @Test
     public void testVersions()
     {
@@ -91,7 +91,7 @@ public class KeyCacheTest extends SchemaLoader
             RowIndexEntry expected = entry.getValue();
             RowIndexEntry actual = CacheService.instance.keyCache.get(entry.getKey());
             assertEquals(expected.position, actual.position);
-            assertEquals(expected.columnsIndex(), actual.columnsIndex());
+            assertEquals(expected.isIndexed(), actual.isIndexed());
             if (expected.isIndexed())
             {
                 assertEquals(expected.deletionTime(), actual.deletionTime());
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.Util;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapMemtableTest extends SchemaLoader
+{
+    private static final String TABLE = "Keyspace1";
+    private static final String CF = "Standard1";
+
+    @BeforeClass
+    public static void offHeapMemtables() throws Exception
+    {
+        ColumnFamilyStore cfs = Table.open(TABLE).getColumnFamilyStore(CF);
+        cfs.metadata.memtableAllocator(CFMetaData.MemtableAllocator.OFFHEAP);
+        // the current memtable was created with the default allocator
+        insert("0", "c", "v");
+        cfs.forceBlockingFlush();
+    }
+
+    private static void insert(String key, String column, String value)
+    {
+        RowMutation rm = new RowMutation(TABLE, ByteBufferUtil.bytes(key));
+        rm.add(new QueryPath(CF, null, ByteBufferUtil.bytes(column)), ByteBufferUtil.bytes(value), 0);
+        rm.apply();
+    }
+
+    @Test
+    public void testReadFromOffHeapMemtable() throws Exception
+    {
+        ColumnFamilyStore cfs = Table.open(TABLE).getColumnFamilyStore(CF);
+        Memtable memtable = cfs.getDataTracker().getMemtable();
+        assertTrue(memtable.isOffHeap());
+
+        insert("k1", "c1", "v1");
+        insert("k2", "c2", "v2");
+        // off-heap regions are accounted for
+        assertTrue(memtable.getLiveSize() > 0);
+
+        ColumnFamily cf = Util.getColumnFamily(Table.open(TABLE), Util.dk("k1"), CF);
+        IColumn column = cf.getColumn(ByteBufferUtil.bytes("c1"));
+        assertEquals(ByteBufferUtil.bytes("v1"), column.value());
+        // what is returned does not point to the memtable memory
+        assertFalse(column.name().isDirect());
+        assertFalse(column.value().isDirect());
+
+        List<Row> rows = Util.getRangeSlice(cfs);
+        assertTrue(rows.size() >= 3);
+        for (Row row : rows)
+        {
+            assertFalse(row.key.key.isDirect());
+            for (IColumn c : row.cf)
+                assertFalse(c.value().isDirect());
+        }
+    }
+
+    @Test
+    public void testMemoryFreedAfterLastReference() throws Exception
+    {
+        ColumnFamilyStore cfs = Table.open(TABLE).getColumnFamilyStore(CF);
+        insert("k3", "c3", "v3");
+        Memtable memtable = cfs.getDataTracker().getMemtable();
+
+        // a reader referencing the memtable can still read it once flushed
+        assertTrue(memtable.acquireReference());
+        cfs.forceBlockingFlush();
+        ColumnFamily cf = memtable.getColumnFamily(Util.dk("k3"));
+        ByteBuffer value = cf.getColumn(ByteBufferUtil.bytes("c3")).value();
+        assertTrue(value.isDirect());
+        assertEquals(ByteBufferUtil.bytes("v3"), value);
+
+        // the last reference frees the memory, after which the memtable cannot be referenced
+        memtable.releaseReference();
+        assertFalse(memtable.acquireReference());
+
+        cf = Util.getColumnFamily(Table.open(TABLE), Util.dk("k3"), CF);
+        assertEquals(ByteBufferUtil.bytes("v3"), cf.getColumn(ByteBufferUtil.bytes("c3")).value());
+    }
+}
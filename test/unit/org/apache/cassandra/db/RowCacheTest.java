@@ -18,17 +18,30 @@
 
 package org.apache.cassandra.db;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import org.junit.AfterClass;
 import org.junit.Test;
 
 import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.cache.CachedPartitionHead;
+import org.apache.cassandra.cache.RowCacheKey;
 import org.apache.cassandra.Util;
 import org.apache.cassandra.db.compaction.CompactionManager;
 import org.apache.cassandra.service.CacheService;
 import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.db.filter.ColumnSlice;
+import org.apache.cassandra.db.filter.QueryFilter;
 import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.db.filter.SliceQueryFilter;
+
+import static org.junit.Assert.*;
 
 public class RowCacheTest extends SchemaLoader
 {
@@ -113,6 +126,164 @@ public class RowCacheTest extends SchemaLoader
         CacheService.instance.setRowCacheCapacityInMB(0);
     }
 
+    @Test
+    public void testPartitionHeadCache() throws Exception
+    {
+        ColumnFamilyStore store = Table.open(KEYSPACE).getColumnFamilyStore(COLUMN_FAMILY);
+        CacheService.instance.invalidateRowCache();
+        CacheService.instance.setRowCacheCapacityInMB(1);
+        store.metadata.rowsPerPartitionToCache(5);
+        try
+        {
+            partitionHeadCache(store);
+        }
+        finally
+        {
+            store.metadata.rowsPerPartitionToCache(0);
+            CacheService.instance.invalidateRowCache();
+            CacheService.instance.setRowCacheCapacityInMB(0);
+        }
+    }
+
+    private void partitionHeadCache(ColumnFamilyStore store) throws Exception
+    {
+        // a partition of 20 columns, of which the first 5 are cached, and one of 3 columns, cached whole
+        RowMutation rm = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("wide"));
+        for (int i = 0; i < 20; i++)
+            rm.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes(String.format("col%02d", i))), ByteBufferUtil.bytes("val" + i), 0);
+        rm.apply();
+        rm = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("narrow"));
+        for (int i = 0; i < 3; i++)
+            rm.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes(String.format("col%02d", i))), ByteBufferUtil.bytes("val" + i), 0);
+        rm.apply();
+        store.forceBlockingFlush();
+
+        DecoratedKey wide = Util.dk("wide");
+        assertColumns(store, wide, 3, "col00", "col01", "col02");
+        CachedPartitionHead head = (CachedPartitionHead) CacheService.instance.rowCache.getInternal(new RowCacheKey(store.metadata.cfId, wide));
+        assertEquals(5, head.columns.getColumnCount());
+        assertEquals(ByteBufferUtil.bytes("col04"), head.end);
+
+        // slices going past the head are read from the sstables
+        assertColumns(store, wide, 7, "col00", "col01", "col02", "col03", "col04", "col05", "col06");
+        assertNotNull(store.getColumnFamily(QueryFilter.getNamesFilter(wide, new QueryPath(COLUMN_FAMILY), ByteBufferUtil.bytes("col12"))).getColumn(ByteBufferUtil.bytes("col12")));
+
+        // writes in the head update it, those past it are left out
+        rm = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("wide"));
+        rm.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes("col02")), ByteBufferUtil.bytes("updated"), 1);
+        rm.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes("col12")), ByteBufferUtil.bytes("updated"), 1);
+        rm.apply();
+        head = (CachedPartitionHead) CacheService.instance.rowCache.getInternal(new RowCacheKey(store.metadata.cfId, wide));
+        assertEquals(ByteBufferUtil.bytes("updated"), head.columns.getColumn(ByteBufferUtil.bytes("col02")).value());
+        assertNull(head.columns.getColumn(ByteBufferUtil.bytes("col12")));
+        ColumnFamily cf = store.getColumnFamily(QueryFilter.getNamesFilter(wide, new QueryPath(COLUMN_FAMILY), ByteBufferUtil.bytes("col12")));
+        assertEquals(ByteBufferUtil.bytes("updated"), cf.getColumn(ByteBufferUtil.bytes("col12")).value());
+
+        // writes adding rows to the head trim it back to the rows to cache
+        rm = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("wide"));
+        rm.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes("col01a")), ByteBufferUtil.bytes("inserted"), 1);
+        rm.apply();
+        head = (CachedPartitionHead) CacheService.instance.rowCache.getInternal(new RowCacheKey(store.metadata.cfId, wide));
+        assertEquals(5, head.columns.getColumnCount());
+        assertEquals(ByteBufferUtil.bytes("col03"), head.end);
+        assertNull(head.columns.getColumn(ByteBufferUtil.bytes("col04")));
+        assertColumns(store, wide, 6, "col00", "col01", "col01a", "col02", "col03", "col04");
+
+        // a partition shorter than the head is cached whole
+        DecoratedKey narrow = Util.dk("narrow");
+        assertColumns(store, narrow, 10, "col00", "col01", "col02");
+        head = (CachedPartitionHead) CacheService.instance.rowCache.getInternal(new RowCacheKey(store.metadata.cfId, narrow));
+        assertTrue(head.isWholePartition());
+
+        // until writes make it longer than the head
+        rm = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("narrow"));
+        for (int i = 3; i < 7; i++)
+            rm.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes(String.format("col%02d", i))), ByteBufferUtil.bytes("val" + i), 1);
+        rm.apply();
+        head = (CachedPartitionHead) CacheService.instance.rowCache.getInternal(new RowCacheKey(store.metadata.cfId, narrow));
+        assertEquals(5, head.columns.getColumnCount());
+        assertEquals(ByteBufferUtil.bytes("col04"), head.end);
+        assertColumns(store, narrow, 10, "col00", "col01", "col02", "col03", "col04", "col05", "col06");
+    }
+
+    private static void assertColumns(ColumnFamilyStore store, DecoratedKey key, int count, String... names)
+    {
+        ColumnFamily cf = store.getColumnFamily(key, new QueryPath(store.columnFamily), ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, count);
+        assertEquals(names.length, cf.getColumnCount());
+        int i = 0;
+        for (IColumn column : cf.getSortedColumns())
+            assertEquals(ByteBufferUtil.bytes(names[i++]), column.name());
+    }
+
+    @Test
+    public void testSerializedRowFilter() throws Exception
+    {
+        ColumnFamilyStore store = Table.open(KEYSPACE).getColumnFamilyStore(COLUMN_FAMILY);
+        CacheService.instance.invalidateRowCache();
+        CacheService.instance.setRowCacheCapacityInMB(1);
+        try
+        {
+            serializedRowFilter(store);
+        }
+        finally
+        {
+            CacheService.instance.invalidateRowCache();
+            CacheService.instance.setRowCacheCapacityInMB(0);
+        }
+    }
+
+    private void serializedRowFilter(ColumnFamilyStore store) throws Exception
+    {
+        // a partition of the even columns from col00 to col98, col10 being deleted
+        RowMutation rm = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("filtered"));
+        for (int i = 0; i < 100; i += 2)
+            rm.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes(String.format("col%02d", i))), ByteBufferUtil.bytes("val" + i), 0);
+        rm.delete(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes("col10")), 1);
+        rm.apply();
+        store.forceBlockingFlush();
+
+        DecoratedKey key = Util.dk("filtered");
+        QueryPath path = new QueryPath(COLUMN_FAMILY);
+        store.getColumnFamily(QueryFilter.getIdentityFilter(key, path));
+        ColumnFamily cached = (ColumnFamily) CacheService.instance.rowCache.getInternal(new RowCacheKey(store.metadata.cfId, key));
+        assertEquals(50, cached.getColumnCount());
+
+        SortedSet<ByteBuffer> names = new TreeSet<ByteBuffer>(store.getComparator());
+        for (String name : Arrays.asList("col00", "col01", "col10", "col40", "col98", "col99"))
+            names.add(ByteBufferUtil.bytes(name));
+        ColumnSlice[] slices = new ColumnSlice[]{ new ColumnSlice(ByteBufferUtil.bytes("col02"), ByteBufferUtil.bytes("col08")),
+                                                  new ColumnSlice(ByteBufferUtil.bytes("col49"), ByteBufferUtil.bytes("col61")) };
+        ColumnSlice[] reversedSlices = new ColumnSlice[]{ new ColumnSlice(ByteBufferUtil.bytes("col61"), ByteBufferUtil.bytes("col49")),
+                                                          new ColumnSlice(ByteBufferUtil.bytes("col08"), ByteBufferUtil.bytes("col02")) };
+        List<QueryFilter> filters = Arrays.asList(QueryFilter.getNamesFilter(key, path, names),
+                                                  QueryFilter.getSliceFilter(key, path, ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, 5),
+                                                  QueryFilter.getSliceFilter(key, path, ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, true, 3),
+                                                  QueryFilter.getSliceFilter(key, path, ByteBufferUtil.bytes("col05"), ByteBufferUtil.bytes("col31"), false, 100),
+                                                  QueryFilter.getSliceFilter(key, path, ByteBufferUtil.bytes("col31"), ByteBufferUtil.bytes("col05"), true, 100),
+                                                  QueryFilter.getSliceFilter(key, path, ByteBufferUtil.bytes("col99"), ByteBufferUtil.EMPTY_BYTE_BUFFER, false, 10),
+                                                  new QueryFilter(key, path, new SliceQueryFilter(slices, false, 100)),
+                                                  new QueryFilter(key, path, new SliceQueryFilter(reversedSlices, true, 100)));
+
+        // the cached row filtered in place selects the same columns as the deserialized one
+        for (QueryFilter filter : filters)
+            assertEquals(names(store.filterColumnFamily(cached, filter, store.gcBefore())), names(store.getColumnFamily(filter)));
+        assertEquals(Arrays.asList("col00", "col40", "col98"), names(store.getColumnFamily(filters.get(0))));
+        assertEquals(Arrays.asList("col06", "col08", "col12", "col14", "col16", "col18", "col20", "col22", "col24", "col26", "col28", "col30"),
+                     names(store.getColumnFamily(filters.get(4))));
+    }
+
+    private static List<String> names(ColumnFamily cf) throws Exception
+    {
+        List<String> names = new ArrayList<String>();
+        if (cf != null)
+        {
+            for (IColumn column : cf.getSortedColumns())
+                if (column.isLive())
+                    names.add(ByteBufferUtil.string(column.name()));
+        }
+        return names;
+    }
+
     @Test
     public void testRowCacheLoad() throws Exception
     {
@@ -129,6 +300,30 @@ public class RowCacheTest extends SchemaLoader
         CacheService.instance.setRowCacheCapacityInMB(0);
     }
 
+    @Test
+    public void testRowCacheBackgroundLoad() throws Exception
+    {
+        CompactionManager.instance.disableAutoCompaction();
+        CacheService.instance.setRowCacheCapacityInMB(1);
+
+        ColumnFamilyStore store = Table.open(KEYSPACE).getColumnFamilyStore(COLUMN_FAMILY);
+        CacheService.instance.invalidateRowCache();
+        insertData(KEYSPACE, COLUMN_FAMILY, 0, 100);
+        readData(KEYSPACE, COLUMN_FAMILY, 0, 100);
+        CacheService.instance.rowCache.submitWrite(Integer.MAX_VALUE).get();
+        CacheService.instance.invalidateRowCache();
+
+        // loaded by the compaction executor once started
+        CacheService.instance.rowCache.scheduleLoading(store);
+        CacheService.instance.startLoading();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (CacheService.instance.rowCache.size() < 100 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assert CacheService.instance.rowCache.size() == 100 : CacheService.instance.rowCache.size();
+
+        CacheService.instance.setRowCacheCapacityInMB(0);
+    }
+
     public void rowCacheLoad(int totalKeys, int keysToSave, boolean reduceLoadCapacity) throws Exception
     {
         CompactionManager.instance.disableAutoCompaction();
@@ -43,6 +43,7 @@ import org.apache.cassandra.Util;
 import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.db.marshal.Int32Type;
 import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.service.CacheService;
 import org.apache.cassandra.utils.ByteBufferUtil;
 
 
@@ -437,7 +438,9 @@ public class TableTest extends SchemaLoader
         // verify that we do indeed have multiple index entries
         SSTableReader sstable = cfStore.getSSTables().iterator().next();
         RowIndexEntry indexEntry = sstable.getPosition(key, SSTableReader.Operator.EQ);
-        assert indexEntry.columnsIndex().size() > 2;
+        assert sstable.getColumnIndex(indexEntry).size() > 2;
+        // the column index was cached off-heap by the lookup
+        assert CacheService.instance.columnIndexCache.size() > 0;
 
         validateSliceLarge(cfStore);
     }
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.commitlog;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.Util;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import static org.apache.cassandra.Util.column;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommitLogReplayerTest extends SchemaLoader
+{
+    private static final String KEYSPACE = "Keyspace1";
+    private static final String COLUMN_FAMILY = "Standard1";
+
+    @Test
+    public void testReplayOrderPerPartition() throws Exception
+    {
+        // interleave the versions of many partitions, so that they are spread over all the replay shards
+        int keys = 64, versions = 50;
+        for (int v = 0; v < versions; v++)
+        {
+            for (int k = 0; k < keys; k++)
+            {
+                RowMutation rm = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("key" + k));
+                ColumnFamily cf = ColumnFamily.create(KEYSPACE, COLUMN_FAMILY);
+                cf.addColumn(column("last", String.valueOf(v), v));
+                cf.addColumn(column("v" + v, "", v));
+                rm.add(cf);
+                rm.apply();
+            }
+        }
+        Table table = Table.open(KEYSPACE);
+        table.getColumnFamilyStore(COLUMN_FAMILY).clearUnsafe();
+
+        CommitLog.instance.resetUnsafe(); // disassociate segments from live CL
+        File[] files = new File(DatabaseDescriptor.getCommitLogLocation()).listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return CommitLogDescriptor.isValid(name) && !CommitLog.instance.allocator.manages(name);
+            }
+        });
+        Arrays.sort(files, new CommitLogSegment.CommitLogSegmentFileComparator());
+        long totalBytes = 0;
+        for (File file : files)
+            totalBytes += file.length();
+
+        final ConcurrentMap<ByteBuffer, Long> lastReplayed = new ConcurrentHashMap<ByteBuffer, Long>();
+        final AtomicBoolean outOfOrder = new AtomicBoolean();
+        final AtomicInteger progressLogs = new AtomicInteger();
+        final long[] lastBytesRead = new long[1];
+        final long expectedTotal = totalBytes;
+        CommitLogReplayer replayer = new CommitLogReplayer(0)
+        {
+            protected boolean pointInTimeExceeded(RowMutation rm)
+            {
+                ColumnFamily cf = rm.getColumnFamily(Schema.instance.getId(KEYSPACE, COLUMN_FAMILY));
+                if (cf != null)
+                {
+                    // the mutations of a partition are replayed by a single shard, in log order
+                    Long previous = lastReplayed.put(rm.key(), cf.maxTimestamp());
+                    if (previous != null && previous >= cf.maxTimestamp())
+                        outOfOrder.set(true);
+                }
+                return super.pointInTimeExceeded(rm);
+            }
+
+            protected void logProgress(long bytesRead, long totalBytes, double elapsedSeconds, long eta)
+            {
+                super.logProgress(bytesRead, totalBytes, elapsedSeconds, eta);
+                assertEquals(expectedTotal, totalBytes);
+                assertTrue(bytesRead >= lastBytesRead[0] && bytesRead <= totalBytes);
+                assertTrue(eta >= 0);
+                lastBytesRead[0] = bytesRead;
+                progressLogs.incrementAndGet();
+            }
+        };
+        replayer.recover(files);
+        int replayed = replayer.blockForWrites();
+
+        assertFalse(outOfOrder.get());
+        assertTrue(replayed >= keys * versions);
+        assertTrue(progressLogs.get() >= keys * versions);
+        for (int k = 0; k < keys; k++)
+        {
+            ColumnFamily cf = Util.getColumnFamily(table, Util.dk("key" + k), COLUMN_FAMILY);
+            // every mutation was applied, and the last one won
+            assertEquals(versions + 1, cf.getColumnCount());
+            assertEquals(ByteBufferUtil.bytes(String.valueOf(versions - 1)), cf.getColumn(ByteBufferUtil.bytes("last")).value());
+        }
+    }
+}
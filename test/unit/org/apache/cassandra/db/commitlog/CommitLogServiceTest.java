@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.commitlog;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.config.Config;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.io.FSWriteError;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CommitLogServiceTest extends SchemaLoader
+{
+    @Test
+    public void testFailedSyncFailsWaitingWriters()
+    {
+        Config.DiskFailurePolicy oldPolicy = DatabaseDescriptor.getDiskFailurePolicy();
+        DatabaseDescriptor.setDiskFailurePolicy(Config.DiskFailurePolicy.ignore);
+
+        AbstractCommitLogService service = new AbstractCommitLogService("FAILING-SYNCER", 10000, new Runnable()
+        {
+            public void run()
+            {
+                throw new FSWriteError(new IOException("injected"), DatabaseDescriptor.getCommitLogLocation());
+            }
+        })
+        {
+            protected void maybeWaitForSync(CommitLogSegment segment, int position)
+            {
+                waitForSync(segment, position);
+            }
+        };
+
+        CommitLogSegment segment = CommitLogSegment.freshSegment();
+        try
+        {
+            service.finishWriteFor(segment, 1);
+            fail("a write waiting for a failed sync should fail");
+        }
+        catch (FSWriteError e)
+        {
+            assertEquals("injected", e.getCause().getMessage());
+            assertEquals(0, service.getPendingTasks());
+        }
+        finally
+        {
+            service.shutdown();
+            segment.discard(true);
+            DatabaseDescriptor.setDiskFailurePolicy(oldPolicy);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.io.sstable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.Util;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexSummaryManagerTest extends SchemaLoader
+{
+    @Test
+    public void testIntervalLevels()
+    {
+        assertEquals(Arrays.asList(32, 64, 128, 256, 512, 1024, 2048), IndexSummaryManager.intervalLevels(128, 32, 2048));
+        assertEquals(Arrays.asList(128), IndexSummaryManager.intervalLevels(128, 128, 128));
+        // odd intervals can not be halved
+        assertEquals(Arrays.asList(3, 6, 12), IndexSummaryManager.intervalLevels(6, 1, 12));
+    }
+
+    @Test
+    public void testDistribute()
+    {
+        List<Integer> levels = IndexSummaryManager.intervalLevels(128, 32, 2048);
+        IndexSummaryManager.Candidate hot = new IndexSummaryManager.Candidate(null, 128000, 20, 100, 128);
+        IndexSummaryManager.Candidate cold = new IndexSummaryManager.Candidate(null, 128000, 20, 1, 128);
+        List<IndexSummaryManager.Candidate> candidates = Arrays.asList(hot, cold);
+
+        // both fit at index_interval
+        long memory = IndexSummaryManager.distribute(candidates, levels, 128, 2 * 1000 * 20);
+        assert memory <= 2 * 1000 * 20 : memory;
+        assert hot.interval <= 128 : hot.interval;
+        assert hot.interval <= cold.interval;
+
+        // not enough memory: the cold sstable is made sparser first
+        memory = IndexSummaryManager.distribute(candidates, levels, 128, 750 * 20);
+        assert memory <= 750 * 20 : memory;
+        assertEquals(256, hot.interval);
+        assertEquals(512, cold.interval);
+
+        // plenty of memory: only the read sstables get denser than index_interval
+        IndexSummaryManager.Candidate unread = new IndexSummaryManager.Candidate(null, 128000, 20, 0, 128);
+        IndexSummaryManager.distribute(Arrays.asList(hot, unread), levels, 128, 1000000000);
+        assertEquals(32, hot.interval);
+        assertEquals(128, unread.interval);
+
+        // not even the sparsest sampling fits
+        memory = IndexSummaryManager.distribute(candidates, levels, 128, 10);
+        assertEquals(2048, hot.interval);
+        assertEquals(2048, cold.interval);
+        assertEquals(2 * 20 * 63, memory);
+    }
+
+    @Test
+    public void testRedistributeSummaries() throws Exception
+    {
+        Table table = Table.open("Keyspace1");
+        ColumnFamilyStore store = table.getColumnFamilyStore("Standard4");
+        int keys = 1000;
+        for (int i = 0; i < 2; i++)
+        {
+            for (int j = 0; j < keys; j++)
+            {
+                RowMutation rm = new RowMutation("Keyspace1", ByteBufferUtil.bytes(i + "-" + j));
+                rm.add(new QueryPath("Standard4", null, ByteBufferUtil.bytes("0")), ByteBufferUtil.EMPTY_BYTE_BUFFER, j);
+                rm.apply();
+            }
+            store.forceBlockingFlush();
+        }
+        List<SSTableReader> sstables = new ArrayList<SSTableReader>(store.markCurrentSSTablesReferenced());
+        try
+        {
+            assertEquals(2, sstables.size());
+            long memory = 0;
+            for (SSTableReader sstable : sstables)
+                memory += sstable.getIndexSummaryMemorySize();
+
+            // read the keys of the first sstable only
+            SSTableReader hot = null, cold = null;
+            for (SSTableReader sstable : sstables)
+            {
+                if (sstable.getPosition(Util.dk("0-0"), SSTableReader.Operator.EQ, false) != null)
+                    hot = sstable;
+                else
+                    cold = sstable;
+            }
+            assert hot != null && cold != null;
+            for (int j = 0; j < keys; j++)
+                hot.getPosition(Util.dk("0-" + j), SSTableReader.Operator.EQ);
+
+            // enough for the hot sstable at index_interval, the cold one has to be made sparser
+            long capacity = memory * 5 / 8;
+            IndexSummaryManager.instance.redistributeSummaries(sstables, capacity);
+            assert hot.getIndexInterval() < cold.getIndexInterval() : hot.getIndexInterval() + " " + cold.getIndexInterval();
+            assert hot.getIndexInterval() <= DatabaseDescriptor.getIndexInterval();
+            assert hot.getIndexSummaryMemorySize() + cold.getIndexSummaryMemorySize() <= capacity;
+
+            for (int j = 0; j < keys; j++)
+            {
+                assert hot.getPosition(Util.dk("0-" + j), SSTableReader.Operator.EQ, false) != null;
+                assert cold.getPosition(Util.dk("1-" + j), SSTableReader.Operator.EQ, false) != null;
+            }
+
+            // split row counts account for the interval of each sstable
+            Token min = StorageService.getPartitioner().getMinimumToken();
+            long rows = 0;
+            for (Pair<Range<Token>, Long> split : StorageService.instance.getSplits("Keyspace1", "Standard4", new Range<Token>(min, min), 1000000))
+                rows += split.right;
+            assert Math.abs(rows - 2 * keys) < cold.getIndexInterval() : rows;
+        }
+        finally
+        {
+            SSTableReader.releaseReferences(sstables);
+        }
+    }
+
+    @Test
+    public void testReplacedSummaryReleasedByLastReader()
+    {
+        IndexSummaryBuilder builder = new IndexSummaryBuilder(10, 1);
+        for (int i = 0; i < 10; i++)
+            builder.maybeAddEntry(ByteBufferUtil.bytes(i), i);
+        IndexSummary summary = builder.build(StorageService.getPartitioner());
+
+        // a reader still holds the summary once its sstable has replaced it
+        assert summary.reference();
+        summary.unreference();
+        assertEquals(9, summary.getPosition(9));
+        assertEquals(ByteBufferUtil.bytes(9), summary.getKeyBuffer(9));
+
+        // the last reader frees it, it can no longer be referenced
+        summary.unreference();
+        assert !summary.reference();
+    }
+}
@@ -31,6 +31,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.*;
 
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
 import org.junit.runner.RunWith;
 
 import org.apache.cassandra.OrderedJUnit4ClassRunner;
@@ -284,8 +285,7 @@ public class SSTableReaderTest extends SchemaLoader
 
         // test to see if sstable can be opened as expected
         SSTableReader target = SSTableReader.open(desc);
-        byte[][] keySamples = target.getKeySamples();
-        assert keySamples.length == 1 && Arrays.equals(keySamples[0], firstKey.key.array());
+        assert target.getKeySampleSize() == 1 && Arrays.equals(target.getKeySample(0), firstKey.key.array());
         assert target.first.equals(firstKey);
         assert target.last.equals(lastKey);
     }
@@ -316,6 +316,52 @@ public class SSTableReaderTest extends SchemaLoader
         assert reopened.first.token instanceof LocalToken;
     }
 
+    @Test
+    public void testResampleSummary() throws Exception
+    {
+        Table table = Table.open("Keyspace1");
+        ColumnFamilyStore store = table.getColumnFamilyStore("Standard3");
+        for (int j = 0; j < 1000; j++)
+        {
+            RowMutation rm = new RowMutation("Keyspace1", ByteBufferUtil.bytes(String.valueOf(j)));
+            rm.add(new QueryPath("Standard3", null, ByteBufferUtil.bytes("0")), ByteBufferUtil.EMPTY_BYTE_BUFFER, j);
+            rm.apply();
+        }
+        store.forceBlockingFlush();
+        SSTableReader sstable = store.getSSTables().iterator().next();
+
+        int indexInterval = DatabaseDescriptor.getIndexInterval();
+        int samples = sstable.getKeySampleSize();
+        long memorySize = sstable.getIndexSummaryMemorySize();
+
+        // coarser sampling takes less memory
+        sstable.resampleSummary(indexInterval * 4);
+        assertEquals(indexInterval * 4, sstable.getIndexInterval());
+        assertEquals((samples + 3) / 4, sstable.getKeySampleSize());
+        assert sstable.getIndexSummaryMemorySize() < memorySize;
+        assertAllKeysFound(sstable, 1000);
+
+        // denser sampling, rebuilt from the index
+        sstable.resampleSummary(indexInterval / 2);
+        assertEquals(indexInterval / 2, sstable.getIndexInterval());
+        assert sstable.getIndexSummaryMemorySize() > memorySize;
+        assertAllKeysFound(sstable, 1000);
+
+        // the summary saved when the sstable was written is mapped back
+        SSTableReader reopened = SSTableReader.open(sstable.descriptor);
+        assertEquals(samples, reopened.getKeySampleSize());
+        assertAllKeysFound(reopened, 1000);
+    }
+
+    private void assertAllKeysFound(SSTableReader sstable, int keys)
+    {
+        for (int j = 0; j < keys; j++)
+        {
+            DecoratedKey dk = Util.dk(String.valueOf(j));
+            assert sstable.getPosition(dk, SSTableReader.Operator.EQ, false) != null : dk;
+        }
+    }
+
     private void assertIndexQueryWorks(ColumnFamilyStore indexedCFS) throws IOException
     {
         assert "Indexed1".equals(indexedCFS.getColumnFamilyName());
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.io.sstable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.apache.cassandra.cache.ColumnIndexCache;
+import org.apache.cassandra.cache.ColumnIndexCacheKey;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.IntegerType;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+
+import static junit.framework.Assert.*;
+import static org.apache.cassandra.io.sstable.IndexHelper.IndexInfo;
+import static org.apache.cassandra.utils.ByteBufferUtil.bytes;
+
+public class SerializedColumnIndexTest
+{
+    private static List<IndexInfo> indexes()
+    {
+        List<IndexInfo> indexes = new ArrayList<IndexInfo>();
+        indexes.add(new IndexInfo(bytes(0L), bytes(5L), 0, 10));
+        indexes.add(new IndexInfo(bytes(10L), bytes(15L), 10, 20));
+        indexes.add(new IndexInfo(bytes(20L), bytes(25L), 30, 30));
+        return indexes;
+    }
+
+    private static SerializedColumnIndex serialize(List<IndexInfo> indexes) throws IOException
+    {
+        DataOutputBuffer out = new DataOutputBuffer();
+        out.writeInt(indexes.size());
+        for (IndexInfo info : indexes)
+            info.serialize(out);
+        return SerializedColumnIndex.deserialize(new DataInputStream(new ByteArrayInputStream(out.getData(), 0, out.getLength())));
+    }
+
+    @Test
+    public void testIndexForMatchesIndexHelper() throws IOException
+    {
+        List<IndexInfo> indexes = indexes();
+        checkIndexFor(indexes, SerializedColumnIndex.create(indexes));
+        checkIndexFor(indexes, serialize(indexes));
+    }
+
+    private void checkIndexFor(List<IndexInfo> indexes, SerializedColumnIndex serialized)
+    {
+        AbstractType comp = IntegerType.instance;
+
+        for (long name = -1; name <= 30; name++)
+        {
+            for (int lastIndex = -1; lastIndex <= 4; lastIndex++)
+            {
+                for (boolean reversed : new boolean[]{ false, true })
+                {
+                    assertEquals(name + " " + lastIndex + " " + reversed,
+                                 IndexHelper.indexFor(bytes(name), indexes, comp, reversed, lastIndex),
+                                 serialized.indexFor(bytes(name), comp, reversed, lastIndex));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDeserialize() throws IOException
+    {
+        List<IndexInfo> indexes = indexes();
+        SerializedColumnIndex serialized = serialize(indexes);
+        assertEquals(indexes.size(), serialized.size());
+        for (int i = 0; i < indexes.size(); i++)
+        {
+            assertEquals(indexes.get(i).firstName, serialized.firstName(i));
+            assertEquals(indexes.get(i).lastName, serialized.lastName(i));
+            assertEquals(indexes.get(i).offset, serialized.offset(i));
+            assertEquals(indexes.get(i).width, serialized.width(i));
+        }
+        assertTrue(serialized.memorySize() > serialized.serializedSize());
+        assertTrue(SerializedColumnIndex.create(new ArrayList<IndexInfo>()).isEmpty());
+    }
+
+    @Test
+    public void testCachedIndexFreedWithLastReference() throws IOException
+    {
+        ColumnIndexCache cache = ColumnIndexCache.create(1024 * 1024);
+        ColumnIndexCacheKey key = new ColumnIndexCacheKey(new Descriptor(new File("."), "Keyspace1", "Standard1", 1, false), 0);
+
+        // the reader's reference outlives the cache's
+        SerializedColumnIndex read = serialize(indexes());
+        cache.put(key, read);
+        SerializedColumnIndex cached = cache.get(key);
+        assertSame(read, cached);
+        cached.unreference();
+        cache.remove(key);
+        assertEquals(3, read.size());
+        assertEquals(bytes(20L), read.firstName(2));
+        read.unreference();
+        assertFalse(read.reference());
+
+        // the cache's reference outlives the reader's, until the cache is cleared
+        read = serialize(indexes());
+        cache.put(key, read);
+        read.unreference();
+        cached = cache.get(key);
+        assertEquals(bytes(10L), cached.firstName(1));
+        cached.unreference();
+        cache.clear();
+        assertNull(cache.get(key));
+        assertFalse(read.reference());
+
+        // a replaced index is released by the cache
+        read = serialize(indexes());
+        cache.put(key, read);
+        read.unreference();
+        SerializedColumnIndex other = serialize(indexes());
+        cache.put(key, other);
+        assertFalse(read.reference());
+        other.unreference();
+        cache.clear();
+        assertFalse(other.reference());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.locator.TokenMetadata;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.UUIDGen;
+
+import static org.junit.Assert.assertEquals;
+
+public class DecommissionVerifierTest extends SchemaLoader
+{
+    private static Token token(String key)
+    {
+        return StorageService.getPartitioner().getToken(ByteBufferUtil.bytes(key));
+    }
+
+    @Test
+    public void testRanges() throws Exception
+    {
+        InetAddress ep1 = InetAddress.getByName("127.0.0.1");
+        InetAddress ep2 = InetAddress.getByName("127.0.0.2");
+        // the range of "a" is recorded by both events, it is verified once
+        ByteBuffer first = MetadataLogValue.encode(Arrays.asList(MetadataLog.rangeEntry("Keyspace1", token("a"), ep1),
+                                                                 MetadataLog.rangeEntry("Keyspace2", token("b"), ep1)));
+        ByteBuffer second = MetadataLogValue.encode(Arrays.asList(MetadataLog.rangeEntry("Keyspace1", token("a"), ep1),
+                                                                  MetadataLog.rangeEntry("Keyspace1", token("a"), ep2)));
+
+        List<MetadataLog.Event> events = new ArrayList<MetadataLog.Event>();
+        for (ByteBuffer value : Arrays.asList(first, second))
+        {
+            RowMutation rm = MetadataLog.add("ranges", UUIDGen.getTimeUUID(), "", Metadata.Decommission_Tag, value, "");
+            for (ColumnFamily cf : rm.getColumnFamilies())
+                for (IColumn col : cf)
+                    events.add(new MetadataLog.Event(col));
+        }
+
+        Map<String, Multimap<Token, InetAddress>> ranges = DecommissionVerifier.ranges(events);
+        assertEquals(Arrays.asList("Keyspace1", "Keyspace2"), new ArrayList<String>(ranges.keySet()));
+        assertEquals(2, ranges.get("Keyspace1").size());
+        assertEquals(new HashSet<InetAddress>(Arrays.asList(ep1, ep2)), ranges.get("Keyspace1").get(token("a")));
+        assertEquals(Collections.singleton(ep1), ranges.get("Keyspace2").get(token("b")));
+    }
+
+    @Test
+    public void testRangeEvents() throws Exception
+    {
+        InetAddress ep = InetAddress.getByName("127.0.0.2");
+        Multimap<Range<Token>, InetAddress> moved = LinkedHashMultimap.create();
+        int count = MetadataLog.MAX_RANGES_PER_EVENT * 2 + 1;
+        for (int i = 0; i < count; i++)
+            moved.put(new Range<Token>(token("r" + i), token("s" + i)), ep);
+
+        List<RowMutation> mutations = MetadataLog.rangeEvents("rangeEvents", Metadata.Decommission_Tag, "Keyspace1", moved);
+        assertEquals(3, mutations.size());
+
+        List<MetadataLog.Event> events = new ArrayList<MetadataLog.Event>();
+        for (RowMutation rm : mutations)
+            for (ColumnFamily cf : rm.getColumnFamilies())
+                for (IColumn col : cf)
+                    events.add(new MetadataLog.Event(col));
+        Map<String, Multimap<Token, InetAddress>> ranges = DecommissionVerifier.ranges(events);
+        assertEquals(Collections.singleton("Keyspace1"), ranges.keySet());
+        assertEquals(count, ranges.get("Keyspace1").size());
+        assertEquals(Collections.singleton(ep), ranges.get("Keyspace1").get(token("s0")));
+    }
+
+    @Test
+    public void testVerify() throws Exception
+    {
+        InetAddress ep1 = InetAddress.getByName("127.0.0.1");
+        InetAddress ep2 = InetAddress.getByName("127.0.0.2");
+        TokenMetadata tokenMetadata = new TokenMetadata();
+        tokenMetadata.updateNormalToken(token("m"), ep1);
+        tokenMetadata.updateNormalToken(token("z"), ep2);
+
+        // Keyspace1 has a single replica: the ranges ending at "c" and "m" belong to ep1, the one ending at "q" to ep2
+        Multimap<Token, InetAddress> keyspace1 = LinkedHashMultimap.create();
+        keyspace1.put(token("c"), ep1);
+        keyspace1.put(token("m"), ep1);
+        keyspace1.put(token("q"), ep2);
+        keyspace1.put(token("q"), ep1); // failed
+        for (int i = 0; i < DecommissionVerifier.CHUNK_SIZE * 2; i++)
+            keyspace1.put(token("n" + i), ep2);
+        Multimap<Token, InetAddress> dropped = LinkedHashMultimap.create();
+        dropped.put(token("c"), ep1); // failed
+
+        Map<String, Multimap<Token, InetAddress>> ranges = new LinkedHashMap<String, Multimap<Token, InetAddress>>();
+        ranges.put("Keyspace1", keyspace1);
+        ranges.put("NoSuchKeyspace", dropped);
+
+        final Map<String, int[]> progress = new LinkedHashMap<String, int[]>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            DecommissionVerifier verifier = new DecommissionVerifier(tokenMetadata, executor);
+            int failed = verifier.verify("verifier", ranges, new DecommissionVerifier.ProgressListener()
+            {
+                public void progress(String keyspace, int verified, int failed, int total)
+                {
+                    progress.put(keyspace, new int[]{ verified, failed, total });
+                }
+            });
+            assertEquals(2, failed);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        int total = keyspace1.size();
+        assertEquals(total - 1, progress.get("Keyspace1")[0]);
+        assertEquals(1, progress.get("Keyspace1")[1]);
+        assertEquals(total, progress.get("Keyspace1")[2]);
+        assertEquals(0, progress.get("NoSuchKeyspace")[0]);
+        assertEquals(1, progress.get("NoSuchKeyspace")[1]);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataLogPolicyTest
+{
+    private static int admitted(MetadataLogPolicy policy, int events)
+    {
+        int admitted = 0;
+        for (int i = 0; i < events; i++)
+        {
+            if (policy.admit())
+                admitted++;
+        }
+        return admitted;
+    }
+
+    @Test
+    public void testUnlimited()
+    {
+        assertTrue(new MetadataLogPolicy("ks.cf", "").isUnlimited());
+        assertTrue(new MetadataLogPolicy("ks.cf", "some admin data").isUnlimited());
+        assertTrue(new MetadataLogPolicy("ks.cf", "every=x").isUnlimited());
+        assertEquals(100, admitted(new MetadataLogPolicy("ks.cf", ""), 100));
+    }
+
+    @Test
+    public void testEvery()
+    {
+        MetadataLogPolicy policy = new MetadataLogPolicy("ks.cf", "every=10");
+        assertFalse(policy.isUnlimited());
+        assertEquals(10, admitted(policy, 100));
+    }
+
+    @Test
+    public void testSample()
+    {
+        assertEquals(0, admitted(new MetadataLogPolicy("ks.cf", "sample=0"), 100));
+        assertEquals(100, admitted(new MetadataLogPolicy("ks.cf", "sample=1"), 100));
+        int admitted = admitted(new MetadataLogPolicy("ks.cf", "sample=0.5"), 10000);
+        assertTrue(String.valueOf(admitted), admitted > 4000 && admitted < 6000);
+    }
+
+    @Test
+    public void testRate()
+    {
+        MetadataLogPolicy policy = new MetadataLogPolicy("ks.cf", "rate=10");
+        long now = System.nanoTime();
+        int admitted = 0;
+        for (int i = 0; i < 100; i++)
+        {
+            if (policy.acquire(now))
+                admitted++;
+        }
+        // the initial burst
+        assertTrue(String.valueOf(admitted), admitted >= 10 && admitted <= 11);
+
+        // half a second later, half the bucket is refilled
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        admitted = 0;
+        for (int i = 0; i < 100; i++)
+        {
+            if (policy.acquire(now))
+                admitted++;
+        }
+        assertEquals(5, admitted);
+    }
+
+    @Test
+    public void testRateBelowOne()
+    {
+        // one event every other second
+        MetadataLogPolicy policy = new MetadataLogPolicy("ks.cf", "rate=0.5");
+        long now = System.nanoTime();
+        assertTrue(policy.acquire(now));
+        assertFalse(policy.acquire(now));
+
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertFalse(policy.acquire(now));
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertTrue(policy.acquire(now));
+    }
+
+    @Test
+    public void testCombined()
+    {
+        // every other event, then rate limited
+        MetadataLogPolicy policy = new MetadataLogPolicy("ks.cf", "every=2; rate=5");
+        assertEquals(5, admitted(policy, 20));
+    }
+}
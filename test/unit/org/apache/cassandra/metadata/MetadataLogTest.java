@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+import com.google.common.collect.Lists;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.UUIDGen;
+
+import static org.apache.cassandra.cql3.QueryProcessor.processInternal;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataLogTest extends SchemaLoader
+{
+    @BeforeClass
+    public static void setupRing()
+    {
+        // log queries go through StorageProxy, which needs this node to own a token
+        StorageService.instance.getTokenMetadata().updateNormalToken(StorageService.getPartitioner().getRandomToken(), FBUtilities.getBroadcastAddress());
+    }
+
+    private static UUID at(long millis)
+    {
+        return UUIDGen.getUUID(ByteBuffer.wrap(UUIDGen.getTimeUUIDBytes(millis)));
+    }
+
+    private static void apply(RowMutation rm)
+    {
+        rm.apply();
+        MetadataLog.bucket(rm).apply();
+    }
+
+    private static List<MetadataLog.Event> query(String target, String tag)
+    {
+        return Lists.newArrayList(MetadataLog.query(target, tag));
+    }
+
+    private static List<MetadataLog.Event> query(String target, String tag, long from, long to)
+    {
+        return Lists.newArrayList(MetadataLog.query(target, tag, from, to));
+    }
+
+    @Test
+    public void testTagDictionary()
+    {
+        assertEquals(Metadata.Insert_Tag, Metadata.tagName(Metadata.tagId(Metadata.Insert_Tag)));
+        assertEquals(Metadata.DecommissionVerified_Tag, Metadata.tagName(Metadata.tagId(Metadata.DecommissionVerified_Tag)));
+        try
+        {
+            Metadata.tagId("no such tag");
+            throw new AssertionError();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTimeRangeQuery() throws Exception
+    {
+        String target = "ks.cf.timerange";
+        // written out of order, read back in time order
+        for (long millis : new long[]{ 3000, 1000, 4000, 2000 })
+            apply(MetadataLog.add(target, at(millis), "user", Metadata.Insert_Tag, String.valueOf(millis), ""));
+        apply(MetadataLog.add(target, at(2500), "user", Metadata.Update_Tag, "update", ""));
+
+        List<MetadataLog.Event> events = query(target, Metadata.Insert_Tag);
+        assertEquals(4, events.size());
+        for (int i = 0; i < events.size(); i++)
+            assertEquals(String.valueOf((i + 1) * 1000), ByteBufferUtil.string(events.get(i).value));
+
+        events = query(target, Metadata.Insert_Tag, 2000, 3000);
+        assertEquals(2, events.size());
+        assertEquals("2000", ByteBufferUtil.string(events.get(0).value));
+        assertEquals("3000", ByteBufferUtil.string(events.get(1).value));
+        assertEquals("user", events.get(0).client);
+        assertEquals(Metadata.Insert_Tag, events.get(0).tag);
+        assertEquals(2000, UUIDGen.unixTimestamp(events.get(0).time));
+
+        events = query(target, Metadata.Update_Tag, 2000, 3000);
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void testPagingAcrossBuckets() throws Exception
+    {
+        String target = "ks.cf.buckets";
+        long bucketSize = DatabaseDescriptor.getMetadataLogBucketSize();
+        int count = MetadataLog.PAGE_SIZE * 2 + 10;
+        // spread events over three buckets, with an empty one in the middle
+        for (int i = 0; i < count; i++)
+        {
+            long millis = i < MetadataLog.PAGE_SIZE ? i : 3 * bucketSize + i;
+            apply(MetadataLog.add(target, at(millis), "", Metadata.Update_Tag, String.valueOf(i), ""));
+        }
+        apply(MetadataLog.add(target, at(bucketSize + 1), "", Metadata.Insert_Tag, "other tag", ""));
+
+        List<MetadataLog.Event> events = query(target, Metadata.Update_Tag);
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(String.valueOf(i), ByteBufferUtil.string(events.get(i).value));
+
+        events = query(target, Metadata.Update_Tag, 3 * bucketSize, 4 * bucketSize);
+        assertEquals(count - MetadataLog.PAGE_SIZE, events.size());
+        assertEquals(String.valueOf(MetadataLog.PAGE_SIZE), ByteBufferUtil.string(events.get(0).value));
+    }
+
+    @Test
+    public void testPagingBucketIndex() throws Exception
+    {
+        String target = "ks.cf.manybuckets";
+        long bucketSize = DatabaseDescriptor.getMetadataLogBucketSize();
+        // more buckets than a page of the bucket index
+        int count = MetadataLog.PAGE_SIZE + 10;
+        for (int i = 0; i < count; i++)
+            apply(MetadataLog.add(target, at(i * bucketSize), "", Metadata.Update_Tag, String.valueOf(i), ""));
+
+        List<MetadataLog.Event> events = query(target, Metadata.Update_Tag);
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(String.valueOf(i), ByteBufferUtil.string(events.get(i).value));
+    }
+
+    @Test
+    public void testBucket()
+    {
+        long bucketSize = DatabaseDescriptor.getMetadataLogBucketSize();
+        assertEquals(0, MetadataLog.bucket(0));
+        assertEquals(0, MetadataLog.bucket(bucketSize - 1));
+        assertEquals(bucketSize, MetadataLog.bucket(bucketSize));
+        assertEquals(-bucketSize, MetadataLog.bucket(-1));
+    }
+
+    @Test
+    public void testUpgradeOldLog() throws Exception
+    {
+        Token<?> token = StorageService.getPartitioner().getRandomToken();
+        String tokenString = StorageService.getPartitioner().getTokenFactory().toString(token);
+        String req = "INSERT INTO %s.\"%s\" (target, time, client, tag, value) VALUES ('%s', '%d', '', '%s', 0x%s)";
+        processInternal(String.format(req, Metadata.MetaData_KS, Metadata.OldMetadataLog_CF, "upgraded", 1000000L, Metadata.Decommission_Tag,
+                                      ByteBufferUtil.bytesToHex(ByteBufferUtil.bytes("Keyspace1:" + tokenString + ":127.0.0.2"))));
+        // rows, and partitions, spanning several pages
+        for (int i = 0; i < 3; i++)
+        {
+            processInternal(String.format(req, Metadata.MetaData_KS, Metadata.OldMetadataLog_CF, "upgraded", 2000000L + i, Metadata.TruncateColumnFamily_Tag, ""));
+            processInternal(String.format(req, Metadata.MetaData_KS, Metadata.OldMetadataLog_CF, "upgraded" + i, 2000000L, Metadata.TruncateColumnFamily_Tag, ""));
+        }
+        // a tag unknown to this version is skipped
+        processInternal(String.format(req, Metadata.MetaData_KS, Metadata.OldMetadataLog_CF, "upgraded", 3000000L, "unknown tag", ""));
+        ColumnFamilyStore oldLogCfs = Table.open(Metadata.MetaData_KS).getColumnFamilyStore(Metadata.OldMetadataLog_CF);
+        oldLogCfs.forceBlockingFlush();
+
+        MetadataLog.upgradeOldLog(2);
+        assertTrue(oldLogCfs.getSSTables().isEmpty());
+
+        List<MetadataLog.Event> events = query("upgraded", Metadata.Decommission_Tag);
+        assertEquals(1, events.size());
+        assertEquals(1000, UUIDGen.unixTimestamp(events.get(0).time));
+        List<MetadataLogValue.Entry> entries = MetadataLogValue.decode(events.get(0).value);
+        assertEquals(1, entries.size());
+        assertEquals("Keyspace1", ByteBufferUtil.string(entries.get(0).name.get(0)));
+        assertEquals(token, StorageService.getPartitioner().getTokenFactory().fromByteArray(entries.get(0).name.get(1)));
+        assertEquals(InetAddress.getByName("127.0.0.2"), InetAddress.getByAddress(ByteBufferUtil.getArray(entries.get(0).value)));
+
+        assertEquals(3, query("upgraded", Metadata.TruncateColumnFamily_Tag).size());
+        for (int i = 0; i < 3; i++)
+            assertEquals(1, query("upgraded" + i, Metadata.TruncateColumnFamily_Tag).size());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.cql3.CFDefinition;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DeletedColumn;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MetadataLogValueTest extends SchemaLoader
+{
+    @Test
+    public void testCompositeRoundTrip() throws Exception
+    {
+        CFDefinition cfDef = CFMetaData.MetadataRegistryCf.getCfDef();
+        ColumnFamily cf = ColumnFamily.create(CFMetaData.MetadataRegistryCf);
+        cf.addColumn(Column.create("", 0, Metadata.Insert_Tag, "")); // row marker
+        cf.addColumn(Column.create("admin", 0, Metadata.Insert_Tag, "admin_tag"));
+
+        List<MetadataLogValue.Entry> entries = MetadataLogValue.decode(MetadataLogValue.encode(cfDef, cf, true));
+        assertEquals(1, entries.size());
+        assertEquals(2, entries.get(0).name.size());
+        assertEquals(Metadata.Insert_Tag, ByteBufferUtil.string(entries.get(0).name.get(0)));
+        assertEquals("admin_tag", ByteBufferUtil.string(entries.get(0).name.get(1)));
+        assertEquals("admin", ByteBufferUtil.string(entries.get(0).value));
+
+        entries = MetadataLogValue.decode(MetadataLogValue.encode(cfDef, cf, false));
+        assertEquals(1, entries.size());
+        assertNull(entries.get(0).value);
+    }
+
+    @Test
+    public void testSimpleRoundTrip() throws Exception
+    {
+        CFMetaData cfm = Schema.instance.getCFMetaData("Keyspace1", "Standard1");
+        ColumnFamily cf = ColumnFamily.create(cfm);
+        cf.addColumn(new Column(ByteBufferUtil.bytes("c1"), ByteBufferUtil.bytes("v1"), 0));
+        cf.addColumn(new DeletedColumn(ByteBufferUtil.bytes("c2"), 0, 0));
+
+        ByteBuffer value = MetadataLogValue.encode(cfm.getCfDef(), cf, true);
+        List<MetadataLogValue.Entry> entries = MetadataLogValue.decode(value);
+        assertEquals(2, entries.size());
+        assertEquals("c1", ByteBufferUtil.string(entries.get(0).name.get(0)));
+        assertEquals("v1", ByteBufferUtil.string(entries.get(0).value));
+        assertEquals("c2", ByteBufferUtil.string(entries.get(1).name.get(0)));
+    }
+
+    @Test
+    public void testTarget() throws Exception
+    {
+        CFDefinition cfDef = CFMetaData.MetadataRegistryCf.getCfDef();
+        assertEquals(Metadata.MetaData_KS + "." + Metadata.MetadataRegistry_CF + ".ks.cf.key",
+                     MetadataLogValue.target(cfDef, ByteBufferUtil.bytes("ks.cf.key")));
+    }
+}
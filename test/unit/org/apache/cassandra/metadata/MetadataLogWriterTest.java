@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Config;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.UUIDGen;
+
+import static org.junit.Assert.assertEquals;
+
+public class MetadataLogWriterTest extends SchemaLoader
+{
+    @Test
+    public void testCoalesce()
+    {
+        List<RowMutation> events = Arrays.asList(MetadataLog.add("ks.cf.k1", at(1), "", Metadata.Insert_Tag, "a", ""),
+                                                 MetadataLog.add("ks.cf.k2", at(2), "", Metadata.Insert_Tag, "b", ""),
+                                                 MetadataLog.add("ks.cf.k1", at(3), "", Metadata.Update_Tag, "c", ""),
+                                                 MetadataLog.add("ks.cf.k1", at(DatabaseDescriptor.getMetadataLogBucketSize()), "", Metadata.Update_Tag, "d", ""));
+
+        List<RowMutation> mutations = MetadataLogWriter.coalesce(events);
+        assertEquals(3, mutations.size());
+        assertEquals(ByteBufferUtil.bytes("ks.cf.k1"), CompositeType.extractComponent(mutations.get(0).key(), 0));
+        assertEquals(2, mutations.get(0).getColumnFamily(CFMetaData.MetadataLogCf.cfId).getColumnCount());
+        assertEquals(ByteBufferUtil.bytes("ks.cf.k2"), CompositeType.extractComponent(mutations.get(1).key(), 0));
+        assertEquals(1, mutations.get(1).getColumnFamily(CFMetaData.MetadataLogCf.cfId).getColumnCount());
+
+        // one bucket mutation per target, recording both buckets of k1
+        List<RowMutation> withBuckets = MetadataLogWriter.withBuckets(mutations);
+        assertEquals(5, withBuckets.size());
+        assertEquals(ByteBufferUtil.bytes("ks.cf.k1"), withBuckets.get(3).key());
+        assertEquals(2, withBuckets.get(3).getColumnFamily(CFMetaData.MetadataLogBucketsCf.cfId).getColumnCount());
+    }
+
+    private static UUID at(long millis)
+    {
+        return UUIDGen.getUUID(ByteBuffer.wrap(UUIDGen.getTimeUUIDBytes(millis)));
+    }
+
+    @Test
+    public void testBatchSizeAndDrops() throws InterruptedException
+    {
+        MetadataLogWriter writer = new MetadataLogWriter(4, 3, 0, Config.MetadataLogFullPolicy.drop, false);
+        long dropped = writer.metrics.droppedEvents.count();
+        for (int i = 0; i < 5; i++)
+            writer.append(MetadataLog.add("ks.cf.k" + i, UUIDGen.getTimeUUID(), "", Metadata.Insert_Tag, "", ""));
+        assertEquals(4, writer.getPendingEvents());
+        assertEquals(dropped + 1, writer.metrics.droppedEvents.count());
+
+        List<RowMutation> batch = new ArrayList<RowMutation>();
+        writer.takeBatch(batch);
+        assertEquals(3, batch.size());
+        batch.clear();
+        writer.takeBatch(batch);
+        assertEquals(1, batch.size());
+    }
+
+    @Test
+    public void testWriteNowBypassesFullQueue() throws Exception
+    {
+        final List<RowMutation> written = new ArrayList<RowMutation>();
+        MetadataLogWriter writer = new MetadataLogWriter(1, 1, 0, Config.MetadataLogFullPolicy.drop, false)
+        {
+            protected void write(List<RowMutation> mutations)
+            {
+                written.addAll(mutations);
+            }
+        };
+        writer.append(MetadataLog.add("ks.cf.k0", UUIDGen.getTimeUUID(), "", Metadata.Insert_Tag, "", ""));
+        long dropped = writer.metrics.droppedEvents.count();
+
+        writer.writeNow(Arrays.asList(MetadataLog.add("node1", at(1), "", Metadata.Decommission_Tag, "a", ""),
+                                      MetadataLog.add("node1", at(2), "", Metadata.Decommission_Tag, "b", "")));
+        // the two events of the same bucket are coalesced, and their bucket recorded
+        assertEquals(2, written.size());
+        assertEquals(dropped, writer.metrics.droppedEvents.count());
+        assertEquals(1, writer.getPendingEvents());
+    }
+}
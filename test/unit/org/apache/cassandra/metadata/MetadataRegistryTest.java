@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DeletedColumn;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
+
+import static org.apache.cassandra.cql3.QueryProcessor.processInternal;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataRegistryTest extends SchemaLoader
+{
+    @Test
+    public void testAddAndDrop()
+    {
+        MetadataRegistry registry = MetadataRegistry.instance;
+        registry.loadLocal();
+
+        UUID version = registry.getVersion();
+        registry.add("ks1.cf1.key1", Metadata.Insert_Tag, "admin").apply();
+        assertEquals("admin", registry.query("ks1.cf1.key1", Metadata.Insert_Tag));
+        assertNull(registry.query("ks1.cf1.key1", Metadata.Update_Tag));
+        assertNull(registry.query("ks1.cf1.key2", Metadata.Insert_Tag));
+        assertTrue(registry.mayContain("ks1", "cf1"));
+        assertFalse(registry.mayContain("ks1", "cf2"));
+        assertFalse(version.equals(registry.getVersion()));
+
+        registry.drop("ks1.cf1.key1").apply();
+        assertNull(registry.query("ks1.cf1.key1", Metadata.Insert_Tag));
+        assertFalse(registry.mayContain("ks1", "cf1"));
+
+        // a mutation changes the registry once applied only
+        RowMutation rm = registry.add("ks1.cf1.key2", Metadata.Insert_Tag, "admin");
+        assertNull(registry.query("ks1.cf1.key2", Metadata.Insert_Tag));
+        rm.apply();
+        assertEquals("admin", registry.query("ks1.cf1.key2", Metadata.Insert_Tag));
+    }
+
+    @Test
+    public void testLoadLocal()
+    {
+        MetadataRegistry registry = MetadataRegistry.instance;
+        registry.add("ks2.cf1", Metadata.TruncateColumnFamily_Tag, "").apply();
+        registry.add("ks2.cf1.key1", Metadata.delete_Tag, "admin").apply();
+
+        registry.loadLocal();
+        assertEquals("", registry.query("ks2.cf1", Metadata.TruncateColumnFamily_Tag));
+        assertEquals("admin", registry.query("ks2.cf1.key1", Metadata.delete_Tag));
+        assertTrue(registry.mayContain("ks2", "cf1"));
+
+        long hits = registry.metrics.hits.count();
+        registry.query("ks2.cf2.key1", Metadata.delete_Tag);
+        assertEquals(hits + 1, registry.metrics.hits.count());
+    }
+
+    @Test
+    public void testDeleteAdminTag()
+    {
+        MetadataRegistry registry = MetadataRegistry.instance;
+        registry.loadLocal();
+        registry.add("ks3.cf1.key1", Metadata.Insert_Tag, "admin").apply();
+        registry.add("ks3.cf1.key1", Metadata.Update_Tag, "admin").apply();
+        assertEquals("admin", registry.query("ks3.cf1.key1", Metadata.Insert_Tag));
+
+        // deleting the admin tag leaves the entry registered with an empty one, as it is loaded
+        String table = Metadata.MetaData_KS + ".\"" + Metadata.MetadataRegistry_CF + "\"";
+        processInternal(String.format("DELETE admin_tag FROM %s WHERE target = 'ks3.cf1.key1' AND data_tag = '%s'", table, Metadata.Insert_Tag));
+        assertEquals("", registry.query("ks3.cf1.key1", Metadata.Insert_Tag));
+        registry.loadLocal();
+        assertEquals("", registry.query("ks3.cf1.key1", Metadata.Insert_Tag));
+
+        // deleting the cells of the entry unregisters it, and only it
+        RowMutation rm = new RowMutation(Metadata.MetaData_KS, ByteBufferUtil.bytes("ks3.cf1.key1"));
+        ColumnFamily cf = rm.addOrGet(CFMetaData.MetadataRegistryCf);
+        long timestamp = FBUtilities.timestampMicros();
+        int ldt = (int) (System.currentTimeMillis() / 1000);
+        cf.addColumn(new DeletedColumn(Column.decomposeName(Metadata.Insert_Tag, ""), ldt, timestamp));
+        cf.addColumn(new DeletedColumn(Column.decomposeName(Metadata.Insert_Tag, "admin_tag"), ldt, timestamp));
+        rm.apply();
+        assertNull(registry.query("ks3.cf1.key1", Metadata.Insert_Tag));
+        assertEquals("admin", registry.query("ks3.cf1.key1", Metadata.Update_Tag));
+
+        processInternal(String.format("DELETE FROM %s WHERE target = 'ks3.cf1.key1'", table));
+        assertNull(registry.query("ks3.cf1.key1", Metadata.Update_Tag));
+        assertFalse(registry.mayContain("ks3", "cf1"));
+    }
+}
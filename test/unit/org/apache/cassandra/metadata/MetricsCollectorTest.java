@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.metadata;
+
+import java.util.List;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MetricsCollectorTest extends SchemaLoader
+{
+    @Test
+    public void testCompile() throws Exception
+    {
+        // make sure the column family metrics are registered
+        Table.open("Keyspace1").getColumnFamilyStore("Standard1");
+
+        assertNull(MetricsCollector.compile("Keyspace1.Standard1.key", ""));
+        assertNull(MetricsCollector.compile("Keyspace1.Standard1.key", "every=10"));
+        assertNull(MetricsCollector.compile("Keyspace1.Standard1.key", "type=ColumnFamily,name=NoSuchMetric"));
+
+        String adminTag = "every=2;"
+                        + "type=ColumnFamily,name=LiveSSTableCount;"     // gauge, scope taken from the target
+                        + "type=ColumnFamily,scope=Keyspace1.Standard1,name=ReadLatency;" // timer
+                        + "type=ColumnFamily,name=MemtableSwitchCount;"  // counter
+                        + "type=ColumnFamily,name=EstimatedRowSizeHistogram;" // not a number
+                        + "type=ColumnFamily,scope=Keyspace1.NoSuchCF,name=LiveSSTableCount";
+        MetricsCollector collector = MetricsCollector.compile("Keyspace1.Standard1.key", adminTag);
+        assertEquals(3, collector.size());
+
+        List<MetadataLogValue.Entry> entries = MetadataLogValue.decode(collector.snapshot());
+        assertEquals(3, entries.size());
+        assertEquals("ColumnFamily.LiveSSTableCount", ByteBufferUtil.string(entries.get(0).name.get(0)));
+        assertEquals("ColumnFamily.ReadLatency", ByteBufferUtil.string(entries.get(1).name.get(0)));
+        assertEquals("ColumnFamily.MemtableSwitchCount", ByteBufferUtil.string(entries.get(2).name.get(0)));
+        assertEquals(8, entries.get(0).value.remaining());
+        assertEquals(0.0, ByteBufferUtil.toDouble(entries.get(0).value), 0.0);
+    }
+
+    @Test
+    public void testReregisteredMetric() throws Exception
+    {
+        MetricName name = new MetricName(MetricsCollector.GROUP_NAME, "ColumnFamily", "CollectorTestCount", "Keyspace1.Standard1");
+        Metrics.newCounter(name).inc(1);
+        MetricsCollector collector = MetricsCollector.compile("Keyspace1.Standard1.key", "type=ColumnFamily,name=CollectorTestCount");
+        assertEquals(1.0, ByteBufferUtil.toDouble(MetadataLogValue.decode(collector.snapshot()).get(0).value), 0.0);
+
+        // as when the column family is dropped and recreated
+        Metrics.defaultRegistry().removeMetric(name);
+        assertEquals(0, MetadataLogValue.decode(collector.snapshot()).size());
+        Metrics.newCounter(name).inc(5);
+        assertEquals(5.0, ByteBufferUtil.toDouble(MetadataLogValue.decode(collector.snapshot()).get(0).value), 0.0);
+        Metrics.defaultRegistry().removeMetric(name);
+    }
+
+    @Test
+    public void testAttachedToEvents() throws Exception
+    {
+        Table.open("Keyspace1").getColumnFamilyStore("Standard1");
+        MetadataLogPolicy policy = new MetadataLogPolicy("Keyspace1.Standard1", "type=ColumnFamily,name=LiveSSTableCount");
+        // the event and its metrics snapshot
+        assertEquals(2, MetadataLog.event("Keyspace1.Standard1", Metadata.Update_Tag, "", ByteBufferUtil.bytes("v"), policy).getColumnFamilies().iterator().next().getColumnCount());
+
+        policy = new MetadataLogPolicy("Keyspace1.Standard1", "");
+        assertEquals(1, MetadataLog.event("Keyspace1.Standard1", Metadata.Update_Tag, "", ByteBufferUtil.bytes("v"), policy).getColumnFamilies().iterator().next().getColumnCount());
+    }
+}
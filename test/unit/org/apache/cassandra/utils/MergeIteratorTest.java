@@ -18,8 +18,13 @@
 */
 package org.apache.cassandra.utils;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
@@ -71,6 +76,85 @@ public class MergeIteratorTest
         assert a.closed && b.closed && c.closed && d.closed;
     }
 
+    /** Test that the tournament tree merges like the heap, whatever the number of inputs and duplicates. */
+    @Test
+    public void testTournamentTree() throws Exception
+    {
+        Random random = new Random(0);
+        for (int size = 1; size <= 33; size++)
+        {
+            for (int round = 0; round < 10; round++)
+            {
+                List<List<Integer>> inputs = new ArrayList<List<Integer>>();
+                for (int i = 0; i < size; i++)
+                {
+                    List<Integer> input = new ArrayList<Integer>();
+                    int count = random.nextInt(20);
+                    for (int j = 0; j < count; j++)
+                    {
+                        Integer item = random.nextInt(round < 5 ? 50 : 1000);
+                        if (!input.contains(item))
+                            input.add(item);
+                    }
+                    Collections.sort(input);
+                    inputs.add(input);
+                }
+
+                List<String> expected = merge(new MergeIterator.ManyToOne<Integer, String>(iterators(inputs), Ordering.<Integer>natural(), counter()));
+                List<CLI<Integer>> iterators = iterators(inputs);
+                List<String> merged = merge(new MergeIterator.TournamentTree<Integer, String>(iterators, Ordering.<Integer>natural(), counter()));
+                assert expected.equals(merged) : expected + " != " + merged;
+                for (CLI<Integer> iterator : iterators)
+                    assert iterator.closed;
+            }
+        }
+    }
+
+    private static List<CLI<Integer>> iterators(List<List<Integer>> inputs)
+    {
+        List<CLI<Integer>> iterators = new ArrayList<CLI<Integer>>();
+        for (List<Integer> input : inputs)
+            iterators.add(new CLI<Integer>(input.toArray(new Integer[input.size()])));
+        return iterators;
+    }
+
+    private static List<String> merge(IMergeIterator<Integer, String> merge) throws IOException
+    {
+        List<String> merged = new ArrayList<String>();
+        while (merge.hasNext())
+            merged.add(merge.next());
+        merge.close();
+        return merged;
+    }
+
+    // reduces equal items to "item x count"
+    private static MergeIterator.Reducer<Integer, String> counter()
+    {
+        return new MergeIterator.Reducer<Integer, String>()
+        {
+            Integer item;
+            int count;
+
+            public void reduce(Integer current)
+            {
+                assert item == null || item.equals(current);
+                item = current;
+                count++;
+            }
+
+            protected void onKeyChange()
+            {
+                item = null;
+                count = 0;
+            }
+
+            protected String getReduced()
+            {
+                return item + "x" + count;
+            }
+        };
+    }
+
     // closeable list iterator
     public static class CLI<E> extends AbstractIterator<E> implements CloseableIterator<E>
     {